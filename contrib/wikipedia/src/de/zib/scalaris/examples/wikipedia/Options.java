@@ -75,8 +75,9 @@ public class Options {
     public int WIKI_SAVEPAGE_RETRIES = 0;
     
     /**
-     * How long to wait after a failed "sage page" operation before trying
-     * again (in milliseconds).
+     * How long to wait (at most) after a failed "sage page" operation before
+     * trying again (in milliseconds). The actual delay is random and the
+     * bound doubles with each further retry.
      * 
      * @see #WIKI_SAVEPAGE_RETRIES
      */
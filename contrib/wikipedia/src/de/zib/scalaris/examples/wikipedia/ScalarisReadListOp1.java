@@ -116,7 +116,7 @@ public class ScalarisReadListOp1<T> implements ScalarisOp {
     protected int checkRead(int firstOp, final ResultList results) throws OtpErlangException,
             UnknownException {
         int notFound = 0;
-        NotFoundException lastNotFound = null;
+        int lastNotFound = -1;
         ErlangConverter<WriteCacheDiff<T>> writeCacheDiffConv = null;
         HashSet<T> toDelete = null;
         if (optimisation instanceof APPEND_INCREMENT_BUCKETS_WITH_WCACHE) {
@@ -125,31 +125,37 @@ public class ScalarisReadListOp1<T> implements ScalarisOp {
         }
         for (int x = 0; x < keys.size(); ++x) {
             for (int i = 0; i < buckets; ++i) {
-                try {
-                    ErlangValue result = results.processReadAt(firstOp++);
-                    if (writeCacheDiffConv != null && i >= ((IReadBuckets) optimisation).getReadBuckets()) {
-                        WriteCacheDiff<T> diff = writeCacheDiffConv.convert(result);
-                        if (value.isEmpty() && !diff.toAdd.isEmpty()) {
-                            // assume each bucket has the same size
-                            // different keys may have different list sizes though
-                            // -> use automatic capacity increase for them
-                            value.ensureCapacity(diff.toAdd.size() * (buckets - i));
-                        }
-                        value.addAll(diff.toAdd);
-                        toDelete.addAll(diff.toDelete);
-                    } else {
-                        final List<T> list = listConv.convert(result);
-                        if (value.isEmpty() && !list.isEmpty()) {
-                            // assume each bucket has the same size
-                            // different keys may have different list sizes though
-                            // -> use automatic capacity increase for them
-                            value.ensureCapacity(list.size() * (buckets - i));
-                        }
-                        value.addAll(list);
-                    }
-                } catch (NotFoundException e) {
+                // missing buckets are expected -> do not create exceptions
+                final ResultList.ReadResult readResult = results.tryReadAt(firstOp);
+                if (readResult.getStatus() == ResultList.Status.NOT_FOUND) {
                     ++notFound;
-                    lastNotFound = e;
+                    lastNotFound = firstOp++;
+                    continue;
+                } else if (!readResult.isFound()) {
+                    // throws the appropriate exception
+                    results.processReadAt(firstOp);
+                }
+                ++firstOp;
+                ErlangValue result = readResult.getValue();
+                if (writeCacheDiffConv != null && i >= ((IReadBuckets) optimisation).getReadBuckets()) {
+                    WriteCacheDiff<T> diff = writeCacheDiffConv.convert(result);
+                    if (value.isEmpty() && !diff.toAdd.isEmpty()) {
+                        // assume each bucket has the same size
+                        // different keys may have different list sizes though
+                        // -> use automatic capacity increase for them
+                        value.ensureCapacity(diff.toAdd.size() * (buckets - i));
+                    }
+                    value.addAll(diff.toAdd);
+                    toDelete.addAll(diff.toDelete);
+                } else {
+                    final List<T> list = listConv.convert(result);
+                    if (value.isEmpty() && !list.isEmpty()) {
+                        // assume each bucket has the same size
+                        // different keys may have different list sizes though
+                        // -> use automatic capacity increase for them
+                        value.ensureCapacity(list.size() * (buckets - i));
+                    }
+                    value.addAll(list);
                 }
             }
         }
@@ -157,7 +163,7 @@ public class ScalarisReadListOp1<T> implements ScalarisOp {
             value.removeAll(toDelete);
         }
         if (failNotFound && notFound == (keys.size() * buckets)) {
-            throw lastNotFound;
+            throw new NotFoundException(results.get(lastNotFound).getResult());
         }
         return keys.size() * buckets;
     }
@@ -102,19 +102,25 @@ public class ScalarisReadNumberOp1 implements ScalarisOp {
     protected int checkRead(int firstOp, final ResultList results) throws OtpErlangException,
             UnknownException {
         int notFound = 0;
-        NotFoundException lastNotFound = null;
+        int lastNotFound = -1;
         for (int x = 0; x < keys.size(); ++x) {
             for (int i = 0; i < buckets; ++i) {
-                try {
-                    value = value.add(results.processReadAt(firstOp++).bigIntValue());
-                } catch (NotFoundException e) {
+                // missing buckets are expected -> do not create exceptions
+                final ResultList.ReadResult result = results.tryReadAt(firstOp);
+                if (result.isFound()) {
+                    value = value.add(result.getValue().bigIntValue());
+                } else if (result.getStatus() == ResultList.Status.NOT_FOUND) {
                     ++notFound;
-                    lastNotFound = e;
+                    lastNotFound = firstOp;
+                } else {
+                    // throws the appropriate exception
+                    results.processReadAt(firstOp);
                 }
+                ++firstOp;
             }
         }
         if (failNotFound && notFound == (keys.size() * buckets)) {
-            throw lastNotFound;
+            throw new NotFoundException(results.get(lastNotFound).getResult());
         }
         return keys.size() * buckets;
     }
@@ -57,6 +57,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 
+import de.zib.scalaris.TransactionRunner;
 import de.zib.scalaris.examples.wikipedia.InvolvedKey;
 import de.zib.scalaris.examples.wikipedia.NamespaceUtils;
 import de.zib.scalaris.examples.wikipedia.Options;
@@ -1915,7 +1916,10 @@ public abstract class WikiServlet<Connection> extends HttpServlet implements
                         break;
                     }
                     try {
-                        Thread.sleep(Options.getInstance().WIKI_SAVEPAGE_RETRY_DELAY);
+                        // randomised exponential backoff so that concurrent
+                        // edits do not collide again and again
+                        final long delay = Options.getInstance().WIKI_SAVEPAGE_RETRY_DELAY;
+                        Thread.sleep(TransactionRunner.backoffDelay(delay, delay << 10, retries));
                     } catch (InterruptedException e) {
                     }
                     ++retries;
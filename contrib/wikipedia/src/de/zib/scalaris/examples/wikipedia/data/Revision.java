@@ -15,16 +15,15 @@
  */
 package de.zib.scalaris.examples.wikipedia.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.util.Calendar;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.codec.binary.Base64;
 
+import de.zib.scalaris.CodecPool;
+
 /**
  * Represents a revision of a page.
  * 
@@ -165,16 +164,7 @@ public class Revision implements Serializable {
      */
     protected static String unpackText(byte[] text) throws RuntimeException {
         try {
-            ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
-            ByteArrayInputStream bis = new ByteArrayInputStream(text);
-            GZIPInputStream gis = new GZIPInputStream(bis);
-            byte[] bbuf = new byte[256];
-            int read = 0;
-            while ((read = gis.read(bbuf)) >= 0) {
-                unpacked.write(bbuf, 0, read);
-            }
-            gis.close();
-            return new String(unpacked.toString("UTF-8"));
+            return new String(CodecPool.get().gunzip(text), "UTF-8");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -193,13 +183,8 @@ public class Revision implements Serializable {
      */
     protected static byte[] packText(String text) throws RuntimeException {
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            GZIPOutputStream gos = new GZIPOutputStream(bos);
-            gos.write(text.getBytes("UTF-8"));
-            gos.flush();
-            gos.close();
-            return bos.toByteArray();
-        } catch (IOException e) {
+            return CodecPool.get().gzip(text.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
     }
@@ -37,11 +37,13 @@ import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.Connection;
 import de.zib.scalaris.ConnectionException;
 import de.zib.scalaris.ConnectionFactory;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.RoundRobinConnectionPolicy;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.TransactionSingleOp;
 import de.zib.scalaris.examples.wikipedia.Options;
 import de.zib.scalaris.examples.wikipedia.SQLiteDataHandler;
@@ -479,6 +481,15 @@ public class WikiDumpPreparedSQLiteToScalaris implements WikiDump {
             return new OtpErlangTuple(new OtpErlangObject[] {
                     CommonErlangObjects.writeAtom, key, value });
         }
+
+        /* (non-Javadoc)
+         * @see de.zib.scalaris.operations.WriteOp#getErlang(boolean, de.zib.scalaris.CompressionPolicy, de.zib.scalaris.StringEncoding)
+         */
+        @Override
+        public OtpErlangObject getErlang(boolean compressed,
+                CompressionPolicy policy, StringEncoding stringEncoding) {
+            return getErlang(compressed);
+        }
         
     }
 
@@ -14,11 +14,14 @@ import com.yahoo.ycsb.StringByteIterator;
 import de.zib.scalaris.Connection;
 import de.zib.scalaris.ConnectionException;
 import de.zib.scalaris.ConnectionFactory;
+import de.zib.scalaris.JsonView;
 import de.zib.scalaris.NotFoundException;
+import de.zib.scalaris.RangeReader;
 import de.zib.scalaris.ReplicatedDHT;
+import de.zib.scalaris.RoutingTable;
 import de.zib.scalaris.TransactionSingleOp;
+import de.zib.scalaris.UnknownException;
 
-import java.util.Map;
 import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Properties;
@@ -31,12 +34,16 @@ public class ScalarisClient extends DB {
 	public static final String HOST_PROPERTY = "scalaris.node";
 	public static final String CLIENT_NAME_PROPERTY = "scalaris.name";
 	public static final String COOKIE_PROPERTY = "scalaris.cookie";
+	public static final String SCAN_PARTS_PROPERTY = "scalaris.scanparts";
 
 	public static final String TABLE_SEPERATOR = ":";
 
 	private Connection conn;
 	private TransactionSingleOp ts;
 	private ReplicatedDHT rdht;
+	private RoutingTable rt;
+	private RangeReader reader;
+	private int scanParts;
 
 	public void init() {
 		try {
@@ -50,6 +57,11 @@ public class ScalarisClient extends DB {
 			conn = fac.createConnection();
 			ts = new TransactionSingleOp(conn);
 			rdht = new ReplicatedDHT(conn);
+			rt = new RoutingTable(conn);
+			reader = new RangeReader(conn);
+			// short scans do not need to read ahead
+			reader.setPrefetch(1);
+			scanParts = Integer.parseInt(props.getProperty(SCAN_PARTS_PROPERTY, "1024"));
 		} catch (ConnectionException e) {
 			e.printStackTrace();
 		}
@@ -64,14 +76,13 @@ public class ScalarisClient extends DB {
 			HashMap<String, ByteIterator> result) {
 
 		try {
-			// get the value
-			Map<String, Object> dbValues = ts.read(
-					table + TABLE_SEPERATOR + key).jsonValue();
-			// jsonValue() returns Map<String, Object> but we need
-			// Map<String, ByteIterator>
-			for (Entry<String, Object> entry : dbValues.entrySet()) {
-				result.put(entry.getKey(), new StringByteIterator(
-						(String) entry.getValue()));
+			// get the value (only the requested fields are converted,
+			// fields == null means all fields)
+			JsonView dbValues = ts.read(
+					table + TABLE_SEPERATOR + key).jsonView(fields);
+			for (String field : dbValues.fieldNames()) {
+				result.put(field, new StringByteIterator(
+						dbValues.getString(field)));
 			}
 		} catch (NotFoundException e) {
 		} catch (OtpErlangException e) {
@@ -158,9 +169,41 @@ public class ScalarisClient extends DB {
 	}
 
 	@Override
+	/*
+	 * Scalaris stores items by the hashes of their keys, i.e. this returns
+	 * recordcount items in hash order starting at the start key's position
+	 * (each chunk of the ring read contains about 1/scanParts of all items).
+	 */
 	public int scan(String table, String startkey, int recordcount,
 			Set<String> fields, Vector<HashMap<String, ByteIterator>> result) {
-		/* Scalaris doesn't support scan semantics (sorry) */
-		return 1;
+		try {
+			RangeReader.ScanIterator iter = reader.scan(
+					rt.hashKey(table + TABLE_SEPERATOR + startkey), scanParts);
+			try {
+				while (result.size() < recordcount && iter.hasNext()) {
+					HashMap<String, ByteIterator> record = new HashMap<String, ByteIterator>();
+					try {
+						JsonView dbValues = iter.next().getValue().jsonView(fields);
+						for (String field : dbValues.fieldNames()) {
+							record.put(field, new StringByteIterator(
+									dbValues.getString(field)));
+						}
+					} catch (ClassCastException e) {
+						// not a record
+						continue;
+					}
+					result.add(record);
+				}
+			} finally {
+				iter.close();
+			}
+		} catch (OtpErlangException e) {
+			e.printStackTrace();
+			return 1;
+		} catch (UnknownException e) {
+			e.printStackTrace();
+			return 1;
+		}
+		return 0;
 	}
 }
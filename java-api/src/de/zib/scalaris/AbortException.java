@@ -25,7 +25,7 @@ import com.ericsson.otp.erlang.OtpErlangException;
  * scalaris ring fails.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.12
+ * @version 3.21
  * @since 2.5
  */
 public class AbortException extends OtpErlangException {
@@ -34,6 +34,11 @@ public class AbortException extends OtpErlangException {
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Whether to record the stack trace when creating an exception.
+     */
+    private static volatile boolean stackTraceEnabled = true;
+
     /**
      * List of keys responsible for the abort.
      */
@@ -105,7 +110,7 @@ public class AbortException extends OtpErlangException {
      */
     public AbortException(final String msg, final List<String> responsibleKeys) {
         super(msg);
-        this.failedKeys = new ArrayList<String>(0);
+        this.failedKeys = responsibleKeys;
     }
 
     /**
@@ -130,4 +135,41 @@ public class AbortException extends OtpErlangException {
     public List<String> getFailedKeys() {
         return failedKeys;
     }
+
+    /**
+     * Sets whether new exceptions record their stack trace (default:
+     * <tt>true</tt>).
+     *
+     * Applications for which aborts are an expected outcome may disable
+     * stack traces in order to make creating (and throwing) these exceptions
+     * as cheap as a normal return. See also
+     * {@link ResultList#statusAt(int)} for an exception-free alternative.
+     *
+     * @param enabled
+     *            <tt>false</tt> to create exceptions without stack traces
+     *
+     * @since 3.21
+     */
+    public static void setStackTraceEnabled(final boolean enabled) {
+        stackTraceEnabled = enabled;
+    }
+
+    /**
+     * Gets whether new exceptions record their stack trace.
+     *
+     * @return <tt>true</tt> if stack traces are recorded
+     *
+     * @since 3.21
+     */
+    public static boolean isStackTraceEnabled() {
+        return stackTraceEnabled;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        if (stackTraceEnabled) {
+            return super.fillInStackTrace();
+        }
+        return this;
+    }
 }
@@ -16,8 +16,15 @@
 package de.zib.scalaris;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ericsson.otp.erlang.OtpErlangDouble;
+import com.ericsson.otp.erlang.OtpErlangException;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
@@ -33,11 +40,29 @@ import de.zib.scalaris.operations.WriteOp;
 /**
  * Generic base class for {@link Transaction} and {@link TransactionSingleOp}.
  *
+ * <p>
+ * Besides the synchronous methods, {@link #req_listAsync(RequestList)},
+ * {@link #readAsync(String)} and {@link #writeAsync(String, Object)} issue
+ * requests without waiting and return a {@link Future} of their result. The
+ * requests of a {@link TransactionSingleOp} are independent of each other and
+ * are sent right away, i.e. several of them may be in flight concurrently. A
+ * {@link Transaction} sends its asynchronous requests one after another in
+ * the order they were issued since each of them needs the transaction log of
+ * the previous one.
+ * </p>
+ *
+ * <p>
+ * On a {@link MultiplexedConnection}, the reply of a request completes its
+ * result directly and no thread waits for it. Otherwise, each request waits
+ * in a thread of a shared pool of I/O threads (or a user-defined
+ * {@link ExecutorService}, see {@link #setExecutor(ExecutorService)}).
+ * </p>
+ *
  * @param <ReqL> {@link RequestList} type
  * @param <ResL> {@link ResultList} type
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.18
+ * @version 3.21
  * @since 3.14
  */
 public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends ResultList> {
@@ -54,6 +79,46 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
      */
     protected boolean compressed = true;
 
+    /**
+     * Decides about the compression of values in compressed mode
+     * (<tt>null</tt> to compress all values).
+     *
+     * @since 3.21
+     */
+    protected CompressionPolicy compressionPolicy = null;
+
+    /**
+     * The encoding of string values sent to Scalaris.
+     *
+     * @since 3.21
+     */
+    protected StringEncoding stringEncoding = StringEncoding.LIST;
+
+    /**
+     * Executor running asynchronous requests.
+     *
+     * @since 3.21
+     */
+    protected ExecutorService executor = SharedExecutor.executor;
+
+    /**
+     * Lazily creates the shared pool of (daemon) I/O threads for asynchronous
+     * requests.
+     *
+     * @since 3.21
+     */
+    static final class SharedExecutor {
+        static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNr = new AtomicInteger(0);
+
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "scalaris-async-" + threadNr.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
     /**
      * Constructor, uses the default connection returned by
      * {@link ConnectionFactory#createConnection()}.
@@ -64,6 +129,7 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
     public AbstractTransaction() throws ConnectionException {
         super();
         connection = ConnectionFactory.getInstance().createConnection();
+        stringEncoding = connection.getStringEncoding();
     }
 
     /**
@@ -74,6 +140,9 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
      */
     public AbstractTransaction(final Connection conn) {
         connection = conn;
+        if (conn != null) {
+            stringEncoding = conn.getStringEncoding();
+        }
     }
 
     abstract protected ReqL newReqList();
@@ -134,6 +203,175 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
     abstract public ResL req_list(final ReqL req) throws ConnectionException,
             AbortException, UnknownException;
 
+    /**
+     * Executes all requests in <code>req</code> asynchronously (a
+     * {@link Transaction} executes them after all previously issued
+     * asynchronous requests).
+     *
+     * Note: the request list must not be changed until the request has
+     * finished.
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return the future results of all requests in the same order as they
+     *         appear in <code>req</code> - {@link Future#get()} throws the
+     *         exceptions of {@link #req_list(RequestList)} wrapped into an
+     *         {@link java.util.concurrent.ExecutionException}
+     *
+     * @see #req_list(RequestList)
+     * @since 3.21
+     */
+    public Future<ResL> req_listAsync(final ReqL req) {
+        return issueAsync(req);
+    }
+
+    /**
+     * Issues the given request list asynchronously. By default, it is started
+     * right away (see {@link #startAsync(RequestList, AsyncResult)}) - a
+     * {@link Transaction} orders its requests instead.
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return the future results
+     *
+     * @since 3.21
+     */
+    AsyncResult<ResL> issueAsync(final ReqL req) {
+        final AsyncResult<ResL> result = new AsyncResult<ResL>();
+        try {
+            startAsync(req, result);
+        } catch (final RuntimeException e) {
+            result.fail(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the given request list without waiting for the reply. The reply
+     * (or any failure) must complete the given result.
+     *
+     * By default, {@link #req_list(RequestList)} is executed by a thread of
+     * the {@link #executor} (see {@link #startBlocking(RequestList, AsyncResult)}).
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     *
+     * @since 3.21
+     */
+    void startAsync(final ReqL req, final AsyncResult<ResL> result) {
+        startBlocking(req, result);
+    }
+
+    /**
+     * Executes {@link #req_list(RequestList)} in a thread of the
+     * {@link #executor} and completes the given result with its outcome.
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     *
+     * @since 3.21
+     */
+    final void startBlocking(final ReqL req, final AsyncResult<ResL> result) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        result.complete(req_list(req));
+                    } catch (final ConnectionException e) {
+                        result.fail(e);
+                    } catch (final AbortException e) {
+                        result.fail(e);
+                    } catch (final UnknownException e) {
+                        result.fail(e);
+                    } catch (final RuntimeException e) {
+                        result.fail(e);
+                    } catch (final Error e) {
+                        result.fail(e);
+                        throw e;
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.fail(e);
+        }
+    }
+
+    /**
+     * Processes the results of an asynchronous request once it is done.
+     *
+     * @param <R>
+     *            the type of the results
+     * @param <T>
+     *            the type of the processed result
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    private interface ResultProcessor<R, T> {
+        /**
+         * Processes the given results.
+         *
+         * @param results
+         *            the results of the request
+         *
+         * @return the processed result
+         *
+         * @throws OtpErlangException
+         *             if processing the results fails
+         */
+        T process(R results) throws OtpErlangException;
+    }
+
+    /**
+     * Issues the given operation asynchronously and processes its result
+     * with the given processor.
+     *
+     * @param <T>
+     *            the type of the processed result
+     * @param op
+     *            the operation to execute
+     * @param processor
+     *            the processor for the results
+     *
+     * @return the future processed result
+     */
+    private <T> Future<T> processAsync(final Operation op,
+            final ResultProcessor<ResL, T> processor) {
+        final ReqL req = newReqList();
+        req.addOp(op);
+        final AsyncResult<ResL> results = issueAsync(req);
+        final AsyncResult<T> result = new AsyncResult<T>();
+        result.setCanceller(new Runnable() {
+            public void run() {
+                results.cancel(true);
+            }
+        });
+        results.addListener(new Runnable() {
+            public void run() {
+                final Throwable error = results.getError();
+                if (error != null) {
+                    result.fail(error);
+                    return;
+                }
+                try {
+                    result.complete(processor.process(results.getResult()));
+                } catch (final OtpErlangException e) {
+                    result.fail(e);
+                } catch (final RuntimeException e) {
+                    result.fail(e);
+                }
+            }
+        });
+        return result;
+    }
+
     /**
      * Selects the module to use depending in the {@link #compressed} property.
      *
@@ -198,6 +436,30 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
         return read(new OtpErlangString(key));
     }
 
+    /**
+     * Gets the value stored under the given <code>key</code> asynchronously.
+     *
+     * @param key
+     *            the key to look up
+     *
+     * @return the future value stored under the given <code>key</code> -
+     *         {@link Future#get()} throws the exceptions of
+     *         {@link #read(String)} wrapped into an
+     *         {@link java.util.concurrent.ExecutionException}
+     *
+     * @see #read(String)
+     * @since 3.21
+     */
+    public Future<ErlangValue> readAsync(final String key) {
+        return processAsync(new ReadOp(new OtpErlangString(key)),
+                new ResultProcessor<ResL, ErlangValue>() {
+                    public ErlangValue process(final ResL results)
+                            throws NotFoundException, UnknownException {
+                        return results.processReadAt(0);
+                    }
+                });
+    }
+
     /**
      * Stores the given <code>key</code>/<code>value</code> pair.
      *
@@ -247,7 +509,45 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
      */
     public <T> void write(final String key, final T value)
             throws ConnectionException, AbortException, UnknownException {
-        write(new OtpErlangString(key), ErlangValue.convertToErlang(value));
+        write(new OtpErlangString(key), ErlangTermEncoder.encodeValue(value, stringEncoding));
+    }
+
+    /**
+     * Stores the given <code>key</code>/<code>value</code> pair
+     * asynchronously.
+     *
+     * @param <T>
+     *            the type of the <tt>value</tt>
+     * @param key
+     *            the key to store the value for
+     * @param value
+     *            the value to store
+     *
+     * @return a future which completes with <tt>null</tt> once the value has
+     *         been written - {@link Future#get()} throws the exceptions of
+     *         {@link #write(String, Object)} wrapped into an
+     *         {@link java.util.concurrent.ExecutionException}
+     *
+     * @see #write(String, Object)
+     * @since 3.21
+     */
+    public <T> Future<Void> writeAsync(final String key, final T value) {
+        final OtpErlangObject erlValue;
+        try {
+            erlValue = ErlangTermEncoder.encodeValue(value, stringEncoding);
+        } catch (final RuntimeException e) {
+            final AsyncResult<Void> result = new AsyncResult<Void>();
+            result.fail(e);
+            return result;
+        }
+        return processAsync(new WriteOp(new OtpErlangString(key), erlValue),
+                new ResultProcessor<ResL, Void>() {
+                    public Void process(final ResL results)
+                            throws AbortException, UnknownException {
+                        results.processWriteAt(0);
+                        return null;
+                    }
+                });
     }
 
     /**
@@ -315,8 +615,8 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
         OtpErlangList toAddErl;
         OtpErlangList toRemoveErl;
         try {
-            toAddErl = (OtpErlangList) ErlangValue.convertToErlang(toAdd);
-            toRemoveErl = (OtpErlangList) ErlangValue.convertToErlang(toRemove);
+            toAddErl = (OtpErlangList) ErlangValue.convertToErlang(toAdd, stringEncoding);
+            toRemoveErl = (OtpErlangList) ErlangValue.convertToErlang(toRemove, stringEncoding);
         } catch (final ClassCastException e) {
             // one of the parameters was no list
             // note: a ClassCastException inside ErlangValue.convertToErlang is
@@ -517,8 +817,8 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
             final NewT newValue) throws ConnectionException, NotFoundException,
             KeyChangedException, AbortException, UnknownException {
         testAndSet(new OtpErlangString(key),
-                ErlangValue.convertToErlang(oldValue),
-                ErlangValue.convertToErlang(newValue));
+                ErlangValue.convertToErlang(oldValue, stringEncoding),
+                ErlangValue.convertToErlang(newValue, stringEncoding));
     }
 
     /**
@@ -531,6 +831,30 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
         connection.close();
     }
 
+    /**
+     * Gets the executor running asynchronous requests.
+     *
+     * @return the executor
+     *
+     * @since 3.21
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor running asynchronous requests (by default, a pool of
+     * daemon threads shared by all transaction objects is used).
+     *
+     * @param executor
+     *            the executor to use
+     *
+     * @since 3.21
+     */
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
     /**
      * Checks whether the transfer of values is compressed or not.
      *
@@ -554,4 +878,61 @@ public abstract class AbstractTransaction<ReqL extends RequestList, ResL extends
         this.compressed = compressed;
     }
 
+    /**
+     * Sets whether to compress the transfer of values or not and the policy
+     * deciding which values to compress.
+     *
+     * @param compressed
+     *            <tt>true</tt> if compressed, otherwise <tt>false</tt>
+     * @param policy
+     *            the compression policy (<tt>null</tt> to compress all
+     *            values)
+     *
+     * @since 3.21
+     */
+    public void setCompressed(final boolean compressed, final CompressionPolicy policy) {
+        this.compressed = compressed;
+        this.compressionPolicy = policy;
+    }
+
+    /**
+     * Gets the policy deciding which values to compress.
+     *
+     * @return the compression policy or <tt>null</tt> if all values are
+     *         compressed
+     *
+     * @since 3.21
+     */
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Gets the encoding of string values sent to Scalaris.
+     *
+     * @return the string encoding
+     *
+     * @since 3.21
+     */
+    public StringEncoding getStringEncoding() {
+        return stringEncoding;
+    }
+
+    /**
+     * Sets the encoding of string values sent to Scalaris (the default is
+     * taken from the connection, see
+     * {@link Connection#setStringEncoding(StringEncoding)}).
+     *
+     * @param stringEncoding
+     *            the string encoding
+     *
+     * @since 3.21
+     */
+    public void setStringEncoding(final StringEncoding stringEncoding) {
+        if (stringEncoding == null) {
+            throw new NullPointerException("stringEncoding must not be null");
+        }
+        this.stringEncoding = stringEncoding;
+    }
+
 }
\ No newline at end of file
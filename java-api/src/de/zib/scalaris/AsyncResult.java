@@ -0,0 +1,247 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous request which is set by whichever thread
+ * finishes the request, e.g. the thread dispatching the replies of a
+ * {@link MultiplexingNode}, instead of a thread waiting for it.
+ *
+ * <p>
+ * Listeners (see {@link #addListener(Runnable)}) are run by the thread
+ * completing the result and thus must not block.
+ * </p>
+ *
+ * @param <T>
+ *            the type of the result
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+class AsyncResult<T> implements Future<T> {
+    private boolean done = false;
+    private boolean cancelled = false;
+    private T result = null;
+    private Throwable error = null;
+    private List<Runnable> listeners = new ArrayList<Runnable>(1);
+    private Runnable canceller = null;
+
+    /**
+     * Sets the result (if the request is not done yet).
+     *
+     * @param result
+     *            the result
+     *
+     * @return <tt>true</tt> if the result has been set
+     */
+    boolean complete(final T result) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            done = true;
+        }
+        finished();
+        return true;
+    }
+
+    /**
+     * Lets the request fail (if it is not done yet).
+     *
+     * @param error
+     *            the reason
+     *
+     * @return <tt>true</tt> if the error has been set
+     */
+    boolean fail(final Throwable error) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.error = error;
+            done = true;
+        }
+        finished();
+        return true;
+    }
+
+    /**
+     * Wakes up all waiting threads and runs the listeners.
+     */
+    private void finished() {
+        final List<Runnable> toRun;
+        synchronized (this) {
+            notifyAll();
+            toRun = listeners;
+            listeners = null;
+            canceller = null;
+        }
+        for (final Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Adds a listener which is run once the request is done (immediately if
+     * it is already done).
+     *
+     * @param listener
+     *            the listener to run
+     */
+    void addListener(final Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Sets the action to run if the request is cancelled, e.g. to cancel an
+     * RPC in flight.
+     *
+     * @param canceller
+     *            the action to run (must not block)
+     */
+    void setCanceller(final Runnable canceller) {
+        synchronized (this) {
+            if (!done) {
+                this.canceller = canceller;
+            }
+        }
+    }
+
+    /**
+     * Completes the given result with the result of this request, i.e. sets
+     * its result or error.
+     *
+     * @param target
+     *            the result to complete
+     */
+    void forwardTo(final AsyncResult<T> target) {
+        addListener(new Runnable() {
+            public void run() {
+                if (error == null) {
+                    target.complete(result);
+                } else {
+                    target.fail(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the error the request failed with.
+     *
+     * @return the error or <tt>null</tt> if the request is not done or
+     *         succeeded
+     */
+    synchronized Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Gets the result of the request (does not wait).
+     *
+     * @return the result or <tt>null</tt> if the request is not done or
+     *         failed
+     */
+    synchronized T getResult() {
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final Runnable toRun;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            error = new CancellationException();
+            cancelled = true;
+            done = true;
+            toRun = canceller;
+        }
+        finished();
+        if (toRun != null) {
+            toRun.run();
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get()
+     */
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getDone();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    public synchronized T get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getDone();
+    }
+
+    private T getDone() throws ExecutionException {
+        if (error instanceof CancellationException) {
+            throw (CancellationException) error;
+        } else if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
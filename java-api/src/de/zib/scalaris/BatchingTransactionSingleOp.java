@@ -0,0 +1,390 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+
+/**
+ * A {@link TransactionSingleOp} which may be shared by many threads and
+ * combines their concurrent requests into a single RPC.
+ *
+ * <p>
+ * The first request arriving at an empty batch waits for
+ * {@link #getBatchWindow(TimeUnit)} (default: 200&micro;s) or until the batch
+ * contains {@link #getMaxBatchSize()} operations (default: 64) and then sends
+ * all collected requests to <tt>req_list_commit_each</tt> at once. Each caller
+ * receives a {@link ResultList} with the results of its own operations, i.e.
+ * all methods of {@link TransactionSingleOp} keep their semantics, including
+ * their exceptions. If the RPC fails, all requests of the batch fail with the
+ * same exception. The first request does not wait if no other thread is
+ * using this object at the moment, i.e. a single thread is not slowed down.
+ * </p>
+ *
+ * <p>
+ * Request lists with at least {@link #getMaxBatchSize()} operations are sent
+ * directly.
+ * </p>
+ *
+ * <p>
+ * Note: as with {@link TransactionSingleOp#req_list(RequestList)}, the
+ * execution order of multiple requests on the same key inside a batch is
+ * undefined.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class BatchingTransactionSingleOp extends TransactionSingleOp {
+    /**
+     * Requests collected for a single RPC.
+     */
+    private static class Batch {
+        final List<RequestList> requests = new ArrayList<RequestList>();
+        int ops = 0;
+        final CountDownLatch done = new CountDownLatch(1);
+        ResultList[] results = null;
+        ConnectionException connectionException = null;
+        UnknownException unknownException = null;
+        /**
+         * Any other failure (a {@link RuntimeException} or an {@link Error}).
+         */
+        Throwable failure = null;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled whenever the current batch is closed early (it is full).
+     */
+    private final Condition batchClosed = lock.newCondition();
+    /**
+     * The batch new requests are added to (<tt>null</tt> if there is none).
+     */
+    private Batch current = null;
+    /**
+     * Number of threads currently executing {@link #req_list(RequestList)}.
+     */
+    private final AtomicInteger callers = new AtomicInteger(0);
+
+    private volatile int maxBatchSize = 64;
+    private volatile long batchWindow = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong batchedRequests = new AtomicLong(0);
+    private final AtomicLong batchedOps = new AtomicLong(0);
+
+    /**
+     * Constructor, uses the default connection returned by
+     * {@link ConnectionFactory#createConnection()}.
+     *
+     * @throws ConnectionException
+     *             if the connection fails
+     */
+    public BatchingTransactionSingleOp() throws ConnectionException {
+        super();
+    }
+
+    /**
+     * Constructor, uses the given connection to an erlang node.
+     *
+     * @param conn
+     *            connection to use for the transaction
+     */
+    public BatchingTransactionSingleOp(final Connection conn) {
+        super(conn);
+    }
+
+    /**
+     * Executes all requests in <code>req</code> together with the requests of
+     * other threads and commits each one of them in a single transaction.
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return results of all requests in the same order as they appear in
+     *         <code>req</code>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    @Override
+    public ResultList req_list(final RequestList req)
+            throws ConnectionException, UnknownException {
+        if (req.isEmpty() || (req.size() >= maxBatchSize)) {
+            return super.req_list(req);
+        }
+        callers.incrementAndGet();
+        try {
+            return batch(req);
+        } finally {
+            callers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the given requests to the current batch and waits for the result.
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return results of all requests in the same order as they appear in
+     *         <code>req</code>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    private ResultList batch(final RequestList req)
+            throws ConnectionException, UnknownException {
+        final Batch batch;
+        final int index;
+        final boolean leader;
+        lock.lock();
+        try {
+            if ((current != null) && ((current.ops + req.size()) > maxBatchSize)) {
+                // does not fit -> close the current batch
+                current = null;
+                batchClosed.signalAll();
+            }
+            leader = (current == null);
+            if (leader) {
+                current = new Batch();
+            }
+            batch = current;
+            index = batch.requests.size();
+            batch.requests.add(req);
+            batch.ops += req.size();
+            if (batch.ops >= maxBatchSize) {
+                current = null;
+                batchClosed.signalAll();
+            }
+            if (leader) {
+                long nanos = batchWindow;
+                boolean interrupted = false;
+                // only wait while other threads may join the batch
+                while ((current == batch) && (nanos > 0)
+                        && (callers.get() > batch.requests.size())) {
+                    try {
+                        nanos = batchClosed.awaitNanos(nanos);
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (current == batch) {
+                    current = null;
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            send(batch);
+        } else {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    batch.done.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    // the request has already been handed over and cannot be
+                    // cancelled -> wait for its result
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (batch.connectionException != null) {
+            throw batch.connectionException;
+        } else if (batch.unknownException != null) {
+            throw batch.unknownException;
+        } else if (batch.failure instanceof RuntimeException) {
+            throw (RuntimeException) batch.failure;
+        } else if (batch.failure instanceof Error) {
+            throw (Error) batch.failure;
+        }
+        return batch.results[index];
+    }
+
+    /**
+     * Executes {@link #req_list(RequestList)} (including the batching) by a
+     * thread of the {@link #executor}.
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     */
+    @Override
+    void startAsync(final RequestList req, final AsyncResult<ResultList> result) {
+        startBlocking(req, result);
+    }
+
+    /**
+     * Sends all requests of the given batch in a single RPC and wakes up all
+     * waiting threads.
+     *
+     * @param batch
+     *            the (closed) batch
+     */
+    private void send(final Batch batch) {
+        batches.incrementAndGet();
+        batchedRequests.addAndGet(batch.requests.size());
+        batchedOps.addAndGet(batch.ops);
+        try {
+            if (batch.requests.size() == 1) {
+                batch.results = new ResultList[] { super.req_list(batch.requests.get(0)) };
+                return;
+            }
+            final RequestList combined = new RequestList();
+            for (final RequestList req : batch.requests) {
+                combined.addAll(req);
+            }
+            final boolean compressed = this.compressed;
+            final OtpErlangObject received_raw = connection.doRPC(module(), "req_list_commit_each",
+                    new OtpErlangObject[] { combined.getErlangReqList(compressed, compressionPolicy, stringEncoding) });
+            try {
+                final OtpErlangList received = (OtpErlangList) received_raw;
+                if (received.arity() != batch.ops) {
+                    throw new UnknownException("Result list size different from request list size!");
+                }
+                final ResultList[] results = new ResultList[batch.requests.size()];
+                int pos = 0;
+                for (int i = 0; i < results.length; ++i) {
+                    final RequestList req = batch.requests.get(i);
+                    final OtpErlangObject[] slice = new OtpErlangObject[req.size()];
+                    for (int j = 0; j < slice.length; ++j) {
+                        slice[j] = received.elementAt(pos++);
+                    }
+                    results[i] = new ResultList(new OtpErlangList(slice), compressed, req);
+                }
+                batch.results = results;
+            } catch (final ClassCastException e) {
+                // e.printStackTrace();
+                throw new UnknownException(e, received_raw);
+            }
+        } catch (final ConnectionException e) {
+            batch.connectionException = e;
+        } catch (final UnknownException e) {
+            batch.unknownException = e;
+        } catch (final RuntimeException e) {
+            batch.failure = e;
+        } catch (final Error e) {
+            batch.failure = e;
+        } finally {
+            batch.done.countDown();
+        }
+    }
+
+    /**
+     * Gets the maximal number of operations in a batch.
+     *
+     * @return the maximal batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the maximal number of operations in a batch.
+     *
+     * @param maxBatchSize
+     *            the maximal batch size (&gt;= 1)
+     */
+    public void setMaxBatchSize(final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be >= 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Gets the time the first request of a batch waits for further requests.
+     *
+     * @param unit
+     *            the unit of the returned value
+     *
+     * @return the batch window
+     */
+    public long getBatchWindow(final TimeUnit unit) {
+        return unit.convert(batchWindow, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time the first request of a batch waits for further requests.
+     *
+     * @param window
+     *            the batch window (&gt;= 0, 0 only combines requests arriving
+     *            at the very same time)
+     * @param unit
+     *            the unit of <tt>window</tt>
+     */
+    public void setBatchWindow(final long window, final TimeUnit unit) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window must be >= 0");
+        }
+        this.batchWindow = unit.toNanos(window);
+    }
+
+    /**
+     * Gets the number of RPCs sent for batches.
+     *
+     * @return the number of batches
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Gets the number of request lists sent in batches.
+     *
+     * @return the number of requests
+     */
+    public long getBatchedRequests() {
+        return batchedRequests.get();
+    }
+
+    /**
+     * Gets the number of operations sent in batches.
+     *
+     * @return the number of operations
+     */
+    public long getBatchedOps() {
+        return batchedOps.get();
+    }
+}
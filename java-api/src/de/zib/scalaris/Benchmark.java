@@ -94,13 +94,15 @@ public class Benchmark {
      * <li>and finally re-using a single {@link Transaction} or
      * {@link TransactionSingleOp} object.</li>
      * </ul>
+     * Benchmarks 19-22 encode (and decode) the same values like in compressed
+     * mode without sending them to Scalaris.
      *
      * @param operations
      *            the number of test runs to execute
      * @param threadsPerNode
      *            number of threads to spawn for each existing Scalaris node
      * @param benchmarks
-     *            the benchmarks to run (1-18 or -1 for all benchmarks)
+     *            the benchmarks to run (1-22 or -1 for all benchmarks)
      */
     public static void minibench(final int operations, final int threadsPerNode, final Set<Integer> benchmarks) {
         final ConnectionFactory cf = ConnectionFactory.getInstance();
@@ -114,22 +116,20 @@ public class Benchmark {
         long[][] results;
         String[] columns;
         String[] rows;
-        @SuppressWarnings("rawtypes")
-        Class[] testTypes;
+        Class<?>[] testTypes;
         String[] testTypesStr;
-        @SuppressWarnings("rawtypes")
-        Class[] testBench;
+        Class<?>[] testBench;
         String testGroup;
 
         System.out.println("Benchmark of de.zib.scalaris.TransactionSingleOp:");
         System.out.flush();
         results = getResultArray(3, 2);
-        testTypes = new Class[] {OtpErlangBinary.class, String.class};
+        testTypes = new Class<?>[] {OtpErlangBinary.class, String.class};
         testTypesStr = new String[] {"OEB", "S"};
         columns = new String[] {
                 "TransactionSingleOp.write(OtpErlangString, OtpErlangBinary)",
                 "TransactionSingleOp.write(String, String)" };
-        testBench = new Class[] {TransSingleOpBench1.class, TransSingleOpBench2.class, TransSingleOpBench3.class};
+        testBench = new Class<?>[] {TransSingleOpBench1.class, TransSingleOpBench2.class, TransSingleOpBench3.class};
         rows = new String[] {
                 "separate connection",
                 "re-use connection",
@@ -142,12 +142,12 @@ public class Benchmark {
         System.out.println("Benchmark of de.zib.scalaris.Transaction:");
         System.out.flush();
         results = getResultArray(3, 2);
-        testTypes = new Class[] {OtpErlangBinary.class, String.class};
+        testTypes = new Class<?>[] {OtpErlangBinary.class, String.class};
         testTypesStr = new String[] {"OEB", "S"};
         columns = new String[] {
                 "Transaction.write(OtpErlangString, OtpErlangBinary)",
                 "Transaction.write(String, String)" };
-        testBench = new Class[] {TransBench1.class, TransBench2.class, TransBench3.class};
+        testBench = new Class<?>[] {TransBench1.class, TransBench2.class, TransBench3.class};
         rows = new String[] {
                 "separate connection",
                 "re-use connection",
@@ -160,11 +160,11 @@ public class Benchmark {
         System.out.println("Benchmark incrementing an integer key (read+write):");
         System.out.flush();
         results = getResultArray(3, 1);
-        testTypes = new Class[] {null};
+        testTypes = new Class<?>[] {null};
         testTypesStr = new String[] {"null"};
         columns = new String[] {
                 "Transaction.addOnNr(String, Integer)" };
-        testBench = new Class[] {TransIncrementBench1.class, TransIncrementBench2.class, TransIncrementBench3.class};
+        testBench = new Class<?>[] {TransIncrementBench1.class, TransIncrementBench2.class, TransIncrementBench3.class};
         rows = new String[] {
                 "separate connection",
                 "re-use connection",
@@ -177,12 +177,12 @@ public class Benchmark {
         System.out.println("Benchmark read 5 + write 5:");
         System.out.flush();
         results = getResultArray(3, 2);
-        testTypes = new Class[] {OtpErlangBinary.class, String.class};
+        testTypes = new Class<?>[] {OtpErlangBinary.class, String.class};
         testTypesStr = new String[] {"OEB", "S"};
         columns = new String[] {
                 "Transaction.read(OtpErlangString) + Transaction.write(OtpErlangString, OtpErlangBinary)",
                 "Transaction.read(String) + Transaction.write(String, String)" };
-        testBench = new Class[] {TransRead5Write5Bench1.class, TransRead5Write5Bench2.class, TransRead5Write5Bench3.class};
+        testBench = new Class<?>[] {TransRead5Write5Bench1.class, TransRead5Write5Bench2.class, TransRead5Write5Bench3.class};
         rows = new String[] {
                 "separate connection",
                 "re-use connection",
@@ -196,11 +196,11 @@ public class Benchmark {
         System.out.println("Benchmark appending to a String list (read+write):");
         System.out.flush();
         results = getResultArray(3, 1);
-        testTypes = new Class[] {String.class};
+        testTypes = new Class<?>[] {String.class};
         testTypesStr = new String[] {"S"};
         columns = new String[] {
                 "Transaction.addDelOnList(String, StringList, [])" };
-        testBench = new Class[] {TransAppendToListBench1.class, TransAppendToListBench2.class, TransAppendToListBench3.class};
+        testBench = new Class<?>[] {TransAppendToListBench1.class, TransAppendToListBench2.class, TransAppendToListBench3.class};
         rows = new String[] {
                 "separate connection",
                 "re-use connection",
@@ -209,6 +209,24 @@ public class Benchmark {
         runBenchAndPrintResults(benchmarks, results, columns, rows, testTypes,
                 testTypesStr, testBench, testGroup, 16, operations,
                 parallelRuns);
+
+        System.out.println("-----");
+        System.out.println("Benchmark encoding values (compressed mode, no Scalaris requests):");
+        System.out.flush();
+        results = getResultArray(2, 2);
+        testTypes = new Class<?>[] {OtpErlangBinary.class, String.class};
+        testTypesStr = new String[] {"OEB", "S"};
+        columns = new String[] {
+                "CommonErlangObjects.encode/decode(OtpErlangBinary)",
+                "CommonErlangObjects.encode/decode(OtpErlangString)" };
+        testBench = new Class<?>[] {EncodeBench.class, EncodeDecodeBench.class};
+        rows = new String[] {
+                "encode",
+                "encode + decode" };
+        testGroup = "codecbench";
+        runBenchAndPrintResults(benchmarks, results, columns, rows, testTypes,
+                testTypesStr, testBench, testGroup, 19, operations,
+                parallelRuns);
     }
 
     /**
@@ -808,6 +826,58 @@ public class Benchmark {
         }
     }
 
+    /**
+     * Performs a benchmark encoding values like in compressed mode (without
+     * contacting Scalaris).
+     *
+     * @author Nico Kruber, kruber@zib.de
+     *
+     * @param <T> type to bench on
+     */
+    protected static final class EncodeBench<T> extends BenchRunnable<T> {
+        OtpErlangObject erlValue;
+
+        public EncodeBench(final String key, final T value, final int operations) {
+            super(key, value, operations);
+        }
+
+        @Override
+        protected void init() throws Exception {
+            erlValue = ErlangValue.convertToErlang(value);
+        }
+
+        @Override
+        protected void operation(final int j) throws Exception {
+            CommonErlangObjects.encode(erlValue);
+        }
+    }
+
+    /**
+     * Performs a benchmark encoding and decoding values like in compressed
+     * mode (without contacting Scalaris).
+     *
+     * @author Nico Kruber, kruber@zib.de
+     *
+     * @param <T> type to bench on
+     */
+    protected static final class EncodeDecodeBench<T> extends BenchRunnable<T> {
+        OtpErlangObject erlValue;
+
+        public EncodeDecodeBench(final String key, final T value, final int operations) {
+            super(key, value, operations);
+        }
+
+        @Override
+        protected void init() throws Exception {
+            erlValue = ErlangValue.convertToErlang(value);
+        }
+
+        @Override
+        protected void operation(final int j) throws Exception {
+            CommonErlangObjects.decode(CommonErlangObjects.encode(erlValue));
+        }
+    }
+
     /**
      * Abstract base class of a test run that is to be run in a thread.
      *
@@ -0,0 +1,190 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import de.zib.scalaris.operations.Operation;
+import de.zib.scalaris.operations.ReadOp;
+
+/**
+ * A {@link TransactionSingleOp} which serves reads from a {@link NearCache}.
+ *
+ * <p>
+ * Reads of cached keys are answered locally, all other operations of a
+ * request list are sent to Scalaris in a single request (no request is sent
+ * if all reads are served from the cache). Successful reads are put into the
+ * cache, any other operation invalidates the cached value of its key - before
+ * sending it and after it finished.
+ * </p>
+ *
+ * <p>
+ * Scalaris does not notify clients about changes, i.e. values written by
+ * other clients are only seen after the cached entry expired (see
+ * {@link NearCache#setTtl(String, long, java.util.concurrent.TimeUnit)}).
+ * The cache may be shared among several transaction objects of the same
+ * client.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class CachingTransactionSingleOp extends TransactionSingleOp {
+    /**
+     * The cache to serve reads from.
+     */
+    private final NearCache cache;
+
+    /**
+     * Constructor, uses the given connection to an erlang node.
+     *
+     * @param conn
+     *            connection to use for the transaction
+     * @param cache
+     *            the cache to use (may be shared)
+     */
+    public CachingTransactionSingleOp(final Connection conn, final NearCache cache) {
+        super(conn);
+        this.cache = cache;
+    }
+
+    /**
+     * Executes all requests in <code>req</code> and commits each one of them in
+     * a single transaction. Reads of cached keys are not sent to Scalaris.
+     *
+     * NOTE: The execution order of multiple requests on the same key is
+     * undefined!
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return results of all requests in the same order as they appear in
+     *         <code>req</code>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    @Override
+    public ResultList req_list(final RequestList req)
+            throws ConnectionException, UnknownException {
+        if (req.isEmpty()) {
+            return super.req_list(req);
+        }
+        final List<Operation> ops = req.getRequests();
+        final List<String> written = new ArrayList<String>();
+        for (final Operation op : ops) {
+            final OtpErlangString key = op.getKey();
+            if (!(op instanceof ReadOp) && (key != null)) {
+                written.add(key.stringValue());
+                cache.invalidate(key.stringValue());
+            }
+        }
+
+        final OtpErlangObject[] cached = new OtpErlangObject[ops.size()];
+        final RequestList remote = new RequestList();
+        for (int i = 0; i < cached.length; ++i) {
+            final Operation op = ops.get(i);
+            final ErlangValue value = (op instanceof ReadOp) ? cache.get(op
+                    .getKey().stringValue()) : null;
+            if (value == null) {
+                remote.addOp(op);
+            } else {
+                cached[i] = new OtpErlangTuple(new OtpErlangObject[] {
+                        CommonErlangObjects.okAtom, value.value() });
+            }
+        }
+
+        final boolean compressed = this.compressed;
+        final List<Operation> remoteOps = remote.getRequests();
+        final long[] stamps = new long[remoteOps.size()];
+        for (int i = 0; i < stamps.length; ++i) {
+            final Operation op = remoteOps.get(i);
+            if (op instanceof ReadOp) {
+                stamps[i] = cache.getStamp(op.getKey().stringValue());
+            }
+        }
+        if (!remote.isEmpty()) {
+            try {
+                super.req_list(remote);
+            } finally {
+                for (final String key : written) {
+                    cache.invalidate(key);
+                }
+            }
+            for (int i = 0; i < stamps.length; ++i) {
+                final Operation op = remoteOps.get(i);
+                if (op instanceof ReadOp) {
+                    try {
+                        cache.put(op.getKey().stringValue(),
+                                ((ReadOp) op).processResult(), stamps[i]);
+                    } catch (final NotFoundException e) {
+                        // e.printStackTrace();
+                    } catch (final UnknownException e) {
+                        // e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // assemble the results of all operations (cached values are never
+        // compressed)
+        final OtpErlangObject[] results = new OtpErlangObject[cached.length];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = (cached[i] == null) ? ops.get(i).getResult() : cached[i];
+        }
+        final ResultList result = new ResultList(new OtpErlangList(results), compressed, req);
+        for (int i = 0; i < cached.length; ++i) {
+            if (cached[i] != null) {
+                ops.get(i).setResult(cached[i], false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Executes {@link #req_list(RequestList)} (including the cache) by a
+     * thread of the {@link #executor}.
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     */
+    @Override
+    void startAsync(final RequestList req, final AsyncResult<ResultList> result) {
+        startBlocking(req, result);
+    }
+
+    /**
+     * Gets the cache reads are served from.
+     *
+     * @return the near cache
+     */
+    public NearCache getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Per-thread pool of output buffers and zlib codecs.
+ *
+ * <p>
+ * Creating {@link Deflater}s and {@link Inflater}s is expensive (they
+ * allocate native memory which is only freed by {@link Deflater#end()} or
+ * finalisation) and growing a fresh output buffer for each encoded value
+ * creates a lot of garbage. The pool of the current thread
+ * ({@link #get()}) keeps one codec per compression level and a few
+ * {@link OtpOutputStream}s which are handed out by
+ * {@link #acquireBuffer()} and returned with
+ * {@link #releaseBuffer(Buffer)}.
+ * </p>
+ *
+ * Pools must not be shared among threads.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public final class CodecPool {
+    /**
+     * Buffers larger than this are not kept for re-use.
+     */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    /**
+     * Maximal number of free buffers to keep.
+     */
+    private static final int MAX_FREE_BUFFERS = 4;
+    /**
+     * Header written by {@link java.util.zip.GZIPOutputStream} (no flags, no
+     * modification time, unknown OS).
+     */
+    private static final byte[] GZIP_HEADER = new byte[] { (byte) 0x1f,
+            (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static final ThreadLocal<CodecPool> pools = new ThreadLocal<CodecPool>() {
+        @Override
+        protected CodecPool initialValue() {
+            return new CodecPool();
+        }
+    };
+
+    /**
+     * Deflaters by compression level (index: level + 1).
+     */
+    private final Deflater[] deflaters = new Deflater[11];
+    /**
+     * Deflaters without zlib header by compression level (index: level + 1).
+     */
+    private final Deflater[] rawDeflaters = new Deflater[11];
+    private Inflater inflater = null;
+    private Inflater rawInflater = null;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[8192];
+    private final List<Buffer> freeBuffers = new ArrayList<Buffer>(MAX_FREE_BUFFERS);
+
+    /**
+     * Output buffer with access to its internal array.
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    public static final class Buffer extends OtpOutputStream {
+        Buffer() {
+            super();
+        }
+
+        /**
+         * Gets the internal array of the buffer (valid up to
+         * {@link #size()}) which is only valid until the next write.
+         *
+         * @return the buffer's array
+         */
+        public byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Sets the number of valid bytes after the internal array has been
+         * filled directly.
+         *
+         * @param size
+         *            the new size (at most the array's length)
+         */
+        void setSize(final int size) {
+            count = size;
+        }
+    }
+
+    private CodecPool() {
+    }
+
+    /**
+     * Gets the pool of the current thread.
+     *
+     * @return the codec pool
+     */
+    public static CodecPool get() {
+        return pools.get();
+    }
+
+    /**
+     * Gets an empty output buffer.
+     *
+     * @return a buffer to return with {@link #releaseBuffer(Buffer)}
+     */
+    public Buffer acquireBuffer() {
+        if (freeBuffers.isEmpty()) {
+            return new Buffer();
+        }
+        return freeBuffers.remove(freeBuffers.size() - 1);
+    }
+
+    /**
+     * Returns a buffer retrieved by {@link #acquireBuffer()}. It must not be
+     * used afterwards.
+     *
+     * @param buffer
+     *            the buffer
+     */
+    public void releaseBuffer(final Buffer buffer) {
+        if ((buffer.size() <= MAX_RETAINED_SIZE)
+                && (freeBuffers.size() < MAX_FREE_BUFFERS)) {
+            buffer.reset();
+            freeBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * Gets a (reset) deflater.
+     *
+     * @param level
+     *            the compression level
+     * @param nowrap
+     *            whether to omit the zlib header and checksum
+     *
+     * @return the deflater
+     */
+    private Deflater getDeflater(final int level, final boolean nowrap) {
+        final Deflater[] pool = nowrap ? rawDeflaters : deflaters;
+        Deflater deflater = pool[level + 1];
+        if (deflater == null) {
+            deflater = new Deflater(level, nowrap);
+            pool[level + 1] = deflater;
+        } else {
+            deflater.reset();
+        }
+        return deflater;
+    }
+
+    /**
+     * Gets a (reset) inflater.
+     *
+     * @param nowrap
+     *            whether the input has no zlib header and checksum
+     *
+     * @return the inflater
+     */
+    private Inflater getInflater(final boolean nowrap) {
+        Inflater result = nowrap ? rawInflater : inflater;
+        if (result == null) {
+            result = new Inflater(nowrap);
+            if (nowrap) {
+                rawInflater = result;
+            } else {
+                inflater = result;
+            }
+        } else {
+            result.reset();
+        }
+        return result;
+    }
+
+    /**
+     * Compresses the given data with zlib and appends the result to the given
+     * buffer.
+     *
+     * @param data
+     *            the data
+     * @param off
+     *            the start offset
+     * @param len
+     *            number of bytes to compress
+     * @param level
+     *            the compression level (see {@link Deflater})
+     * @param out
+     *            the buffer to write to
+     */
+    public void deflate(final byte[] data, final int off, final int len,
+            final int level, final OtpOutputStream out) {
+        deflate(getDeflater(level, false), data, off, len, out);
+    }
+
+    private void deflate(final Deflater deflater, final byte[] data,
+            final int off, final int len, final OtpOutputStream out) {
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        while (!deflater.finished()) {
+            final int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Decompresses zlib-compressed data into the given array.
+     *
+     * @param data
+     *            the compressed data
+     * @param off
+     *            the start offset
+     * @param len
+     *            number of compressed bytes
+     * @param result
+     *            the array to fill (must have exactly the uncompressed size)
+     *
+     * @throws DataFormatException
+     *             if the data is invalid or has a different size
+     */
+    public void inflate(final byte[] data, final int off, final int len,
+            final byte[] result) throws DataFormatException {
+        inflate(data, off, len, result, result.length);
+    }
+
+    /**
+     * Decompresses zlib-compressed data into the given buffer (replacing its
+     * contents).
+     *
+     * @param data
+     *            the compressed data
+     * @param off
+     *            the start offset
+     * @param len
+     *            number of compressed bytes
+     * @param size
+     *            the uncompressed size
+     * @param out
+     *            the buffer to fill
+     *
+     * @throws DataFormatException
+     *             if the data is invalid or has a different size
+     */
+    public void inflate(final byte[] data, final int off, final int len,
+            final int size, final Buffer out) throws DataFormatException {
+        out.reset();
+        out.ensureCapacity(size);
+        inflate(data, off, len, out.array(), size);
+        out.setSize(size);
+    }
+
+    private void inflate(final byte[] data, final int off, final int len,
+            final byte[] result, final int size) throws DataFormatException {
+        final Inflater inflater = getInflater(false);
+        inflater.setInput(data, off, len);
+        int pos = 0;
+        while (pos < size) {
+            final int n = inflater.inflate(result, pos, size - pos);
+            if ((n == 0) && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            pos += n;
+        }
+        if ((pos != size) || !inflater.finished()) {
+            throw new DataFormatException("unexpected size of decompressed data");
+        }
+    }
+
+    /**
+     * Compresses the given data in the format of
+     * {@link java.util.zip.GZIPOutputStream}.
+     *
+     * @param data
+     *            the data
+     *
+     * @return the compressed data
+     */
+    public byte[] gzip(final byte[] data) {
+        final Buffer out = acquireBuffer();
+        try {
+            out.writeN(GZIP_HEADER);
+            deflate(getDeflater(Deflater.DEFAULT_COMPRESSION, true), data, 0,
+                    data.length, out);
+            crc.reset();
+            crc.update(data, 0, data.length);
+            out.write4LE(crc.getValue());
+            out.write4LE(data.length);
+            return out.toByteArray();
+        } finally {
+            releaseBuffer(out);
+        }
+    }
+
+    /**
+     * Decompresses data in the format of
+     * {@link java.util.zip.GZIPOutputStream} (single member).
+     *
+     * @param data
+     *            the compressed data
+     *
+     * @return the decompressed data
+     *
+     * @throws IOException
+     *             if the data is invalid
+     */
+    public byte[] gunzip(final byte[] data) throws IOException {
+        if ((data.length < 18) || (data[0] != GZIP_HEADER[0])
+                || (data[1] != GZIP_HEADER[1]) || (data[2] != GZIP_HEADER[2])
+                || (data[3] != 0)) {
+            // unknown format or optional header fields -> let the JDK deal
+            // with it
+            return gunzipStream(data);
+        }
+        final Inflater inflater = getInflater(true);
+        // note: the trailer also serves as the extra input a raw inflater
+        // may need to finish
+        inflater.setInput(data, 10, data.length - 10);
+        final Buffer out = acquireBuffer();
+        try {
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(chunk);
+                if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated gzip data");
+                }
+                out.write(chunk, 0, n);
+            }
+            if (inflater.getRemaining() != 8) {
+                // multiple members or garbage
+                return gunzipStream(data);
+            }
+            final byte[] result = out.toByteArray();
+            crc.reset();
+            crc.update(result, 0, result.length);
+            if ((readIntLE(data, data.length - 8) != (int) crc.getValue())
+                    || (readIntLE(data, data.length - 4) != result.length)) {
+                throw new IOException("corrupt gzip trailer");
+            }
+            return result;
+        } catch (final DataFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            releaseBuffer(out);
+        }
+    }
+
+    private static int readIntLE(final byte[] data, final int pos) {
+        return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8)
+                | ((data[pos + 2] & 0xff) << 16) | ((data[pos + 3] & 0xff) << 24);
+    }
+
+    private byte[] gunzipStream(final byte[] data) throws IOException {
+        final GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(data));
+        final Buffer out = acquireBuffer();
+        try {
+            int read;
+            while ((read = gis.read(chunk)) >= 0) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            gis.close();
+            releaseBuffer(out);
+        }
+    }
+}
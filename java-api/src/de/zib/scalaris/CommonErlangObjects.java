@@ -17,6 +17,8 @@ package de.zib.scalaris;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangBinary;
@@ -28,7 +30,6 @@ import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 import com.ericsson.otp.erlang.OtpExternal;
 import com.ericsson.otp.erlang.OtpInputStream;
-import com.ericsson.otp.erlang.OtpOutputStream;
 
 /**
  * Contains some often used objects as static objects as static members in
@@ -36,7 +37,7 @@ import com.ericsson.otp.erlang.OtpOutputStream;
  *
  * @author Nico Kruber, kruber@zib.de
  *
- * @version 3.14
+ * @version 3.21
  * @since 2.5
  */
 @SuppressWarnings("javadoc")
@@ -67,6 +68,29 @@ public final class CommonErlangObjects {
     public static final OtpErlangAtom falseAtom = new OtpErlangAtom("false");
     public static final OtpErlangAtom nullAtom = new OtpErlangAtom("null");
 
+    /**
+     * Prepares the given value of an operation for sending it to Scalaris,
+     * i.e. encodes it with
+     * {@link #encode(OtpErlangObject, CompressionPolicy)} in compressed mode.
+     *
+     * @param value
+     *            the value
+     * @param compressed
+     *            whether the value should be encoded, i.e. compressed into
+     *            an Erlang binary, or not
+     * @param policy
+     *            the policy deciding about the compression of the value
+     *            (<tt>null</tt> to compress it)
+     *
+     * @return the value to send
+     *
+     * @since 3.21
+     */
+    public static OtpErlangObject encodeValue(final OtpErlangObject value,
+            final boolean compressed, final CompressionPolicy policy) {
+        return compressed ? encode(value, policy) : value;
+    }
+
     /**
      * Encoded the given erlang object to a binary the same way as
      * <tt>rdht_tx:encode_value/1</tt>.
@@ -77,6 +101,26 @@ public final class CommonErlangObjects {
      * @return the encoded value
      */
     public static OtpErlangObject encode(final OtpErlangObject value) {
+        return encode(value, null);
+    }
+
+    /**
+     * Encoded the given erlang object to a binary the same way as
+     * <tt>rdht_tx:encode_value/1</tt> letting the given policy decide about
+     * its compression.
+     *
+     * @param value
+     *            the decoded value
+     * @param policy
+     *            the policy deciding about the compression (<tt>null</tt> to
+     *            compress all values except binaries)
+     *
+     * @return the encoded value
+     *
+     * @since 3.21
+     */
+    static OtpErlangObject encode(final OtpErlangObject value,
+            final CompressionPolicy policy) {
         if (value instanceof OtpErlangAtom) {
             return value;
         } else if (value instanceof OtpErlangBoolean) {
@@ -85,28 +129,104 @@ public final class CommonErlangObjects {
             return value;
         } else if (value instanceof OtpErlangDouble) {
             return value;
-        } else if (value instanceof OtpErlangBinary) {
-            final OtpOutputStream oos = new OtpOutputStream();
-            oos.write1(OtpExternal.versionTag);
-            oos.write_any(value);
-            final byte[] encoded = oos.toByteArray();
-            final OtpErlangBinary result = new OtpErlangBinary(encoded);
-            try {
-                oos.close();
-            } catch (final IOException e) {
-            }
-            return result;
-        } else {
-            final OtpOutputStream oos = new OtpOutputStream();
-            oos.write1(OtpExternal.versionTag);
-            oos.write_compressed(value);
-            final byte[] encoded = oos.toByteArray();
-            final OtpErlangBinary result = new OtpErlangBinary(encoded);
+        }
+        if ((policy != null) && !(value instanceof OtpErlangBinary)) {
+            return policy.encode(value);
+        }
+        if (value instanceof EncodedTerm) {
+            final byte[] bytes = ((EncodedTerm) value).getBytes();
+            return encodeTerm(bytes, bytes.length, true, Deflater.DEFAULT_COMPRESSION, false);
+        }
+        final CodecPool pool = CodecPool.get();
+        final CodecPool.Buffer term = pool.acquireBuffer();
+        try {
+            term.write_any(value);
+            // binaries are not compressed (same as rdht_tx:encode_value/1)
+            return encodeTerm(term.array(), term.size(),
+                    !(value instanceof OtpErlangBinary),
+                    Deflater.DEFAULT_COMPRESSION, false);
+        } finally {
+            pool.releaseBuffer(term);
+        }
+    }
+
+    /**
+     * Creates a binary from an encoded term like
+     * <tt>term_to_binary(Value, [compressed])</tt> using the codecs of the
+     * current thread's {@link CodecPool}.
+     *
+     * @param term
+     *            the encoded term (without version tag)
+     * @param len
+     *            the number of bytes of <tt>term</tt> to use
+     * @param compress
+     *            whether to compress the term (terms with less than 5 bytes
+     *            are never compressed)
+     * @param level
+     *            the compression level
+     * @param onlyIfSmaller
+     *            whether to use the uncompressed term if compression does
+     *            not reduce its size
+     *
+     * @return the binary with the versioned term
+     *
+     * @since 3.21
+     */
+    static OtpErlangBinary encodeTerm(final byte[] term, final int len,
+            final boolean compress, final int level, final boolean onlyIfSmaller) {
+        if (compress && (len >= 5)) {
+            final CodecPool pool = CodecPool.get();
+            final CodecPool.Buffer deflated = pool.acquireBuffer();
             try {
-                oos.close();
-            } catch (final IOException e) {
+                pool.deflate(term, 0, len, level, deflated);
+                final int size = 6 + deflated.size();
+                if (!onlyIfSmaller || (size < (len + 1))) {
+                    final byte[] bin = new byte[size];
+                    bin[0] = (byte) OtpExternal.versionTag;
+                    bin[1] = (byte) OtpExternal.compressedTag;
+                    bin[2] = (byte) (len >>> 24);
+                    bin[3] = (byte) (len >>> 16);
+                    bin[4] = (byte) (len >>> 8);
+                    bin[5] = (byte) len;
+                    System.arraycopy(deflated.array(), 0, bin, 6, deflated.size());
+                    return new PooledBinary(bin);
+                }
+            } finally {
+                pool.releaseBuffer(deflated);
             }
-            return result;
+        }
+        final byte[] bin = new byte[len + 1];
+        bin[0] = (byte) OtpExternal.versionTag;
+        System.arraycopy(term, 0, bin, 1, len);
+        return new PooledBinary(bin);
+    }
+
+    /**
+     * Checks whether the given binary (created by
+     * <tt>term_to_binary/2</tt>) contains a compressed term.
+     *
+     * @param value
+     *            the encoded value
+     *
+     * @return <tt>true</tt> if compressed
+     *
+     * @since 3.21
+     */
+    static boolean isCompressed(final OtpErlangBinary value) {
+        final byte[] bin = value.binaryValue();
+        return (bin.length > 1) && (bin[1] == (byte) OtpExternal.compressedTag);
+    }
+
+    /**
+     * Binary taking ownership of a byte array (instead of copying it).
+     */
+    private static final class PooledBinary extends OtpErlangBinary {
+        private static final long serialVersionUID = 1L;
+        private static final byte[] EMPTY = new byte[0];
+
+        PooledBinary(final byte[] bin) {
+            super(EMPTY);
+            this.bin = bin;
         }
     }
 
@@ -125,21 +245,131 @@ public final class CommonErlangObjects {
     public static OtpErlangObject decode(final OtpErlangObject value)
             throws OtpErlangDecodeException {
         if (value instanceof OtpErlangBinary) {
-            final OtpErlangBinary valueBin = (OtpErlangBinary) value;
-            final OtpInputStream ois = new OtpInputStream(valueBin.binaryValue());
+            final byte[] bin = ((OtpErlangBinary) value).binaryValue();
+            final CodecPool pool = CodecPool.get();
+            final CodecPool.Buffer term = pool.acquireBuffer();
             try {
-                return ois.read_any();
+                if (uncompress(bin, term)) {
+                    return readTerm(term.array(), term.size());
+                }
+                return readTerm(bin, bin.length);
             } finally {
-                try {
-                    ois.close();
-                } catch (final IOException e) {
+                pool.releaseBuffer(term);
+            }
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Decodes the given Erlang object like {@link #decode(OtpErlangObject)}
+     * but keeps (non-empty) lists in their encoded form, i.e. as an
+     * {@link EncodedTerm}, so that their elements can be decoded on demand,
+     * e.g. by {@link ErlangValue#listIterator(ErlangValue.ListElementConverter)}.
+     *
+     * @param value
+     *            the encoded value
+     *
+     * @return the (partly) decoded value
+     *
+     * @throws OtpErlangDecodeException
+     *             if decoding fails
+     *
+     * @since 3.21
+     */
+    public static OtpErlangObject decodeLazily(final OtpErlangObject value)
+            throws OtpErlangDecodeException {
+        if (value instanceof OtpErlangBinary) {
+            final byte[] bin = ((OtpErlangBinary) value).binaryValue();
+            final CodecPool pool = CodecPool.get();
+            final CodecPool.Buffer term = pool.acquireBuffer();
+            try {
+                final byte[] data;
+                final int len;
+                if (uncompress(bin, term)) {
+                    data = term.array();
+                    len = term.size();
+                } else {
+                    data = bin;
+                    len = bin.length;
+                }
+                final int start = ((len > 0) && (data[0] == (byte) OtpExternal.versionTag)) ? 1 : 0;
+                if ((len > start) && (data[start] == (byte) OtpExternal.listTag)) {
+                    // the encoded term needs an array of its own
+                    final byte[] list = new byte[len - start];
+                    System.arraycopy(data, start, list, 0, list.length);
+                    return new EncodedTerm(list);
                 }
+                return readTerm(data, len);
+            } finally {
+                pool.releaseBuffer(term);
             }
         } else {
             return value;
         }
     }
 
+    /**
+     * Decodes a term.
+     *
+     * @param bin
+     *            the encoded term (with or without version tag)
+     * @param len
+     *            the number of bytes of <tt>bin</tt> to use
+     *
+     * @return the decoded term
+     *
+     * @throws OtpErlangDecodeException
+     *             if decoding fails
+     */
+    private static OtpErlangObject readTerm(final byte[] bin, final int len)
+            throws OtpErlangDecodeException {
+        final OtpInputStream ois = new OtpInputStream(bin, 0, len, 0);
+        try {
+            return ois.read_any();
+        } finally {
+            try {
+                ois.close();
+            } catch (final IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Inflates a compressed binary created by
+     * <tt>term_to_binary(Value, [compressed])</tt> with a pooled inflater.
+     *
+     * @param bin
+     *            the binary (compressed or not)
+     * @param term
+     *            the buffer to write the uncompressed term (without version
+     *            tag) to
+     *
+     * @return <tt>true</tt> if the binary was compressed, <tt>false</tt> if
+     *         it was not (<tt>term</tt> is not used then)
+     *
+     * @throws OtpErlangDecodeException
+     *             if decompression fails
+     */
+    private static boolean uncompress(final byte[] bin, final CodecPool.Buffer term)
+            throws OtpErlangDecodeException {
+        if ((bin.length > 6) && (bin[0] == (byte) OtpExternal.versionTag)
+                && (bin[1] == (byte) OtpExternal.compressedTag)) {
+            final int size = ((bin[2] & 0xff) << 24) | ((bin[3] & 0xff) << 16)
+                    | ((bin[4] & 0xff) << 8) | (bin[5] & 0xff);
+            if (size < 0) {
+                throw new OtpErlangDecodeException("Invalid compressed term size: " + size);
+            }
+            try {
+                CodecPool.get().inflate(bin, 6, bin.length - 6, size, term);
+            } catch (final DataFormatException e) {
+                throw new OtpErlangDecodeException("Invalid compressed term: " + e.getMessage());
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Processes the <tt>received_raw</tt> term from erlang and if it is a
      * <tt>{fail, abort, KeyList}</tt>, issues an {@link AbortException}.
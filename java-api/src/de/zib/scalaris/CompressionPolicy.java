@@ -0,0 +1,463 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangObject;
+
+/**
+ * Decides how values are encoded in compressed mode (see
+ * {@link AbstractTransaction#setCompressed(boolean, CompressionPolicy)}).
+ *
+ * <p>
+ * Scalaris accepts both, compressed and uncompressed binaries created by
+ * <tt>term_to_binary/1,2</tt>. This policy only compresses values whose
+ * encoded size is at least {@link #getThreshold()} bytes (default: 128) and
+ * uses the configured zlib {@link #getLevel()}. If compression does not make
+ * a value smaller, the uncompressed binary is sent instead.
+ * </p>
+ *
+ * <p>
+ * Optionally, large values are sampled first: only the first
+ * {@link #getSampleSize()} bytes are compressed (with the fastest level) and
+ * if this saves less than {@link #getMinSampleSavings()}, e.g. for already
+ * compressed data, the value is sent uncompressed without compressing all of
+ * it.
+ * </p>
+ *
+ * <p>
+ * Since values written by the same application tend to compress alike, the
+ * policy learns from recent samples: once {@link #getVerdictSamples()}
+ * samples in a row agreed, their verdict is used for the next
+ * {@link #getVerdictValues()} values without sampling them. A verdict to
+ * compress is dropped as soon as a compressed value misses
+ * {@link #getMinSampleSavings()}.
+ * </p>
+ *
+ * <p>
+ * A policy collects statistics about the values it encoded. Use one policy
+ * object per transaction object in order to get per-transaction statistics.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class CompressionPolicy {
+    private volatile int threshold = 128;
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private volatile int sampleSize = 0;
+    private volatile double minSampleSavings = 0.1;
+    private volatile int verdictSamples = 8;
+    private volatile int verdictValues = 128;
+
+    /**
+     * Number of equal sample outcomes in a row (positive if the samples
+     * compressed well, negative otherwise).
+     */
+    private final AtomicInteger outcomes = new AtomicInteger(0);
+    /**
+     * Number of values to encode with {@link #verdict} without sampling.
+     */
+    private final AtomicInteger verdictLeft = new AtomicInteger(0);
+    /**
+     * The established verdict, i.e. whether to compress values.
+     */
+    private volatile boolean verdict = true;
+
+    private final AtomicLong values = new AtomicLong(0);
+    private final AtomicLong compressedValues = new AtomicLong(0);
+    private final AtomicLong sampledOut = new AtomicLong(0);
+    private final AtomicLong samplesSkipped = new AtomicLong(0);
+    private final AtomicLong bytesIn = new AtomicLong(0);
+    private final AtomicLong bytesOut = new AtomicLong(0);
+    private final AtomicLong compressionTime = new AtomicLong(0);
+
+    /**
+     * Creates a policy with the default settings (threshold: 128 bytes,
+     * default compression level, no sampling).
+     */
+    public CompressionPolicy() {
+    }
+
+    /**
+     * Creates a policy with the given settings.
+     *
+     * @param threshold
+     *            minimal size of encoded values to compress (in bytes)
+     * @param level
+     *            the compression level (see {@link Deflater})
+     */
+    public CompressionPolicy(final int threshold, final int level) {
+        setThreshold(threshold);
+        setLevel(level);
+    }
+
+    /**
+     * Encodes the given value into a binary as expected by
+     * <tt>rdht_tx:decode_value/1</tt>.
+     *
+     * @param value
+     *            the value to encode
+     *
+     * @return the encoded value
+     */
+    public OtpErlangBinary encode(final OtpErlangObject value) {
+        if (value instanceof EncodedTerm) {
+            final byte[] term = ((EncodedTerm) value).getBytes();
+            return encode(term, term.length);
+        }
+        final CodecPool pool = CodecPool.get();
+        final CodecPool.Buffer term = pool.acquireBuffer();
+        try {
+            term.write_any(value);
+            return encode(term.array(), term.size());
+        } finally {
+            pool.releaseBuffer(term);
+        }
+    }
+
+    /**
+     * Encodes the given term into a binary as expected by
+     * <tt>rdht_tx:decode_value/1</tt>.
+     *
+     * @param term
+     *            the encoded term (without version tag)
+     * @param len
+     *            the number of bytes of <tt>term</tt> to use
+     *
+     * @return the encoded value
+     */
+    private OtpErlangBinary encode(final byte[] term, final int len) {
+        values.incrementAndGet();
+        // size of the uncompressed binary (incl. version tag)
+        bytesIn.addAndGet(len + 1);
+        final OtpErlangBinary result;
+        if (len >= threshold) {
+            final long timeAtStart = System.nanoTime();
+            if (isCompressible(term, len)) {
+                result = CommonErlangObjects.encodeTerm(term, len, true, level, true);
+                if (CommonErlangObjects.isCompressed(result)) {
+                    compressedValues.incrementAndGet();
+                }
+                if ((sampleSize > 0) && (len >= (2 * sampleSize))
+                        && ((1.0 - ((double) result.size() / (len + 1))) < minSampleSavings)) {
+                    // contradicts a verdict to compress
+                    dropVerdict();
+                }
+            } else {
+                sampledOut.incrementAndGet();
+                result = CommonErlangObjects.encodeTerm(term, len, false, level, false);
+            }
+            compressionTime.addAndGet(System.nanoTime() - timeAtStart);
+        } else {
+            result = CommonErlangObjects.encodeTerm(term, len, false, level, false);
+        }
+        bytesOut.addAndGet(result.size());
+        return result;
+    }
+
+    /**
+     * Checks whether a sample of the term compresses well enough.
+     *
+     * @param term
+     *            the encoded term
+     * @param len
+     *            the number of bytes of <tt>term</tt> to use
+     *
+     * @return <tt>true</tt> if the term should be compressed
+     */
+    private boolean isCompressible(final byte[] term, final int len) {
+        final int sampleSize = this.sampleSize;
+        if ((sampleSize <= 0) || (len < (2 * sampleSize))) {
+            return true;
+        }
+        if ((verdictLeft.get() > 0) && (verdictLeft.getAndDecrement() > 0)) {
+            samplesSkipped.incrementAndGet();
+            return verdict;
+        }
+        final CodecPool pool = CodecPool.get();
+        final CodecPool.Buffer sample = pool.acquireBuffer();
+        final boolean compressible;
+        try {
+            pool.deflate(term, 0, sampleSize, Deflater.BEST_SPEED, sample);
+            compressible = (1.0 - ((double) sample.size() / sampleSize)) >= minSampleSavings;
+        } finally {
+            pool.releaseBuffer(sample);
+        }
+        addOutcome(compressible);
+        return compressible;
+    }
+
+    /**
+     * Adds the outcome of a sample and establishes a verdict if enough
+     * samples in a row agreed.
+     *
+     * @param compressible
+     *            whether the sample compressed well
+     */
+    private void addOutcome(final boolean compressible) {
+        int current;
+        int next;
+        do {
+            current = outcomes.get();
+            if (compressible) {
+                next = (current > 0) ? (current + 1) : 1;
+            } else {
+                next = (current < 0) ? (current - 1) : -1;
+            }
+        } while (!outcomes.compareAndSet(current, next));
+        final int verdictSamples = this.verdictSamples;
+        if ((verdictSamples > 0) && (Math.abs(next) >= verdictSamples)) {
+            verdict = compressible;
+            verdictLeft.set(verdictValues);
+        }
+    }
+
+    /**
+     * Drops an established verdict to compress values (and the samples
+     * which led to it).
+     */
+    private void dropVerdict() {
+        if (verdict && (verdictLeft.get() > 0)) {
+            verdictLeft.set(0);
+        }
+        outcomes.set(0);
+    }
+
+    /**
+     * Gets the minimal size of encoded values to compress.
+     *
+     * @return the threshold in bytes
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Sets the minimal size of encoded values to compress.
+     *
+     * @param threshold
+     *            the threshold in bytes (&gt;= 0)
+     */
+    public void setThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must be >= 0");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Gets the zlib compression level.
+     *
+     * @return the compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the zlib compression level.
+     *
+     * @param level
+     *            the compression level (0-9 or
+     *            {@link Deflater#DEFAULT_COMPRESSION})
+     */
+    public void setLevel(final int level) {
+        if (((level < 0) || (level > 9)) && (level != Deflater.DEFAULT_COMPRESSION)) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Gets the number of bytes sampled before compressing large values.
+     *
+     * @return the sample size in bytes (<tt>0</tt> if disabled)
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Gets the minimal savings a sample needs to achieve in order to compress
+     * a value.
+     *
+     * @return the minimal savings (between 0 and 1)
+     */
+    public double getMinSampleSavings() {
+        return minSampleSavings;
+    }
+
+    /**
+     * Enables sampling of large values before compressing them.
+     *
+     * @param sampleSize
+     *            number of bytes to sample from the beginning of values with
+     *            at least twice the size (<tt>0</tt> to disable sampling)
+     * @param minSampleSavings
+     *            the minimal savings a sample needs to achieve, e.g.
+     *            <tt>0.1</tt> for 10%
+     */
+    public void setSampling(final int sampleSize, final double minSampleSavings) {
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("sampleSize must be >= 0");
+        }
+        if ((minSampleSavings < 0.0) || (minSampleSavings > 1.0)) {
+            throw new IllegalArgumentException("minSampleSavings must be in [0, 1]");
+        }
+        this.sampleSize = sampleSize;
+        this.minSampleSavings = minSampleSavings;
+    }
+
+    /**
+     * Gets the number of equal sample outcomes in a row establishing a
+     * verdict.
+     *
+     * @return the number of samples (<tt>0</tt> if verdicts are disabled)
+     */
+    public int getVerdictSamples() {
+        return verdictSamples;
+    }
+
+    /**
+     * Gets the number of values encoded with an established verdict before
+     * sampling again.
+     *
+     * @return the number of values
+     */
+    public int getVerdictValues() {
+        return verdictValues;
+    }
+
+    /**
+     * Sets how sample outcomes are learned (default: 8 samples, 128 values).
+     *
+     * @param verdictSamples
+     *            number of equal sample outcomes in a row establishing a
+     *            verdict (<tt>0</tt> to sample every large value)
+     * @param verdictValues
+     *            number of values to encode with an established verdict
+     *            without sampling them
+     */
+    public void setVerdict(final int verdictSamples, final int verdictValues) {
+        if (verdictSamples < 0) {
+            throw new IllegalArgumentException("verdictSamples must be >= 0");
+        }
+        if (verdictValues < 0) {
+            throw new IllegalArgumentException("verdictValues must be >= 0");
+        }
+        this.verdictSamples = verdictSamples;
+        this.verdictValues = verdictValues;
+        verdictLeft.set(0);
+        outcomes.set(0);
+    }
+
+    /**
+     * Gets the number of values encoded with this policy.
+     *
+     * @return the number of values
+     */
+    public long getValues() {
+        return values.get();
+    }
+
+    /**
+     * Gets the number of values which have been sent compressed.
+     *
+     * @return the number of compressed values
+     */
+    public long getCompressedValues() {
+        return compressedValues.get();
+    }
+
+    /**
+     * Gets the number of values which have not been compressed because their
+     * sample (or the verdict of recent samples) did not compress well.
+     *
+     * @return the number of values
+     */
+    public long getSampledOut() {
+        return sampledOut.get();
+    }
+
+    /**
+     * Gets the number of large values which have not been sampled since an
+     * established verdict decided about their compression.
+     *
+     * @return the number of values
+     */
+    public long getSamplesSkipped() {
+        return samplesSkipped.get();
+    }
+
+    /**
+     * Gets the total size of the uncompressed binaries of all values.
+     *
+     * @return the number of bytes
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * Gets the total size of the binaries sent.
+     *
+     * @return the number of bytes
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Gets the number of bytes saved by compression.
+     *
+     * @return {@link #getBytesIn()} - {@link #getBytesOut()}
+     */
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    /**
+     * Gets the time spent compressing (and sampling) values.
+     *
+     * @param unit
+     *            the unit of the returned value
+     *
+     * @return the compression time
+     */
+    public long getCompressionTime(final TimeUnit unit) {
+        return unit.convert(compressionTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Resets all statistics.
+     */
+    public void resetStats() {
+        values.set(0);
+        compressedValues.set(0);
+        sampledOut.set(0);
+        samplesSkipped.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        compressionTime.set(0);
+    }
+}
@@ -17,24 +17,43 @@ package de.zib.scalaris;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.ericsson.otp.erlang.OtpAuthException;
 import com.ericsson.otp.erlang.OtpConnection;
+import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangExit;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
 import com.ericsson.otp.erlang.OtpSelf;
 
 /**
  * Wraps an {@link OtpConnection} and allows automatic re-connects using a
  * {@link ConnectionPolicy} object.
  *
+ * RPCs of multiple threads using the same connection are sent one after
+ * another. Use a {@link MultiplexedConnection} to have them in flight at the
+ * same time.
+ *
+ * RPCs may be given a deadline (see {@link #setRpcTimeout(long)} and
+ * {@link #doRPC(String, String, OtpErlangList, long)}) which includes all
+ * retries and re-connects, and may be cancelled from another thread (see
+ * {@link #cancel()}). In both cases an {@link RPCTimeoutException} is thrown
+ * and the node is not regarded as failed.
+ *
  * @author Nico Kruber, kruber@zib.de
  *
- * @version 3.14
+ * @version 3.21
  * @since 2.3
  */
 public class Connection {
+    private static final OtpErlangAtom rexAtom = new OtpErlangAtom("rex");
+
     /**
      * The connection this object wraps.
      */
@@ -47,6 +66,23 @@ public class Connection {
      * The remote node connected to.
      */
     PeerNode remote;
+    /**
+     * Default timeout of RPCs in milliseconds (<tt>0</tt> for no timeout).
+     */
+    private volatile long rpcTimeout = 0;
+    /**
+     * Default encoding of string values for transactions using this
+     * connection.
+     */
+    private volatile StringEncoding stringEncoding = StringEncoding.LIST;
+    /**
+     * Whether an RPC is currently waiting for its result.
+     */
+    private volatile boolean rpcInFlight = false;
+    /**
+     * Whether the current RPC has been cancelled.
+     */
+    private volatile boolean cancelled = false;
     /**
      * The connection policy object that sets how and whether to automatically
      * reconnect on failures.
@@ -107,6 +143,23 @@ public class Connection {
         connect();
     }
 
+    /**
+     * Creates a new connection object without setting up an
+     * {@link OtpConnection} - sub-classes using a different transport must
+     * connect themselves.
+     *
+     * @param connectionPolicy
+     *            the connection policy to use
+     *
+     * @since 3.21
+     */
+    protected Connection(final ConnectionPolicy connectionPolicy) {
+        super();
+        this.self = null;
+        this.remote = connectionPolicy.selectNode();
+        this.connectionPolicy = connectionPolicy;
+    }
+
     /**
      * Tries connecting to the current {@link #remote} node. If this fails, it
      * will try re-connecting to a node the {@link #connectionPolicy} chooses as
@@ -123,9 +176,38 @@ public class Connection {
      */
     private void connect() throws UnknownHostException,
     IOException, OtpAuthException {
+        try {
+            connect(0);
+        } catch (final RPCTimeoutException e) {
+            // this should not happen without a deadline
+            throw new InternalError();
+        }
+    }
+
+    /**
+     * Tries connecting to the current {@link #remote} node as in
+     * {@link #connect()} but gives up once the given deadline has passed.
+     *
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *
+     * @throws UnknownHostException
+     *             if the remote host could not be found
+     * @throws IOException
+     *             if it was not possible to connect to the remote node
+     * @throws OtpAuthException
+     *             if the connection was refused by the remote node
+     * @throws RPCTimeoutException
+     *             if the deadline passed before a connection was established
+     */
+    private void connect(final long deadline) throws UnknownHostException,
+    IOException, OtpAuthException, RPCTimeoutException {
         boolean success = false;
         int retry = 0;
         while(!success) {
+            if ((deadline != 0) && ((deadline - System.nanoTime()) <= 0)) {
+                throw new RPCTimeoutException("deadline passed while connecting to " + remote);
+            }
             try {
                 connection = self.connect(remote.getNode());
                 connectionPolicy.nodeConnectSuccess(remote);
@@ -143,14 +225,15 @@ public class Connection {
         }
     }
 
-    private void reconnect() throws UnknownHostException, IOException,
-            OtpAuthException {
+    private void reconnect(final long deadline) throws UnknownHostException,
+            IOException, OtpAuthException, RPCTimeoutException {
         close();
-        connect();
+        connect(deadline);
     }
 
     /**
-     * Sends the given RPC and waits for a result.
+     * Sends the given RPC and waits for a result (at most
+     * {@link #getRpcTimeout()} milliseconds if set).
      *
      * @param mod
      *            the module of the function to call
@@ -166,34 +249,93 @@ public class Connection {
      *             occurs, an exit signal is received from a process on the
      *             peer node or the remote node sends a message containing an
      *             invalid cookie
+     * @throws RPCTimeoutException
+     *             if the RPC timed out or has been cancelled
      */
     public OtpErlangObject doRPC(final String mod, final String fun, final OtpErlangList args)
             throws ConnectionException {
+        return doRPC(mod, fun, args, rpcTimeout);
+    }
+
+    /**
+     * Sends the given RPC and waits for a result for at most
+     * <tt>timeout</tt> milliseconds. This deadline includes all retries and
+     * re-connects to other nodes.
+     *
+     * If the deadline is reached while waiting for the result, the
+     * underlying connection is closed (a late reply must not be taken as the
+     * result of the next RPC) and re-established with the next RPC.
+     *
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param timeout
+     *            the maximal time to wait in milliseconds (<tt>0</tt> for no
+     *            timeout)
+     *
+     * @return the result of the call
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     * @throws RPCTimeoutException
+     *             if the RPC timed out or has been cancelled
+     *
+     * @since 3.21
+     */
+    public synchronized OtpErlangObject doRPC(final String mod, final String fun,
+            final OtpErlangList args, final long timeout) throws ConnectionException {
+        final long deadline = toDeadline(timeout);
+        cancelled = false;
+        rpcInFlight = true;
         try {
             boolean success = false;
             final boolean isConnected = connection.isConnected();
             while(!success) {
+                final PeerNode node = remote;
+                checkDeadline(deadline, node);
+                connectionPolicy.nodeRequestStarted(node);
+                final long timeAtStart = System.nanoTime();
                 try {
                     connection.sendRPC(mod, fun, args);
-                    final OtpErlangObject result = connection.receiveRPC();
+                    final OtpErlangObject result = receiveRPC(deadline);
+                    connectionPolicy.nodeRequestFinished(node,
+                            System.nanoTime() - timeAtStart, result != null);
                     // result may be null but this should not happen and is an error anyway!
                     if (result != null) {
                         success = true;
                         return result;
                     }
+                } catch (final InterruptedException e) {
+                    // no reply before the deadline (not a node failure)
+                    connectionPolicy.nodeRequestFinished(node, System.nanoTime() - timeAtStart, false);
+                    connection.close();
+                    throw new RPCTimeoutException("RPC " + mod + ":" + fun
+                            + " to " + node + " timed out after " + timeout + "ms");
                 } catch (final OtpErlangExit e) {
+                    connectionPolicy.nodeRequestFinished(node, System.nanoTime() - timeAtStart, false);
+                    checkCancelled(node);
                     connectionPolicy.nodeFailed(remote);
                     // first re-try (connection was the first contact)
                     remote = connectionPolicy.selectNode(1, remote, e);
                     // reconnect (and then re-try the operation) if no exception was thrown:
-                    reconnect();
+                    reconnect(deadline);
                 } catch (final OtpAuthException e) {
+                    connectionPolicy.nodeRequestFinished(node, System.nanoTime() - timeAtStart, false);
+                    checkCancelled(node);
                     connectionPolicy.nodeFailed(remote);
                     // first re-try (connection was the first contact)
                     remote = connectionPolicy.selectNode(1, remote, e);
                     // reconnect (and then re-try the operation) if no exception was thrown:
-                    reconnect();
+                    reconnect(deadline);
                 } catch (final IOException e) {
+                    connectionPolicy.nodeRequestFinished(node, System.nanoTime() - timeAtStart, false);
+                    checkCancelled(node);
                     // don't count RPC requests on closed connections as a failing node:
                     if (isConnected) {
                         connectionPolicy.nodeFailed(remote);
@@ -201,7 +343,7 @@ public class Connection {
                     // first re-try (connection was the first contact)
                     remote = connectionPolicy.selectNode(1, remote, e);
                     // reconnect (and then re-try the operation) if no exception was thrown:
-                    reconnect();
+                    reconnect(deadline);
                 }
             }
             // this should not happen as there is only one way out of the while
@@ -216,7 +358,275 @@ public class Connection {
         } catch (final IOException e) {
             // e.printStackTrace();
             throw new ConnectionException(e);
+        } finally {
+            rpcInFlight = false;
+        }
+    }
+
+    /**
+     * Waits for the reply of an RPC until the given deadline.
+     *
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *            to wait forever
+     *
+     * @return the result of the RPC or <tt>null</tt> if the received message
+     *         was no RPC reply
+     *
+     * @throws InterruptedException
+     *             if no reply has been received before the deadline
+     * @throws IOException
+     *             if the connection is not active or a communication error
+     *             occurs
+     * @throws OtpErlangExit
+     *             if an exit signal is received
+     * @throws OtpAuthException
+     *             if the remote node sends a message containing an invalid
+     *             cookie
+     */
+    private OtpErlangObject receiveRPC(final long deadline)
+            throws InterruptedException, IOException, OtpErlangExit,
+            OtpAuthException {
+        if (deadline == 0) {
+            return connection.receiveRPC();
+        }
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new InterruptedException();
+        }
+        // same as OtpConnection#receiveRPC() but with a timeout:
+        final OtpErlangObject msg = connection.receive(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        if ((msg instanceof OtpErlangTuple) && (((OtpErlangTuple) msg).arity() == 2)) {
+            final OtpErlangTuple t = (OtpErlangTuple) msg;
+            if (rexAtom.equals(t.elementAt(0))) {
+                return t.elementAt(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts a timeout into a deadline.
+     *
+     * @param timeout
+     *            the timeout in milliseconds (<tt>0</tt> for no timeout)
+     *
+     * @return the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     */
+    static long toDeadline(final long timeout) {
+        return (timeout > 0) ? (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)) : 0;
+    }
+
+    /**
+     * Throws an {@link RPCTimeoutException} if the given deadline has passed.
+     *
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     * @param node
+     *            the node the RPC is going to be sent to
+     *
+     * @throws RPCTimeoutException
+     *             if the deadline has passed
+     */
+    private static void checkDeadline(final long deadline, final PeerNode node)
+            throws RPCTimeoutException {
+        if ((deadline != 0) && ((deadline - System.nanoTime()) <= 0)) {
+            throw new RPCTimeoutException("deadline passed before sending the RPC to " + node);
+        }
+    }
+
+    /**
+     * Throws an {@link RPCTimeoutException} if the current RPC has been
+     * cancelled by {@link #cancel()} (which closed the connection).
+     *
+     * @param node
+     *            the node the RPC has been sent to
+     *
+     * @throws RPCTimeoutException
+     *             if the RPC has been cancelled
+     */
+    private void checkCancelled(final PeerNode node) throws RPCTimeoutException {
+        if (cancelled) {
+            throw new RPCTimeoutException("RPC to " + node + " has been cancelled", true);
+        }
+    }
+
+    /**
+     * Cancels the RPC currently waiting for its result (if any) from another
+     * thread. The waiting thread receives an {@link RPCTimeoutException}.
+     *
+     * The underlying connection is closed and re-established with the next
+     * RPC.
+     *
+     * @return <tt>true</tt> if an RPC was in flight
+     *
+     * @since 3.21
+     */
+    public boolean cancel() {
+        if (!rpcInFlight) {
+            return false;
+        }
+        cancelled = true;
+        final OtpConnection conn = connection;
+        if (conn != null) {
+            conn.close();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the default timeout of RPCs sent with
+     * {@link #doRPC(String, String, OtpErlangList)}.
+     *
+     * @return the timeout in milliseconds (<tt>0</tt> if there is none)
+     *
+     * @since 3.21
+     */
+    public long getRpcTimeout() {
+        return rpcTimeout;
+    }
+
+    /**
+     * Sets the default timeout of RPCs sent with
+     * {@link #doRPC(String, String, OtpErlangList)}.
+     *
+     * @param rpcTimeout
+     *            the timeout in milliseconds (<tt>0</tt> for no timeout)
+     *
+     * @since 3.21
+     */
+    public void setRpcTimeout(final long rpcTimeout) {
+        if (rpcTimeout < 0) {
+            throw new IllegalArgumentException("rpcTimeout must be >= 0");
+        }
+        this.rpcTimeout = rpcTimeout;
+    }
+
+    /**
+     * Gets the default encoding of string values for transactions created
+     * with this connection.
+     *
+     * @return the string encoding
+     *
+     * @since 3.21
+     */
+    public StringEncoding getStringEncoding() {
+        return stringEncoding;
+    }
+
+    /**
+     * Sets the default encoding of string values for transactions created
+     * with this connection (existing transactions are not changed).
+     *
+     * @param stringEncoding
+     *            the string encoding
+     *
+     * @since 3.21
+     */
+    public void setStringEncoding(final StringEncoding stringEncoding) {
+        if (stringEncoding == null) {
+            throw new NullPointerException("stringEncoding must not be null");
+        }
+        this.stringEncoding = stringEncoding;
+    }
+
+    /**
+     * Sends the given RPC and waits for a result, preferably using one of
+     * the given nodes, e.g. the nodes responsible for the key the RPC is
+     * about (see {@link RoutingCache}).
+     *
+     * This connection is bound to a single node and thus ignores the hint;
+     * see {@link MultiplexedConnection} for an implementation using it.
+     *
+     * @param preferredNodes
+     *            the nodes to send the RPC to if possible (in this order)
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     *
+     * @return the result of the call
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     *
+     * @since 3.21
+     */
+    public OtpErlangObject doRPC(final List<PeerNode> preferredNodes,
+            final String mod, final String fun, final OtpErlangList args)
+            throws ConnectionException {
+        return doRPC(mod, fun, args);
+    }
+
+    /**
+     * Sends the given RPC without waiting for its result (with the timeout of
+     * {@link #doRPC(String, String, OtpErlangList)}).
+     *
+     * This connection can only wait for a result in a thread of its own, so
+     * the RPC is executed by a thread of the given executor. A
+     * {@link MultiplexedConnection} does not need any thread for this.
+     * Cancelling the result while the RPC is in flight cancels it (see
+     * {@link #cancel()}).
+     *
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param executor
+     *            executor to wait for the result with (if necessary)
+     *
+     * @return the result of the call, failing with the exceptions of
+     *         {@link #doRPC(String, String, OtpErlangList)}
+     *
+     * @since 3.21
+     */
+    AsyncResult<OtpErlangObject> doRPCAsync(final String mod, final String fun,
+            final OtpErlangList args, final Executor executor) {
+        final AsyncResult<OtpErlangObject> result = new AsyncResult<OtpErlangObject>();
+        final AtomicBoolean running = new AtomicBoolean(false);
+        result.setCanceller(new Runnable() {
+            public void run() {
+                if (running.get()) {
+                    cancel();
+                }
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    // hold the lock of doRPC() so that cancel() only hits this RPC
+                    synchronized (Connection.this) {
+                        running.set(true);
+                        try {
+                            if (result.isDone()) {
+                                // cancelled before it has been sent
+                                return;
+                            }
+                            result.complete(doRPC(mod, fun, args));
+                        } catch (final ConnectionException e) {
+                            result.fail(e);
+                        } catch (final RuntimeException e) {
+                            result.fail(e);
+                        } catch (final Error e) {
+                            result.fail(e);
+                            throw e;
+                        } finally {
+                            running.set(false);
+                        }
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.fail(e);
         }
+        return result;
     }
 
     /**
@@ -260,8 +670,10 @@ public class Connection {
      *             peer node or the remote node sends a message containing an
      *             invalid cookie
      */
-    public void sendRPC(final String mod, final String fun, final OtpErlangList args)
+    public synchronized void sendRPC(final String mod, final String fun, final OtpErlangList args)
             throws ConnectionException {
+        // re-connects must not take longer than an RPC
+        final long deadline = toDeadline(rpcTimeout);
         try {
             boolean success = false;
             while(!success) {
@@ -274,7 +686,7 @@ public class Connection {
                     // first re-try (connection was the first contact)
                     remote = connectionPolicy.selectNode(1, remote, e);
                     // reconnect (and then re-try the operation) if no exception was thrown:
-                    reconnect();
+                    reconnect(deadline);
                 }
             }
             // this should not happen as there is only one way out of the while
@@ -15,6 +15,7 @@
  */
 package de.zib.scalaris;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -53,6 +54,8 @@ import de.zib.tools.PropertyLoader;
  * <li><tt>scalaris.cookie = "chocolate chip cookie"</tt></li>
  * <li><tt>scalaris.client.name = "java_client"</tt></li>
  * <li><tt>scalaris.client.appendUUID = "true"</tt></li>
+ * <li><tt>scalaris.client.stringEncoding = "LIST"</tt> (see
+ * {@link StringEncoding})</li>
  * </ul>
  *
  * Note: {@code scalaris.node} can be a whitespace, ',' or ';' separated list of
@@ -71,8 +74,12 @@ import de.zib.tools.PropertyLoader;
  * change previously created connections - they keep the old policy. By
  * default, {@link DefaultConnectionPolicy} is used.
  *
+ * Instead of one socket per connection, {@link #createMultiplexedConnection()}
+ * creates connections which share a single local node (and thus a single link
+ * per remote node) with all other multiplexed connections of this factory.
+ *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.20
+ * @version 3.21
  * @since 2.0
  */
 public class ConnectionFactory {
@@ -100,6 +107,10 @@ public class ConnectionFactory {
      * Specifies whether to append a pseudo UUID to client names or not.
      */
     private boolean clientNameAppendUUID;
+    /**
+     * Default encoding of string values of created connections.
+     */
+    private StringEncoding stringEncoding = StringEncoding.LIST;
     /**
      * Pseudo UUID - the number of this counter is added to client names when
      * creating a connection if clientNameAppendUUID is set.
@@ -131,6 +142,14 @@ public class ConnectionFactory {
      */
     private ConnectionPolicy connectionPolicy = new DefaultConnectionPolicy(nodes);
 
+    /**
+     * The local node shared by all multiplexed connections of this factory
+     * (created on first use).
+     *
+     * @since 3.21
+     */
+    private MultiplexingNode multiplexingNode = null;
+
     /**
      * Returns the static instance of a connection factory.
      *
@@ -155,6 +174,7 @@ public class ConnectionFactory {
      * <li><tt>scalaris.cookie = "chocolate chip cookie"</tt></li>
      * <li><tt>scalaris.client.name = "java_client"</tt></li>
      * <li><tt>scalaris.client.appendUUID = "true"</tt></li>
+     * <li><tt>scalaris.client.stringEncoding = "LIST"</tt></li>
      * </ul>
      *
      * These properties can be overridden by specifying (non-empty) system
@@ -168,7 +188,7 @@ public class ConnectionFactory {
         }
 //        System.out.println("loading config file: " + configFile);
         PropertyLoader.loadProperties(properties, configFile, true, false,
-                new String[] {"scalaris.node", "scalaris.cookie", "scalaris.client.name", "scalaris.client.appendUUID"});
+                new String[] {"scalaris.node", "scalaris.cookie", "scalaris.client.name", "scalaris.client.appendUUID", "scalaris.client.stringEncoding"});
         setProperties(properties);
     }
 
@@ -184,6 +204,7 @@ public class ConnectionFactory {
      * <li><tt>scalaris.cookie = "chocolate chip cookie"</tt></li>
      * <li><tt>scalaris.client.name = "java_client"</tt></li>
      * <li><tt>scalaris.client.appendUUID = "true"</tt></li>
+     * <li><tt>scalaris.client.stringEncoding = "LIST"</tt></li>
      * </ul>
      *
      * @param properties
@@ -203,6 +224,7 @@ public class ConnectionFactory {
      * <li><tt>scalaris.cookie = "chocolate chip cookie"</tt></li>
      * <li><tt>scalaris.client.name = "java_client"</tt></li>
      * <li><tt>scalaris.client.appendUUID = "true"</tt></li>
+     * <li><tt>scalaris.client.stringEncoding = "LIST"</tt></li>
      * </ul>
      *
      * NOTE: Existing connections are not changed!
@@ -224,6 +246,12 @@ public class ConnectionFactory {
         } else {
             clientNameAppendUUID = false;
         }
+        try {
+            stringEncoding = StringEncoding.valueOf(properties.getProperty(
+                    "scalaris.client.stringEncoding", "LIST").toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            stringEncoding = StringEncoding.LIST;
+        }
         configFileUsed = properties.getProperty("PropertyLoader.loadedfile", "");
 
         //System.out.println("node: " + node);
@@ -261,7 +289,9 @@ public class ConnectionFactory {
         }
         try {
             final OtpSelf self = new OtpSelf(clientName + "@" + getLocalhostName(), cookie);
-            return new Connection(self, connectionPolicy);
+            final Connection connection = new Connection(self, connectionPolicy);
+            connection.setStringEncoding(stringEncoding);
+            return connection;
         } catch (final Exception e) {
 //                 e.printStackTrace();
             throw new ConnectionException(e);
@@ -350,6 +380,92 @@ public class ConnectionFactory {
         return createConnection(clientName);
     }
 
+    /**
+     * Creates a connection to a scalaris erlang node which multiplexes its
+     * RPCs with all other multiplexed connections of this factory over a
+     * single link per remote node. Uses the given connection policy.
+     *
+     * The connection may be shared by any number of threads and creating it
+     * does not need a new socket or handshake if the shared local node has
+     * already been linked to the selected remote node.
+     *
+     * @param connectionPolicy
+     *            override the connection policy that will be used for the new
+     *            connection
+     *
+     * @return the created connection
+     *
+     * @throws ConnectionException
+     *             if the connection fails
+     *
+     * @see MultiplexedConnection
+     * @since 3.21
+     */
+    public MultiplexedConnection createMultiplexedConnection(
+            final ConnectionPolicy connectionPolicy) throws ConnectionException {
+        try {
+            final MultiplexedConnection connection = new MultiplexedConnection(
+                    getMultiplexingNode(), connectionPolicy);
+            connection.setStringEncoding(stringEncoding);
+            return connection;
+        } catch (final Exception e) {
+//                 e.printStackTrace();
+            throw new ConnectionException(e);
+        }
+    }
+
+    /**
+     * Creates a connection to a scalaris erlang node which multiplexes its
+     * RPCs with all other multiplexed connections of this factory over a
+     * single link per remote node.
+     *
+     * @return the created connection
+     *
+     * @throws ConnectionException
+     *             if the connection fails
+     *
+     * @see #createMultiplexedConnection(ConnectionPolicy)
+     * @since 3.21
+     */
+    public MultiplexedConnection createMultiplexedConnection()
+            throws ConnectionException {
+        return createMultiplexedConnection(connectionPolicy);
+    }
+
+    /**
+     * Gets the local node shared by all multiplexed connections and creates
+     * it if necessary. Its name is derived from the {@link #clientName} with
+     * an appended pseudo UUID (as there must not be two nodes with the same
+     * name).
+     *
+     * @return the shared local node
+     *
+     * @throws IOException
+     *             if the local node could not be created
+     */
+    private synchronized MultiplexingNode getMultiplexingNode() throws IOException {
+        if (multiplexingNode == null) {
+            multiplexingNode = new MultiplexingNode(clientName + "_"
+                    + clientNameUUID.getAndIncrement() + "@"
+                    + getLocalhostName(), cookie);
+        }
+        return multiplexingNode;
+    }
+
+    /**
+     * Closes the local node shared by all multiplexed connections (if it
+     * exists) and thus all of their links to remote nodes. Multiplexed
+     * connections created afterwards will use a new shared node.
+     *
+     * @since 3.21
+     */
+    public synchronized void closeMultiplexedConnections() {
+        if (multiplexingNode != null) {
+            multiplexingNode.close();
+            multiplexingNode = null;
+        }
+    }
+
     /**
      * Replaces <tt>localhost</tt> in the node's name to the machine's real host
      * name.
@@ -423,11 +539,12 @@ public class ConnectionFactory {
      */
     public void printProperties(final PrintStream out) {
         out.println("ConnectionFactory properties:");
-        out.println("  config file                = " + configFileUsed);
-        out.println("  scalaris.node              = " + nodes.toString());
-        out.println("  scalaris.cookie            = " + cookie);
-        out.println("  scalaris.client.name       = " + clientName);
-        out.println("  scalaris.client.appendUUID = " + clientNameAppendUUID);
+        out.println("  config file                    = " + configFileUsed);
+        out.println("  scalaris.node                  = " + nodes.toString());
+        out.println("  scalaris.cookie                = " + cookie);
+        out.println("  scalaris.client.name           = " + clientName);
+        out.println("  scalaris.client.appendUUID     = " + clientNameAppendUUID);
+        out.println("  scalaris.client.stringEncoding = " + stringEncoding);
     }
 
     /**
@@ -656,4 +773,31 @@ public class ConnectionFactory {
     public ConnectionPolicy getConnectionPolicy() {
         return connectionPolicy;
     }
+
+    /**
+     * Gets the default encoding of string values of new connections.
+     *
+     * @return the string encoding
+     *
+     * @since 3.21
+     */
+    public StringEncoding getStringEncoding() {
+        return stringEncoding;
+    }
+
+    /**
+     * Sets the default encoding of string values of new connections
+     * (existing connections are not changed).
+     *
+     * @param stringEncoding
+     *            the string encoding
+     *
+     * @since 3.21
+     */
+    public void setStringEncoding(final StringEncoding stringEncoding) {
+        if (stringEncoding == null) {
+            throw new NullPointerException("stringEncoding must not be null");
+        }
+        this.stringEncoding = stringEncoding;
+    }
 }
@@ -26,7 +26,7 @@ import java.util.List;
  *
  * @see ConnectionFactory
  *
- * @version 2.3
+ * @version 3.21
  * @since 2.3
  */
 public abstract class ConnectionPolicy {
@@ -123,6 +123,52 @@ public abstract class ConnectionPolicy {
         }
     }
 
+    /**
+     * Signals the connection policy that an RPC to the given node has been
+     * sent.
+     *
+     * @param node
+     *            the node the RPC has been sent to
+     *
+     * @since 3.21
+     */
+    public void nodeRequestStarted(final PeerNode node) {
+    }
+
+    /**
+     * Signals the connection policy that an RPC to the given node has
+     * finished.
+     *
+     * Note: a failed RPC will additionally be reported via
+     * {@link #nodeFailed(PeerNode)}.
+     *
+     * @param node
+     *            the node the RPC has been sent to
+     * @param latencyNanos
+     *            the number of nanoseconds the RPC took
+     * @param success
+     *            whether a result has been received or not
+     *
+     * @since 3.21
+     */
+    public void nodeRequestFinished(final PeerNode node,
+            final long latencyNanos, final boolean success) {
+    }
+
+    /**
+     * Whether connections which do not bind a socket to a single remote node
+     * (see {@link MultiplexedConnection}) should select a node for each RPC
+     * using {@link #selectNode()} instead of only during connection set-up
+     * and on failures.
+     *
+     * @return <tt>false</tt> by default
+     *
+     * @since 3.21
+     */
+    public boolean selectsPerRequest() {
+        return false;
+    }
+
     /**
      * Selects the node to connect with when establishing a connection (no
      * failed node, no exception that has already been thrown).
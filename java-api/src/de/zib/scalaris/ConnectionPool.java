@@ -1,5 +1,5 @@
 /**
- *  Copyright 2011 Zuse Institute Berlin
+ *  Copyright 2011-2016 Zuse Institute Berlin
  *
  *   Licensed under the Apache License, Version 2.0 (the "License");
  *   you may not use this file except in compliance with the License.
@@ -15,19 +15,73 @@
  */
 package de.zib.scalaris;
 
+import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * Implements a simple (thread-safe) connection pool for Scalaris connections.
+ * Implements a (thread-safe) connection pool for Scalaris connections.
+ *
+ * <p>
+ * Idle connections are kept in one lock-free sub-pool per {@link PeerNode}.
+ * The number of connections is limited by a fair {@link Semaphore}, i.e.
+ * threads waiting for a connection are served in FIFO order and each
+ * released connection wakes up exactly one waiting thread.
+ * </p>
+ *
+ * <p>
+ * At most {@link #getMaxIdle()} connections are kept idle, any further
+ * released connection is closed. {@link #maintain()} (which can be run
+ * periodically using {@link #startMaintenance(long, TimeUnit)}) closes broken
+ * idle connections and connections idle for longer than
+ * {@link #getIdleTimeout()} milliseconds while keeping at least
+ * {@link #getMinIdle()} idle connections.
+ * </p>
+ *
+ * <p>
+ * Usage statistics are available via {@link #getCreations()},
+ * {@link #getEvictions()}, {@link #getWaiters()} and
+ * {@link #getBorrowLatencyHistogram()}.
+ * </p>
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.7
+ * @version 3.21
  * @since 3.7
  */
 public class ConnectionPool {
+    /**
+     * Number of buckets in the borrow latency histogram.
+     *
+     * @since 3.21
+     */
+    public static final int HISTOGRAM_BUCKETS = 32;
+
+    /**
+     * An idle connection and the time it was put back into the pool.
+     */
+    private static class IdleConnection {
+        final Connection conn;
+        final long idleSince;
+
+        IdleConnection(final Connection conn) {
+            this.conn = conn;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+
     /**
      * Connection factory used for creating connections.
      */
@@ -39,13 +93,75 @@ public class ConnectionPool {
     protected int maxConnections;
     /**
      * All available connections not checked out yet.
+     *
+     * @deprecated not used anymore - idle connections are kept in
+     *             per-node sub-pools (see {@link #getIdle()})
      */
-    protected LinkedList<Connection> availableConns;
+    @Deprecated
+    protected LinkedList<Connection> availableConns = new LinkedList<Connection>();
     /**
      * Number of checked out connections.
+     *
+     * @deprecated not updated anymore, use {@link #getCheckedOut()} instead
      */
+    @Deprecated
     protected int checkedOut = 0;
 
+    /**
+     * Permits for checking out connections (<tt>null</tt> if there is no
+     * limit).
+     */
+    private final Semaphore permits;
+    /**
+     * All available connections not checked out yet, grouped by the remote
+     * node they are connected to.
+     */
+    private final ConcurrentHashMap<PeerNode, ConcurrentLinkedQueue<IdleConnection>> subPools =
+            new ConcurrentHashMap<PeerNode, ConcurrentLinkedQueue<IdleConnection>>();
+    /**
+     * Number of connections in {@link #subPools}.
+     */
+    private final AtomicInteger idle = new AtomicInteger(0);
+    /**
+     * Number of checked out connections.
+     */
+    private final AtomicInteger checkedOutCount = new AtomicInteger(0);
+
+    /**
+     * Minimum number of idle connections to keep during eviction.
+     */
+    private volatile int minIdle = 0;
+    /**
+     * Maximum number of idle connections to keep (<tt>0</tt> for no limit).
+     */
+    private volatile int maxIdle = 0;
+    /**
+     * Number of milliseconds after which idle connections may be evicted
+     * (<tt>0</tt> to never evict working connections).
+     */
+    private volatile long idleTimeout = 0;
+
+    private final AtomicLong creations = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLongArray borrowLatency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * Executor running {@link #maintain()} (if started).
+     */
+    private ScheduledExecutorService maintenance = null;
+
+    /**
+     * Creates the (daemon) maintenance threads (static so that they do not
+     * reference any pool).
+     */
+    private static final ThreadFactory maintenanceThreadFactory = new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "scalaris-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
     /**
      * Creates a new connection pool.
      *
@@ -58,7 +174,7 @@ public class ConnectionPool {
             final int maxConnections) {
         this.cFactory = cFactory;
         this.maxConnections = maxConnections;
-        availableConns = new LinkedList<Connection>();
+        this.permits = (maxConnections == 0) ? null : new Semaphore(maxConnections, true);
     }
 
     /**
@@ -72,17 +188,18 @@ public class ConnectionPool {
      * @throws ConnectionException
      *             if creating the connection fails
      */
-    public synchronized Connection getConnection() throws ConnectionException {
-        Connection conn = null;
-        // use first available connection (if any):
-        if (!availableConns.isEmpty()) {
-            conn = availableConns.remove();
-            ++checkedOut;
-        } else if ((maxConnections == 0) || (checkedOut < maxConnections)) {
-            conn = cFactory.createConnection();
-            ++checkedOut;
+    public Connection getConnection() throws ConnectionException {
+        final long timeAtStart = System.nanoTime();
+        // note: the untimed tryAcquire() would not respect the fairness
+        try {
+            if ((permits != null) && !permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-        return conn;
+        return checkOut(null, timeAtStart);
     }
 
     /**
@@ -102,34 +219,146 @@ public class ConnectionPool {
      *             if creating the connection fails
      */
     public Connection getConnection(final long timeout) throws ConnectionException {
-        final long timeAtStart = System.currentTimeMillis();
-        Connection conn;
-        while ((conn = getConnection()) == null) {
+        return getConnection(null, timeout);
+    }
+
+    /**
+     * Tries to get a valid connection to the given node from the pool waiting
+     * at most <tt>timeout</tt> milliseconds. Creates a new connection (using a
+     * {@link FixedNodeConnectionPolicy}) if necessary and the maximum number
+     * of connections has not been hit yet. If the timeout is hit and no
+     * connection is available, <tt>null</tt> is returned.
+     *
+     * @param node
+     *            the node to connect to (<tt>null</tt> for any node)
+     * @param timeout
+     *            number of milliseconds to wait at most for a valid connection
+     *            to appear (<tt>0</tt> to wait forever)
+     *
+     * @return a connection to Scalaris or <tt>null</tt> if the timeout has been
+     *         hit
+     *
+     * @throws ConnectionException
+     *             if creating the connection fails
+     *
+     * @since 3.21
+     */
+    public Connection getConnection(final PeerNode node, final long timeout)
+            throws ConnectionException {
+        final long timeAtStart = System.nanoTime();
+        if (permits != null) {
             try {
-                synchronized (this) {
-                    wait(timeout);
+                if (timeout == 0) {
+                    permits.acquire();
+                } else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    return null; // timeout
                 }
             } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             }
-            final long timeAtEnd = System.currentTimeMillis();
-            if ((timeAtEnd - timeAtStart) >= timeout) {
-                return null; // timeout
+        }
+        return checkOut(node, timeAtStart);
+    }
+
+    /**
+     * Checks out an idle connection (to the given node) or creates a new one
+     * after a permit has been acquired.
+     *
+     * @param node
+     *            the node to connect to (<tt>null</tt> for any node)
+     * @param timeAtStart
+     *            the time (see {@link System#nanoTime()}) the borrow started
+     *
+     * @return a connection
+     *
+     * @throws ConnectionException
+     *             if creating the connection fails
+     */
+    private Connection checkOut(final PeerNode node, final long timeAtStart)
+            throws ConnectionException {
+        Connection conn = pollIdle(node);
+        if (conn == null) {
+            try {
+                if (node == null) {
+                    conn = cFactory.createConnection();
+                } else {
+                    conn = cFactory.createConnection(new FixedNodeConnectionPolicy(node));
+                }
+                creations.incrementAndGet();
+            } catch (final ConnectionException e) {
+                if (permits != null) {
+                    permits.release();
+                }
+                throw e;
             }
         }
+        checkedOutCount.incrementAndGet();
+        recordBorrowLatency(System.nanoTime() - timeAtStart);
         return conn;
     }
 
+    /**
+     * Removes an idle connection (to the given node) from the pool.
+     *
+     * @param node
+     *            the node to connect to (<tt>null</tt> for any node)
+     *
+     * @return an idle connection or <tt>null</tt> if there is none
+     */
+    private Connection pollIdle(final PeerNode node) {
+        if (node != null) {
+            final ConcurrentLinkedQueue<IdleConnection> subPool = subPools.get(node);
+            return (subPool == null) ? null : pollIdle(subPool);
+        }
+        for (final ConcurrentLinkedQueue<IdleConnection> subPool : subPools.values()) {
+            final Connection conn = pollIdle(subPool);
+            if (conn != null) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    private Connection pollIdle(final ConcurrentLinkedQueue<IdleConnection> subPool) {
+        final IdleConnection idleConn = subPool.poll();
+        if (idleConn != null) {
+            idle.decrementAndGet();
+            return idleConn.conn;
+        }
+        return null;
+    }
+
     /**
      * Puts the given connection back into the pool.
      *
      * @param conn
      *            the connection to release
      */
-    public synchronized void releaseConnection(final Connection conn) {
-        availableConns.add(conn);
-        --checkedOut;
-        // need to notify all waiting threads so they do not exceed their timeouts
-        notifyAll();
+    public void releaseConnection(final Connection conn) {
+        checkedOutCount.decrementAndGet();
+        if ((maxIdle != 0) && (idle.get() >= maxIdle)) {
+            conn.close();
+            evictions.incrementAndGet();
+        } else {
+            getSubPool(conn.getRemote()).offer(new IdleConnection(conn));
+            idle.incrementAndGet();
+        }
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    private ConcurrentLinkedQueue<IdleConnection> getSubPool(final PeerNode node) {
+        ConcurrentLinkedQueue<IdleConnection> subPool = subPools.get(node);
+        if (subPool == null) {
+            final ConcurrentLinkedQueue<IdleConnection> newSubPool = new ConcurrentLinkedQueue<IdleConnection>();
+            subPool = subPools.putIfAbsent(node, newSubPool);
+            if (subPool == null) {
+                subPool = newSubPool;
+            }
+        }
+        return subPool;
     }
 
     /**
@@ -137,11 +366,13 @@ public class ConnectionPool {
      *
      * NOTE: This does not include any checked out connections!
      */
-    public synchronized void closeAll() {
-        for (final Connection conn : availableConns) {
-            conn.close();
+    public void closeAll() {
+        for (final ConcurrentLinkedQueue<IdleConnection> subPool : subPools.values()) {
+            Connection conn;
+            while ((conn = pollIdle(subPool)) != null) {
+                conn.close();
+            }
         }
-        availableConns.clear();
     }
 
     /**
@@ -155,16 +386,114 @@ public class ConnectionPool {
      *            to {@link Collection#contains(Object)} is preferable, e.g. use
      *            {@link Set})
      */
-    public synchronized void closeAllBut(
-            final Collection<PeerNode> remainingNodes) {
-        for (final Iterator<Connection> iterator = availableConns.iterator();
-                iterator.hasNext();) {
-            final Connection conn = iterator.next();
-            if (!remainingNodes.contains(conn.getRemote())) {
-                conn.close();
-                iterator.remove();
+    public void closeAllBut(final Collection<PeerNode> remainingNodes) {
+        for (final Map.Entry<PeerNode, ConcurrentLinkedQueue<IdleConnection>> entry : subPools.entrySet()) {
+            if (!remainingNodes.contains(entry.getKey())) {
+                Connection conn;
+                while ((conn = pollIdle(entry.getValue())) != null) {
+                    conn.close();
+                }
             }
+        }
+    }
 
+    /**
+     * Closes broken idle connections and connections which have been idle
+     * for longer than {@link #getIdleTimeout()} milliseconds (keeping at
+     * least {@link #getMinIdle()} idle connections).
+     *
+     * @since 3.21
+     */
+    public void maintain() {
+        final long now = System.currentTimeMillis();
+        for (final ConcurrentLinkedQueue<IdleConnection> subPool : subPools.values()) {
+            for (final Iterator<IdleConnection> iterator = subPool.iterator(); iterator.hasNext();) {
+                final IdleConnection idleConn = iterator.next();
+                final boolean broken = !isValid(idleConn.conn);
+                final boolean expired = (idleTimeout != 0)
+                        && ((now - idleConn.idleSince) > idleTimeout)
+                        && (idle.get() > minIdle);
+                // only evict if no other thread checked it out in the meantime
+                if ((broken || expired) && subPool.remove(idleConn)) {
+                    idle.decrementAndGet();
+                    idleConn.conn.close();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the given (idle) connection is still usable.
+     *
+     * @param conn
+     *            the connection to check
+     *
+     * @return <tt>true</tt> if the connection is valid
+     *
+     * @since 3.21
+     */
+    protected boolean isValid(final Connection conn) {
+        // multiplexed connections do not have their own OtpConnection
+        return (conn.getConnection() == null) || conn.getConnection().isConnected();
+    }
+
+    /**
+     * Starts a background (daemon) thread running {@link #maintain()}
+     * periodically. The thread does not keep the pool from being
+     * garbage-collected and stops once the pool is gone.
+     *
+     * @param period
+     *            the period between two runs
+     * @param unit
+     *            the time unit of the period
+     *
+     * @since 3.21
+     */
+    public synchronized void startMaintenance(final long period, final TimeUnit unit) {
+        stopMaintenance();
+        maintenance = Executors.newSingleThreadScheduledExecutor(maintenanceThreadFactory);
+        maintenance.scheduleWithFixedDelay(new MaintenanceTask(this, maintenance),
+                period, period, unit);
+    }
+
+    /**
+     * Runs {@link ConnectionPool#maintain()} without keeping the pool from
+     * being garbage-collected. Stops its executor once the pool is gone.
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    private static class MaintenanceTask implements Runnable {
+        private final WeakReference<ConnectionPool> pool;
+        private final ScheduledExecutorService executor;
+
+        MaintenanceTask(final ConnectionPool pool,
+                final ScheduledExecutorService executor) {
+            this.pool = new WeakReference<ConnectionPool>(pool);
+            this.executor = executor;
+        }
+
+        public void run() {
+            final ConnectionPool pool = this.pool.get();
+            if (pool == null) {
+                executor.shutdown();
+            } else {
+                pool.maintain();
+            }
+        }
+    }
+
+    /**
+     * Stops the background maintenance thread (if started).
+     *
+     * @since 3.21
+     */
+    public synchronized void stopMaintenance() {
+        if (maintenance != null) {
+            maintenance.shutdown();
+            maintenance = null;
         }
     }
 
@@ -186,4 +515,165 @@ public class ConnectionPool {
         return cFactory;
     }
 
+    /**
+     * Gets the minimum number of idle connections to keep during eviction.
+     *
+     * @return the minimum number of idle connections
+     *
+     * @since 3.21
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Sets the minimum number of idle connections to keep during eviction.
+     *
+     * @param minIdle
+     *            the minimum number of idle connections (&gt;= 0)
+     *
+     * @since 3.21
+     */
+    public void setMinIdle(final int minIdle) {
+        if (minIdle < 0) {
+            throw new IllegalArgumentException("minIdle must be >= 0");
+        }
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * Gets the maximum number of idle connections to keep.
+     *
+     * @return the maximum number of idle connections (<tt>0</tt> for no limit)
+     *
+     * @since 3.21
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Sets the maximum number of idle connections to keep. Any further
+     * released connection is closed.
+     *
+     * @param maxIdle
+     *            the maximum number of idle connections (<tt>0</tt> for no
+     *            limit)
+     *
+     * @since 3.21
+     */
+    public void setMaxIdle(final int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must be >= 0");
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Gets the number of milliseconds after which idle connections may be
+     * evicted by {@link #maintain()}.
+     *
+     * @return the idle timeout (<tt>0</tt> if idle connections do not expire)
+     *
+     * @since 3.21
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds after which idle connections may be
+     * evicted by {@link #maintain()}.
+     *
+     * @param idleTimeout
+     *            the idle timeout (<tt>0</tt> if idle connections do not
+     *            expire)
+     *
+     * @since 3.21
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets the number of checked out connections.
+     *
+     * @return number of connections in use
+     *
+     * @since 3.21
+     */
+    public int getCheckedOut() {
+        return checkedOutCount.get();
+    }
+
+    /**
+     * Gets the number of idle connections in the pool.
+     *
+     * @return number of idle connections
+     *
+     * @since 3.21
+     */
+    public int getIdle() {
+        return idle.get();
+    }
+
+    /**
+     * Gets the (estimated) number of threads waiting for a connection.
+     *
+     * @return number of waiting threads
+     *
+     * @since 3.21
+     */
+    public int getWaiters() {
+        return (permits == null) ? 0 : permits.getQueueLength();
+    }
+
+    /**
+     * Gets the number of connections created by the pool.
+     *
+     * @return number of created connections
+     *
+     * @since 3.21
+     */
+    public long getCreations() {
+        return creations.get();
+    }
+
+    /**
+     * Gets the number of connections closed by the pool due to
+     * {@link #getMaxIdle()} or {@link #maintain()}.
+     *
+     * @return number of evicted connections
+     *
+     * @since 3.21
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private void recordBorrowLatency(final long nanos) {
+        final long micros = nanos / 1000;
+        // bucket i holds latencies in [2^(i-1), 2^i) microseconds, bucket 0 below 1us
+        final int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        borrowLatency.incrementAndGet(bucket);
+    }
+
+    /**
+     * Gets a histogram of the time it took to borrow a connection (including
+     * waiting and creating new connections). Bucket <tt>0</tt> counts
+     * borrows faster than 1us, bucket <tt>i &gt; 0</tt> counts borrows taking
+     * <tt>[2^(i-1), 2^i)</tt> microseconds (the last bucket also counts all
+     * slower borrows).
+     *
+     * @return a copy of the histogram with {@link #HISTOGRAM_BUCKETS} buckets
+     *
+     * @since 3.21
+     */
+    public long[] getBorrowLatencyHistogram() {
+        final long[] result = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+            result[i] = borrowLatency.get(i);
+        }
+        return result;
+    }
 }
@@ -0,0 +1,150 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * An Erlang term which has already been encoded into the external term format
+ * (without the version tag), e.g. by an {@link ErlangTermEncoder}.
+ *
+ * When sent to Scalaris, the encoded bytes are copied into the message as they
+ * are, i.e. no tree of {@link OtpErlangObject}s is created. The term is only
+ * decoded if it is inspected, e.g. by {@link #toString()} or
+ * {@link #equals(Object)}.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class EncodedTerm extends OtpErlangObject {
+    /**
+     * class version for serialisation
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The encoded term (without version tag).
+     */
+    private final byte[] term;
+
+    /**
+     * Creates an object wrapping the given encoded term.
+     *
+     * @param term
+     *            a term in external term format (without the version tag)
+     */
+    public EncodedTerm(final byte[] term) {
+        this.term = term;
+    }
+
+    /**
+     * Gets the encoded term (without the version tag).
+     *
+     * NOTE: the array is not copied and must not be modified!
+     *
+     * @return the encoded bytes
+     */
+    public byte[] getBytes() {
+        return term;
+    }
+
+    /**
+     * Decodes the term.
+     *
+     * @return the decoded term
+     *
+     * @throws OtpErlangDecodeException
+     *             if the bytes are no valid term
+     */
+    public OtpErlangObject decode() throws OtpErlangDecodeException {
+        final OtpInputStream ois = new OtpInputStream(term);
+        try {
+            return ois.read_any();
+        } finally {
+            try {
+                ois.close();
+            } catch (final IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Creates the binary which <tt>rdht_tx:encode_value/1</tt> would create,
+     * i.e. <tt>term_to_binary(Value, [compressed])</tt>.
+     *
+     * @param compressed
+     *            whether to compress the term
+     *
+     * @return a binary with the versioned (and possibly compressed) term
+     */
+    public OtpErlangBinary toBinary(final boolean compressed) {
+        return CommonErlangObjects.encodeTerm(term, term.length, compressed,
+                Deflater.DEFAULT_COMPRESSION, false);
+    }
+
+    @Override
+    public void encode(final OtpOutputStream buf) {
+        buf.writeN(term);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return decode().toString();
+        } catch (final OtpErlangDecodeException e) {
+            // e.printStackTrace();
+            return "#EncodedTerm<" + Arrays.toString(term) + ">";
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if ((o instanceof EncodedTerm) && Arrays.equals(term, ((EncodedTerm) o).term)) {
+            return true;
+        } else if (!(o instanceof OtpErlangObject)) {
+            return false;
+        }
+        // the same term may have different encodings, e.g. strings
+        try {
+            final OtpErlangObject other = (o instanceof EncodedTerm) ? ((EncodedTerm) o)
+                    .decode() : (OtpErlangObject) o;
+            return decode().equals(other);
+        } catch (final OtpErlangDecodeException e) {
+            // e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    protected int doHashCode() {
+        // must be consistent with the hash code of the decoded term
+        try {
+            return decode().hashCode();
+        } catch (final OtpErlangDecodeException e) {
+            // e.printStackTrace();
+            return Arrays.hashCode(term);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Encodes Java values directly into the Erlang external term format.
+ *
+ * <p>
+ * The encoding is the same as encoding the result of
+ * {@link ErlangValue#convertToErlang(Object)}, i.e. maps and beans are
+ * written as Scalaris JSON objects, but no intermediate tree of
+ * {@link OtpErlangObject}s is created. The output buffer is re-used among
+ * multiple calls of {@link #encode(Object)}, an encoder is thus not
+ * thread-safe. {@link #encodeValue(Object)} uses a per-thread encoder.
+ * </p>
+ *
+ * <p>
+ * Strings are written as configured by
+ * {@link #setStringEncoding(StringEncoding)}, i.e. as Erlang strings by
+ * default or as UTF-8 binaries.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class ErlangTermEncoder {
+    /**
+     * Buffers larger than this are not kept for re-use.
+     */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    /**
+     * Per-thread encoders used by {@link #encodeValue(Object)}.
+     */
+    private static final ThreadLocal<ErlangTermEncoder> encoders = new ThreadLocal<ErlangTermEncoder>() {
+        @Override
+        protected ErlangTermEncoder initialValue() {
+            return new ErlangTermEncoder();
+        }
+    };
+
+    /**
+     * The output buffer.
+     */
+    private OtpOutputStream out = new OtpOutputStream();
+
+    /**
+     * The encoding of strings.
+     */
+    private StringEncoding stringEncoding = StringEncoding.LIST;
+
+    /**
+     * Creates a new encoder.
+     */
+    public ErlangTermEncoder() {
+    }
+
+    /**
+     * Sets how strings are encoded (JSON strings and keys of JSON objects are
+     * always written as Erlang strings).
+     *
+     * @param stringEncoding
+     *            the encoding of strings
+     *
+     * @since 3.21
+     */
+    public void setStringEncoding(final StringEncoding stringEncoding) {
+        if (stringEncoding == null) {
+            throw new NullPointerException("stringEncoding must not be null");
+        }
+        this.stringEncoding = stringEncoding;
+    }
+
+    /**
+     * Converts a (supported) Java type to an {@link OtpErlangObject} like
+     * {@link ErlangValue#convertToErlang(Object)}. Composite values, i.e.
+     * collections, primitive arrays, maps and beans, are encoded into an
+     * {@link EncodedTerm} using a per-thread encoder.
+     *
+     * @param <T>
+     *            the type of the value
+     * @param value
+     *            the value to convert to an erlang type
+     *
+     * @return the converted value
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     */
+    public static <T> OtpErlangObject encodeValue(final T value)
+            throws ClassCastException {
+        return encodeValue(value, StringEncoding.LIST);
+    }
+
+    /**
+     * Converts a (supported) Java type to an {@link OtpErlangObject} like
+     * {@link #encodeValue(Object)} but writes strings inside composite values
+     * with the given encoding.
+     *
+     * @param <T>
+     *            the type of the value
+     * @param value
+     *            the value to convert to an erlang type
+     * @param stringEncoding
+     *            the encoding of strings
+     *
+     * @return the converted value
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     *
+     * @since 3.21
+     */
+    public static <T> OtpErlangObject encodeValue(final T value,
+            final StringEncoding stringEncoding) throws ClassCastException {
+        if ((value instanceof Collection<?>) || (value instanceof Map<?, ?>)
+                || !isSimple(value)) {
+            // note: this includes primitive arrays like long[] whose elements
+            // are written without boxing
+            final ErlangTermEncoder encoder = encoders.get();
+            encoder.setStringEncoding(stringEncoding);
+            return new EncodedTerm(encoder.encode(value));
+        }
+        return ErlangValue.convertToErlang(value, stringEncoding);
+    }
+
+    /**
+     * Checks whether the given value is converted to a non-composite Erlang
+     * object by {@link ErlangValue#convertToErlang(Object)}.
+     *
+     * @param value
+     *            the value
+     *
+     * @return <tt>true</tt> for non-composite values
+     */
+    private static boolean isSimple(final Object value) {
+        return (value instanceof Boolean) || (value instanceof Integer)
+                || (value instanceof Long) || (value instanceof BigInteger)
+                || (value instanceof Double) || (value instanceof String)
+                || (value instanceof byte[]) || (value instanceof ErlangValue)
+                || (value instanceof OtpErlangObject);
+    }
+
+    /**
+     * Encodes the given value.
+     *
+     * @param <T>
+     *            the type of the value
+     * @param value
+     *            the value to encode
+     *
+     * @return the encoded term (without version tag)
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     */
+    public <T> byte[] encode(final T value) throws ClassCastException {
+        out.reset();
+        try {
+            writeValue(value);
+            return out.toByteArray();
+        } finally {
+            if (out.size() > MAX_RETAINED_SIZE) {
+                out = new OtpOutputStream();
+            }
+        }
+    }
+
+    /**
+     * Writes a value like {@link ErlangValue#convertToErlang(Object)} converts
+     * it.
+     *
+     * @param value
+     *            the value to write
+     */
+    private void writeValue(final Object value) throws ClassCastException {
+        if (value instanceof Boolean) {
+            out.write_boolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.write_long((Integer) value);
+        } else if (value instanceof Long) {
+            out.write_long((Long) value);
+        } else if (value instanceof BigInteger) {
+            out.write_big_integer((BigInteger) value);
+        } else if (value instanceof Double) {
+            out.write_double((Double) value);
+        } else if (value instanceof String) {
+            if (stringEncoding == StringEncoding.UTF8_BINARY) {
+                out.write_binary(((String) value).getBytes(StringEncoding.UTF_8));
+            } else {
+                out.write_string((String) value);
+            }
+        } else if (value instanceof byte[]) {
+            out.write_binary((byte[]) value);
+        } else if (value instanceof long[]) {
+            final long[] array = (long[]) value;
+            if (array.length > 0) {
+                out.write_list_head(array.length);
+                for (final long element : array) {
+                    out.write_long(element);
+                }
+            }
+            out.write_nil();
+        } else if (value instanceof int[]) {
+            final int[] array = (int[]) value;
+            if (array.length > 0) {
+                out.write_list_head(array.length);
+                for (final int element : array) {
+                    out.write_long(element);
+                }
+            }
+            out.write_nil();
+        } else if (value instanceof double[]) {
+            final double[] array = (double[]) value;
+            if (array.length > 0) {
+                out.write_list_head(array.length);
+                for (final double element : array) {
+                    out.write_double(element);
+                }
+            }
+            out.write_nil();
+        } else if (value instanceof Collection<?>) {
+            final Collection<?> list = (Collection<?>) value;
+            if (!list.isEmpty()) {
+                out.write_list_head(list.size());
+                for (final Object iter : list) {
+                    writeValue(iter);
+                }
+            }
+            out.write_nil();
+        } else if (value instanceof ErlangValue) {
+            out.write_any(((ErlangValue) value).value());
+        } else if (value instanceof OtpErlangObject) {
+            out.write_any((OtpErlangObject) value);
+        } else if (value == null) {
+            throw new ClassCastException("Unsupported type (value: null)");
+        } else {
+            writeJSONObject(value);
+        }
+    }
+
+    /**
+     * Writes a JSON value like
+     * {@link ErlangValueJSONBase#convertJavaToScalarisJSON_value(Object)}.
+     *
+     * @param value
+     *            the value to write
+     */
+    private void writeJSONValue(final Object value) throws ClassCastException {
+        if (value == null) {
+            out.write_atom(CommonErlangObjects.nullAtom.atomValue());
+        } else if (value instanceof Integer) {
+            out.write_long((Integer) value);
+        } else if (value instanceof Long) {
+            out.write_long((Long) value);
+        } else if (value instanceof BigInteger) {
+            out.write_big_integer((BigInteger) value);
+        } else if (value instanceof Double) {
+            out.write_double((Double) value);
+        } else if (value instanceof String) {
+            out.write_string((String) value);
+        } else if (value instanceof List<?>) {
+            final List<?> list = (List<?>) value;
+            out.write_tuple_head(2);
+            out.write_atom(CommonErlangObjects.arrayAtom.atomValue());
+            if (!list.isEmpty()) {
+                out.write_list_head(list.size());
+                for (final Object iter : list) {
+                    writeJSONValue(iter);
+                }
+            }
+            out.write_nil();
+        } else if (value instanceof Boolean) {
+            out.write_boolean((Boolean) value);
+        } else {
+            writeJSONObject(value);
+        }
+    }
+
+    /**
+     * Writes a map or bean as a JSON object like
+     * {@link ErlangValueJSONToBean#toScalarisJSON(Object)}.
+     *
+     * @param value
+     *            the map or bean to write
+     */
+    private void writeJSONObject(final Object value) throws ClassCastException {
+        out.write_tuple_head(2);
+        out.write_atom(CommonErlangObjects.structAtom.atomValue());
+        if (value instanceof Map<?, ?>) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            if (!map.isEmpty()) {
+                out.write_list_head(map.size());
+                for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                    out.write_tuple_head(2);
+                    out.write_string((String) entry.getKey());
+                    writeJSONValue(entry.getValue());
+                }
+            }
+        } else {
+            final JSONBeanMapping mapping = JSONBeanMapping.get(value.getClass());
+            final JSONBeanMapping.Getter[] getters = mapping.getGetters();
+            if (getters.length > 0) {
+                out.write_list_head(getters.length);
+                for (final JSONBeanMapping.Getter getter : getters) {
+                    final Object member = mapping.invoke(getter, value);
+                    out.write_tuple_head(2);
+                    out.write_string(getter.key);
+                    writeJSONValue(member);
+                }
+            }
+        }
+        out.write_nil();
+    }
+}
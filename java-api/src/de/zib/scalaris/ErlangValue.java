@@ -18,12 +18,15 @@ package de.zib.scalaris;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import com.ericsson.otp.erlang.OtpErlangAtom;
 import com.ericsson.otp.erlang.OtpErlangBinary;
 import com.ericsson.otp.erlang.OtpErlangBoolean;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.ericsson.otp.erlang.OtpErlangDouble;
 import com.ericsson.otp.erlang.OtpErlangException;
 import com.ericsson.otp.erlang.OtpErlangList;
@@ -32,20 +35,23 @@ import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangRangeException;
 import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpExternal;
+import com.ericsson.otp.erlang.OtpInputStream;
 
 /**
  * Encapsulates a result from a read operation on scalaris.
  * See {@link #ErlangValue(Object)} for a list of compatible types.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.19
+ * @version 3.21
  * @since 3.0
  */
 public class ErlangValue implements Comparable<ErlangValue> {
     /**
-     * The (internal representation of the) wrapped erlang value.
+     * The (internal representation of the) wrapped erlang value. An
+     * {@link EncodedTerm} is decoded on first access by {@link #value()}.
      */
-    private final OtpErlangObject value;
+    private OtpErlangObject value;
 
     /**
      * Creates a new object wrapping the given erlang value.
@@ -74,6 +80,9 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *
      * <h2>composite types</h2>
      * <ul>
+     * <li><tt>long[]</tt>, <tt>int[]</tt> - {@link OtpErlangList} of
+     * {@link OtpErlangLong}</li>
+     * <li><tt>double[]</tt> - {@link OtpErlangList} of {@link OtpErlangDouble}</li>
      * <li>{@link List}&lt;Object&gt; with one of the native types except
      * <tt>byte[]</tt> or another (supported) list/map - {@link OtpErlangList}</li>
      * <li>{@link Collection}&lt;Object&gt; same as {@link List}&lt;Object&gt;
@@ -117,6 +126,32 @@ public class ErlangValue implements Comparable<ErlangValue> {
      */
     public static <T> OtpErlangObject convertToErlang(final T value)
             throws ClassCastException {
+        return convertToErlang(value, StringEncoding.LIST);
+    }
+
+    /**
+     * Converts a (supported) Java type to an {@link OtpErlangObject} like
+     * {@link #convertToErlang(Object)} but converts {@link String}s (also
+     * inside collections) with the given encoding. Values which already are
+     * Erlang values are never changed.
+     *
+     * @param <T>
+     *            the type of the value
+     * @param value
+     *            the value to convert to an erlang type
+     * @param stringEncoding
+     *            the encoding of strings
+     *
+     * @return the converted value
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     *
+     * @since 3.21
+     */
+    public static <T> OtpErlangObject convertToErlang(final T value,
+            final StringEncoding stringEncoding) throws ClassCastException {
         if (value instanceof Boolean) {
             return new OtpErlangBoolean((Boolean) value);
         } else if (value instanceof Integer) {
@@ -128,9 +163,30 @@ public class ErlangValue implements Comparable<ErlangValue> {
         } else if (value instanceof Double) {
             return new OtpErlangDouble((Double) value);
         } else if (value instanceof String) {
-            return new OtpErlangString((String) value);
+            return stringEncoding.convert((String) value);
         } else if (value instanceof byte[]) {
             return new OtpErlangBinary((byte[]) value);
+        } else if (value instanceof long[]) {
+            final long[] array = (long[]) value;
+            final OtpErlangObject[] erlValue = new OtpErlangObject[array.length];
+            for (int i = 0; i < array.length; ++i) {
+                erlValue[i] = new OtpErlangLong(array[i]);
+            }
+            return new OtpErlangList(erlValue);
+        } else if (value instanceof int[]) {
+            final int[] array = (int[]) value;
+            final OtpErlangObject[] erlValue = new OtpErlangObject[array.length];
+            for (int i = 0; i < array.length; ++i) {
+                erlValue[i] = new OtpErlangLong(array[i]);
+            }
+            return new OtpErlangList(erlValue);
+        } else if (value instanceof double[]) {
+            final double[] array = (double[]) value;
+            final OtpErlangObject[] erlValue = new OtpErlangObject[array.length];
+            for (int i = 0; i < array.length; ++i) {
+                erlValue[i] = new OtpErlangDouble(array[i]);
+            }
+            return new OtpErlangList(erlValue);
         } else if (value instanceof Collection<?>) {
             // support collection types (represented internally as a list)
             final Collection<?> list = (Collection<?>) value;
@@ -139,7 +195,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
             int i = 0;
             // TODO: optimise for specific types, e.g. lists?
             for (final Object iter : list) {
-                erlValue[i] = convertToErlang(iter);
+                erlValue[i] = convertToErlang(iter, stringEncoding);
                 ++i;
             }
             return new OtpErlangList(erlValue);
@@ -158,7 +214,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
             // map to JSON object notation of Scalaris
             @SuppressWarnings("unchecked")
             final
-            ErlangValueJSONToBean<T> json_converter = new ErlangValueJSONToBean<T>((Class<T>) value.getClass());
+            ErlangValueJSONToBean<T> json_converter = ErlangValueJSONToBean.getInstance((Class<T>) value.getClass());
             return json_converter.toScalarisJSON(value);
 //            throw new ClassCastException("Unsupported type (value: " + value.toString() + ")");
         }
@@ -176,9 +232,9 @@ public class ErlangValue implements Comparable<ErlangValue> {
      * @since 3.3
      */
     public boolean boolValue() throws ClassCastException {
-        if (value.equals(CommonErlangObjects.falseAtom)) {
+        if (value().equals(CommonErlangObjects.falseAtom)) {
             return false;
-        } else if (value.equals(CommonErlangObjects.trueAtom)) {
+        } else if (value().equals(CommonErlangObjects.trueAtom)) {
             return true;
         } else {
             throw new ClassCastException("No boolean.");
@@ -196,7 +252,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      */
     public int intValue() throws ClassCastException {
         try {
-            return ((OtpErlangLong) value).intValue();
+            return ((OtpErlangLong) value()).intValue();
         } catch (final OtpErlangRangeException e) {
             throw new ClassCastException("Cannot cast to int - value is too big (use longValue() or bigIntValue() instead).");
         }
@@ -212,7 +268,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *             not supported or the value is too big
      */
     public long longValue() throws ClassCastException {
-        final OtpErlangLong longValue = (OtpErlangLong) value;
+        final OtpErlangLong longValue = (OtpErlangLong) value();
         if (longValue.isLong()) {
             return longValue.longValue();
         } else {
@@ -230,7 +286,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *             not supported
      */
     public BigInteger bigIntValue() throws ClassCastException {
-        return ((OtpErlangLong) value).bigIntegerValue();
+        return ((OtpErlangLong) value()).bigIntegerValue();
     }
 
     /**
@@ -243,7 +299,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *             not supported
      */
     public double doubleValue() throws ClassCastException {
-        return ((OtpErlangDouble) value).doubleValue();
+        return ((OtpErlangDouble) value()).doubleValue();
     }
 
     /**
@@ -270,6 +326,9 @@ public class ErlangValue implements Comparable<ErlangValue> {
             }
         } else if (value instanceof OtpErlangAtom) {
             return ((OtpErlangAtom) value).atomValue();
+        } else if (value instanceof OtpErlangBinary) {
+            // see StringEncoding#UTF8_BINARY
+            return new String(((OtpErlangBinary) value).binaryValue(), StringEncoding.UTF_8);
         } else {
             return ((OtpErlangString) value).stringValue();
         }
@@ -299,6 +358,8 @@ public class ErlangValue implements Comparable<ErlangValue> {
             }
         } else if (value instanceof OtpErlangAtom) {
             return new OtpErlangString(((OtpErlangAtom) value).atomValue());
+        } else if (value instanceof OtpErlangBinary) {
+            return new OtpErlangString(otpObjectToString(value));
         } else {
             return ((OtpErlangString) value);
         }
@@ -306,6 +367,8 @@ public class ErlangValue implements Comparable<ErlangValue> {
 
     /**
      * Returns the Java {@link String} value of the wrapped erlang value.
+     * Strings stored as UTF-8 encoded binaries (see
+     * {@link StringEncoding#UTF8_BINARY}) are decoded transparently.
      *
      * @return the converted value
      *
@@ -314,7 +377,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *             not supported
      */
     public String stringValue() throws ClassCastException {
-        return otpObjectToString(value);
+        return otpObjectToString(value());
     }
 
     /**
@@ -327,7 +390,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *             not supported
      */
     public byte[] binaryValue() throws ClassCastException {
-        return ((OtpErlangBinary) value).binaryValue();
+        return ((OtpErlangBinary) value()).binaryValue();
     }
 
     /**
@@ -348,7 +411,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
          *
          * first term must be an object!
          */
-        final OtpErlangTuple value_tpl = (OtpErlangTuple) value;
+        final OtpErlangTuple value_tpl = (OtpErlangTuple) value();
         if ((value_tpl.arity() == 2)
                 && value_tpl.elementAt(0).equals(CommonErlangObjects.structAtom)) {
             final ErlangValueJSONToMap json_converter = new ErlangValueJSONToMap();
@@ -382,16 +445,51 @@ public class ErlangValue implements Comparable<ErlangValue> {
          *
          * first term must be an object!
          */
-        final OtpErlangTuple value_tpl = (OtpErlangTuple) value;
+        final OtpErlangTuple value_tpl = (OtpErlangTuple) value();
         if ((value_tpl.arity() == 2)
                 && value_tpl.elementAt(0).equals(CommonErlangObjects.structAtom)) {
-            final ErlangValueJSONToBean<T> json_converter = new ErlangValueJSONToBean<T>(c);
+            final ErlangValueJSONToBean<T> json_converter = ErlangValueJSONToBean.getInstance(c);
             return json_converter.toJava((OtpErlangList) value_tpl.elementAt(1));
         } else {
             throw new ClassCastException("wrong tuple arity");
         }
     }
 
+    /**
+     * Returns a lazy view on the JSON object of the wrapped erlang value
+     * which converts field values only when they are accessed.
+     *
+     * @return a view on all fields of the object
+     *
+     * @throws ClassCastException
+     *             if the value is no JSON object
+     *
+     * @see #jsonValue()
+     * @since 3.21
+     */
+    public JsonView jsonView() throws ClassCastException {
+        return new JsonView(value(), null);
+    }
+
+    /**
+     * Returns a lazy view on the given fields of the JSON object of the
+     * wrapped erlang value. Other fields are neither indexed nor converted.
+     *
+     * @param fields
+     *            the fields to include (<tt>null</tt> for all fields)
+     *
+     * @return a view on the given fields of the object
+     *
+     * @throws ClassCastException
+     *             if the value is no JSON object
+     *
+     * @since 3.21
+     */
+    public JsonView jsonView(final Collection<String> fields)
+            throws ClassCastException {
+        return new JsonView(value(), fields);
+    }
+
     /**
      * Converts an {@link OtpErlangObject} to a {@link OtpErlangList} taking
      * special care if the OTP library converted a list to an
@@ -467,7 +565,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *             not supported
      */
     public <T> List<T> listValue(final ListElementConverter<T> converter) throws ClassCastException {
-        final OtpErlangList list = otpObjectToOtpList(value);
+        final OtpErlangList list = otpObjectToOtpList(value());
         final ArrayList<T> result = new ArrayList<T>(list.arity());
         for (int i = 0; i < list.arity(); ++i) {
             result.add(converter.convert(i, new ErlangValue(list.elementAt(i))));
@@ -497,7 +595,7 @@ public class ErlangValue implements Comparable<ErlangValue> {
     public <T> Collection<T> listCollectionValue(
             final Class<? extends Collection<T>> clazz,
             final ListElementConverter<T> converter) throws ClassCastException {
-        final OtpErlangList list = otpObjectToOtpList(value);
+        final OtpErlangList list = otpObjectToOtpList(value());
         Collection<T> result;
         try {
             result = clazz.newInstance();
@@ -510,6 +608,142 @@ public class ErlangValue implements Comparable<ErlangValue> {
         }
     }
 
+    /**
+     * Returns an iterator over the elements of the wrapped erlang list which
+     * converts each element only when it is requested.
+     *
+     * In contrast to {@link #listValue(ListElementConverter)}, no list of all
+     * converted elements is created and if the value has been read from
+     * Scalaris in its encoded form, the elements are even decoded on demand.
+     * Callers which only need a prefix of (or a filtered subset of) a large
+     * list thus do not need to pay for converting all of its elements.
+     *
+     * NOTE: the list is not copied - if the value is decoded completely by
+     * another method of this object, e.g. by {@link #value()}, existing
+     * iterators will continue on the encoded representation.
+     *
+     * @param <T>
+     *            type of the elements in the list
+     * @param converter
+     *            object that converts the list value to the desired type
+     *
+     * @return an iterator over the converted elements (conversion errors are
+     *         thrown as {@link ClassCastException}s by
+     *         {@link Iterator#next()})
+     *
+     * @throws ClassCastException
+     *             if the value is not a list
+     *
+     * @since 3.21
+     */
+    public <T> Iterator<T> listIterator(final ListElementConverter<T> converter)
+            throws ClassCastException {
+        final OtpInputStream in = encodedList();
+        if (in != null) {
+            return new EncodedListIterator<T>(in, converter);
+        }
+        return new OtpListIterator<T>(otpObjectToOtpList(value()), converter);
+    }
+
+    /**
+     * Returns an iterator over the elements of the wrapped erlang list
+     * (wrapped in {@link ErlangValue} objects).
+     *
+     * @return an iterator over the elements
+     *
+     * @throws ClassCastException
+     *             if the value is not a list
+     *
+     * @see #listIterator(ListElementConverter)
+     * @since 3.21
+     */
+    public Iterator<ErlangValue> listIterator() throws ClassCastException {
+        return listIterator(new ListElementConverter<ErlangValue>() {
+            public ErlangValue convert(final int i, final ErlangValue v) { return v; }
+        });
+    }
+
+    /**
+     * Iterator over a decoded erlang list converting elements on demand.
+     *
+     * @param <T>
+     *            type of the converted elements
+     */
+    private static class OtpListIterator<T> implements Iterator<T> {
+        private final OtpErlangList list;
+        private final ListElementConverter<T> converter;
+        private int i = 0;
+
+        OtpListIterator(final OtpErlangList list, final ListElementConverter<T> converter) {
+            this.list = list;
+            this.converter = converter;
+        }
+
+        public boolean hasNext() {
+            return i < list.arity();
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final T result = converter.convert(i, new ErlangValue(list.elementAt(i)));
+            ++i;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Iterator over an encoded erlang list decoding and converting elements
+     * on demand.
+     *
+     * @param <T>
+     *            type of the converted elements
+     */
+    private static class EncodedListIterator<T> implements Iterator<T> {
+        private final OtpInputStream in;
+        private final ListElementConverter<T> converter;
+        private final int arity;
+        private int i = 0;
+
+        EncodedListIterator(final OtpInputStream in, final ListElementConverter<T> converter)
+                throws ClassCastException {
+            this.in = in;
+            this.converter = converter;
+            try {
+                this.arity = in.read_list_head();
+            } catch (final OtpErlangDecodeException e) {
+                throw new ClassCastException("Cannot decode list: " + e.getMessage());
+            }
+        }
+
+        public boolean hasNext() {
+            return i < arity;
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final OtpErlangObject element;
+            try {
+                element = in.read_any();
+            } catch (final OtpErlangDecodeException e) {
+                throw new ClassCastException("Cannot decode list element " + i
+                        + ": " + e.getMessage());
+            }
+            return converter.convert(i++, new ErlangValue(element));
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * Returns a list of mixed Java values (wrapped in {@link ErlangValue}
      * objects) of the wrapped erlang value.
@@ -586,6 +820,156 @@ public class ErlangValue implements Comparable<ErlangValue> {
         });
     }
 
+    /**
+     * Returns a <tt>long[]</tt> of the wrapped erlang (integer) list value.
+     *
+     * In contrast to {@link #longListValue()}, elements are not boxed and
+     * (for values read in their encoded form) are decoded straight into the
+     * array.
+     *
+     * @return the converted value
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported or an element is too big
+     *
+     * @since 3.21
+     */
+    public long[] longArrayValue() throws ClassCastException {
+        final OtpInputStream in = encodedList();
+        try {
+            if (in != null) {
+                final long[] result = new long[in.read_list_head()];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = in.read_long();
+                }
+                return result;
+            }
+            final OtpErlangObject value0 = value();
+            if (value0 instanceof OtpErlangString) {
+                final String str = ((OtpErlangString) value0).stringValue();
+                final long[] result = new long[str.length()];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = str.charAt(i);
+                }
+                return result;
+            }
+            final OtpErlangList list = (OtpErlangList) value0;
+            final long[] result = new long[list.arity()];
+            for (int i = 0; i < result.length; ++i) {
+                final OtpErlangLong element = (OtpErlangLong) list.elementAt(i);
+                if (!element.isLong()) {
+                    throw new ClassCastException("Cannot cast to long - value is too big.");
+                }
+                result[i] = element.longValue();
+            }
+            return result;
+        } catch (final OtpErlangDecodeException e) {
+            throw new ClassCastException("Cannot convert to long[]: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns an <tt>int[]</tt> of the wrapped erlang (integer) list value.
+     *
+     * In contrast to {@link #longListValue()}, elements are not boxed and
+     * (for values read in their encoded form) are decoded straight into the
+     * array.
+     *
+     * @return the converted value
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported or an element is too big
+     *
+     * @since 3.21
+     */
+    public int[] intArrayValue() throws ClassCastException {
+        final OtpInputStream in = encodedList();
+        try {
+            if (in != null) {
+                final int[] result = new int[in.read_list_head()];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = in.read_int();
+                }
+                return result;
+            }
+            final OtpErlangObject value0 = value();
+            if (value0 instanceof OtpErlangString) {
+                final String str = ((OtpErlangString) value0).stringValue();
+                final int[] result = new int[str.length()];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = str.charAt(i);
+                }
+                return result;
+            }
+            final OtpErlangList list = (OtpErlangList) value0;
+            final int[] result = new int[list.arity()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = ((OtpErlangLong) list.elementAt(i)).intValue();
+            }
+            return result;
+        } catch (final OtpErlangDecodeException e) {
+            throw new ClassCastException("Cannot convert to int[]: " + e.getMessage());
+        } catch (final OtpErlangRangeException e) {
+            throw new ClassCastException("Cannot cast to int - value is too big.");
+        }
+    }
+
+    /**
+     * Returns a <tt>double[]</tt> of the wrapped erlang (float) list value.
+     *
+     * In contrast to {@link #doubleListValue()}, elements are not boxed and
+     * (for values read in their encoded form) are decoded straight into the
+     * array.
+     *
+     * @return the converted value
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     *
+     * @since 3.21
+     */
+    public double[] doubleArrayValue() throws ClassCastException {
+        final OtpInputStream in = encodedList();
+        try {
+            if (in != null) {
+                final double[] result = new double[in.read_list_head()];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = in.read_double();
+                }
+                return result;
+            }
+            final OtpErlangList list = otpObjectToOtpList(value());
+            final double[] result = new double[list.arity()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = ((OtpErlangDouble) list.elementAt(i)).doubleValue();
+            }
+            return result;
+        } catch (final OtpErlangDecodeException e) {
+            throw new ClassCastException("Cannot convert to double[]: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets a stream positioned at the wrapped list if the value has not been
+     * decoded yet.
+     *
+     * @return a stream to read the list from or <tt>null</tt> if the value is
+     *         no encoded list
+     */
+    private OtpInputStream encodedList() {
+        final OtpErlangObject value0 = value;
+        if (value0 instanceof EncodedTerm) {
+            final byte[] term = ((EncodedTerm) value0).getBytes();
+            if ((term.length > 0) && (term[0] == (byte) OtpExternal.listTag)) {
+                return new OtpInputStream(term);
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns a list of {@link String} values of the wrapped erlang value.
      * Provided for convenience.
@@ -651,6 +1035,13 @@ public class ErlangValue implements Comparable<ErlangValue> {
      * @return the value as reported by erlang
      */
     public OtpErlangObject value() {
+        if (value instanceof EncodedTerm) {
+            try {
+                value = ((EncodedTerm) value).decode();
+            } catch (final OtpErlangDecodeException e) {
+                throw new ClassCastException("Cannot decode value: " + e.getMessage());
+            }
+        }
         return value;
     }
 
@@ -664,17 +1055,17 @@ public class ErlangValue implements Comparable<ErlangValue> {
         }
 
         final ErlangValue erlValue = (ErlangValue) obj;
-        return value.equals(erlValue.value);
+        return value().equals(erlValue.value());
     }
 
     @Override
     public int hashCode() {
-        return value.hashCode();
+        return value().hashCode();
     }
 
     @Override
     public String toString() {
-        return value.toString();
+        return value().toString();
     }
 
     /**
@@ -684,6 +1075,6 @@ public class ErlangValue implements Comparable<ErlangValue> {
      *            another erlang value
      */
     public int compareTo(final ErlangValue o) {
-        return value.toString().compareTo(o.toString());
+        return value().toString().compareTo(o.toString());
     }
 }
@@ -15,18 +15,15 @@
  */
 package de.zib.scalaris;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.WeakHashMap;
 
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangObject;
@@ -68,6 +65,19 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
      * The class to convert the object to.
      */
     private final Class<T> c;
+    /**
+     * The getters and setters of {@link #c}.
+     */
+    private final JSONBeanMapping mapping;
+
+    /**
+     * All converters returned by {@link #getInstance(Class)} so far (they
+     * are stateless and can thus be shared), guarded by its own lock. Like in
+     * {@link JSONBeanMapping}, the classes are weak keys and the converters
+     * only softly reachable so that classes can still be unloaded.
+     */
+    private static final Map<Class<?>, SoftReference<ErlangValueJSONToBean<?>>> converters =
+            new WeakHashMap<Class<?>, SoftReference<ErlangValueJSONToBean<?>>>();
 
     /**
      * Creates a new object converting to the given class.
@@ -77,6 +87,7 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
      */
     public ErlangValueJSONToBean(final Class<T> c) {
         this.c = c;
+        this.mapping = JSONBeanMapping.get(c);
     }
 
     /**
@@ -91,8 +102,25 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
      *
      * @return an {@link ErlangValueJSONToBean}<U>
      */
+    @SuppressWarnings("unchecked")
     public static <U> ErlangValueJSONToBean<U> getInstance(final Class<U> c) {
-        return new ErlangValueJSONToBean<U>(c);
+        SoftReference<ErlangValueJSONToBean<?>> ref;
+        synchronized (converters) {
+            ref = converters.get(c);
+        }
+        ErlangValueJSONToBean<?> converter = (ref == null) ? null : ref.get();
+        if (converter == null) {
+            final ErlangValueJSONToBean<U> newConverter = new ErlangValueJSONToBean<U>(c);
+            synchronized (converters) {
+                ref = converters.get(c);
+                converter = (ref == null) ? null : ref.get();
+                if (converter == null) {
+                    converter = newConverter;
+                    converters.put(c, new SoftReference<ErlangValueJSONToBean<?>>(converter));
+                }
+            }
+        }
+        return (ErlangValueJSONToBean<U>) converter;
     }
 
     /**
@@ -105,7 +133,7 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
      * @return an {@link ErlangValueJSONToBean}<U>
      */
     public static ErlangValueJSONToBean<?> getInstance(final Type t) {
-        final ErlangValueJSONToBean<?> json_converter = getInstance(getRawType(t));
+        final ErlangValueJSONToBean<?> json_converter = getInstance(JSONBeanMapping.getRawType(t));
         return json_converter;
     }
 
@@ -126,106 +154,6 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
         return (T) convertScalarisJSONtoJava_object2(value, null);
     }
 
-    /**
-     * Capitalize the first letter of the given string.
-     *
-     * @param key
-     *            the string
-     *
-     * @return a string with the first character being upper case
-     */
-    private static String capFirst(final String key) {
-        if (key.length() > 0) {
-            final String keyCap = key.substring(0, 1).toUpperCase() + key.substring(1);
-            return keyCap;
-        }
-        return "";
-    }
-
-    /**
-     * De-capitalize the first letter of the given string.
-     *
-     * @param key
-     *            the string
-     *
-     * @return a string with the first character being lower case
-     */
-    private static String decapFirst(final String key) {
-        if (key.length() > 0) {
-            final String keyCap = key.substring(0, 1).toLowerCase() + key.substring(1);
-            return keyCap;
-        }
-        return "";
-    }
-
-    /**
-     * Gets the class of the raw type of the given type.
-     *
-     * @param type the type object
-     *
-     * @return the class behind the type
-     */
-    private static Class<?> getRawType(final Type type) {
-        if (type instanceof ParameterizedType) {
-            return (Class<?>) ((ParameterizedType) type).getRawType();
-        } else {
-            return (Class<?>) type;
-        }
-    }
-
-    /**
-     * Uses introspection to get the setter method for the given key of class
-     * {@link #c}.
-     * Setter methods must be of the form setKey(xxx),
-     * getter methods of the form getKey() or isKey().
-     *
-     * @param key
-     *            the key to get the setter for
-     *
-     * @return the setter method
-     *
-     * @throws ClassCastException
-     *             if there is no public setter method for <tt>key</tt>
-     */
-    private Method getSetterFor(final String key, final Type type) {
-        final String keyCap1st = capFirst(key);
-        final String setMethod = "set" + keyCap1st;
-        final Class<?> class_ = getRawType(type);
-        try {
-            return c.getMethod(setMethod, class_);
-        } catch (final Exception e) {
-            throw new ClassCastException("no setter " + setMethod + "("
-                    + class_.getSimpleName() + "): " + e.getMessage());
-        }
-    }
-
-    /**
-     * Uses introspection to get the type of the given key of class {@link #c}.
-     * Assumes there is a getter of the form getKey() or isKey().
-     *
-     * @param key
-     *            the key to get the type for
-     *
-     * @return the {@link Class} of the type.
-     *
-     * @throws ClassCastException
-     *             if there is no public getter method for <tt>key</tt>
-     */
-    private Type getTypeOf(final String key) throws ClassCastException {
-        final String keyCap1st = capFirst(key);
-        try {
-            try {
-                return c.getMethod("get" + keyCap1st).getGenericReturnType();
-            } catch (final NoSuchMethodException e) {
-                return c.getMethod("is" + keyCap1st).getGenericReturnType();
-            }
-        } catch (final Exception e) {
-            throw new ClassCastException("no getter [get|is]" + keyCap1st + ": " + e.getMessage());
-        }
-    }
-
-    private final Pattern getMatcher = java.util.regex.Pattern.compile("^get|is");
-
     /**
      * Converts a Java Map to a JSON object as expected by Scalaris.
      *
@@ -277,49 +205,18 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
                         CommonErlangObjects.structAtom, new OtpErlangList(resultList) });
                 return resultTpl;
             } else {
-                @SuppressWarnings("unchecked")
-                final
-                T value = (T) value_;
-
-                // get all getters:
-                final Method[] methods = c.getDeclaredMethods();
-                final List<OtpErlangObject> resultList = new LinkedList<OtpErlangObject>();
-
-                for (final Method method : methods) {
-                    final String methodName = method.getName();
-                    if (getMatcher.matcher(methodName).lookingAt()) {
-                        final String key_j = decapFirst(getMatcher.matcher(methodName).replaceFirst(""));
-                        try {
-                            final OtpErlangObject value_j = convertJavaToScalarisJSON_value(
-                                    method.invoke(value));
-                            resultList.add(
-                                    new OtpErlangTuple(new OtpErlangObject[] {
-                                            new OtpErlangString(key_j),
-                                            value_j }));
-                        } catch (final IllegalArgumentException e) {
-                            e.printStackTrace();
-                            throw new ClassCastException(
-                                    "cannot access getter " + methodName
-                                            + "() of class " + c.getSimpleName()
-                                            + ": " + e.getMessage());
-                        } catch (final IllegalAccessException e) {
-                            throw new ClassCastException(
-                                    "cannot access getter " + methodName
-                                            + "() of class " + c.getSimpleName()
-                                            + ": " + e.getMessage());
-                        } catch (final InvocationTargetException e) {
-                            throw new ClassCastException(
-                                    "cannot access getter " + methodName
-                                            + "() of class " + c.getSimpleName()
-                                            + ": " + e.getMessage());
-                        }
-                    }
+                final JSONBeanMapping.Getter[] getters = mapping.getGetters();
+                final OtpErlangObject[] resultList = new OtpErlangObject[getters.length];
+                for (int i = 0; i < getters.length; ++i) {
+                    final JSONBeanMapping.Getter getter = getters[i];
+                    final OtpErlangObject value_j = convertJavaToScalarisJSON_value(
+                            mapping.invoke(getter, value_));
+                    resultList[i] = new OtpErlangTuple(new OtpErlangObject[] {
+                            new OtpErlangString(getter.key), value_j });
                 }
                 final OtpErlangTuple resultTpl = new OtpErlangTuple(new OtpErlangObject[] {
                         CommonErlangObjects.structAtom,
-                                new OtpErlangList(resultList
-                                        .toArray(new OtpErlangObject[resultList
-                                                .size()])) });
+                                new OtpErlangList(resultList) });
                 return resultTpl;
             }
         } catch (final ClassCastException e) {
@@ -346,7 +243,7 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
      */
     protected Object convertScalarisJSONtoJava_object2(
             final OtpErlangList value, final Type type_) throws ClassCastException {
-        if (c.equals(Map.class) || Arrays.asList(c.getInterfaces()).contains(Map.class)) {
+        if (mapping.isMap()) {
             // target type is a map:
             Type elementType = Object.class;
 
@@ -378,9 +275,9 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
             return result;
         } else {
             // target type is a bean:
-            T result;
+            final Object result;
             try {
-                result = c.getConstructor().newInstance();
+                result = mapping.newInstance();
             } catch (final Exception e) {
                 throw new ClassCastException(
                         "Cannot store value to JSON object (value: "
@@ -392,11 +289,10 @@ class ErlangValueJSONToBean<T> extends ErlangValueJSONBase implements ErlangValu
                     try {
                         final OtpErlangObject key_erl = iter_tpl.elementAt(0);
                         final String key = ErlangValue.otpObjectToString(key_erl);
-                        final Type elementType = getTypeOf(key);
-                        final Method setter = getSetterFor(key, elementType);
+                        final JSONBeanMapping.Setter setter = mapping.getSetter(key);
                         final Object myValue = convertScalarisJSONtoJava_value2(
-                                iter_tpl.elementAt(1), elementType);
-                        setter.invoke(result, myValue);
+                                iter_tpl.elementAt(1), setter.type);
+                        setter.method.invoke(result, myValue);
                     } catch (final Exception e) {
                         throw new ClassCastException(
                                 "Cannot store value to JSON object (value: "
@@ -0,0 +1,501 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+
+import de.zib.scalaris.operations.Operation;
+import de.zib.scalaris.operations.ReadOp;
+
+/**
+ * A {@link TransactionSingleOp} which hedges read-only requests.
+ *
+ * <p>
+ * Requests consisting of reads only are sent via the (primary) connection. If
+ * no answer arrives within the hedge delay, the same request is sent via a
+ * second connection (which should be connected to a different node) and the
+ * first answer is used. All other requests are executed as in
+ * {@link TransactionSingleOp}.
+ * </p>
+ *
+ * <p>
+ * The hedge delay is the {@link #getHedgePercentile()} percentile of the
+ * latencies of recent primary requests (default: 95th percentile) - until
+ * enough samples have been collected, {@link #getInitialHedgeDelay(TimeUnit)}
+ * is used. At most {@link #getMaxHedgeRatio()} of all hedgeable requests are
+ * hedged (default: 5%) so that a slow cluster is not flooded with additional
+ * requests. {@link #getHedgesSent()} and {@link #getHedgesWon()} show how
+ * often hedging was used and how often the hedge answered first.
+ * </p>
+ *
+ * <p>
+ * Both requests are sent asynchronously: a {@link MultiplexedConnection}
+ * does not need any thread for this, other connections a thread of the
+ * {@link #getExecutor()}. Once one request answered, the other one is
+ * cancelled (which closes a plain {@link Connection} until its next RPC, so
+ * {@link MultiplexedConnection}s should be preferred). The caller waits at
+ * most {@link Connection#getRpcTimeout()} of the primary connection.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class HedgingTransactionSingleOp extends TransactionSingleOp {
+    /**
+     * Number of latency samples the hedge delay is computed from.
+     */
+    private static final int SAMPLES = 1024;
+    /**
+     * Number of samples between two updates of the hedge delay (also the
+     * minimal number of samples for computing it).
+     */
+    private static final int UPDATE_INTERVAL = 64;
+
+    /**
+     * The two requests of a hedged read competing for the result.
+     */
+    private static class Race {
+        final List<AsyncResult<OtpErlangObject>> rpcs = new ArrayList<AsyncResult<OtpErlangObject>>(2);
+        int attempts = 1;
+        int failures = 0;
+        boolean done = false;
+        boolean hedgeWon = false;
+        OtpErlangObject result = null;
+        Throwable error = null;
+
+        void success(final OtpErlangObject result, final boolean hedge) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                this.result = result;
+                this.hedgeWon = hedge;
+                notifyAll();
+            }
+            cancelAll();
+        }
+
+        synchronized void failure(final Throwable e) {
+            ++failures;
+            if (error == null) {
+                error = e;
+            }
+            if (!done && (failures == attempts)) {
+                done = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Cancels all requests which are still in flight.
+         */
+        void cancelAll() {
+            final List<AsyncResult<OtpErlangObject>> toCancel;
+            synchronized (this) {
+                toCancel = new ArrayList<AsyncResult<OtpErlangObject>>(rpcs);
+            }
+            for (final AsyncResult<OtpErlangObject> rpc : toCancel) {
+                rpc.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Connection to send hedged requests with.
+     */
+    private final Connection hedgeConnection;
+
+    /**
+     * Recent latencies of primary requests (ring buffer).
+     */
+    private final long[] latencies = new long[SAMPLES];
+    private long latencyCount = 0;
+
+    private volatile long initialHedgeDelay = TimeUnit.MILLISECONDS.toNanos(10);
+    private volatile long hedgeDelay = initialHedgeDelay;
+    private volatile double hedgePercentile = 95.0;
+    private volatile double maxHedgeRatio = 0.05;
+
+    private final AtomicLong hedgeable = new AtomicLong(0);
+    private final AtomicLong hedgesSent = new AtomicLong(0);
+    private final AtomicLong hedgesWon = new AtomicLong(0);
+
+    /**
+     * Constructor, uses the given connections to erlang nodes.
+     *
+     * @param conn
+     *            connection to use for the transaction
+     * @param hedgeConnection
+     *            connection to use for hedged requests (preferably to
+     *            another node)
+     */
+    public HedgingTransactionSingleOp(final Connection conn,
+            final Connection hedgeConnection) {
+        super(conn);
+        this.hedgeConnection = hedgeConnection;
+    }
+
+    /**
+     * Checks whether the given request list only contains reads.
+     *
+     * @param req
+     *            the request list
+     *
+     * @return <tt>true</tt> if the requests can be hedged
+     */
+    private static boolean isReadOnly(final RequestList req) {
+        for (final Operation op : req.getRequests()) {
+            if (!(op instanceof ReadOp)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the given request and reports its outcome to <tt>race</tt>.
+     *
+     * @param conn
+     *            the connection to use
+     * @param args
+     *            the arguments of <tt>req_list_commit_each</tt>
+     * @param race
+     *            the race to report to
+     * @param hedge
+     *            whether this is the hedged request
+     */
+    private void attempt(final Connection conn, final OtpErlangList args,
+            final Race race, final boolean hedge) {
+        final long timeAtStart = System.nanoTime();
+        final AsyncResult<OtpErlangObject> rpc;
+        try {
+            rpc = conn.doRPCAsync(module(), "req_list_commit_each", args, executor);
+        } catch (final Throwable e) {
+            race.failure(e);
+            return;
+        }
+        final boolean lost;
+        synchronized (race) {
+            race.rpcs.add(rpc);
+            lost = race.done;
+        }
+        rpc.addListener(new Runnable() {
+            public void run() {
+                try {
+                    final Throwable error = rpc.getError();
+                    if (error != null) {
+                        race.failure(error);
+                        return;
+                    }
+                    if (!hedge) {
+                        addLatency(System.nanoTime() - timeAtStart);
+                    }
+                    race.success(rpc.getResult(), hedge);
+                } catch (final Throwable e) {
+                    race.failure(e);
+                }
+            }
+        });
+        if (lost) {
+            // the race is already over
+            rpc.cancel(true);
+        }
+    }
+
+    /**
+     * Executes all requests in <code>req</code> and commits each one of them in
+     * a single transaction. Read-only requests are hedged.
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return results of all requests in the same order as they appear in
+     *         <code>req</code>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    @Override
+    public ResultList req_list(final RequestList req)
+            throws ConnectionException, UnknownException {
+        if (req.isEmpty() || !isReadOnly(req)) {
+            return super.req_list(req);
+        }
+        final long hedgeCount = hedgeable.incrementAndGet();
+        final boolean compressed = this.compressed;
+        final OtpErlangList args = new OtpErlangList(
+                new OtpErlangObject[] { req.getErlangReqList(compressed, compressionPolicy, stringEncoding) });
+        final long rpcTimeout = connection.getRpcTimeout();
+        final long deadline = Connection.toDeadline(rpcTimeout);
+        final Race race = new Race();
+        attempt(connection, args, race, false);
+
+        boolean interrupted = false;
+        boolean hedge = false;
+        synchronized (race) {
+            final long hedgeDeadline = System.nanoTime() + hedgeDelay;
+            interrupted |= await(race, hedgeDeadline);
+            if (!race.done && ((hedgesSent.get() + 1) <= (maxHedgeRatio * hedgeCount))) {
+                hedgesSent.incrementAndGet();
+                ++race.attempts;
+                hedge = true;
+            }
+        }
+        if (hedge) {
+            attempt(hedgeConnection, args, race, true);
+        }
+        synchronized (race) {
+            interrupted |= await(race, deadline);
+            if (!race.done) {
+                race.done = true;
+                race.error = new RPCTimeoutException("hedged RPC timed out after "
+                        + rpcTimeout + "ms");
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (race.result == null) {
+            race.cancelAll();
+            if (race.error instanceof ConnectionException) {
+                throw (ConnectionException) race.error;
+            } else if (race.error instanceof RuntimeException) {
+                throw (RuntimeException) race.error;
+            } else if (race.error instanceof Error) {
+                throw (Error) race.error;
+            }
+            throw new UnknownException(race.error);
+        }
+        if (race.hedgeWon) {
+            hedgesWon.incrementAndGet();
+        }
+        try {
+            return new ResultList((OtpErlangList) race.result, compressed, req);
+        } catch (final ClassCastException e) {
+            // e.printStackTrace();
+            throw new UnknownException(e, race.result);
+        }
+    }
+
+    /**
+     * Waits until the race is done or the deadline passed (the caller must
+     * hold the lock of <tt>race</tt>).
+     *
+     * @param race
+     *            the race to wait for
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *            to wait without timeout
+     *
+     * @return whether the thread has been interrupted while waiting
+     */
+    private static boolean await(final Race race, final long deadline) {
+        boolean interrupted = false;
+        while (!race.done) {
+            try {
+                if (deadline == 0) {
+                    race.wait();
+                } else {
+                    final long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(race, nanos);
+                }
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * Executes {@link #req_list(RequestList)} (including the hedged
+     * requests) by a thread of the {@link #executor}.
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     */
+    @Override
+    void startAsync(final RequestList req, final AsyncResult<ResultList> result) {
+        startBlocking(req, result);
+    }
+
+    /**
+     * Adds the latency of a primary request and updates the hedge delay
+     * every {@link #UPDATE_INTERVAL} samples.
+     *
+     * @param latency
+     *            the latency in nanoseconds
+     */
+    private void addLatency(final long latency) {
+        final long[] sorted;
+        synchronized (latencies) {
+            latencies[(int) (latencyCount % SAMPLES)] = latency;
+            ++latencyCount;
+            if ((latencyCount % UPDATE_INTERVAL) != 0) {
+                return;
+            }
+            sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil((hedgePercentile / 100.0) * sorted.length) - 1;
+        hedgeDelay = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Gets the connection hedged requests are sent with.
+     *
+     * @return the hedge connection
+     */
+    public Connection getHedgeConnection() {
+        return hedgeConnection;
+    }
+
+    /**
+     * Gets the current hedge delay.
+     *
+     * @param unit
+     *            the unit of the returned value
+     *
+     * @return the time to wait for an answer before hedging
+     */
+    public long getHedgeDelay(final TimeUnit unit) {
+        return unit.convert(hedgeDelay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the hedge delay used until enough latency samples are available.
+     *
+     * @param unit
+     *            the unit of the returned value
+     *
+     * @return the initial hedge delay (default: 10ms)
+     */
+    public long getInitialHedgeDelay(final TimeUnit unit) {
+        return unit.convert(initialHedgeDelay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the hedge delay used until enough latency samples are available.
+     *
+     * @param delay
+     *            the initial hedge delay (&gt;= 0)
+     * @param unit
+     *            the unit of <tt>delay</tt>
+     */
+    public void setInitialHedgeDelay(final long delay, final TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must be >= 0");
+        }
+        synchronized (latencies) {
+            initialHedgeDelay = unit.toNanos(delay);
+            if (latencyCount < UPDATE_INTERVAL) {
+                hedgeDelay = initialHedgeDelay;
+            }
+        }
+    }
+
+    /**
+     * Gets the percentile of the latencies of recent requests used as the
+     * hedge delay.
+     *
+     * @return the percentile (default: 95.0)
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Sets the percentile of the latencies of recent requests used as the
+     * hedge delay.
+     *
+     * @param hedgePercentile
+     *            the percentile (0 &lt; percentile &lt;= 100)
+     */
+    public void setHedgePercentile(final double hedgePercentile) {
+        if ((hedgePercentile <= 0.0) || (hedgePercentile > 100.0)) {
+            throw new IllegalArgumentException("hedgePercentile must be in (0, 100]");
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Gets the maximal ratio of hedged requests to all read-only requests.
+     *
+     * @return the maximal hedge ratio (default: 0.05)
+     */
+    public double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * Sets the maximal ratio of hedged requests to all read-only requests.
+     *
+     * @param maxHedgeRatio
+     *            the maximal hedge ratio (0 &lt;= ratio &lt;= 1, 0 disables
+     *            hedging)
+     */
+    public void setMaxHedgeRatio(final double maxHedgeRatio) {
+        if ((maxHedgeRatio < 0.0) || (maxHedgeRatio > 1.0)) {
+            throw new IllegalArgumentException("maxHedgeRatio must be in [0, 1]");
+        }
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * Gets the number of read-only (hedgeable) requests.
+     *
+     * @return the number of requests
+     */
+    public long getHedgeable() {
+        return hedgeable.get();
+    }
+
+    /**
+     * Gets the number of hedged requests sent.
+     *
+     * @return the number of hedges
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * Gets the number of hedged requests which answered first.
+     *
+     * @return the number of hedges won
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * The (cached) mapping between JSON object keys and the getters and setters
+ * of a Bean class as used by {@link ErlangValueJSONToBean} and
+ * {@link ErlangTermEncoder}.
+ *
+ * Methods are looked up only once per class (getters) or once per class and
+ * key (setters) and mappings are shared among all threads. The cache does not
+ * prevent a class (and its class loader) from being unloaded, e.g. when a web
+ * application is re-deployed.
+ *
+ * Setter methods must be of the form setKey(xxx), getter methods of the form
+ * getKey() or isKey().
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+final class JSONBeanMapping {
+    /**
+     * A getter of a bean and the JSON key it belongs to.
+     */
+    static final class Getter {
+        final String key;
+        final Method method;
+
+        Getter(final String key, final Method method) {
+            this.key = key;
+            this.method = method;
+        }
+    }
+
+    /**
+     * A setter of a bean and the (generic) type of its property.
+     */
+    static final class Setter {
+        final Method method;
+        final Type type;
+
+        Setter(final Method method, final Type type) {
+            this.method = method;
+            this.type = type;
+        }
+    }
+
+    /**
+     * All mappings created so far (guarded by its own lock). The classes are
+     * weak keys and, since a mapping references its class, the mappings are
+     * only softly reachable.
+     */
+    private static final Map<Class<?>, SoftReference<JSONBeanMapping>> mappings =
+            new WeakHashMap<Class<?>, SoftReference<JSONBeanMapping>>();
+
+    private static final Pattern getMatcher = Pattern.compile("^get|is");
+
+    /**
+     * The class this mapping belongs to.
+     */
+    private final Class<?> c;
+    /**
+     * Whether {@link #c} is a {@link Map}.
+     */
+    private final boolean isMap;
+    /**
+     * All getters (in the order of {@link Class#getDeclaredMethods()}).
+     */
+    private final Getter[] getters;
+    /**
+     * The default constructor or <tt>null</tt> if there is none.
+     */
+    private final Constructor<?> constructor;
+    /**
+     * Setters by JSON key (filled on demand).
+     */
+    private final ConcurrentMap<String, Setter> setters = new ConcurrentHashMap<String, Setter>();
+
+    /**
+     * Creates the mapping of the given class.
+     *
+     * @param c
+     *            the bean class
+     */
+    private JSONBeanMapping(final Class<?> c) {
+        this.c = c;
+        this.isMap = c.equals(Map.class)
+                || Arrays.asList(c.getInterfaces()).contains(Map.class);
+        final List<Getter> getterList = new ArrayList<Getter>();
+        for (final Method method : c.getDeclaredMethods()) {
+            final String methodName = method.getName();
+            if (getMatcher.matcher(methodName).lookingAt()) {
+                getterList.add(new Getter(decapFirst(getMatcher.matcher(
+                        methodName).replaceFirst("")), fastAccess(method)));
+            }
+        }
+        this.getters = getterList.toArray(new Getter[getterList.size()]);
+        Constructor<?> ctor;
+        try {
+            ctor = c.getConstructor();
+        } catch (final Exception e) {
+            ctor = null;
+        }
+        this.constructor = ctor;
+    }
+
+    /**
+     * Gets the mapping of the given class.
+     *
+     * @param c
+     *            the bean class
+     *
+     * @return the (cached) mapping
+     */
+    static JSONBeanMapping get(final Class<?> c) {
+        SoftReference<JSONBeanMapping> ref;
+        synchronized (mappings) {
+            ref = mappings.get(c);
+        }
+        JSONBeanMapping mapping = (ref == null) ? null : ref.get();
+        if (mapping == null) {
+            // introspect the class outside the lock:
+            final JSONBeanMapping newMapping = new JSONBeanMapping(c);
+            synchronized (mappings) {
+                ref = mappings.get(c);
+                mapping = (ref == null) ? null : ref.get();
+                if (mapping == null) {
+                    mapping = newMapping;
+                    mappings.put(c, new SoftReference<JSONBeanMapping>(mapping));
+                }
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * Disables access checks for the given method if it is accessible anyway,
+     * i.e. if it is public and declared in a public class.
+     *
+     * @param method
+     *            the method
+     *
+     * @return the method
+     */
+    private static Method fastAccess(final Method method) {
+        if (Modifier.isPublic(method.getModifiers())
+                && Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            try {
+                method.setAccessible(true);
+            } catch (final SecurityException e) {
+                // e.printStackTrace();
+            }
+        }
+        return method;
+    }
+
+    /**
+     * Whether the class is a {@link Map}.
+     *
+     * @return <tt>true</tt> for maps
+     */
+    boolean isMap() {
+        return isMap;
+    }
+
+    /**
+     * Gets all getters of the bean.
+     *
+     * NOTE: the array must not be modified!
+     *
+     * @return the getters
+     */
+    Getter[] getGetters() {
+        return getters;
+    }
+
+    /**
+     * Invokes the given getter.
+     *
+     * @param getter
+     *            the getter
+     * @param value
+     *            the bean
+     *
+     * @return the property's value
+     *
+     * @throws ClassCastException
+     *             if the getter cannot be invoked
+     */
+    Object invoke(final Getter getter, final Object value)
+            throws ClassCastException {
+        try {
+            return getter.method.invoke(value);
+        } catch (final IllegalArgumentException e) {
+            throw accessFailed(getter.method, e);
+        } catch (final IllegalAccessException e) {
+            throw accessFailed(getter.method, e);
+        } catch (final InvocationTargetException e) {
+            throw accessFailed(getter.method, e);
+        }
+    }
+
+    private ClassCastException accessFailed(final Method method, final Exception e) {
+        return new ClassCastException("cannot access getter " + method.getName()
+                + "() of class " + c.getSimpleName() + ": " + e.getMessage());
+    }
+
+    /**
+     * Creates a new instance of the bean.
+     *
+     * @return the new bean
+     *
+     * @throws Exception
+     *             if there is no public default constructor or it failed
+     */
+    Object newInstance() throws Exception {
+        if (constructor == null) {
+            throw new NoSuchMethodException(c.getName() + ".<init>()");
+        }
+        return constructor.newInstance();
+    }
+
+    /**
+     * Gets the setter for the given key. Assumes there is a getter of the
+     * form getKey() or isKey() defining the property's type and a setter of
+     * the form setKey(xxx).
+     *
+     * @param key
+     *            the key to get the setter for
+     *
+     * @return the setter
+     *
+     * @throws ClassCastException
+     *             if there is no public getter or setter for <tt>key</tt>
+     */
+    Setter getSetter(final String key) throws ClassCastException {
+        Setter setter = setters.get(key);
+        if (setter == null) {
+            final Type type = getTypeOf(key);
+            setter = new Setter(fastAccess(getSetterFor(key, type)), type);
+            setters.putIfAbsent(key, setter);
+        }
+        return setter;
+    }
+
+    /**
+     * Uses introspection to get the setter method for the given key.
+     *
+     * @param key
+     *            the key to get the setter for
+     * @param type
+     *            the type of the property
+     *
+     * @return the setter method
+     *
+     * @throws ClassCastException
+     *             if there is no public setter method for <tt>key</tt>
+     */
+    private Method getSetterFor(final String key, final Type type) {
+        final String setMethod = "set" + capFirst(key);
+        final Class<?> class_ = getRawType(type);
+        try {
+            return c.getMethod(setMethod, class_);
+        } catch (final Exception e) {
+            throw new ClassCastException("no setter " + setMethod + "("
+                    + class_.getSimpleName() + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Uses introspection to get the type of the given key.
+     * Assumes there is a getter of the form getKey() or isKey().
+     *
+     * @param key
+     *            the key to get the type for
+     *
+     * @return the {@link Class} of the type.
+     *
+     * @throws ClassCastException
+     *             if there is no public getter method for <tt>key</tt>
+     */
+    private Type getTypeOf(final String key) throws ClassCastException {
+        final String keyCap1st = capFirst(key);
+        try {
+            try {
+                return c.getMethod("get" + keyCap1st).getGenericReturnType();
+            } catch (final NoSuchMethodException e) {
+                return c.getMethod("is" + keyCap1st).getGenericReturnType();
+            }
+        } catch (final Exception e) {
+            throw new ClassCastException("no getter [get|is]" + keyCap1st + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the class of the raw type of the given type.
+     *
+     * @param type the type object
+     *
+     * @return the class behind the type
+     */
+    static Class<?> getRawType(final Type type) {
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        } else {
+            return (Class<?>) type;
+        }
+    }
+
+    /**
+     * Capitalize the first letter of the given string.
+     *
+     * @param key
+     *            the string
+     *
+     * @return a string with the first character being upper case
+     */
+    private static String capFirst(final String key) {
+        if (key.length() > 0) {
+            return key.substring(0, 1).toUpperCase() + key.substring(1);
+        }
+        return "";
+    }
+
+    /**
+     * De-capitalize the first letter of the given string.
+     *
+     * @param key
+     *            the string
+     *
+     * @return a string with the first character being lower case
+     */
+    private static String decapFirst(final String key) {
+        if (key.length() > 0) {
+            return key.substring(0, 1).toLowerCase() + key.substring(1);
+        }
+        return "";
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Lazy view on a Scalaris-JSON object.
+ *
+ * <p>
+ * In contrast to {@link ErlangValue#jsonValue()}, which converts the whole
+ * object (including all nested objects and arrays) into a {@link Map}, the
+ * view only indexes the field names on first access and converts a field's
+ * value when it is requested. If created with a field projection (see
+ * {@link ErlangValue#jsonView(Collection)}), all other fields are ignored.
+ * </p>
+ *
+ * Views are not thread-safe.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class JsonView {
+    /**
+     * Converter for field values (stateless).
+     */
+    private static final ErlangValueJSONToMap converter = new ErlangValueJSONToMap();
+
+    /**
+     * The list of key/value pairs of the JSON object.
+     */
+    private final OtpErlangList pairs;
+    /**
+     * The fields to include (<tt>null</tt> for all fields).
+     */
+    private final Set<String> projection;
+    /**
+     * Raw field values by field name (created on first access).
+     */
+    private Map<String, OtpErlangObject> index = null;
+    /**
+     * Already converted field values.
+     */
+    private Map<String, Object> converted = null;
+
+    /**
+     * Creates a view on the given Scalaris-JSON object.
+     *
+     * @param object
+     *            a JSON object, i.e. <tt>{struct, [{Key, Value}]}</tt>
+     * @param fields
+     *            the fields to include (<tt>null</tt> for all fields)
+     *
+     * @throws ClassCastException
+     *             if the value is no JSON object
+     */
+    JsonView(final OtpErlangObject object, final Collection<String> fields)
+            throws ClassCastException {
+        /*
+         * object(): {struct, [{key::string() | atom(), value()}]}
+         * array():  {array, [value()]}
+         * value():  number(), string(), object(), array(), 'true', 'false', 'null'
+         */
+        final OtpErlangTuple object_tpl = (OtpErlangTuple) object;
+        if ((object_tpl.arity() == 2)
+                && object_tpl.elementAt(0).equals(CommonErlangObjects.structAtom)) {
+            this.pairs = ErlangValue.otpObjectToOtpList(object_tpl.elementAt(1));
+        } else {
+            throw new ClassCastException("wrong tuple arity");
+        }
+        this.projection = (fields == null) ? null : new HashSet<String>(fields);
+    }
+
+    /**
+     * Indexes the field names (once).
+     *
+     * @return raw field values by field name
+     *
+     * @throws ClassCastException
+     *             if the object contains invalid key/value pairs
+     */
+    private Map<String, OtpErlangObject> index() throws ClassCastException {
+        if (index == null) {
+            final int size = (projection == null) ? pairs.arity() : projection.size();
+            final Map<String, OtpErlangObject> result = new LinkedHashMap<String, OtpErlangObject>(size);
+            for (final OtpErlangObject iter : pairs) {
+                final OtpErlangTuple iter_tpl = (OtpErlangTuple) iter;
+                if (iter_tpl.arity() != 2) {
+                    throw new ClassCastException("Unsupported JSON type (value: "
+                            + pairs.toString() + ")");
+                }
+                final String key = converter.convertScalarisJSONtoJava_key(iter_tpl.elementAt(0));
+                if ((projection == null) || projection.contains(key)) {
+                    result.put(key, iter_tpl.elementAt(1));
+                }
+            }
+            index = result;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the names of the (projected) fields of the object.
+     *
+     * @return an unmodifiable set of field names (in the object's order)
+     *
+     * @throws ClassCastException
+     *             if the object contains invalid key/value pairs
+     */
+    public Set<String> fieldNames() throws ClassCastException {
+        return Collections.unmodifiableSet(index().keySet());
+    }
+
+    /**
+     * Gets the number of (projected) fields of the object.
+     *
+     * @return the number of fields
+     *
+     * @throws ClassCastException
+     *             if the object contains invalid key/value pairs
+     */
+    public int size() throws ClassCastException {
+        return index().size();
+    }
+
+    /**
+     * Checks whether the object contains the given (projected) field.
+     *
+     * @param field
+     *            the name of the field
+     *
+     * @return <tt>true</tt> if the field exists (it may be <tt>null</tt>
+     *         though)
+     *
+     * @throws ClassCastException
+     *             if the object contains invalid key/value pairs
+     */
+    public boolean has(final String field) throws ClassCastException {
+        return index().containsKey(field);
+    }
+
+    /**
+     * Gets the value of the given field converted like
+     * {@link ErlangValue#jsonValue()} converts it, i.e. as a number, string,
+     * boolean, {@link java.util.List} or {@link Map}.
+     *
+     * @param field
+     *            the name of the field
+     *
+     * @return the value or <tt>null</tt> if the field does not exist or is
+     *         <tt>null</tt> (see {@link #has(String)})
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     */
+    public Object get(final String field) throws ClassCastException {
+        if ((converted != null) && converted.containsKey(field)) {
+            return converted.get(field);
+        }
+        final OtpErlangObject raw = index().get(field);
+        if (raw == null) {
+            return null;
+        }
+        final Object result = converter.convertScalarisJSONtoJava_value(raw);
+        if (converted == null) {
+            converted = new HashMap<String, Object>();
+        }
+        converted.put(field, result);
+        return result;
+    }
+
+    /**
+     * Gets the value of the given field as a string.
+     *
+     * @param field
+     *            the name of the field
+     *
+     * @return the value or <tt>null</tt> if the field does not exist or is
+     *         <tt>null</tt>
+     *
+     * @throws ClassCastException
+     *             if the value is no string
+     */
+    public String getString(final String field) throws ClassCastException {
+        return (String) get(field);
+    }
+
+    /**
+     * Gets the raw value of the given field without any conversion.
+     *
+     * @param field
+     *            the name of the field
+     *
+     * @return the value or <tt>null</tt> if the field does not exist
+     *
+     * @throws ClassCastException
+     *             if the object contains invalid key/value pairs
+     */
+    public ErlangValue getValue(final String field) throws ClassCastException {
+        final OtpErlangObject raw = index().get(field);
+        return (raw == null) ? null : new ErlangValue(raw);
+    }
+
+    /**
+     * Converts all (projected) fields into a {@link Map}.
+     *
+     * @return a map with the converted values
+     *
+     * @throws ClassCastException
+     *             if thrown if a conversion is not possible, i.e. the type is
+     *             not supported
+     */
+    public Map<String, Object> toMap() throws ClassCastException {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>(size());
+        for (final String field : index().keySet()) {
+            result.put(field, get(field));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
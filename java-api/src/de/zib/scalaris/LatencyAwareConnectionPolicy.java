@@ -0,0 +1,726 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implements a {@link ConnectionPolicy} by choosing nodes based on their
+ * observed response times.
+ *
+ * This implementation is based on {@link DefaultConnectionPolicy} and thus
+ * also differentiates good and bad nodes. For each node, it keeps an
+ * exponentially weighted moving average (EWMA) of the RPC latencies reported
+ * via {@link #nodeRequestFinished(PeerNode, long, boolean)} and the number of
+ * RPCs currently in flight. The average decays towards zero while a node is
+ * not used so that nodes which were slow some time ago are probed again.
+ *
+ * Whenever a good node is selected, two distinct random candidates are drawn
+ * and the one with the lower score, i.e. <tt>ewma * (inFlight + 1)</tt>, wins
+ * ("power of two choices"). This follows the fast nodes without sending all
+ * requests to the single fastest one.
+ *
+ * A node whose average is more than {@link #getEjectionFactor()} times the
+ * mean of the other nodes' averages (after at least
+ * {@link #getMinSamples()} samples) is ejected from the selection for
+ * {@link #getEjectionTime()} milliseconds. At most half of the good nodes are
+ * ejected at any time.
+ *
+ * The statistics of each node are guarded by a lock of their own, i.e.
+ * reporting a finished RPC only locks the node it has been sent to. The
+ * policy's lock is only taken if the node seems to be an outlier, in order to
+ * coordinate its ejection. Selecting a good node does not lock the policy
+ * either - the candidates are drawn from a snapshot of the good nodes which
+ * is renewed whenever they change.
+ *
+ * Note: {@link MultiplexedConnection}s select a node for each RPC with this
+ * policy (see {@link #selectsPerRequest()}) while a {@link Connection} uses
+ * the selection when (re-)connecting only.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ *
+ * @see DefaultConnectionPolicy
+ */
+public class LatencyAwareConnectionPolicy extends DefaultConnectionPolicy {
+    /**
+     * Latency statistics of a single node. All fields except
+     * {@link #inFlight} are guarded by the object's lock.
+     */
+    protected static class NodeStats {
+        /**
+         * Number of RPCs currently in flight.
+         */
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        /**
+         * Moving average of the latencies (in nanoseconds).
+         */
+        double ewma = 0.0;
+        /**
+         * Time of the last update of {@link #ewma} (see
+         * {@link System#nanoTime()}).
+         */
+        long lastUpdate = 0;
+        /**
+         * Number of samples since the node has been added or re-admitted.
+         */
+        int samples = 0;
+        /**
+         * Time the ejection of the node ends or <tt>0</tt> if not ejected
+         * (see {@link System#nanoTime()}).
+         */
+        long ejectedUntil = 0;
+    }
+
+    /**
+     * Statistics for each node a request has been reported for.
+     */
+    protected final ConcurrentHashMap<PeerNode, NodeStats> stats = new ConcurrentHashMap<PeerNode, NodeStats>();
+
+    /**
+     * Random number generator for selecting the candidates.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Snapshot of {@link #goodNodes} (see {@link #updateGoodNodes()}), may be
+     * set by the super class' constructor and thus has no initialiser.
+     */
+    private volatile PeerNode[] goodSnapshot;
+
+    /**
+     * Weight of a new sample in the moving average.
+     */
+    private volatile double alpha = 0.2;
+    /**
+     * Time (in nanoseconds) after which an unused node's average has decayed
+     * to <tt>1/e</tt> of its value.
+     */
+    private volatile long decayTime = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * Latency (in nanoseconds) a failed RPC counts with at least.
+     */
+    private volatile long failurePenalty = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Factor by which a node's average needs to exceed the mean of the other
+     * nodes to be ejected.
+     */
+    private volatile double ejectionFactor = 3.0;
+    /**
+     * Time (in nanoseconds) an outlier is ejected for.
+     */
+    private volatile long ejectionTime = TimeUnit.SECONDS.toNanos(30);
+    /**
+     * Number of samples needed before a node may be ejected.
+     */
+    private volatile int minSamples = 10;
+
+    /**
+     * Creates a new connection policy working with the given remote node.
+     *
+     * Provided for convenience.
+     *
+     * Attention: This method also synchronises on the node.
+     *
+     * @param remoteNode the (only) available remote node
+     */
+    public LatencyAwareConnectionPolicy(final PeerNode remoteNode) {
+        super(remoteNode);
+        updateGoodNodes();
+    }
+
+    /**
+     * Creates a new connection policy with the given remote nodes.
+     *
+     * Attention: This method synchronises on {@code availableRemoteNodes}.
+     *
+     * Any time this list is changed, the according methods in this class should
+     * be called, i.e. {@link #availableNodeAdded(PeerNode)},
+     * {@link #availableNodeRemoved(PeerNode)}, {@link #availableNodesReset()}
+     * to update the good and bad nodes lists.
+     *
+     * @param availableRemoteNodes
+     *            the remote nodes available for connections
+     */
+    public LatencyAwareConnectionPolicy(final List<PeerNode> availableRemoteNodes) {
+        super(availableRemoteNodes);
+        updateGoodNodes();
+    }
+
+    /**
+     * Gets the statistics object of the given node (creates one if there is
+     * none yet).
+     *
+     * @param node
+     *            the node
+     *
+     * @return the node's statistics
+     */
+    protected NodeStats getStats(final PeerNode node) {
+        NodeStats s = stats.get(node);
+        if (s == null) {
+            final NodeStats newStats = new NodeStats();
+            s = stats.putIfAbsent(node, newStats);
+            if (s == null) {
+                s = newStats;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Gets the node's moving average decayed by the time since its last
+     * update. The caller must hold the lock of <tt>s</tt>.
+     *
+     * @param s
+     *            the node's statistics
+     * @param now
+     *            the current time (see {@link System#nanoTime()})
+     *
+     * @return the decayed average (in nanoseconds)
+     */
+    private double getDecayedEwma(final NodeStats s, final long now) {
+        final long age = now - s.lastUpdate;
+        if ((s.samples == 0) || (age <= 0)) {
+            return s.ewma;
+        }
+        return s.ewma * Math.exp(-((double) age) / decayTime);
+    }
+
+    /**
+     * Checks whether the given statistics belong to an ejected node and
+     * re-admits the node if its ejection time has passed. The caller must
+     * hold the lock of <tt>s</tt>.
+     *
+     * @param s
+     *            the node's statistics
+     * @param now
+     *            the current time (see {@link System#nanoTime()})
+     *
+     * @return whether the node is (still) ejected
+     */
+    private boolean checkEjected(final NodeStats s, final long now) {
+        if (s.ejectedUntil == 0) {
+            return false;
+        } else if ((now - s.ejectedUntil) >= 0) {
+            s.ejectedUntil = 0;
+            s.samples = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the score of a node - lower is better.
+     *
+     * @param node
+     *            the node
+     * @param now
+     *            the current time (see {@link System#nanoTime()})
+     *
+     * @return the node's score
+     */
+    private double getScore(final PeerNode node, final long now) {
+        final NodeStats s = getStats(node);
+        final double ewma;
+        synchronized (s) {
+            ewma = getDecayedEwma(s, now);
+        }
+        return ewma * (s.inFlight.get() + 1);
+    }
+
+    /**
+     * Checks whether the node with the given average is an outlier compared
+     * to the (non-ejected) other nodes.
+     *
+     * @param node
+     *            the node to check
+     * @param ewma
+     *            the node's moving average
+     * @param nodes
+     *            the nodes to compare with
+     * @param now
+     *            the current time (see {@link System#nanoTime()})
+     * @param limitEjections
+     *            whether to keep at least half of <tt>nodes</tt> non-ejected
+     *
+     * @return whether the node should be ejected
+     */
+    private boolean isOutlier(final PeerNode node, final double ewma,
+            final Collection<PeerNode> nodes, final long now,
+            final boolean limitEjections) {
+        double othersSum = 0.0;
+        int others = 0;
+        int ejected = 0;
+        for (final PeerNode other : nodes) {
+            if (other.equals(node)) {
+                continue;
+            }
+            final NodeStats os = stats.get(other);
+            if (os == null) {
+                continue;
+            }
+            synchronized (os) {
+                if (checkEjected(os, now)) {
+                    ++ejected;
+                } else if (os.samples > 0) {
+                    othersSum += getDecayedEwma(os, now);
+                    ++others;
+                }
+            }
+        }
+        return (others > 0) && (!limitEjections || ((2 * (ejected + 1)) <= nodes.size()))
+                && (ewma > (ejectionFactor * (othersSum / others)));
+    }
+
+    /**
+     * Renews the snapshot of the {@link #goodNodes}. The caller must hold the
+     * policy's lock.
+     */
+    private void updateGoodNodes() {
+        goodSnapshot = goodNodes.toArray(new PeerNode[goodNodes.size()]);
+    }
+
+    /**
+     * Checks whether the given node is ejected (see
+     * {@link #checkEjected(NodeStats, long)}).
+     *
+     * @param node
+     *            the node
+     * @param now
+     *            the current time (see {@link System#nanoTime()})
+     *
+     * @return whether the node is ejected
+     */
+    private boolean isEjected(final PeerNode node, final long now) {
+        final NodeStats s = stats.get(node);
+        if (s == null) {
+            return false;
+        }
+        synchronized (s) {
+            return checkEjected(s, now);
+        }
+    }
+
+    /**
+     * Finds a non-ejected node in the given array.
+     *
+     * @param nodes
+     *            the nodes to search
+     * @param start
+     *            the index to start searching at (wrapping around at the end)
+     * @param skip
+     *            an index to leave out ({@code -1} for none)
+     * @param now
+     *            the current time (see {@link System#nanoTime()})
+     *
+     * @return the index of the node or {@code -1} if there is none
+     */
+    private int findNonEjected(final PeerNode[] nodes, final int start,
+            final int skip, final long now) {
+        for (int i = 0; i < nodes.length; ++i) {
+            final int j = (start + i) % nodes.length;
+            if ((j != skip) && !isEjected(nodes[j], now)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Selects the better one of two random non-ejected good nodes (without
+     * taking the policy's lock). Assumes {@link #goodNodes} to have at least
+     * one element.
+     */
+    @Override
+    protected PeerNode getGoodNode() {
+        final PeerNode[] nodes = goodSnapshot;
+        final int n = nodes.length;
+        if (n == 1) {
+            return nodes[0];
+        }
+        final long now = System.nanoTime();
+        int first = random.nextInt(n);
+        if (isEjected(nodes[first], now)) {
+            first = findNonEjected(nodes, random.nextInt(n), -1, now);
+            if (first < 0) {
+                return nodes[random.nextInt(n)];
+            }
+        }
+        int second = random.nextInt(n - 1);
+        if (second >= first) {
+            ++second;
+        }
+        if (isEjected(nodes[second], now)) {
+            second = findNonEjected(nodes, random.nextInt(n), first, now);
+            if (second < 0) {
+                return nodes[first];
+            }
+        }
+        final PeerNode node1 = nodes[first];
+        final PeerNode node2 = nodes[second];
+        return (getScore(node2, now) < getScore(node1, now)) ? node2 : node1;
+    }
+
+    /**
+     * Selects a good node as in {@link DefaultConnectionPolicy} but without
+     * taking the policy's lock if there is any good node.
+     *
+     * @param <E>
+     *            the type of the exception that came from the failed connection
+     *            and may be re-thrown
+     * @param retry
+     *            the n'th retry (initial connect = 0, 1st reconnect = 1,...)
+     * @param failedNode
+     *            the node from the previous connection attempt or {@code null}
+     * @param e
+     *            the exception that came back from the previous connection
+     *            attempt or {@code null}
+     *
+     * @return the new node to connect with
+     *
+     * @throws E
+     *             if thrown, automatic re-connection attempts will stop
+     * @throws UnsupportedOperationException
+     *             is thrown if the operation can not be performed, e.g. the
+     *             list is empty
+     */
+    @Override
+    public <E extends Exception> PeerNode selectNode(final int retry,
+            final PeerNode failedNode, final E e) throws E {
+        if ((retry <= getMaxRetries()) && (goodSnapshot.length > 0)) {
+            return getGoodNode();
+        }
+        return super.selectNode(retry, failedNode, e);
+    }
+
+    @Override
+    public synchronized void availableNodeAdded(final PeerNode newNode) {
+        super.availableNodeAdded(newNode);
+        updateGoodNodes();
+    }
+
+    @Override
+    public synchronized void nodeFailed(final PeerNode node) {
+        super.nodeFailed(node);
+        updateGoodNodes();
+    }
+
+    @Override
+    public synchronized void nodeFailReset(final PeerNode node) {
+        super.nodeFailReset(node);
+        updateGoodNodes();
+    }
+
+    @Override
+    public synchronized void nodeConnectSuccess(final PeerNode node) {
+        super.nodeConnectSuccess(node);
+        updateGoodNodes();
+    }
+
+    /**
+     * Increases the node's number of RPCs in flight.
+     *
+     * @param node
+     *            the node the RPC is sent to
+     */
+    @Override
+    public void nodeRequestStarted(final PeerNode node) {
+        getStats(node).inFlight.incrementAndGet();
+    }
+
+    /**
+     * Decreases the node's number of RPCs in flight and adds the latency to
+     * its moving average. Failed RPCs count with at least
+     * {@link #getFailurePenalty()} milliseconds. Then checks whether the node
+     * needs to be ejected (only this check takes the policy's lock, and only
+     * if the node seems to be an outlier).
+     *
+     * @param node
+     *            the node the RPC has been sent to
+     * @param latencyNanos
+     *            the time the RPC took (in nanoseconds)
+     * @param success
+     *            whether a result has been received
+     */
+    @Override
+    public void nodeRequestFinished(final PeerNode node,
+            final long latencyNanos, final boolean success) {
+        final NodeStats s = getStats(node);
+        s.inFlight.decrementAndGet();
+        final long now = System.nanoTime();
+        final double sample = success ? latencyNanos : Math.max(latencyNanos, failurePenalty);
+        final long ejection = ejectionTime;
+        final double ewma;
+        synchronized (s) {
+            if (s.samples == 0) {
+                s.ewma = sample;
+            } else {
+                s.ewma = (alpha * sample) + ((1.0 - alpha) * getDecayedEwma(s, now));
+            }
+            s.lastUpdate = now;
+            ++s.samples;
+            if ((ejection == 0) || (s.samples < minSamples) || checkEjected(s, now)) {
+                return;
+            }
+            ewma = s.ewma;
+        }
+        // cheap check against all known nodes without the policy's lock
+        if (!isOutlier(node, ewma, stats.keySet(), now, false)) {
+            return;
+        }
+        synchronized (this) {
+            if (!isOutlier(node, ewma, goodNodes, now, true)) {
+                return;
+            }
+            synchronized (s) {
+                if (!checkEjected(s, now)) {
+                    s.ejectedUntil = now + ejection;
+                    if (s.ejectedUntil == 0) {
+                        s.ejectedUntil = 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Nodes are selected for each RPC of a {@link MultiplexedConnection}.
+     *
+     * @return <tt>true</tt>
+     */
+    @Override
+    public boolean selectsPerRequest() {
+        return true;
+    }
+
+    /**
+     * Removes the node from the {@link #goodNodes} and {@link #badNodes} lists
+     * and drops its statistics.
+     *
+     * @param removedNode the removed node
+     */
+    @Override
+    public synchronized void availableNodeRemoved(final PeerNode removedNode) {
+        super.availableNodeRemoved(removedNode);
+        updateGoodNodes();
+        stats.remove(removedNode);
+    }
+
+    /**
+     * Resets the {@link #goodNodes} and {@link #badNodes} members as the list
+     * of available nodes has been reset and drops all statistics.
+     */
+    @Override
+    public synchronized void availableNodesReset() {
+        super.availableNodesReset();
+        updateGoodNodes();
+        stats.clear();
+    }
+
+    /**
+     * Gets the current (decayed) latency average of the given node.
+     *
+     * @param node
+     *            the node
+     *
+     * @return the average latency in nanoseconds (<tt>0</tt> if unknown)
+     */
+    public double getLatencyEstimate(final PeerNode node) {
+        final NodeStats s = stats.get(node);
+        if (s == null) {
+            return 0.0;
+        }
+        synchronized (s) {
+            return getDecayedEwma(s, System.nanoTime());
+        }
+    }
+
+    /**
+     * Gets the number of RPCs currently in flight to the given node.
+     *
+     * @param node
+     *            the node
+     *
+     * @return the number of RPCs
+     */
+    public int getInFlight(final PeerNode node) {
+        final NodeStats s = stats.get(node);
+        return (s == null) ? 0 : s.inFlight.get();
+    }
+
+    /**
+     * Checks whether the given node is currently ejected as an outlier.
+     *
+     * @param node
+     *            the node
+     *
+     * @return <tt>true</tt> if ejected
+     */
+    public boolean isEjected(final PeerNode node) {
+        final NodeStats s = stats.get(node);
+        if (s == null) {
+            return false;
+        }
+        synchronized (s) {
+            return checkEjected(s, System.nanoTime());
+        }
+    }
+
+    /**
+     * Gets the weight of a new sample in the moving average.
+     *
+     * @return the weight (default: 0.2)
+     */
+    public double getAlpha() {
+        return alpha;
+    }
+
+    /**
+     * Sets the weight of a new sample in the moving average.
+     *
+     * @param alpha
+     *            the weight to set (0 &lt; alpha &lt;= 1)
+     */
+    public synchronized void setAlpha(final double alpha) {
+        if ((alpha <= 0.0) || (alpha > 1.0)) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+        this.alpha = alpha;
+    }
+
+    /**
+     * Gets the time after which an unused node's average has decayed to
+     * <tt>1/e</tt> of its value.
+     *
+     * @return the decay time in milliseconds (default: 10s)
+     */
+    public long getDecayTime() {
+        return TimeUnit.NANOSECONDS.toMillis(decayTime);
+    }
+
+    /**
+     * Sets the time after which an unused node's average has decayed to
+     * <tt>1/e</tt> of its value.
+     *
+     * @param decayTime
+     *            the decay time in milliseconds (&gt; 0)
+     */
+    public synchronized void setDecayTime(final long decayTime) {
+        if (decayTime <= 0) {
+            throw new IllegalArgumentException("decayTime must be > 0");
+        }
+        this.decayTime = TimeUnit.MILLISECONDS.toNanos(decayTime);
+    }
+
+    /**
+     * Gets the latency a failed RPC counts with at least.
+     *
+     * @return the penalty in milliseconds (default: 1s)
+     */
+    public long getFailurePenalty() {
+        return TimeUnit.NANOSECONDS.toMillis(failurePenalty);
+    }
+
+    /**
+     * Sets the latency a failed RPC counts with at least.
+     *
+     * @param failurePenalty
+     *            the penalty in milliseconds (&gt;= 0)
+     */
+    public synchronized void setFailurePenalty(final long failurePenalty) {
+        if (failurePenalty < 0) {
+            throw new IllegalArgumentException("failurePenalty must be >= 0");
+        }
+        this.failurePenalty = TimeUnit.MILLISECONDS.toNanos(failurePenalty);
+    }
+
+    /**
+     * Gets the factor by which a node's average needs to exceed the mean of
+     * the other nodes to be ejected.
+     *
+     * @return the ejection factor (default: 3.0)
+     */
+    public double getEjectionFactor() {
+        return ejectionFactor;
+    }
+
+    /**
+     * Sets the factor by which a node's average needs to exceed the mean of
+     * the other nodes to be ejected.
+     *
+     * @param ejectionFactor
+     *            the ejection factor (&gt; 1)
+     */
+    public synchronized void setEjectionFactor(final double ejectionFactor) {
+        if (ejectionFactor <= 1.0) {
+            throw new IllegalArgumentException("ejectionFactor must be > 1");
+        }
+        this.ejectionFactor = ejectionFactor;
+    }
+
+    /**
+     * Gets the time an outlier is ejected for.
+     *
+     * @return the ejection time in milliseconds (default: 30s)
+     */
+    public long getEjectionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(ejectionTime);
+    }
+
+    /**
+     * Sets the time an outlier is ejected for.
+     *
+     * @param ejectionTime
+     *            the ejection time in milliseconds (&gt;= 0, 0 disables
+     *            ejection)
+     */
+    public synchronized void setEjectionTime(final long ejectionTime) {
+        if (ejectionTime < 0) {
+            throw new IllegalArgumentException("ejectionTime must be >= 0");
+        }
+        this.ejectionTime = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+    }
+
+    /**
+     * Gets the number of samples needed before a node may be ejected.
+     *
+     * @return the minimal number of samples (default: 10)
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * Sets the number of samples needed before a node may be ejected.
+     *
+     * @param minSamples
+     *            the minimal number of samples (&gt;= 1)
+     */
+    public synchronized void setMinSamples(final int minSamples) {
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("minSamples must be >= 1");
+        }
+        this.minSamples = minSamples;
+    }
+}
@@ -63,7 +63,7 @@ public class Main {
      *                                              known to Java (for debugging
      *                                              purposes)
      *  -b,--minibench <[ops]> <[tpn]> <[benchs]>   run selected mini
-     *                                              benchmark(s) [1|...|18|all]
+     *                                              benchmark(s) [1|...|22|all]
      *                                              (default: all benchmarks, 500
      *                                              operations, 10 threads per
      *                                              Scalaris node)
@@ -117,7 +117,7 @@ public class Main {
             final String[] optionValues = line.getOptionValues("minibench");
             int nrOperations = 500;
             int threadsPerNode = 10;
-            final HashSet<Integer> benchmarks = new HashSet<Integer>(18);
+            final HashSet<Integer> benchmarks = new HashSet<Integer>(22);
             boolean all = true;
             if (optionValues != null) {
                 checkArguments(optionValues, 0, options, "b");
@@ -129,7 +129,7 @@ public class Main {
                 }
                 if (optionValues.length >= 3) {
                     all = false;
-                    for (int i = 2; i < Math.min(20, optionValues.length); ++i) {
+                    for (int i = 2; i < Math.min(24, optionValues.length); ++i) {
                         final String benchmarks_str = optionValues[i];
                         if (benchmarks_str.equals("all")) {
                             all = true;
@@ -140,7 +140,7 @@ public class Main {
                 }
             }
             if (all) {
-                for (int i = 1; i <= 18; ++i) {
+                for (int i = 1; i <= 22; ++i) {
                     benchmarks.add(i);
                 }
             }
@@ -406,7 +406,7 @@ public class Main {
         delete.setOptionalArg(true);
         group.addOption(delete);
 
-        final Option bench = new Option("b", "minibench", true, "run selected mini benchmark(s) [1|...|18|all] (default: all benchmarks, 500 operations, 10 threads per Scalaris node)");
+        final Option bench = new Option("b", "minibench", true, "run selected mini benchmark(s) [1|...|22|all] (default: all benchmarks, 500 operations, 10 threads per Scalaris node)");
         bench.setArgName("[ops]> <[tpn]> <[benchs]");
         bench.setArgs(20);
         bench.setOptionalArg(true);
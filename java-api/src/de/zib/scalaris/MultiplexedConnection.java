@@ -0,0 +1,731 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+
+/**
+ * A connection which multiplexes its RPCs over the single link of a shared
+ * local node to the remote node (see
+ * {@link ConnectionFactory#createMultiplexedConnection()}).
+ *
+ * <p>
+ * In contrast to {@link Connection}, an object of this class may be used by
+ * any number of threads concurrently - each RPC is identified by a reference
+ * and its reply is handed to the waiting thread by the shared node. Creating
+ * such a connection is cheap as no socket or handshake is needed if the
+ * shared node is already linked to the selected remote node.
+ * </p>
+ *
+ * <p>
+ * Failures are handled by the {@link ConnectionPolicy} the same way as in
+ * {@link Connection}, i.e. a failed node is reported and another node is
+ * selected for a retry of the RPC. If the policy
+ * {@link ConnectionPolicy#selectsPerRequest() selects nodes per request}, the
+ * node is chosen anew for each RPC. RPCs with a routing hint (see
+ * {@link #doRPC(List, String, String, OtpErlangList)}) are sent to the first
+ * linked preferred node.
+ * </p>
+ *
+ * <p>
+ * Asynchronous RPCs (as used by
+ * {@link AbstractTransaction#req_listAsync(RequestList)}) do not occupy a
+ * thread while waiting for their replies - the reply completes the result
+ * directly. Only linking with a node (before the first RPC to it or during a
+ * fail-over) is done by a thread of the given executor.
+ * </p>
+ *
+ * Note: {@link #getSelf()} and {@link #getConnection()} return <tt>null</tt>
+ * for this kind of connection.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class MultiplexedConnection extends Connection {
+    /**
+     * Number of milliseconds to wait for a remote node to answer a ping
+     * during connection set-up.
+     */
+    private static final long connectTimeout = 5000;
+
+    /**
+     * Lazily creates the (daemon) thread letting asynchronous RPCs time out.
+     */
+    private static final class Timeouts {
+        static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "scalaris-rpc-timeouts");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Lazily creates the (daemon) threads linking the shared node with
+     * preferred nodes in the background.
+     */
+    private static final class Linker {
+        static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "scalaris-link");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The shared local node.
+     */
+    private final MultiplexingNode mux;
+
+    /**
+     * RPCs currently waiting for their results.
+     */
+    private final Set<MultiplexingNode.Call> inFlight = Collections.newSetFromMap(
+            new ConcurrentHashMap<MultiplexingNode.Call, Boolean>());
+
+    /**
+     * Preferred nodes currently being linked in the background.
+     */
+    private final Set<PeerNode> linking = Collections.newSetFromMap(
+            new ConcurrentHashMap<PeerNode, Boolean>());
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new connection using the given shared node and connection
+     * policy.
+     *
+     * @param mux
+     *            the shared local node
+     * @param connectionPolicy
+     *            the connection policy to use
+     *
+     * @throws IOException
+     *             if no remote node could be reached
+     */
+    MultiplexedConnection(final MultiplexingNode mux,
+            final ConnectionPolicy connectionPolicy) throws IOException {
+        super(connectionPolicy);
+        this.mux = mux;
+        try {
+            connect(remote, 0);
+        } catch (final RPCTimeoutException e) {
+            // this should not happen without a deadline
+            throw new InternalError();
+        }
+    }
+
+    /**
+     * Makes sure the shared node is linked with the given remote node. If
+     * this fails, it will try other nodes the {@link #connectionPolicy}
+     * chooses as long as this does not throw an exception.
+     *
+     * @param node
+     *            the node to try first
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *
+     * @return the node the link has been established with
+     *
+     * @throws IOException
+     *             if no remote node could be reached
+     * @throws RPCTimeoutException
+     *             if the deadline passed before a link was established
+     */
+    private PeerNode connect(PeerNode node, final long deadline)
+            throws IOException, RPCTimeoutException {
+        int retry = 0;
+        while (!mux.ping(node, pingTimeout(node, deadline))) {
+            connectionPolicy.nodeFailed(node);
+            node = connectionPolicy.selectNode(++retry, node,
+                    new IOException("cannot reach " + node));
+        }
+        connectionPolicy.nodeConnectSuccess(node);
+        synchronized (this) {
+            remote = node;
+        }
+        return node;
+    }
+
+    /**
+     * Gets the time to wait for a ping reply, i.e. {@link #connectTimeout}
+     * but no longer than the given deadline allows.
+     *
+     * @param node
+     *            the node to ping
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *
+     * @return the timeout in milliseconds
+     *
+     * @throws RPCTimeoutException
+     *             if the deadline has passed
+     */
+    private static long pingTimeout(final PeerNode node, final long deadline)
+            throws RPCTimeoutException {
+        if (deadline == 0) {
+            return connectTimeout;
+        }
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new RPCTimeoutException("deadline passed while connecting to " + node);
+        }
+        return Math.min(connectTimeout, remaining);
+    }
+
+    /**
+     * Sends the given RPC and waits for a result for at most
+     * <tt>timeout</tt> milliseconds (including fail-overs to other nodes).
+     *
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param timeout
+     *            the maximal time to wait in milliseconds (<tt>0</tt> for no
+     *            timeout)
+     *
+     * @return the result of the call
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     * @throws RPCTimeoutException
+     *             if the RPC timed out or has been cancelled
+     */
+    @Override
+    public OtpErlangObject doRPC(final String mod, final String fun,
+            final OtpErlangList args, final long timeout) throws ConnectionException {
+        return doRPCUntil(mod, fun, args, toDeadline(timeout));
+    }
+
+    /**
+     * Sends the given RPC to the node the {@link #connectionPolicy} selects
+     * and waits for a result until the given deadline (including fail-overs
+     * to other nodes).
+     *
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *
+     * @return the result of the call
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     * @throws RPCTimeoutException
+     *             if the RPC timed out or has been cancelled
+     */
+    private OtpErlangObject doRPCUntil(final String mod, final String fun,
+            final OtpErlangList args, final long deadline) throws ConnectionException {
+        PeerNode node = getRemote();
+        if (connectionPolicy.selectsPerRequest()) {
+            node = connectionPolicy.selectNode();
+            if (!mux.isLinked(node)) {
+                try {
+                    node = connect(node, deadline);
+                } catch (final IOException e) {
+                    // e.printStackTrace();
+                    throw new ConnectionException(e);
+                }
+            }
+        }
+        return doRPC(node, mod, fun, args, deadline);
+    }
+
+    /**
+     * Sends the given RPC and waits for a result, using the first of the
+     * given nodes which has not failed and is linked with the shared node.
+     * If there is no such node, the {@link #connectionPolicy} selects the
+     * node as in {@link #doRPC(String, String, OtpErlangList)}. Preferred
+     * nodes which are not linked yet are linked in the background (the RPC
+     * does not wait for this).
+     *
+     * @param preferredNodes
+     *            the nodes to send the RPC to if possible (in this order)
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     *
+     * @return the result of the call
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     * @throws RPCTimeoutException
+     *             if the RPC timed out or has been cancelled
+     *
+     * @since 3.21
+     */
+    @Override
+    public OtpErlangObject doRPC(final List<PeerNode> preferredNodes,
+            final String mod, final String fun, final OtpErlangList args)
+            throws ConnectionException {
+        final long deadline = toDeadline(getRpcTimeout());
+        for (final PeerNode node : preferredNodes) {
+            if (node.getFailureCount() > 0) {
+                continue;
+            }
+            if (mux.isLinked(node)) {
+                return doRPC(node, mod, fun, args, deadline);
+            }
+            linkLater(node);
+        }
+        return doRPCUntil(mod, fun, args, deadline);
+    }
+
+    /**
+     * Links the shared node with the given node by a background thread (if
+     * this is not already in progress). A node which cannot be reached is
+     * reported as failed to the {@link #connectionPolicy}.
+     *
+     * @param node
+     *            the node to link with
+     */
+    private void linkLater(final PeerNode node) {
+        if (!linking.add(node)) {
+            return;
+        }
+        try {
+            Linker.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!closed && !mux.ping(node, connectTimeout)) {
+                            connectionPolicy.nodeFailed(node);
+                        }
+                    } finally {
+                        linking.remove(node);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // e.printStackTrace();
+            linking.remove(node);
+        }
+    }
+
+    /**
+     * Sends the given RPC to the given node and waits for a result. Fails
+     * over to other nodes chosen by the {@link #connectionPolicy} on errors.
+     *
+     * @param node
+     *            the node to send the RPC to
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *
+     * @return the result of the call
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     * @throws RPCTimeoutException
+     *             if the RPC timed out or has been cancelled
+     */
+    private OtpErlangObject doRPC(PeerNode node, final String mod,
+            final String fun, final OtpErlangList args, final long deadline)
+            throws ConnectionException {
+        int retry = 0;
+        try {
+            while (true) {
+                checkClosed();
+                if ((deadline != 0) && ((deadline - System.nanoTime()) <= 0)) {
+                    throw new RPCTimeoutException("deadline passed before sending the RPC to " + node);
+                }
+                final PeerNode target = node;
+                connectionPolicy.nodeRequestStarted(target);
+                final long timeAtStart = System.nanoTime();
+                final MultiplexingNode.Call call = mux.send(target, mod, fun, args);
+                inFlight.add(call);
+                boolean success = false;
+                try {
+                    if (closed) {
+                        // close() may have missed this RPC
+                        mux.fail(call, new IOException("connection closed"));
+                    }
+                    final OtpErlangObject result = call.await(deadline);
+                    success = true;
+                    return result;
+                } catch (final RPCTimeoutException e) {
+                    // not a node failure -> no fail-over
+                    throw e;
+                } catch (final IOException e) {
+                    checkClosed();
+                    connectionPolicy.nodeFailed(target);
+                    node = connect(connectionPolicy.selectNode(++retry, target, e), deadline);
+                } finally {
+                    inFlight.remove(call);
+                    if (!success) {
+                        // do not leave the RPC pending, e.g. after a timeout
+                        mux.forget(call);
+                    }
+                    connectionPolicy.nodeRequestFinished(target,
+                            System.nanoTime() - timeAtStart, success);
+                }
+            }
+        } catch (final OtpErlangDecodeException e) {
+            // e.printStackTrace();
+            throw new ConnectionException(e);
+        } catch (final IOException e) {
+            // e.printStackTrace();
+            throw new ConnectionException(e);
+        }
+    }
+
+    /**
+     * Sends the given RPC without waiting for its result (with the timeout of
+     * {@link #doRPC(String, String, OtpErlangList)}). The reply completes the
+     * result. If the selected node is not linked yet or fails, connecting to
+     * it or another node is done by a thread of the given executor.
+     *
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param executor
+     *            executor to connect to nodes with
+     *
+     * @return the result of the call, failing with the exceptions of
+     *         {@link #doRPC(String, String, OtpErlangList)}
+     */
+    @Override
+    AsyncResult<OtpErlangObject> doRPCAsync(final String mod, final String fun,
+            final OtpErlangList args, final Executor executor) {
+        final AsyncResult<OtpErlangObject> result = new AsyncResult<OtpErlangObject>();
+        if (closed) {
+            result.fail(new ConnectionException("connection closed"));
+            return result;
+        }
+        final PeerNode node = connectionPolicy.selectsPerRequest() ? connectionPolicy
+                .selectNode() : getRemote();
+        final long deadline = toDeadline(getRpcTimeout());
+        if (mux.isLinked(node)) {
+            sendAsync(node, mod, fun, args, deadline, result, executor);
+        } else {
+            connectAsync(node, mod, fun, args, deadline, result, executor);
+        }
+        return result;
+    }
+
+    /**
+     * Links the shared node with the given node (or another one the
+     * {@link #connectionPolicy} chooses) by a thread of the given executor
+     * and then sends the RPC as in
+     * {@link #sendAsync(PeerNode, String, String, OtpErlangList, long, AsyncResult, Executor)}.
+     * No lock is held while connecting and cancelling the result before the
+     * RPC has been sent only affects this RPC.
+     *
+     * @param node
+     *            the node to try first
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     * @param result
+     *            the result of the RPC
+     * @param executor
+     *            executor to connect to nodes with
+     */
+    private void connectAsync(final PeerNode node, final String mod,
+            final String fun, final OtpErlangList args, final long deadline,
+            final AsyncResult<OtpErlangObject> result, final Executor executor) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (result.isDone()) {
+                        // cancelled
+                        return;
+                    }
+                    final PeerNode next;
+                    try {
+                        next = connect(node, deadline);
+                    } catch (final IOException e) {
+                        result.fail(new ConnectionException(e));
+                        return;
+                    } catch (final ConnectionException e) {
+                        result.fail(e);
+                        return;
+                    } catch (final RuntimeException e) {
+                        result.fail(e);
+                        return;
+                    }
+                    if (closed) {
+                        result.fail(new ConnectionException("connection closed"));
+                    } else if (!result.isDone()) {
+                        sendAsync(next, mod, fun, args, deadline, result, executor);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.fail(e);
+        }
+    }
+
+    /**
+     * Sends the given RPC to the given (linked) node without waiting for its
+     * result. The reply completes the result.
+     *
+     * @param node
+     *            the node to send the RPC to
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     * @param result
+     *            the result of the RPC
+     * @param executor
+     *            executor to connect to other nodes with during a fail-over
+     */
+    private void sendAsync(final PeerNode node, final String mod,
+            final String fun, final OtpErlangList args, final long deadline,
+            final AsyncResult<OtpErlangObject> result, final Executor executor) {
+        connectionPolicy.nodeRequestStarted(node);
+        final long timeAtStart = System.nanoTime();
+        final MultiplexingNode.Call call = mux.send(node, mod, fun, args);
+        inFlight.add(call);
+        if (closed) {
+            // close() may have missed this RPC
+            mux.fail(call, new IOException("connection closed"));
+        }
+        final ScheduledFuture<?> timer;
+        if (deadline == 0) {
+            timer = null;
+        } else {
+            timer = Timeouts.executor.schedule(new Runnable() {
+                public void run() {
+                    mux.fail(call, new RPCTimeoutException("RPC " + mod + ":"
+                            + fun + " to " + node + " timed out"));
+                }
+            }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        result.setCanceller(new Runnable() {
+            public void run() {
+                mux.cancel(call);
+            }
+        });
+        if (result.isDone()) {
+            // cancelled before the canceller was set
+            mux.cancel(call);
+        }
+        call.setListener(new Runnable() {
+            public void run() {
+                inFlight.remove(call);
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                final Exception error = call.getError();
+                connectionPolicy.nodeRequestFinished(node,
+                        System.nanoTime() - timeAtStart, error == null);
+                if (error == null) {
+                    result.complete(call.getResult());
+                    return;
+                }
+                mux.forget(call);
+                if (error instanceof RPCTimeoutException) {
+                    result.fail(error);
+                } else if (closed) {
+                    result.fail(new ConnectionException("connection closed"));
+                } else if (error instanceof IOException) {
+                    failOver(node, (IOException) error, mod, fun, args, deadline,
+                            result, executor);
+                } else {
+                    result.fail(new ConnectionException(error));
+                }
+            }
+        });
+    }
+
+    /**
+     * Repeats an asynchronous RPC at another node after the given node failed
+     * (using a thread of the given executor).
+     *
+     * @param node
+     *            the failed node
+     * @param error
+     *            the reason
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     * @param result
+     *            the result of the RPC
+     * @param executor
+     *            executor to connect to another node with
+     */
+    private void failOver(final PeerNode node, final IOException error,
+            final String mod, final String fun, final OtpErlangList args,
+            final long deadline, final AsyncResult<OtpErlangObject> result,
+            final Executor executor) {
+        connectionPolicy.nodeFailed(node);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (result.isDone()) {
+                        // cancelled
+                        return;
+                    }
+                    try {
+                        final PeerNode next = connect(
+                                connectionPolicy.selectNode(1, node, error), deadline);
+                        result.complete(doRPC(next, mod, fun, args, deadline));
+                    } catch (final IOException e) {
+                        result.fail(new ConnectionException(e));
+                    } catch (final ConnectionException e) {
+                        result.fail(e);
+                    } catch (final RuntimeException e) {
+                        result.fail(e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.fail(e);
+        }
+    }
+
+    /**
+     * Throws a {@link ConnectionException} if the connection has been closed.
+     *
+     * @throws ConnectionException
+     *             if {@link #close()} has been called
+     */
+    private void checkClosed() throws ConnectionException {
+        if (closed) {
+            throw new ConnectionException("connection closed");
+        }
+    }
+
+    /**
+     * Cancels all RPCs of this connection currently waiting for their
+     * results. The waiting threads receive an {@link RPCTimeoutException}.
+     *
+     * @return <tt>true</tt> if at least one RPC was in flight
+     *
+     * @since 3.21
+     */
+    @Override
+    public boolean cancel() {
+        boolean cancelled = false;
+        for (final MultiplexingNode.Call call : inFlight) {
+            cancelled |= mux.cancel(call);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Sends the given RPC and returns immediately.
+     *
+     * The reply is discarded.
+     *
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     *
+     * @throws ConnectionException
+     *             if the connection is not active, a communication error
+     *             occurs, an exit signal is received from a process on the
+     *             peer node or the remote node sends a message containing an
+     *             invalid cookie
+     */
+    @Override
+    public void sendRPC(final String mod, final String fun,
+            final OtpErlangList args) throws ConnectionException {
+        checkClosed();
+        mux.cast(getRemote(), mod, fun, args);
+    }
+
+    /**
+     * Closes the connection. RPCs waiting for their results fail with a
+     * {@link ConnectionException} as do all further RPCs. The link of the
+     * shared node to the remote node stays intact for other connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (final MultiplexingNode.Call call : inFlight) {
+            mux.fail(call, new IOException("connection closed"));
+        }
+    }
+
+    /**
+     * Gets the remote node connected to.
+     *
+     * @return the remote node
+     */
+    @Override
+    public synchronized PeerNode getRemote() {
+        return remote;
+    }
+}
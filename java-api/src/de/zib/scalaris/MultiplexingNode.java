@@ -0,0 +1,589 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangRef;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpNodeStatus;
+
+/**
+ * A local Erlang node shared by any number of {@link MultiplexedConnection}s.
+ *
+ * <p>
+ * There is only one link (socket) per remote node which carries all RPCs of
+ * all threads. RPCs are sent to the remote node's <tt>rex</tt> server as a
+ * <tt>gen_server</tt> call, i.e.
+ * <tt>{'$gen_call', {Pid, Ref}, {call, Mod, Fun, Args, user}}</tt>, from a
+ * single mailbox. A receiver thread takes each reply <tt>{Ref, Reply}</tt>
+ * from this mailbox and completes the pending {@link Call} with this
+ * reference. Replies of RPCs which are not pending anymore (e.g. cancelled
+ * or timed out) are dropped.
+ * </p>
+ *
+ * <p>
+ * If a link to a remote node goes down (or cannot be established), all
+ * pending RPCs to that node fail with an {@link IOException} so they can fail
+ * over. {@link #cancel(Call)} lets a single RPC fail with an
+ * {@link RPCTimeoutException}.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+class MultiplexingNode extends OtpNodeStatus {
+    static final OtpErlangAtom genCallAtom = new OtpErlangAtom("$gen_call");
+    static final OtpErlangAtom genCastAtom = new OtpErlangAtom("$gen_cast");
+    static final OtpErlangAtom callAtom = new OtpErlangAtom("call");
+    static final OtpErlangAtom castAtom = new OtpErlangAtom("cast");
+    static final OtpErlangAtom userAtom = new OtpErlangAtom("user");
+    static final OtpErlangAtom stopAtom = new OtpErlangAtom("$scalaris_stop");
+
+    /**
+     * An RPC waiting for its reply.
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    static class Call {
+        /**
+         * The reference identifying the RPC's reply.
+         */
+        final OtpErlangRef ref;
+        /**
+         * The name of the remote node the RPC has been sent to.
+         */
+        final String remoteName;
+        private boolean done = false;
+        private OtpErlangObject result = null;
+        private Exception error = null;
+        private Runnable listener = null;
+
+        Call(final OtpErlangRef ref, final String remoteName) {
+            this.ref = ref;
+            this.remoteName = remoteName;
+        }
+
+        /**
+         * Sets the result of the RPC (if it is not done yet).
+         *
+         * @param result
+         *            the reply
+         *
+         * @return <tt>true</tt> if the result has been set
+         */
+        boolean complete(final OtpErlangObject result) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                this.result = result;
+                done = true;
+                notifyAll();
+            }
+            finished();
+            return true;
+        }
+
+        /**
+         * Lets the RPC fail (if it is not done yet).
+         *
+         * @param error
+         *            the reason, i.e. an {@link IOException} if the remote
+         *            node went down, an {@link OtpErlangDecodeException} if
+         *            the reply could not be decoded or an
+         *            {@link RPCTimeoutException} if the RPC timed out or has
+         *            been cancelled
+         *
+         * @return <tt>true</tt> if the error has been set
+         */
+        boolean fail(final Exception error) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                this.error = error;
+                done = true;
+                notifyAll();
+            }
+            finished();
+            return true;
+        }
+
+        /**
+         * Runs the listener (if there is one).
+         */
+        private void finished() {
+            final Runnable toRun;
+            synchronized (this) {
+                toRun = listener;
+                listener = null;
+            }
+            if (toRun != null) {
+                toRun.run();
+            }
+        }
+
+        /**
+         * Sets the listener to run once the RPC is done (immediately if it is
+         * already done). It is run by the thread finishing the RPC, e.g. the
+         * receiver thread, and thus must not block.
+         *
+         * @param listener
+         *            the listener to run
+         */
+        void setListener(final Runnable listener) {
+            synchronized (this) {
+                if (!done) {
+                    this.listener = listener;
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Gets the result of the RPC (does not wait).
+         *
+         * @return the reply or <tt>null</tt> if the RPC is not done or failed
+         */
+        synchronized OtpErlangObject getResult() {
+            return result;
+        }
+
+        /**
+         * Gets the error the RPC failed with (does not wait).
+         *
+         * @return the reason or <tt>null</tt> if the RPC is not done or
+         *         succeeded
+         */
+        synchronized Exception getError() {
+            return error;
+        }
+
+        /**
+         * Checks whether the RPC is done, i.e. successful or failed.
+         *
+         * @return <tt>true</tt> if done
+         */
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits for the RPC to finish.
+         *
+         * @param deadline
+         *            the deadline (see {@link System#nanoTime()}) or
+         *            <tt>0</tt> to wait forever
+         *
+         * @return the result of the call
+         *
+         * @throws RPCTimeoutException
+         *             if the deadline passed or the RPC has been cancelled
+         * @throws IOException
+         *             if the remote node went down
+         * @throws OtpErlangDecodeException
+         *             if the reply could not be decoded
+         */
+        OtpErlangObject await(final long deadline) throws RPCTimeoutException,
+                IOException, OtpErlangDecodeException {
+            boolean interrupted = false;
+            try {
+                synchronized (this) {
+                    while (!done) {
+                        try {
+                            if (deadline == 0) {
+                                wait();
+                            } else {
+                                final long remaining = deadline - System.nanoTime();
+                                if (remaining <= 0) {
+                                    throw new RPCTimeoutException("RPC to "
+                                            + remoteName + " timed out");
+                                }
+                                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                            }
+                        } catch (final InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (error instanceof RPCTimeoutException) {
+                        throw (RPCTimeoutException) error;
+                    } else if (error instanceof IOException) {
+                        throw (IOException) error;
+                    } else if (error instanceof OtpErlangDecodeException) {
+                        throw (OtpErlangDecodeException) error;
+                    } else if (error != null) {
+                        throw new IOException(error);
+                    }
+                    return result;
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * The local node.
+     */
+    private final OtpNode node;
+    /**
+     * Mailbox all RPCs are sent from and all replies are received in.
+     */
+    private final OtpMbox mbox;
+    /**
+     * Thread dispatching the replies (see {@link #receive()}).
+     */
+    private final Thread receiver;
+    /**
+     * RPCs waiting for their replies by their references.
+     */
+    private final ConcurrentHashMap<OtpErlangRef, Call> pending = new ConcurrentHashMap<OtpErlangRef, Call>();
+    /**
+     * Names of the remote nodes the local node is currently linked with.
+     */
+    private final Set<String> linked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new local node.
+     *
+     * @param name
+     *            the name of the local node
+     * @param cookie
+     *            the cookie to use
+     *
+     * @throws IOException
+     *             if the local node could not be created
+     */
+    MultiplexingNode(final String name, final String cookie) throws IOException {
+        node = new OtpNode(name, cookie);
+        mbox = node.createMbox();
+        node.registerStatusHandler(this);
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "scalaris-mux-" + node.node());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Checks whether the given remote node is reachable (and sets up the
+     * link to it if there is none yet).
+     *
+     * @param remote
+     *            the remote node
+     * @param timeout
+     *            the number of milliseconds to wait for an answer
+     *
+     * @return <tt>true</tt> if the node is up, <tt>false</tt> otherwise
+     */
+    boolean ping(final PeerNode remote, final long timeout) {
+        final String remoteName = remote.getNode().node();
+        if (node.ping(remoteName, timeout)) {
+            linked.add(remoteName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the local node is (believed to be) linked with the given
+     * remote node, i.e. a successful {@link #ping(PeerNode, long)} has been
+     * made and the link has not gone down since.
+     *
+     * @param remote
+     *            the remote node
+     *
+     * @return <tt>true</tt> if linked
+     */
+    boolean isLinked(final PeerNode remote) {
+        return linked.contains(remote.getNode().node());
+    }
+
+    /**
+     * Sends an RPC to the given remote node. The reply completes the
+     * returned call.
+     *
+     * @param remote
+     *            the remote node
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     *
+     * @return the pending RPC
+     */
+    Call send(final PeerNode remote, final String mod, final String fun,
+            final OtpErlangList args) {
+        final String remoteName = remote.getNode().node();
+        final Call call = new Call(node.createRef(), remoteName);
+        // register first - the reply or a node-down may arrive immediately
+        pending.put(call.ref, call);
+        if (closed) {
+            fail(call, new IOException("local node " + node.node() + " is closed"));
+            return call;
+        }
+        final OtpErlangTuple from = new OtpErlangTuple(new OtpErlangObject[] {
+                mbox.self(), call.ref });
+        final OtpErlangTuple request = new OtpErlangTuple(new OtpErlangObject[] {
+                callAtom, new OtpErlangAtom(mod), new OtpErlangAtom(fun),
+                args, userAtom });
+        mbox.send("rex", remoteName, new OtpErlangTuple(new OtpErlangObject[] {
+                genCallAtom, from, request }));
+        return call;
+    }
+
+    /**
+     * Sends an RPC to the given remote node and waits for the reply.
+     *
+     * @param remote
+     *            the remote node
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     * @param deadline
+     *            the deadline (see {@link System#nanoTime()}) or <tt>0</tt>
+     *            to wait forever
+     *
+     * @return the result of the call
+     *
+     * @throws RPCTimeoutException
+     *             if the deadline passed or the RPC has been cancelled
+     * @throws IOException
+     *             if the remote node went down
+     * @throws OtpErlangDecodeException
+     *             if the reply could not be decoded
+     */
+    OtpErlangObject call(final PeerNode remote, final String mod,
+            final String fun, final OtpErlangList args, final long deadline)
+            throws RPCTimeoutException, IOException, OtpErlangDecodeException {
+        final Call call = send(remote, mod, fun, args);
+        try {
+            return call.await(deadline);
+        } finally {
+            forget(call);
+        }
+    }
+
+    /**
+     * Stops waiting for the reply of the given RPC (a late reply will be
+     * dropped). Must be called for each RPC which did not finish
+     * successfully.
+     *
+     * @param call
+     *            the RPC
+     */
+    void forget(final Call call) {
+        pending.remove(call.ref, call);
+    }
+
+    /**
+     * Lets the given RPC fail and stops waiting for its reply.
+     *
+     * @param call
+     *            the RPC
+     * @param error
+     *            the reason (see {@link Call#fail(Exception)})
+     *
+     * @return <tt>true</tt> if the RPC was still pending
+     */
+    boolean fail(final Call call, final Exception error) {
+        forget(call);
+        return call.fail(error);
+    }
+
+    /**
+     * Lets the given RPC fail with an {@link RPCTimeoutException}.
+     *
+     * @param call
+     *            the RPC
+     *
+     * @return <tt>true</tt> if the RPC was still pending
+     */
+    boolean cancel(final Call call) {
+        return fail(call, new RPCTimeoutException("RPC to " + call.remoteName
+                + " has been cancelled", true));
+    }
+
+    /**
+     * Sends an asynchronous RPC to a remote <tt>rex</tt> server which will
+     * not send a reply, i.e.
+     * <tt>{'$gen_cast', {cast, Mod, Fun, Args, user}}</tt>.
+     *
+     * @param remote
+     *            the remote node
+     * @param mod
+     *            the module of the function to call
+     * @param fun
+     *            the function to call
+     * @param args
+     *            the function's arguments
+     */
+    void cast(final PeerNode remote, final String mod, final String fun,
+            final OtpErlangList args) {
+        mbox.send("rex", remote.getNode().node(), new OtpErlangTuple(new OtpErlangObject[] {
+                genCastAtom,
+                new OtpErlangTuple(new OtpErlangObject[] { castAtom,
+                        new OtpErlangAtom(mod), new OtpErlangAtom(fun), args,
+                        userAtom }) }));
+    }
+
+    /**
+     * Dispatches the messages arriving in the shared mailbox until the node
+     * is closed.
+     */
+    private void receive() {
+        while (!closed) {
+            try {
+                dispatch(mbox.receiveBuf());
+            } catch (final OtpErlangExit e) {
+                // there are no links -> ignore
+            } catch (final RuntimeException e) {
+                // e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Completes the RPC the given reply belongs to. Other messages are
+     * ignored.
+     *
+     * @param buf
+     *            the received message
+     */
+    private void dispatch(final OtpInputStream buf) {
+        final Call call;
+        try {
+            if ((buf == null) || (buf.read_tuple_head() != 2)) {
+                return;
+            }
+            final OtpErlangObject ref = buf.read_any();
+            if (!(ref instanceof OtpErlangRef)) {
+                return;
+            }
+            call = pending.remove(ref);
+        } catch (final OtpErlangDecodeException e) {
+            // not a reply of an RPC
+            return;
+        }
+        if (call == null) {
+            // reply of a cancelled (or timed out) RPC
+            return;
+        }
+        try {
+            call.complete(buf.read_any());
+        } catch (final OtpErlangDecodeException e) {
+            call.fail(e);
+        }
+    }
+
+    /**
+     * Lets all pending RPCs to the given node fail.
+     *
+     * @param remoteName
+     *            the name of the remote node
+     * @param error
+     *            the reason
+     */
+    private void failPending(final String remoteName, final IOException error) {
+        for (final Call call : pending.values()) {
+            if ((remoteName == null) || remoteName.equals(call.remoteName)) {
+                fail(call, error);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.ericsson.otp.erlang.OtpNodeStatus#remoteStatus(java.lang.String, boolean, java.lang.Object)
+     */
+    @Override
+    public void remoteStatus(final String remoteName, final boolean up,
+            final Object info) {
+        if (!up) {
+            linked.remove(remoteName);
+            failPending(remoteName, new IOException("lost connection to " + remoteName));
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.ericsson.otp.erlang.OtpNodeStatus#connAttempt(java.lang.String, boolean, java.lang.Object)
+     */
+    @Override
+    public void connAttempt(final String remoteName, final boolean incoming,
+            final Object info) {
+        if (!incoming) {
+            // outgoing connection failed - messages to this node are dropped
+            linked.remove(remoteName);
+            failPending(remoteName, new IOException("cannot reach " + remoteName));
+        }
+    }
+
+    /**
+     * Gets the local node.
+     *
+     * @return the local node
+     */
+    OtpNode getNode() {
+        return node;
+    }
+
+    /**
+     * Gets the number of RPCs waiting for their replies.
+     *
+     * @return the number of pending RPCs
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Closes the local node and all links to remote nodes. All pending RPCs
+     * fail with an {@link IOException}.
+     */
+    void close() {
+        closed = true;
+        failPending(null, new IOException("local node " + node.node() + " is closed"));
+        // wake up the receiver
+        mbox.send(mbox.self(), stopAtom);
+        node.close();
+    }
+}
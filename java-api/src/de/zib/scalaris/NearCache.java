@@ -0,0 +1,382 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A size-bounded client-side cache of values read from Scalaris.
+ *
+ * <p>
+ * Eviction follows a segmented LRU scheme: new entries are put into a
+ * probationary segment and are promoted to a protected segment (at most 80%
+ * of the entries) on their second access. Entries demoted from the protected
+ * segment go back to the probationary segment and the least recently used
+ * probationary entry is evicted first. This keeps frequently read keys in the
+ * cache even if many keys are read only once.
+ * </p>
+ *
+ * <p>
+ * Each entry expires after a time-to-live which depends on the longest key
+ * prefix configured with {@link #setTtl(String, long, TimeUnit)}, or the
+ * default TTL. A TTL of <tt>0</tt> disables caching of matching keys.
+ * </p>
+ *
+ * <p>
+ * Writes invalidate entries (see {@link #invalidate(String)}). In order not
+ * to cache values read before a concurrent invalidation, readers obtain a
+ * stamp of the key ({@link #getStamp(String)}) before sending a read and
+ * {@link #put(String, ErlangValue, long)} only caches the value if the key
+ * has not been invalidated since. Invalidations are counted per key (in
+ * {@link #STAMP_STRIPES} stripes by the key's hash), i.e. writes of other
+ * keys do not prevent caching.
+ * </p>
+ *
+ * Note: only writes through the same client are recognised, i.e. values
+ * written by others may be returned until their TTL expires.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ *
+ * @see CachingTransactionSingleOp
+ */
+public class NearCache {
+    /**
+     * Number of invalidation counters keys are mapped to (a power of 2).
+     */
+    static final int STAMP_STRIPES = 1024;
+
+    /**
+     * A cached value.
+     */
+    private static class Entry {
+        final ErlangValue value;
+        final long expiresAt;
+
+        Entry(final ErlangValue value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Maximal number of cached entries.
+     */
+    private final int maxEntries;
+    /**
+     * Maximal number of entries in the protected segment.
+     */
+    private final int maxProtected;
+
+    /**
+     * Entries accessed once (in insertion order).
+     */
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, false);
+    /**
+     * Entries accessed more than once (in access order).
+     */
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * TTLs (in nanoseconds) by key prefix.
+     */
+    private final TreeMap<String, Long> ttls = new TreeMap<String, Long>();
+    /**
+     * TTL (in nanoseconds) of keys without a matching prefix.
+     */
+    private long defaultTtl;
+
+    /**
+     * Number of invalidations of the keys of each stripe.
+     */
+    private final long[] stamps = new long[STAMP_STRIPES];
+    /**
+     * Number of {@link #clear()} calls so far.
+     */
+    private long clears = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries
+     *            the maximal number of cached values (&gt; 0)
+     * @param defaultTtl
+     *            the time-to-live of entries without a matching key prefix
+     *            (<tt>0</tt> to not cache them)
+     * @param unit
+     *            the unit of <tt>defaultTtl</tt>
+     */
+    public NearCache(final int maxEntries, final long defaultTtl, final TimeUnit unit) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        this.maxEntries = maxEntries;
+        this.maxProtected = Math.max(1, (int) (maxEntries * 0.8));
+        setDefaultTtl(defaultTtl, unit);
+    }
+
+    /**
+     * Gets the TTL of the given key.
+     *
+     * @param key
+     *            the key
+     *
+     * @return the TTL in nanoseconds
+     */
+    private long getTtl(final String key) {
+        // the longest matching prefix is the greatest prefix <= key
+        String prefix = ttls.floorKey(key);
+        while (prefix != null) {
+            if (key.startsWith(prefix)) {
+                return ttls.get(prefix);
+            }
+            prefix = ttls.lowerKey(prefix);
+        }
+        return defaultTtl;
+    }
+
+    /**
+     * Gets the cached value of the given key.
+     *
+     * @param key
+     *            the key
+     *
+     * @return the value or <tt>null</tt> if not cached (or expired)
+     */
+    public synchronized ErlangValue get(final String key) {
+        Entry entry = protectedSegment.get(key);
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                // second access -> promote
+                protectedSegment.put(key, entry);
+                if (protectedSegment.size() > maxProtected) {
+                    final Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+                    final Map.Entry<String, Entry> eldest = it.next();
+                    it.remove();
+                    probation.put(eldest.getKey(), eldest.getValue());
+                }
+            }
+        }
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        if ((entry.expiresAt - System.nanoTime()) <= 0) {
+            protectedSegment.remove(key);
+            probation.remove(key);
+            ++expirations;
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.value;
+    }
+
+    /**
+     * Gets the invalidation counter (stripe) of the given key.
+     *
+     * @param key
+     *            the key
+     *
+     * @return the index into {@link #stamps}
+     */
+    private static int stripe(final String key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    /**
+     * Caches the given value if the key has a TTL greater than <tt>0</tt>
+     * and the key has not been invalidated since the given stamp has been
+     * obtained.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value read from Scalaris
+     * @param stamp
+     *            the stamp obtained with {@link #getStamp(String)} before the
+     *            value has been read
+     *
+     * @return whether the value has been cached
+     */
+    public synchronized boolean put(final String key, final ErlangValue value,
+            final long stamp) {
+        final long ttl = getTtl(key);
+        if ((ttl <= 0) || (stamp != getStamp(key))) {
+            return false;
+        }
+        final Entry entry = new Entry(value, System.nanoTime() + ttl);
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, entry);
+            return true;
+        }
+        probation.put(key, entry);
+        if ((probation.size() + protectedSegment.size()) > maxEntries) {
+            final LinkedHashMap<String, Entry> victims = probation.isEmpty() ? protectedSegment : probation;
+            final Iterator<String> it = victims.keySet().iterator();
+            it.next();
+            it.remove();
+            ++evictions;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the value of the given key from the cache.
+     *
+     * @param key
+     *            the key
+     */
+    public synchronized void invalidate(final String key) {
+        ++stamps[stripe(key)];
+        ++invalidations;
+        probation.remove(key);
+        protectedSegment.remove(key);
+    }
+
+    /**
+     * Removes all values from the cache.
+     */
+    public synchronized void clear() {
+        ++clears;
+        ++invalidations;
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    /**
+     * Gets the current stamp of the given key to use with
+     * {@link #put(String, ErlangValue, long)}.
+     *
+     * @param key
+     *            the key to read
+     *
+     * @return the number of invalidations of the key (and keys sharing its
+     *         stripe) so far
+     */
+    public synchronized long getStamp(final String key) {
+        // both counters only grow -> the sum changes with each invalidation
+        return clears + stamps[stripe(key)];
+    }
+
+    /**
+     * Sets the TTL of keys starting with the given prefix.
+     *
+     * @param prefix
+     *            the key prefix
+     * @param ttl
+     *            the time-to-live (<tt>0</tt> to not cache such keys)
+     * @param unit
+     *            the unit of <tt>ttl</tt>
+     */
+    public synchronized void setTtl(final String prefix, final long ttl, final TimeUnit unit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must be >= 0");
+        }
+        ttls.put(prefix, unit.toNanos(ttl));
+    }
+
+    /**
+     * Sets the TTL of keys without a matching prefix.
+     *
+     * @param ttl
+     *            the time-to-live (<tt>0</tt> to not cache such keys)
+     * @param unit
+     *            the unit of <tt>ttl</tt>
+     */
+    public synchronized void setDefaultTtl(final long ttl, final TimeUnit unit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must be >= 0");
+        }
+        this.defaultTtl = unit.toNanos(ttl);
+    }
+
+    /**
+     * Gets the number of cached values.
+     *
+     * @return the size of the cache
+     */
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    /**
+     * Gets the maximal number of cached values.
+     *
+     * @return the maximal size of the cache
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets the number of lookups which found a value.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups which did not find a (valid) value.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of values removed due to the size limit.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of values removed because their TTL expired.
+     *
+     * @return the number of expirations
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Gets the number of invalidations (including {@link #clear()}).
+     *
+     * @return the number of invalidations
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+}
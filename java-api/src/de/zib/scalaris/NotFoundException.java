@@ -23,7 +23,7 @@ import com.ericsson.otp.erlang.OtpErlangObject;
  * because the key did not exist before.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 2.2
+ * @version 3.21
  * @since 2.0
  */
 public class NotFoundException extends OtpErlangException {
@@ -32,6 +32,11 @@ public class NotFoundException extends OtpErlangException {
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Whether to record the stack trace when creating an exception.
+     */
+    private static volatile boolean stackTraceEnabled = true;
+
     /**
      * Creates the exception with no message.
      */
@@ -85,4 +90,41 @@ public class NotFoundException extends OtpErlangException {
         super(e.getMessage() + ",\n  Erlang message: " + erlValue.toString());
         setStackTrace(e.getStackTrace());
     }
+
+    /**
+     * Sets whether new exceptions record their stack trace (default:
+     * <tt>true</tt>).
+     *
+     * Applications for which missing keys are an expected outcome may disable
+     * stack traces in order to make creating (and throwing) these exceptions
+     * as cheap as a normal return. See also
+     * {@link ResultList#statusAt(int)} for an exception-free alternative.
+     *
+     * @param enabled
+     *            <tt>false</tt> to create exceptions without stack traces
+     *
+     * @since 3.21
+     */
+    public static void setStackTraceEnabled(final boolean enabled) {
+        stackTraceEnabled = enabled;
+    }
+
+    /**
+     * Gets whether new exceptions record their stack trace.
+     *
+     * @return <tt>true</tt> if stack traces are recorded
+     *
+     * @since 3.21
+     */
+    public static boolean isStackTraceEnabled() {
+        return stackTraceEnabled;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        if (stackTraceEnabled) {
+            return super.fillInStackTrace();
+        }
+        return this;
+    }
 }
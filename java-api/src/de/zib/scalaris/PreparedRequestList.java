@@ -0,0 +1,365 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+import de.zib.scalaris.operations.Operation;
+import de.zib.scalaris.operations.ReadOp;
+import de.zib.scalaris.operations.TestAndSetOp;
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Template of a request list for {@link TransactionSingleOp} which is
+ * executed many times with the same keys but (possibly) different values.
+ *
+ * <p>
+ * The static parts of the request list, i.e. the operations and keys, are
+ * encoded into the Erlang external term format only once. Each
+ * {@link #bind(Object...)} fills the value slots of the template (one for
+ * each write, two for each test_and_set) and creates a request list which
+ * only needs to encode these values when it is sent:
+ * </p>
+ *
+ * <pre>
+ * <code style="white-space:pre;">
+ *   PreparedRequestList prepared = new PreparedRequestList()
+ *           .addRead("a").addWrite("b");
+ *   // for each execution:
+ *   ResultList results = tx.req_list(prepared.bind(value));
+ *   ErlangValue a = results.processReadAt(0);
+ *   results.processWriteAt(1);
+ * </code>
+ * </pre>
+ *
+ * A template must not be modified while it is used by other threads.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class PreparedRequestList {
+    /**
+     * Operations supported in templates.
+     */
+    private static enum Kind {
+        READ(CommonErlangObjects.readAtom, 0),
+        WRITE(CommonErlangObjects.writeAtom, 1),
+        TEST_AND_SET(CommonErlangObjects.testAndSetAtom, 2);
+
+        final OtpErlangAtom atom;
+        final int slots;
+
+        private Kind(final OtpErlangAtom atom, final int slots) {
+            this.atom = atom;
+            this.slots = slots;
+        }
+    }
+
+    private final List<Kind> kinds = new ArrayList<Kind>();
+    private final List<OtpErlangString> keys = new ArrayList<OtpErlangString>();
+    private int slotCount = 0;
+    /**
+     * The encoded static parts between the value slots (slotCount + 1
+     * segments), created on first use.
+     */
+    private volatile byte[][] segments = null;
+
+    /**
+     * Creates an empty template.
+     */
+    public PreparedRequestList() {
+    }
+
+    private PreparedRequestList add(final Kind kind, final String key) {
+        kinds.add(kind);
+        keys.add(new OtpErlangString(key));
+        slotCount += kind.slots;
+        segments = null;
+        return this;
+    }
+
+    /**
+     * Adds a read operation (no value slot).
+     *
+     * @param key
+     *            the key to read
+     *
+     * @return this template
+     */
+    public PreparedRequestList addRead(final String key) {
+        return add(Kind.READ, key);
+    }
+
+    /**
+     * Adds a write operation with one value slot for the value to write.
+     *
+     * @param key
+     *            the key to write the value to
+     *
+     * @return this template
+     */
+    public PreparedRequestList addWrite(final String key) {
+        return add(Kind.WRITE, key);
+    }
+
+    /**
+     * Adds a test_and_set operation with two value slots, the old and the new
+     * value (in this order).
+     *
+     * @param key
+     *            the key to write the value to
+     *
+     * @return this template
+     */
+    public PreparedRequestList addTestAndSet(final String key) {
+        return add(Kind.TEST_AND_SET, key);
+    }
+
+    /**
+     * Gets the number of operations in the template.
+     *
+     * @return number of operations
+     */
+    public int size() {
+        return kinds.size();
+    }
+
+    /**
+     * Gets the number of values {@link #bind(Object...)} expects.
+     *
+     * @return number of value slots
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Encodes the static parts of the request list.
+     *
+     * @return the segments between the value slots
+     */
+    private byte[][] getSegments() {
+        if (segments == null) {
+            final byte[][] result = new byte[slotCount + 1][];
+            final OtpOutputStream out = new OtpOutputStream();
+            int slot = 0;
+            if (!kinds.isEmpty()) {
+                out.write_list_head(kinds.size());
+            }
+            for (int i = 0; i < kinds.size(); ++i) {
+                final Kind kind = kinds.get(i);
+                out.write_tuple_head(2 + kind.slots);
+                kind.atom.encode(out);
+                keys.get(i).encode(out);
+                for (int j = 0; j < kind.slots; ++j) {
+                    result[slot++] = out.toByteArray();
+                    out.reset();
+                }
+            }
+            out.write_nil();
+            result[slot] = out.toByteArray();
+            segments = result;
+        }
+        return segments;
+    }
+
+    /**
+     * Creates a request list from this template with the given values.
+     *
+     * @param values
+     *            the values for the value slots in the order of the
+     *            operations (see {@link ErlangValue} for a list of supported
+     *            types)
+     *
+     * @return a request list for
+     *         {@link TransactionSingleOp#req_list(TransactionSingleOp.RequestList)}
+     *
+     * @throws IllegalArgumentException
+     *             if the number of values does not match
+     *             {@link #getSlotCount()}
+     * @throws ClassCastException
+     *             if a value's type is not supported
+     */
+    public TransactionSingleOp.RequestList bind(final Object... values)
+            throws IllegalArgumentException, ClassCastException {
+        if (values.length != slotCount) {
+            throw new IllegalArgumentException("expected " + slotCount
+                    + " values, got " + values.length);
+        }
+        final OtpErlangObject[] slotValues = new OtpErlangObject[slotCount];
+        for (int i = 0; i < slotCount; ++i) {
+            slotValues[i] = ErlangTermEncoder.encodeValue(values[i]);
+        }
+        final List<Operation> ops = new ArrayList<Operation>(kinds.size());
+        int slot = 0;
+        for (int i = 0; i < kinds.size(); ++i) {
+            final OtpErlangString key = keys.get(i);
+            switch (kinds.get(i)) {
+                case READ:
+                    ops.add(new ReadOp(key));
+                    break;
+                case WRITE:
+                    ops.add(new WriteOp(key, slotValues[slot]));
+                    break;
+                case TEST_AND_SET:
+                    ops.add(new TestAndSetOp(key, slotValues[slot], slotValues[slot + 1]));
+                    break;
+            }
+            slot += kinds.get(i).slots;
+        }
+        return new BoundRequestList(ops, getSegments(), values, slotValues);
+    }
+
+    /**
+     * Request list created by {@link PreparedRequestList#bind(Object...)}.
+     * It cannot be modified.
+     */
+    private static class BoundRequestList extends TransactionSingleOp.RequestList {
+        private final byte[][] segments;
+        private final Object[] values;
+        private final OtpErlangObject[] slotValues;
+
+        BoundRequestList(final List<Operation> ops, final byte[][] segments,
+                final Object[] values, final OtpErlangObject[] slotValues) {
+            super();
+            requests.addAll(ops);
+            this.segments = segments;
+            this.values = values;
+            this.slotValues = slotValues;
+        }
+
+        @Override
+        public TransactionSingleOp.RequestList addOp(final Operation op)
+                throws UnsupportedOperationException {
+            throw new UnsupportedOperationException(
+                    "prepared request lists cannot be modified");
+        }
+
+        @Override
+        protected de.zib.scalaris.RequestList addAll_(final de.zib.scalaris.RequestList other) {
+            throw new UnsupportedOperationException(
+                    "prepared request lists cannot be modified");
+        }
+
+        @Override
+        OtpErlangList getErlangReqList(final boolean compressed,
+                final CompressionPolicy policy, final StringEncoding stringEncoding) {
+            final OtpErlangObject[] encoded = new OtpErlangObject[slotValues.length];
+            for (int i = 0; i < slotValues.length; ++i) {
+                // only the values' Java strings depend on the encoding
+                final OtpErlangObject value = (stringEncoding == StringEncoding.LIST)
+                        ? slotValues[i]
+                        : ErlangTermEncoder.encodeValue(values[i], stringEncoding);
+                encoded[i] = CommonErlangObjects.encodeValue(value, compressed, policy);
+            }
+            return new EncodedReqList(segments, encoded, requests.size());
+        }
+    }
+
+    /**
+     * Erlang list of requests which writes the pre-encoded static parts and
+     * the values when it is encoded. Any other access to the list decodes
+     * the list's elements (once).
+     */
+    private static class EncodedReqList extends OtpErlangList {
+        /**
+         * class version for serialisation
+         */
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] segments;
+        private final OtpErlangObject[] values;
+        private final int arity;
+        private OtpErlangList elements = null;
+
+        EncodedReqList(final byte[][] segments, final OtpErlangObject[] values,
+                final int arity) {
+            super();
+            this.segments = segments;
+            this.values = values;
+            this.arity = arity;
+        }
+
+        private OtpErlangList list() {
+            if (elements == null) {
+                final OtpOutputStream out = new OtpOutputStream();
+                encode(out);
+                try {
+                    elements = new OtpErlangList(new OtpInputStream(out.toByteArray()));
+                } catch (final OtpErlangDecodeException e) {
+                    // should not occur (we encoded the list ourselves)
+                    throw new IllegalStateException(e);
+                }
+            }
+            return elements;
+        }
+
+        @Override
+        public void encode(final OtpOutputStream buf) {
+            for (int i = 0; i < values.length; ++i) {
+                buf.write(segments[i]);
+                buf.write_any(values[i]);
+            }
+            buf.write(segments[values.length]);
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public OtpErlangObject elementAt(final int i) {
+            return list().elementAt(i);
+        }
+
+        @Override
+        public OtpErlangObject[] elements() {
+            return list().elements();
+        }
+
+        @Override
+        public Iterator<OtpErlangObject> iterator() {
+            return list().iterator();
+        }
+
+        @Override
+        public String toString() {
+            return list().toString();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return list().equals(o);
+        }
+
+        @Override
+        protected int doHashCode() {
+            return list().hashCode();
+        }
+    }
+}
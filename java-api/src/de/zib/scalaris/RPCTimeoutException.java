@@ -0,0 +1,74 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+/**
+ * Exception that is thrown if an RPC did not finish before its deadline or
+ * has been cancelled (see {@link Connection#cancel()}).
+ *
+ * In contrast to other {@link ConnectionException}s, the node the RPC has been
+ * sent to is not regarded as failed. Note that the operation may nevertheless
+ * have been executed by Scalaris.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class RPCTimeoutException extends ConnectionException {
+    /**
+     * class version for serialisation
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether the RPC has been cancelled instead of running into its
+     * deadline.
+     */
+    private final boolean cancelled;
+
+    /**
+     * Creates the exception with the given message.
+     *
+     * @param msg
+     *            message of the exception
+     */
+    public RPCTimeoutException(final String msg) {
+        this(msg, false);
+    }
+
+    /**
+     * Creates the exception with the given message.
+     *
+     * @param msg
+     *            message of the exception
+     * @param cancelled
+     *            whether the RPC has been cancelled
+     */
+    public RPCTimeoutException(final String msg, final boolean cancelled) {
+        super(msg);
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Checks whether the RPC has been cancelled instead of running into its
+     * deadline.
+     *
+     * @return <tt>true</tt> if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,546 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Reads ranges of the ring using <tt>api_dht_raw:range_read/2</tt>.
+ *
+ * <p>
+ * Keys in the ring are the hashes of client keys (see
+ * {@link RoutingTable#hashKey(String)}), i.e. the client keys themselves are
+ * not returned and ranges are in hash order. {@link #read(BigInteger,
+ * BigInteger)} returns the raw database entries of a range which includes
+ * every replica of an item.
+ * </p>
+ *
+ * <p>
+ * {@link #scan(int)} iterates over all items of the ring exactly once by
+ * reading the part of the ring containing the first replica of each item
+ * (see <tt>api_dht_raw:split_ring/1</tt>) in the given number of chunks. Up
+ * to {@link #getPrefetch()} chunks are read concurrently and at most these
+ * (and the current one) are held in memory, so more chunks need less memory.
+ * Chunks are read using the {@link #getExecutor()} which pays off with
+ * connections allowing concurrent requests, e.g. a
+ * {@link MultiplexedConnection}.
+ * </p>
+ *
+ * <p>
+ * Note: values are read from single replicas, i.e. they may be outdated and
+ * a scan is no consistent snapshot of the ring.
+ * </p>
+ *
+ * <h3>Example:</h3>
+ * <pre>
+ * <code style="white-space:pre;">
+ *   RangeReader reader = new RangeReader(connection);
+ *   RangeReader.ScanIterator iter = reader.scan(1024);
+ *   try {
+ *       while (iter.hasNext()) {
+ *           ErlangValue value = iter.next().getValue();
+ *       }
+ *   } finally {
+ *       iter.close();
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class RangeReader {
+    /**
+     * An entry of the database of a Scalaris node.
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    public static class Entry {
+        private final BigInteger key;
+        private final OtpErlangObject rawValue;
+        private final long version;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param key
+         *            the (hashed) key in the ring
+         * @param rawValue
+         *            the value as stored in the database
+         * @param version
+         *            the version of the value
+         */
+        Entry(final BigInteger key, final OtpErlangObject rawValue,
+                final long version) {
+            this.key = key;
+            this.rawValue = rawValue;
+            this.version = version;
+        }
+
+        /**
+         * Gets the (hashed) key of the entry.
+         *
+         * @return the key in the ring
+         */
+        public BigInteger getKey() {
+            return key;
+        }
+
+        /**
+         * Gets the (decoded) value of the entry.
+         *
+         * @return the value
+         *
+         * @throws UnknownException
+         *             if the stored value cannot be decoded
+         */
+        public ErlangValue getValue() throws UnknownException {
+            try {
+                return new ErlangValue(CommonErlangObjects.decode(rawValue));
+            } catch (final OtpErlangDecodeException e) {
+                // e.printStackTrace();
+                throw new UnknownException(e, rawValue);
+            }
+        }
+
+        /**
+         * Gets the version of the entry.
+         *
+         * @return the version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + key + ", " + rawValue + ", " + version + "}";
+        }
+    }
+
+    /**
+     * Atom of empty database entries.
+     */
+    private static final OtpErlangAtom emptyValAtom = new OtpErlangAtom("empty_val");
+
+    /**
+     * Connection to a Scalaris node.
+     */
+    private final Connection connection;
+
+    private volatile ExecutorService executor = AbstractTransaction.SharedExecutor.executor;
+    private volatile int prefetch = 2;
+
+    /**
+     * Constructor, uses the default connection returned by
+     * {@link ConnectionFactory#createConnection()}.
+     *
+     * @throws ConnectionException
+     *             if the connection fails
+     */
+    public RangeReader() throws ConnectionException {
+        connection = ConnectionFactory.getInstance().createConnection();
+    }
+
+    /**
+     * Constructor, uses the given connection to an erlang node.
+     *
+     * @param conn
+     *            connection to use for the Scalaris access
+     */
+    public RangeReader(final Connection conn) {
+        connection = conn;
+    }
+
+    /**
+     * Reads all database entries (of all replicas) between the two given
+     * (hashed) keys.
+     *
+     * @param from
+     *            the first key of the range (inclusive)
+     * @param to
+     *            the last key of the range (inclusive), the range wraps
+     *            around the end of the ring if <tt>to</tt> is smaller than
+     *            <tt>from</tt> and contains the whole ring if both are equal
+     *
+     * @return the entries of the range (in no particular order)
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws TimeoutException
+     *             if not all nodes responded in time
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    public List<Entry> read(final BigInteger from, final BigInteger to)
+            throws ConnectionException, TimeoutException, UnknownException {
+        final OtpErlangObject received_raw = connection.doRPC("api_dht_raw", "range_read",
+                new OtpErlangObject[] { new OtpErlangLong(from), new OtpErlangLong(to) });
+        try {
+            /*
+             * possible return values:
+             *  {ok | timeout, [{Key, Value, WriteLock, ReadLock, Version}]}
+             */
+            final OtpErlangTuple received = (OtpErlangTuple) received_raw;
+            if (received.arity() != 2) {
+                throw new UnknownException(received_raw);
+            }
+            if (received.elementAt(0).equals(CommonErlangObjects.timeoutAtom)) {
+                throw new TimeoutException("range_read of [" + from + ", " + to
+                        + "] timed out");
+            } else if (!received.elementAt(0).equals(CommonErlangObjects.okAtom)) {
+                throw new UnknownException(received_raw);
+            }
+            final OtpErlangList entries = ErlangValue.otpObjectToOtpList(received.elementAt(1));
+            final List<Entry> result = new ArrayList<Entry>(entries.arity());
+            for (final OtpErlangObject entry_raw : entries) {
+                final OtpErlangTuple entry = (OtpErlangTuple) entry_raw;
+                if (entry.arity() != 5) {
+                    throw new UnknownException(received_raw);
+                }
+                final OtpErlangObject value = entry.elementAt(1);
+                if (!value.equals(emptyValAtom)) {
+                    result.add(new Entry(RoutingTable.toKey(entry.elementAt(0)),
+                            value, ((OtpErlangLong) entry.elementAt(4)).longValue()));
+                }
+            }
+            return result;
+        } catch (final ClassCastException e) {
+            // e.printStackTrace();
+            throw new UnknownException(e, received_raw);
+        }
+    }
+
+    /**
+     * Reads all entries of the given range - in contrast to
+     * {@link #read(BigInteger, BigInteger)}, a range with equal bounds only
+     * contains this key.
+     *
+     * @param range
+     *            the range to read
+     *
+     * @return the entries of the range
+     */
+    private List<Entry> readRange(final BigInteger[] range)
+            throws ConnectionException, TimeoutException, UnknownException {
+        final List<Entry> result = read(range[0], range[1]);
+        if (range[0].equals(range[1])) {
+            // (very unlikely) single-key range
+            final List<Entry> filtered = new ArrayList<Entry>(1);
+            for (final Entry entry : result) {
+                if (entry.getKey().equals(range[0])) {
+                    filtered.add(entry);
+                }
+            }
+            return filtered;
+        }
+        return result;
+    }
+
+    /**
+     * Iterates over all items of the ring (one replica each) by reading it in
+     * the given number of chunks.
+     *
+     * @param parts
+     *            the number of chunks (at least 1)
+     *
+     * @return an iterator over all items
+     *
+     * @throws IllegalArgumentException
+     *             if <tt>parts</tt> is less than 1
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    public ScanIterator scan(final int parts) throws ConnectionException,
+            UnknownException {
+        return scan(null, parts);
+    }
+
+    /**
+     * Iterates over all items of the ring (one replica each) by reading it in
+     * the given number of chunks, starting at the items next to the given
+     * position.
+     *
+     * @param start
+     *            the position in the ring to start at, e.g. the hash of a
+     *            client key (<tt>null</tt> to start at the beginning)
+     * @param parts
+     *            the number of chunks (at least 1)
+     *
+     * @return an iterator over all items
+     *
+     * @throws IllegalArgumentException
+     *             if <tt>parts</tt> is less than 1
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    public ScanIterator scan(final BigInteger start, final int parts)
+            throws ConnectionException, UnknownException {
+        if (parts < 1) {
+            throw new IllegalArgumentException("parts must be at least 1");
+        }
+        return new ScanIterator(getRanges(start, parts));
+    }
+
+    /**
+     * Splits the part of the ring which contains the first replica of each
+     * item into ranges.
+     *
+     * @param start
+     *            the position to start at (or <tt>null</tt>)
+     * @param parts
+     *            the number of ranges
+     *
+     * @return the ranges as <tt>[from, to]</tt> (both inclusive)
+     */
+    private List<BigInteger[]> getRanges(final BigInteger start, final int parts)
+            throws ConnectionException, UnknownException {
+        final RoutingTable rt = new RoutingTable(connection);
+        final int replicas = rt.getReplicationFactor();
+        final List<BigInteger> splitKeys = rt.splitRing(replicas);
+        final BigInteger first = splitKeys.get(0);
+        final BigInteger size;
+        if (splitKeys.size() > 1) {
+            size = splitKeys.get(1).subtract(first);
+        } else {
+            // a single replica, i.e. the whole ring (its ranges may wrap
+            // around the end of the ring)
+            size = RoutingCache.RING_SIZE;
+        }
+        final List<BigInteger[]> ranges = new ArrayList<BigInteger[]>(parts + 1);
+
+        BigInteger pos = null;
+        if (start != null) {
+            // position of the start's replica in the first part
+            pos = first.add(start.subtract(first).mod(size));
+        }
+        final List<BigInteger[]> beforeStart = new ArrayList<BigInteger[]>();
+        final BigInteger partsBig = BigInteger.valueOf(parts);
+        BigInteger from = first;
+        for (int i = 1; i <= parts; ++i) {
+            final BigInteger next = first.add(size.multiply(BigInteger.valueOf(i)).divide(partsBig));
+            if (next.equals(from)) {
+                continue;
+            }
+            final BigInteger to = next.subtract(BigInteger.ONE);
+            if ((pos != null) && (pos.compareTo(to) > 0)) {
+                // before the start position -> read at the end
+                beforeStart.add(range(from, to));
+            } else if ((pos != null) && (pos.compareTo(from) > 0)) {
+                // range containing the start position
+                ranges.add(range(pos, to));
+                beforeStart.add(range(from, pos.subtract(BigInteger.ONE)));
+            } else {
+                ranges.add(range(from, to));
+            }
+            from = next;
+        }
+        ranges.addAll(beforeStart);
+        return ranges;
+    }
+
+    /**
+     * Creates a range with the given bounds mapped into the ring.
+     *
+     * @param from
+     *            the first key of the range (inclusive)
+     * @param to
+     *            the last key of the range (inclusive)
+     *
+     * @return the range as <tt>[from, to]</tt>
+     */
+    private static BigInteger[] range(final BigInteger from, final BigInteger to) {
+        return new BigInteger[] { from.mod(RoutingCache.RING_SIZE),
+                to.mod(RoutingCache.RING_SIZE) };
+    }
+
+    /**
+     * Gets the executor reading the chunks of a scan.
+     *
+     * @return the executor
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor reading the chunks of a scan (by default, the pool
+     * of daemon threads for asynchronous requests of
+     * {@link AbstractTransaction}s).
+     *
+     * @param executor
+     *            the executor to use
+     */
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the number of chunks a scan reads ahead.
+     *
+     * @return the number of chunks read concurrently
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Sets the number of chunks a scan reads ahead (default: 2).
+     *
+     * @param prefetch
+     *            the number of chunks read concurrently (at least 1)
+     *
+     * @throws IllegalArgumentException
+     *             if <tt>prefetch</tt> is less than 1
+     */
+    public void setPrefetch(final int prefetch) throws IllegalArgumentException {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("prefetch must be at least 1");
+        }
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Iterator over the entries of a scan (see {@link RangeReader#scan(int)}).
+     *
+     * <p>
+     * Errors while reading a chunk are thrown by {@link #hasNext()} and
+     * {@link #next()} as an {@link UnknownException} with the original
+     * {@link ConnectionException} or {@link TimeoutException} as its cause.
+     * Iterators are not thread-safe.
+     * </p>
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    public class ScanIterator implements Iterator<Entry> {
+        private final Iterator<BigInteger[]> ranges;
+        private final LinkedList<Future<List<Entry>>> pending = new LinkedList<Future<List<Entry>>>();
+        private final int prefetch = RangeReader.this.prefetch;
+        private Iterator<Entry> current = Collections.<Entry>emptyList().iterator();
+
+        ScanIterator(final List<BigInteger[]> ranges) {
+            this.ranges = ranges.iterator();
+            fill();
+        }
+
+        /**
+         * Starts reading the next chunks until {@link #prefetch} chunks are
+         * being read.
+         */
+        private void fill() {
+            while ((pending.size() < prefetch) && ranges.hasNext()) {
+                final BigInteger[] range = ranges.next();
+                pending.add(executor.submit(new Callable<List<Entry>>() {
+                    public List<Entry> call() throws ConnectionException,
+                            TimeoutException, UnknownException {
+                        return readRange(range);
+                    }
+                }));
+            }
+        }
+
+        public boolean hasNext() throws UnknownException {
+            while (!current.hasNext()) {
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                final Future<List<Entry>> next = pending.removeFirst();
+                fill();
+                boolean interrupted = false;
+                try {
+                    while (true) {
+                        try {
+                            current = next.get().iterator();
+                            break;
+                        } catch (final InterruptedException e) {
+                            interrupted = true;
+                        } catch (final ExecutionException e) {
+                            close();
+                            final Throwable cause = e.getCause();
+                            if (cause instanceof UnknownException) {
+                                throw (UnknownException) cause;
+                            }
+                            final UnknownException error = new UnknownException(cause);
+                            error.initCause(cause);
+                            throw error;
+                        }
+                    }
+                } finally {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            return true;
+        }
+
+        public Entry next() throws UnknownException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the scan, i.e. cancels reading all remaining chunks.
+         */
+        public void close() {
+            for (final Future<List<Entry>> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+            while (ranges.hasNext()) {
+                ranges.next();
+            }
+        }
+    }
+}
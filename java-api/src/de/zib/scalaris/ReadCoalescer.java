@@ -0,0 +1,242 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+
+import de.zib.scalaris.operations.ReadOp;
+
+/**
+ * Coalesces concurrent reads of the same key issued via a (shared)
+ * {@link TransactionSingleOp}.
+ *
+ * <p>
+ * While a read of a key is in flight, further reads of this key attach to it
+ * and receive its result instead of sending their own RPC ("single flight").
+ * Reads arriving after the result has been received start a new read, i.e.
+ * no values are cached. Errors of the shared read are reported to all
+ * attached readers.
+ * </p>
+ *
+ * <p>
+ * {@link #getReads()} counts the reads which sent an RPC and
+ * {@link #getAttached()} the reads which attached to an in-flight read.
+ * </p>
+ *
+ * <h3>Example</h3>
+ * <pre>
+ * <code style="white-space:pre;">
+ *   TransactionSingleOp sc = new TransactionSingleOp(
+ *           ConnectionFactory.getInstance().createMultiplexedConnection());
+ *   ReadCoalescer reader = new ReadCoalescer(sc);
+ *   // from many threads:
+ *   String value = reader.read(key).stringValue();
+ * </code>
+ * </pre>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class ReadCoalescer {
+    /**
+     * A read in flight.
+     */
+    private static class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        OtpErlangObject resultRaw = null;
+        boolean resultCompressed = false;
+        /**
+         * Any error of the leader's read (re-thrown to attached reads).
+         */
+        Throwable error = null;
+    }
+
+    /**
+     * The transaction object to send reads with.
+     */
+    private final TransactionSingleOp tx;
+
+    /**
+     * Reads in flight by their keys.
+     */
+    private final ConcurrentHashMap<OtpErlangString, Flight> inFlight = new ConcurrentHashMap<OtpErlangString, Flight>();
+
+    private final AtomicLong reads = new AtomicLong(0);
+    private final AtomicLong attached = new AtomicLong(0);
+
+    /**
+     * Creates a new read coalescer sending its reads with the given
+     * transaction object (which must be safe to use by multiple threads, e.g.
+     * one using a {@link MultiplexedConnection} or a
+     * {@link BatchingTransactionSingleOp}).
+     *
+     * @param tx
+     *            the transaction object to use
+     */
+    public ReadCoalescer(final TransactionSingleOp tx) {
+        this.tx = tx;
+    }
+
+    /**
+     * Executes the given read operation or attaches to an in-flight read of
+     * the same key. The result is set in <tt>op</tt> and can be processed with
+     * {@link ReadOp#processResult()}.
+     *
+     * @param op
+     *            the read operation
+     *
+     * @return <tt>op</tt>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    public ReadOp read(final ReadOp op) throws ConnectionException,
+            UnknownException {
+        final OtpErlangString key = op.getKey();
+        final Flight flight = new Flight();
+        final Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            attached.incrementAndGet();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    existing.done.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (existing.error instanceof ConnectionException) {
+                throw (ConnectionException) existing.error;
+            } else if (existing.error instanceof RuntimeException) {
+                throw (RuntimeException) existing.error;
+            } else if (existing.error instanceof Error) {
+                throw (Error) existing.error;
+            }
+            op.setResult(existing.resultRaw, existing.resultCompressed);
+            return op;
+        }
+
+        reads.incrementAndGet();
+        try {
+            tx.req_list(op);
+            flight.resultRaw = op.getResult();
+            flight.resultCompressed = op.getResultCompressed();
+            return op;
+        } catch (final ConnectionException e) {
+            flight.error = e;
+            throw e;
+        } catch (final RuntimeException e) {
+            flight.error = e;
+            throw e;
+        } catch (final Error e) {
+            flight.error = e;
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Gets the value stored under the given <code>key</code>.
+     *
+     * @param key
+     *            the key to look up
+     *
+     * @return the value stored under the given <code>key</code>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws NotFoundException
+     *             if the requested key does not exist
+     * @throws UnknownException
+     *             if any other error occurs
+     *
+     * @see TransactionSingleOp#read(OtpErlangString)
+     */
+    public ErlangValue read(final OtpErlangString key)
+            throws ConnectionException, NotFoundException, UnknownException {
+        return read(new ReadOp(key)).processResult();
+    }
+
+    /**
+     * Gets the value stored under the given <code>key</code>.
+     *
+     * @param key
+     *            the key to look up
+     *
+     * @return the value stored under the given <code>key</code>
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws NotFoundException
+     *             if the requested key does not exist
+     * @throws UnknownException
+     *             if any other error occurs
+     *
+     * @see TransactionSingleOp#read(String)
+     */
+    public ErlangValue read(final String key) throws ConnectionException,
+            NotFoundException, UnknownException {
+        return read(new OtpErlangString(key));
+    }
+
+    /**
+     * Gets the transaction object reads are sent with.
+     *
+     * @return the transaction object
+     */
+    public TransactionSingleOp getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Gets the number of reads which sent an RPC.
+     *
+     * @return the number of reads
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Gets the number of reads which attached to an in-flight read of the
+     * same key, i.e. the number of saved RPCs.
+     *
+     * @return the number of attached reads
+     */
+    public long getAttached() {
+        return attached.get();
+    }
+}
@@ -37,7 +37,7 @@ import de.zib.scalaris.operations.WriteOp;
  * Generic request list.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.18
+ * @version 3.21
  * @since 3.5
  */
 public abstract class RequestList {
@@ -396,10 +396,54 @@ public abstract class RequestList {
      * @return an erlang list of requests
      */
     OtpErlangList getErlangReqList(final boolean compressed) {
+        return getErlangReqList(compressed, null, StringEncoding.LIST);
+    }
+
+    /**
+     * Gets the whole request list as erlang terms as required by
+     * <code>api_tx:req_list/2</code> encoding values with the given policy
+     * (in compressed mode).
+     *
+     * @param compressed
+     *            whether the value part in the term should be encoded, i.e.
+     *            compressed into an Erlang binary, or not
+     * @param policy
+     *            the policy deciding about the compression of values
+     *            (<tt>null</tt> to compress all of them)
+     *
+     * @return an erlang list of requests
+     *
+     * @since 3.21
+     */
+    OtpErlangList getErlangReqList(final boolean compressed,
+            final CompressionPolicy policy) {
+        return getErlangReqList(compressed, policy, StringEncoding.LIST);
+    }
+
+    /**
+     * Gets the whole request list as erlang terms as required by
+     * <code>api_tx:req_list/2</code> encoding values with the given policy
+     * (in compressed mode) and string encoding.
+     *
+     * @param compressed
+     *            whether the value part in the term should be encoded, i.e.
+     *            compressed into an Erlang binary, or not
+     * @param policy
+     *            the policy deciding about the compression of values
+     *            (<tt>null</tt> to compress all of them)
+     * @param stringEncoding
+     *            the encoding of string values
+     *
+     * @return an erlang list of requests
+     *
+     * @since 3.21
+     */
+    OtpErlangList getErlangReqList(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
         final OtpErlangObject[] result = new OtpErlangObject[requests.size()];
         int i = 0;
         for (final Operation op : requests) {
-            result[i++] = op.getErlang(compressed);
+            result[i++] = op.getErlang(compressed, policy, stringEncoding);
         }
         return new OtpErlangList(result);
     }
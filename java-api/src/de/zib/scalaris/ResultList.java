@@ -17,8 +17,10 @@ package de.zib.scalaris;
 
 import java.util.List;
 
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.RequestList;
 import de.zib.scalaris.operations.Operation;
@@ -27,11 +29,109 @@ import de.zib.scalaris.operations.ReadOp;
 /**
  * Generic result list.
  *
+ * Results can either be processed with the <tt>process*At</tt> methods which
+ * throw exceptions for failed operations or inspected without any exception
+ * using {@link #statusAt(int)} and {@link #tryReadAt(int)}, e.g. for
+ * existence probes where a missing key is an expected outcome.
+ *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.8
+ * @version 3.21
  * @since 3.5
  */
 public abstract class ResultList {
+    /**
+     * Status of a single result.
+     *
+     * @since 3.21
+     */
+    public static enum Status {
+        /**
+         * The operation succeeded.
+         */
+        OK,
+        /**
+         * The key did not exist (read, test_and_set).
+         */
+        NOT_FOUND,
+        /**
+         * The stored value did not match the expected old value
+         * (test_and_set).
+         */
+        KEY_CHANGED,
+        /**
+         * The stored value was not a list (add_del_on_list).
+         */
+        NOT_A_LIST,
+        /**
+         * The stored value was not a number (add_on_nr).
+         */
+        NOT_A_NUMBER,
+        /**
+         * The stored list was empty.
+         */
+        EMPTY_LIST,
+        /**
+         * The commit failed.
+         */
+        ABORT,
+        /**
+         * Any other (unexpected) result.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Result of {@link ResultList#tryReadAt(int)}.
+     *
+     * @since 3.21
+     */
+    public static final class ReadResult {
+        private static final ReadResult NOT_FOUND = new ReadResult(Status.NOT_FOUND, null);
+        private static final ReadResult UNKNOWN = new ReadResult(Status.UNKNOWN, null);
+
+        private final Status status;
+        private final ErlangValue value;
+
+        private ReadResult(final Status status, final ErlangValue value) {
+            this.status = status;
+            this.value = value;
+        }
+
+        /**
+         * Gets the status of the read operation.
+         *
+         * @return {@link Status#OK}, {@link Status#NOT_FOUND} or
+         *         {@link Status#UNKNOWN}
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Whether the key has been found.
+         *
+         * @return <tt>true</tt> if the read was successful
+         */
+        public boolean isFound() {
+            return status == Status.OK;
+        }
+
+        /**
+         * Gets the value that has been read.
+         *
+         * @return the stored value or <tt>null</tt> if the read was not
+         *         successful
+         */
+        public ErlangValue getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return (status == Status.OK) ? ("{ok, " + value + "}") : status.toString();
+        }
+    }
+
     final protected List<Operation> operations;
 
     /**
@@ -111,6 +211,101 @@ public abstract class ResultList {
         return ((ReadOp) get(pos)).processResult();
     }
 
+    /**
+     * Gets the status of the result at the given position without throwing
+     * any exception for failed operations.
+     *
+     * @param pos
+     *            the position in the result list (starting at 0)
+     *
+     * @return the status of the operation's result
+     *
+     * @since 3.21
+     */
+    public Status statusAt(final int pos) {
+        return statusOf(get(pos).getResult());
+    }
+
+    /**
+     * Processes the result at the given position which originated from a read
+     * request. In contrast to {@link #processReadAt(int)}, a missing key (or
+     * any other error) is reported by the status of the returned object and
+     * not by an exception.
+     *
+     * @param pos
+     *            the position in the result list (starting at 0)
+     *
+     * @return the status and the value that has been read
+     *
+     * @since 3.21
+     */
+    public ReadResult tryReadAt(final int pos) {
+        /*
+         * possible return values:
+         *  {ok, Value} | {fail, not_found}
+         */
+        final Operation op = get(pos);
+        final OtpErlangObject resultRaw = op.getResult();
+        final Status status = statusOf(resultRaw);
+        if (status == Status.NOT_FOUND) {
+            return ReadResult.NOT_FOUND;
+        } else if ((status != Status.OK) || (((OtpErlangTuple) resultRaw).arity() != 2)) {
+            return ReadResult.UNKNOWN;
+        }
+        OtpErlangObject result = ((OtpErlangTuple) resultRaw).elementAt(1);
+        if (op.getResultCompressed()) {
+            try {
+                result = CommonErlangObjects.decodeLazily(result);
+            } catch (final OtpErlangDecodeException e) {
+                // e.printStackTrace();
+                return ReadResult.UNKNOWN;
+            }
+        }
+        return new ReadResult(Status.OK, new ErlangValue(result));
+    }
+
+    /**
+     * Determines the status of a raw result from Scalaris.
+     *
+     * @param resultRaw
+     *            the raw result, e.g. <tt>{ok}</tt>, <tt>{ok, Value}</tt> or
+     *            <tt>{fail, Reason}</tt>
+     *
+     * @return the status of the result
+     */
+    static Status statusOf(final OtpErlangObject resultRaw) {
+        if (!(resultRaw instanceof OtpErlangTuple)) {
+            return Status.UNKNOWN;
+        }
+        final OtpErlangTuple received = (OtpErlangTuple) resultRaw;
+        if (received.arity() == 0) {
+            return Status.UNKNOWN;
+        }
+        final OtpErlangObject state = received.elementAt(0);
+        if (state.equals(CommonErlangObjects.okAtom)) {
+            return Status.OK;
+        } else if (!state.equals(CommonErlangObjects.failAtom) || (received.arity() < 2)) {
+            return Status.UNKNOWN;
+        }
+        final OtpErlangObject reason = received.elementAt(1);
+        if (reason.equals(CommonErlangObjects.notFoundAtom)) {
+            return Status.NOT_FOUND;
+        } else if (reason.equals(CommonErlangObjects.abortAtom)) {
+            return Status.ABORT;
+        } else if (reason.equals(CommonErlangObjects.notAListAtom)) {
+            return Status.NOT_A_LIST;
+        } else if (reason.equals(CommonErlangObjects.notANumberAtom)) {
+            return Status.NOT_A_NUMBER;
+        } else if (reason.equals(CommonErlangObjects.emptyListAtom)) {
+            return Status.EMPTY_LIST;
+        } else if ((reason instanceof OtpErlangTuple)
+                && (((OtpErlangTuple) reason).arity() > 0)
+                && ((OtpErlangTuple) reason).elementAt(0).equals(CommonErlangObjects.keyChangedAtom)) {
+            return Status.KEY_CHANGED;
+        }
+        return Status.UNKNOWN;
+    }
+
     /**
      * Processes the result at the given position which originated from
      * a write request.
@@ -0,0 +1,392 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side snapshot of the Scalaris ring mapping keys to the VMs
+ * responsible for them.
+ *
+ * <p>
+ * A snapshot is created by {@link #refresh()} which asks each known VM for the
+ * ranges of its Scalaris nodes (see {@link RoutingTable#getNodeRanges()}) and
+ * learns how to compute replica keys from
+ * {@link RoutingTable#getReplicaKeys(String)}. Keys are then hashed locally
+ * and {@link #getReplicaNodes(String)} returns the VMs hosting a replica of a
+ * key without any RPC. If the local hash function does not match the one of
+ * the ring, no routing information will be provided.
+ * </p>
+ *
+ * <p>
+ * The snapshot may be refreshed periodically in the background (see
+ * {@link #startRefresh(long, TimeUnit)}). {@link #invalidate()} drops the
+ * current snapshot, e.g. after routing errors, and triggers an immediate
+ * background refresh if enabled.
+ * </p>
+ *
+ * <p>
+ * Note: routing information is only a hint for selecting the node to send a
+ * request to - any node of the ring is able to process any request.
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ *
+ * @see TransactionSingleOp#setRoutingCache(RoutingCache)
+ */
+public class RoutingCache {
+    /**
+     * Size of the key space of the ring (128 bit keys).
+     */
+    static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(128);
+
+    /**
+     * Key used to verify the local hash function and to get the replica key
+     * offsets.
+     */
+    private static final String PROBE_KEY = "scalaris_routing_probe";
+
+    /**
+     * The range of a Scalaris node and the VM hosting it.
+     */
+    private static class Owner {
+        final RoutingTable.Range range;
+        final PeerNode node;
+
+        Owner(final RoutingTable.Range range, final PeerNode node) {
+            this.range = range;
+            this.node = node;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the ring.
+     */
+    private static class Snapshot {
+        /**
+         * Node ranges sorted by their left bounds.
+         */
+        final TreeMap<BigInteger, Owner> owners;
+        /**
+         * Offsets of the replica keys relative to the hashed key.
+         */
+        final BigInteger[] replicaOffsets;
+
+        Snapshot(final TreeMap<BigInteger, Owner> owners,
+                final BigInteger[] replicaOffsets) {
+            this.owners = owners;
+            this.replicaOffsets = replicaOffsets;
+        }
+
+        /**
+         * Gets the VM responsible for the given ring key.
+         *
+         * @param key
+         *            the (hashed) key
+         *
+         * @return the node or <tt>null</tt> if unknown
+         */
+        PeerNode lookup(final BigInteger key) {
+            Map.Entry<BigInteger, Owner> entry = owners.floorEntry(key);
+            if ((entry != null) && !entry.getValue().range.contains(key)
+                    && entry.getKey().equals(key)) {
+                // left-open range starting at the key -> try its predecessor
+                entry = owners.lowerEntry(key);
+            }
+            if ((entry != null) && entry.getValue().range.contains(key)) {
+                return entry.getValue().node;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Factory used to create connections for the refresh.
+     */
+    private final ConnectionFactory factory;
+    /**
+     * Creates the (daemon) refresh threads so that they do not keep the JVM
+     * alive.
+     */
+    private static final ThreadFactory refreshThreadFactory = new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "scalaris-routing-refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * The VMs to ask for routing information.
+     */
+    private final List<PeerNode> nodes;
+    /**
+     * The current snapshot (<tt>null</tt> if there is none).
+     */
+    private volatile Snapshot snapshot = null;
+
+    /**
+     * Background refresh service (if started).
+     */
+    private ScheduledExecutorService refresher = null;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong refreshes = new AtomicLong(0);
+    private final AtomicLong invalidations = new AtomicLong(0);
+
+    /**
+     * Creates a routing cache for all nodes of the given connection factory.
+     *
+     * Note: the snapshot is not created until {@link #refresh()} is called or
+     * the background refresh is started.
+     *
+     * @param factory
+     *            the connection factory to use
+     */
+    public RoutingCache(final ConnectionFactory factory) {
+        this(factory, factory.getNodes());
+    }
+
+    /**
+     * Creates a routing cache for the given nodes.
+     *
+     * Note: the same {@link PeerNode} objects as in the connection policy
+     * should be used so that failed nodes are recognised.
+     *
+     * @param factory
+     *            the connection factory to use
+     * @param nodes
+     *            the VMs to ask for routing information
+     */
+    public RoutingCache(final ConnectionFactory factory, final List<PeerNode> nodes) {
+        this.factory = factory;
+        this.nodes = new ArrayList<PeerNode>(nodes);
+    }
+
+    /**
+     * Computes the position of the given client key in the ring the same way
+     * Scalaris does, i.e. the MD5 sum of its UTF-8 representation.
+     *
+     * @param key
+     *            the (client) key
+     *
+     * @return the hashed key
+     */
+    static BigInteger hashKey(final String key) {
+        try {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md5.digest(key.getBytes("UTF-8")));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new InternalError(e.getMessage());
+        } catch (final UnsupportedEncodingException e) {
+            throw new InternalError(e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a new snapshot of the ring by asking all nodes for their
+     * ranges. Nodes which are not reachable are skipped. If the ring uses a
+     * hash function other than {@link #hashKey(String)}, no snapshot is
+     * created.
+     *
+     * @return <tt>true</tt> if a snapshot has been created
+     */
+    public boolean refresh() {
+        refreshes.incrementAndGet();
+        final TreeMap<BigInteger, Owner> owners = new TreeMap<BigInteger, Owner>();
+        BigInteger[] replicaOffsets = null;
+        boolean hashMismatch = false;
+        for (final PeerNode node : nodes) {
+            Connection conn = null;
+            try {
+                conn = factory.createConnection(new FixedNodeConnectionPolicy(node));
+                final RoutingTable rt = new RoutingTable(conn);
+                if (replicaOffsets == null) {
+                    final BigInteger probeHash = rt.hashKey(PROBE_KEY);
+                    if (!probeHash.equals(hashKey(PROBE_KEY))) {
+                        hashMismatch = true;
+                        break;
+                    }
+                    final List<BigInteger> replicaKeys = rt.getReplicaKeys(PROBE_KEY);
+                    replicaOffsets = new BigInteger[replicaKeys.size()];
+                    for (int i = 0; i < replicaOffsets.length; ++i) {
+                        replicaOffsets[i] = replicaKeys.get(i).subtract(probeHash).mod(RING_SIZE);
+                    }
+                }
+                for (final RoutingTable.Range range : rt.getNodeRanges()) {
+                    owners.put(range.getFrom(), new Owner(range, node));
+                }
+            } catch (final ConnectionException e) {
+                // e.printStackTrace();
+            } catch (final UnknownException e) {
+                // e.printStackTrace();
+            } finally {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+        if (hashMismatch || (replicaOffsets == null) || owners.isEmpty()) {
+            snapshot = null;
+            return false;
+        }
+        snapshot = new Snapshot(owners, replicaOffsets);
+        return true;
+    }
+
+    /**
+     * Drops the current snapshot, e.g. after a request failed. Triggers an
+     * immediate refresh if the background refresh is enabled.
+     */
+    public void invalidate() {
+        invalidations.incrementAndGet();
+        snapshot = null;
+        synchronized (this) {
+            if (refresher != null) {
+                refresher.execute(new Runnable() {
+                    public void run() {
+                        refresh();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Gets the VMs hosting a replica of the given key. The list starts with
+     * the VM of a random replica in order to spread the load.
+     *
+     * @param key
+     *            the (client) key
+     *
+     * @return a list of distinct nodes (empty if there is no routing
+     *         information)
+     */
+    public List<PeerNode> getReplicaNodes(final String key) {
+        final Snapshot snap = snapshot;
+        if (snap == null) {
+            misses.incrementAndGet();
+            return Collections.emptyList();
+        }
+        final BigInteger hash = hashKey(key);
+        final int replicas = snap.replicaOffsets.length;
+        final int start = (replicas > 1) ? (hash.intValue() & Integer.MAX_VALUE) % replicas : 0;
+        final List<PeerNode> result = new ArrayList<PeerNode>(replicas);
+        for (int i = 0; i < replicas; ++i) {
+            final BigInteger offset = snap.replicaOffsets[(start + i) % replicas];
+            final PeerNode node = snap.lookup(hash.add(offset).mod(RING_SIZE));
+            if ((node != null) && !result.contains(node)) {
+                result.add(node);
+            }
+        }
+        if (result.isEmpty()) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Starts refreshing the snapshot in the background (stops a previously
+     * started refresh first). The first refresh is done immediately.
+     *
+     * @param period
+     *            the time between two refreshes
+     * @param unit
+     *            the unit of <tt>period</tt>
+     */
+    public synchronized void startRefresh(final long period, final TimeUnit unit) {
+        stopRefresh();
+        refresher = Executors.newSingleThreadScheduledExecutor(refreshThreadFactory);
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, 0, period, unit);
+    }
+
+    /**
+     * Stops the background refresh (if started).
+     */
+    public synchronized void stopRefresh() {
+        if (refresher != null) {
+            refresher.shutdown();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Checks whether there is a current snapshot of the ring.
+     *
+     * @return <tt>true</tt> if routing information is available
+     */
+    public boolean isValid() {
+        return snapshot != null;
+    }
+
+    /**
+     * Gets the number of lookups which returned routing information.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups which did not return routing information.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of (attempted) refreshes of the snapshot.
+     *
+     * @return the number of refreshes
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Gets the number of times the snapshot has been invalidated.
+     *
+     * @return the number of invalidations
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+}
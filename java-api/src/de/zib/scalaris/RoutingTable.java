@@ -15,18 +15,115 @@
  */
 package de.zib.scalaris;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangRangeException;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
 
 /**
  * Scalaris interface to basic routing table information.
  *
+ * <p>
+ * Keys in the ring are (unsigned) integers, i.e. the hashes of client keys
+ * (see {@link #hashKey(String)}).
+ * </p>
+ *
  * @author Thorsten Schuett, schuett@zib.de
- * @version 3.20
+ * @version 3.21
  * @since 3.20
  */
 public class RoutingTable {
+    /**
+     * A (simple) interval of ring keys, e.g. the range a Scalaris node is
+     * responsible for.
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    public static class Range {
+        private final boolean fromIncluded;
+        private final BigInteger from;
+        private final BigInteger to;
+        private final boolean toIncluded;
+
+        /**
+         * Creates a new range.
+         *
+         * @param fromIncluded
+         *            whether the left bound is part of the range
+         * @param from
+         *            the left bound
+         * @param to
+         *            the right bound
+         * @param toIncluded
+         *            whether the right bound is part of the range
+         */
+        public Range(final boolean fromIncluded, final BigInteger from,
+                final BigInteger to, final boolean toIncluded) {
+            this.fromIncluded = fromIncluded;
+            this.from = from;
+            this.to = to;
+            this.toIncluded = toIncluded;
+        }
+
+        /**
+         * Checks whether the given ring key is inside this range.
+         *
+         * @param key
+         *            the (hashed) key
+         *
+         * @return <tt>true</tt> if the key is in the range
+         */
+        public boolean contains(final BigInteger key) {
+            final int cmpFrom = key.compareTo(from);
+            final int cmpTo = key.compareTo(to);
+            return ((cmpFrom > 0) || (fromIncluded && (cmpFrom == 0)))
+                    && ((cmpTo < 0) || (toIncluded && (cmpTo == 0)));
+        }
+
+        /**
+         * @return whether the left bound is part of the range
+         */
+        public boolean isFromIncluded() {
+            return fromIncluded;
+        }
+
+        /**
+         * @return the left bound
+         */
+        public BigInteger getFrom() {
+            return from;
+        }
+
+        /**
+         * @return the right bound
+         */
+        public BigInteger getTo() {
+            return to;
+        }
+
+        /**
+         * @return whether the right bound is part of the range
+         */
+        public boolean isToIncluded() {
+            return toIncluded;
+        }
+
+        @Override
+        public String toString() {
+            return (fromIncluded ? "[" : "(") + from + ", " + to
+                    + (toIncluded ? "]" : ")");
+        }
+    }
+
     /**
      * Connection to a Scalaris node.
      */
@@ -81,4 +178,161 @@ public class RoutingTable {
             throw new UnknownException(e, received_raw);
         }
     }
+
+    /**
+     * Converts a ring key returned by Scalaris to a {@link BigInteger}.
+     *
+     * @param key
+     *            the key
+     *
+     * @return the key as a big integer
+     *
+     * @throws ClassCastException
+     *             if the key is not an integer
+     */
+    static BigInteger toKey(final OtpErlangObject key) throws ClassCastException {
+        return ((OtpErlangLong) key).bigIntegerValue();
+    }
+
+    /**
+     * Converts a list of ring keys returned by Scalaris.
+     *
+     * @param received_raw
+     *            the list of keys
+     *
+     * @return the keys as big integers
+     *
+     * @throws UnknownException
+     *             if the list does not consist of integers
+     */
+    private static List<BigInteger> toKeyList(final OtpErlangObject received_raw)
+            throws UnknownException {
+        try {
+            final OtpErlangList received = ErlangValue.otpObjectToOtpList(received_raw);
+            final List<BigInteger> result = new ArrayList<BigInteger>(received.arity());
+            for (final OtpErlangObject key : received) {
+                result.add(toKey(key));
+            }
+            return result;
+        } catch (final ClassCastException e) {
+            // e.printStackTrace();
+            throw new UnknownException(e, received_raw);
+        }
+    }
+
+    /**
+     * Gets the position of the given key in the ring.
+     *
+     * @param key
+     *            the (client) key
+     *
+     * @return the hashed key
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     *
+     * @since 3.21
+     */
+    public BigInteger hashKey(final String key) throws ConnectionException,
+            UnknownException {
+        final OtpErlangObject received_raw = connection.doRPC("api_dht", "hash_key",
+                new OtpErlangObject[] { new OtpErlangString(key) });
+        try {
+            return toKey(received_raw);
+        } catch (final ClassCastException e) {
+            // e.printStackTrace();
+            throw new UnknownException(e, received_raw);
+        }
+    }
+
+    /**
+     * Gets the positions of all replicas of the given key in the ring.
+     *
+     * @param key
+     *            the (client) key
+     *
+     * @return the hashed keys of all replicas
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     *
+     * @since 3.21
+     */
+    public List<BigInteger> getReplicaKeys(final String key)
+            throws ConnectionException, UnknownException {
+        return toKeyList(connection.doRPC("api_rdht", "get_replica_keys",
+                new OtpErlangObject[] { new OtpErlangString(key) }));
+    }
+
+    /**
+     * Splits the ring into the given number of (roughly) equally-sized parts.
+     *
+     * @param parts
+     *            the number of parts
+     *
+     * @return the (ring) keys the parts start at, beginning with the smallest
+     *         key of the ring
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     *
+     * @since 3.21
+     */
+    public List<BigInteger> splitRing(final int parts)
+            throws ConnectionException, UnknownException {
+        return toKeyList(connection.doRPC("api_dht_raw", "split_ring",
+                new OtpErlangObject[] { new OtpErlangLong(parts) }));
+    }
+
+    /**
+     * Gets the ranges the Scalaris nodes inside the VM connected to are
+     * responsible for.
+     *
+     * @return a list of key ranges
+     *
+     * @throws ConnectionException
+     *             if the connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     *
+     * @since 3.21
+     */
+    public List<Range> getNodeRanges() throws ConnectionException,
+            UnknownException {
+        final OtpErlangObject received_raw = connection.doRPC("api_vm", "get_node_ranges",
+                new OtpErlangObject[] { });
+        try {
+            final OtpErlangList received = ErlangValue.otpObjectToOtpList(received_raw);
+            final List<Range> result = new ArrayList<Range>(received.arity());
+            for (final OtpErlangObject rangeRaw : received) {
+                // {LBr, L, R, RBr}
+                final OtpErlangTuple range = (OtpErlangTuple) rangeRaw;
+                if (range.arity() != 4) {
+                    throw new UnknownException(received_raw);
+                }
+                result.add(new Range(
+                        ((OtpErlangAtom) range.elementAt(0)).atomValue().equals("["),
+                        toKey(range.elementAt(1)), toKey(range.elementAt(2)),
+                        ((OtpErlangAtom) range.elementAt(3)).atomValue().equals("]")));
+            }
+            return result;
+        } catch (final ClassCastException e) {
+            // e.printStackTrace();
+            throw new UnknownException(e, received_raw);
+        }
+    }
 }
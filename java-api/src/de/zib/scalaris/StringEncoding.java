@@ -0,0 +1,83 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.nio.charset.Charset;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+
+/**
+ * Encodings of {@link String} values sent to Scalaris (see
+ * {@link AbstractTransaction#setStringEncoding(StringEncoding)} and
+ * {@link ConnectionFactory#setStringEncoding(StringEncoding)}).
+ *
+ * <p>
+ * By default, strings are sent as Erlang strings, i.e. lists of characters,
+ * which are expensive to encode, transfer and store. With
+ * {@link #UTF8_BINARY}, string values (and strings inside list values) are
+ * sent as UTF-8 encoded binaries instead. Only Java strings are converted,
+ * values which already are Erlang terms, e.g. an {@link ErlangValue} read
+ * before, are sent as they are.
+ * {@link ErlangValue#stringValue()} decodes both representations, so reading
+ * values does not depend on the encoding. Note, however, that Scalaris
+ * compares values by their representation, e.g. for
+ * <tt>test_and_set</tt> or <tt>add_del_on_list</tt>, so all clients working
+ * on the same keys should use the same encoding.
+ * </p>
+ *
+ * <p>
+ * Keys are always sent as Erlang strings since this is the key type
+ * Scalaris' APIs define (<tt>client_key()</tt>).
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public enum StringEncoding {
+    /**
+     * Strings are sent as Erlang strings (lists of characters).
+     */
+    LIST,
+    /**
+     * Strings are sent as UTF-8 encoded Erlang binaries.
+     */
+    UTF8_BINARY;
+
+    /**
+     * UTF-8 charset object.
+     * StandardCharsets.UTF_8 is only available for Java >= 7
+     */
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Converts the given Java string to its Erlang representation in this
+     * encoding.
+     *
+     * @param value
+     *            the string to convert
+     *
+     * @return the converted value
+     */
+    public OtpErlangObject convert(final String value) {
+        if (this == UTF8_BINARY) {
+            return new OtpErlangBinary(value.getBytes(UTF_8));
+        }
+        return new OtpErlangString(value);
+    }
+}
@@ -15,9 +15,16 @@
  */
 package de.zib.scalaris;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.ericsson.otp.erlang.OtpErlangDouble;
 import com.ericsson.otp.erlang.OtpErlangList;
@@ -25,11 +32,13 @@ import com.ericsson.otp.erlang.OtpErlangLong;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpExternal;
 
 import de.zib.scalaris.operations.AddDelOnListOp;
 import de.zib.scalaris.operations.AddOnNrOp;
 import de.zib.scalaris.operations.CommitOp;
 import de.zib.scalaris.operations.Operation;
+import de.zib.scalaris.operations.ReadOp;
 import de.zib.scalaris.operations.TestAndSetOp;
 import de.zib.scalaris.operations.TransactionOperation;
 import de.zib.scalaris.operations.WriteOp;
@@ -106,8 +115,32 @@ import de.zib.scalaris.operations.WriteOp;
  * by classifying nodes as good or bad depending on their previous state. The
  * number of automatic retries is adjustable (default: 3).
  *
+ * <h3>Asynchronous requests</h3>
+ *
+ * Requests of one transaction issued by {@link #req_listAsync(RequestList)}
+ * are executed one after another in the order they were issued since each of
+ * them needs the transaction log of the previous one. Do not mix them with
+ * synchronous requests while they are in flight.
+ *
+ * <h3>Transaction log</h3>
+ *
+ * The transaction log (tlog) is sent with each request. By default, only the
+ * tlog entries of the keys in a request (or all entries for a commit) are
+ * sent ({@link FilteringTransLog}). Entries are kept in the Erlang external
+ * term format once they have been sent so that sending them again, e.g. in
+ * later rounds or when retrying a commit, does not encode them again. The
+ * size of the tlog sent with the last request is available from
+ * {@link #getLastTlogSize()} and {@link #getLastTlogBytes()}.
+ *
+ * <h3>Parallel reads</h3>
+ *
+ * Large sets of reads can be split and sent concurrently over several
+ * connections using {@link #req_listParallel(RequestList, ConnectionPool, int)}.
+ * The transaction logs of all parts are merged into this transaction which
+ * requires a {@link FilteringTransLog} (the default).
+ *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.18
+ * @version 3.21
  * @since 2.0
  */
 public class Transaction extends
@@ -117,6 +150,43 @@ public class Transaction extends
      */
     protected final Translog transLog = getTranslogImpl();
 
+    /**
+     * Number of tlog entries sent with the last request.
+     */
+    private volatile int lastTlogSize = 0;
+
+    /**
+     * Encoded size of the tlog sent with the last request (in bytes).
+     */
+    private volatile int lastTlogBytes = 0;
+
+    /**
+     * Asynchronous requests waiting for the current one to finish.
+     */
+    private final LinkedList<QueuedRequest> asyncQueue = new LinkedList<QueuedRequest>();
+    /**
+     * Whether an asynchronous request is in flight.
+     */
+    private boolean asyncActive = false;
+    /**
+     * Whether a thread is starting queued requests (see
+     * {@link #startQueued()}).
+     */
+    private boolean asyncStarting = false;
+
+    /**
+     * An asynchronous request waiting for its turn.
+     */
+    private static final class QueuedRequest {
+        final Runnable start;
+        final AsyncResult<?> result;
+
+        QueuedRequest(final Runnable start, final AsyncResult<?> result) {
+            this.start = start;
+            this.result = result;
+        }
+    }
+
     /**
      * Gets the {@link Translog} implementation to use for {@link #transLog}.
      * Will be executed only once during construction of the object!
@@ -378,14 +448,19 @@ public class Transaction extends
 
     /**
      * TransLog abstraction layer sending the whole tlog for each request,
-     * using the Scalaris-provided tlog as is.
+     * using the Scalaris-provided tlog as is. The tlog is encoded (once) when
+     * it is sent for the first time.
      *
      * @author Nico Kruber, kruber@zib.de
-     * @version 3.17
+     * @version 3.21
      * @since 3.17
      */
     protected static class FullTransLog implements Translog {
         protected OtpErlangObject tlog = null;
+        /**
+         * The encoded {@link #tlog} (if already sent).
+         */
+        protected EncodedTerm encodedTlog = null;
 
         /* (non-Javadoc)
          * @see de.zib.scalaris.Translog#merge(com.ericsson.otp.erlang.OtpErlangObject)
@@ -393,6 +468,7 @@ public class Transaction extends
         @Override
         public Translog merge(final OtpErlangObject newTLog) {
             this.tlog = newTLog;
+            this.encodedTlog = null;
             return this;
         }
 
@@ -410,6 +486,7 @@ public class Transaction extends
         @Override
         public void reset() {
             this.tlog = null;
+            this.encodedTlog = null;
         }
 
         /* (non-Javadoc)
@@ -417,7 +494,10 @@ public class Transaction extends
          */
         @Override
         public OtpErlangObject filter(final RequestList req) {
-            return this.tlog;
+            if ((encodedTlog == null) && (tlog != null)) {
+                encodedTlog = new EncodedTerm(encodeTerm(tlog));
+            }
+            return encodedTlog;
         }
     }
 
@@ -425,12 +505,28 @@ public class Transaction extends
      * TransLog abstraction layer only sending the subset of the tlog that is
      * actually required for a request, tightly coupled with <tt>tx_tlog</tt>.
      *
+     * Entries are encoded when they are sent for the first time and re-used
+     * until they are replaced by {@link #merge(OtpErlangObject)}. The tlog
+     * of a commit is cached as a whole, e.g. for retrying a failed commit.
+     *
      * @author Nico Kruber, kruber@zib.de
-     * @version 3.17
+     * @version 3.21
      * @since 3.17
      */
     protected static class FilteringTransLog implements Translog {
         protected LinkedHashMap<OtpErlangString, OtpErlangTuple> entries = new LinkedHashMap<OtpErlangString, OtpErlangTuple>();
+        /**
+         * Encoded entries of {@link #entries} (if already sent).
+         *
+         * @since 3.21
+         */
+        protected final HashMap<OtpErlangString, byte[]> encodedEntries = new HashMap<OtpErlangString, byte[]>();
+        /**
+         * The encoded tlog with all entries (if already sent with a commit).
+         *
+         * @since 3.21
+         */
+        protected EncodedTerm encodedTlog = null;
 
         /* (non-Javadoc)
          * @see de.zib.scalaris.Translog#merge(com.ericsson.otp.erlang.OtpErlangObject)
@@ -443,6 +539,8 @@ public class Transaction extends
                     final OtpErlangTuple entry = (OtpErlangTuple) newTLogL.elementAt(i);
                     final OtpErlangString key = ErlangValue.otpObjectToOtpString(entry.elementAt(1));
                     entries.put(key, entry);
+                    encodedEntries.remove(key);
+                    encodedTlog = null;
                 }
             } catch (final ClassCastException e) {
                 throw new UnknownException(newTLog);
@@ -464,6 +562,28 @@ public class Transaction extends
         @Override
         public void reset() {
             entries.clear();
+            encodedEntries.clear();
+            encodedTlog = null;
+        }
+
+        /**
+         * Gets the encoded tlog entry of the given key.
+         *
+         * @param key
+         *            the key
+         *
+         * @return the encoded entry or <tt>null</tt> if there is none
+         */
+        private byte[] getEncodedEntry(final OtpErlangString key) {
+            byte[] result = encodedEntries.get(key);
+            if (result == null) {
+                final OtpErlangTuple entry = entries.get(key);
+                if (entry != null) {
+                    result = encodeTerm(entry);
+                    encodedEntries.put(key, result);
+                }
+            }
+            return result;
         }
 
         /* (non-Javadoc)
@@ -471,26 +591,132 @@ public class Transaction extends
          */
         @Override
         public OtpErlangObject filter(final RequestList req) {
-            OtpErlangList result;
             if (req.isCommit()) {
-                result = new OtpErlangList(entries.values()
-                        .toArray(new OtpErlangTuple[entries.size()]));
+                if (encodedTlog == null) {
+                    final List<byte[]> resultJ = new ArrayList<byte[]>(entries.size());
+                    for (final OtpErlangString key : entries.keySet()) {
+                        resultJ.add(getEncodedEntry(key));
+                    }
+                    encodedTlog = encodeList(resultJ);
+                }
+                return encodedTlog;
             } else {
-                final HashSet<OtpErlangTuple> resultJ = new HashSet<OtpErlangTuple>(
-                        req.size());
+                final HashSet<OtpErlangString> keys = new HashSet<OtpErlangString>(req.size());
+                final List<byte[]> resultJ = new ArrayList<byte[]>(req.size());
                 for (final Operation op : req.getRequests()) {
-                    final OtpErlangTuple entry = entries.get(op.getKey());
-                    if (entry != null) {
-                        resultJ.add(entry);
+                    final OtpErlangString key = op.getKey();
+                    if ((key != null) && keys.add(key)) {
+                        final byte[] entry = getEncodedEntry(key);
+                        if (entry != null) {
+                            resultJ.add(entry);
+                        }
                     }
                 }
-                result = new OtpErlangList(
-                        resultJ.toArray(new OtpErlangTuple[resultJ.size()]));
+                return encodeList(resultJ);
             }
-            return result;
         }
     }
 
+    /**
+     * Encodes the given term (without version tag).
+     *
+     * @param term
+     *            the term to encode
+     *
+     * @return the encoded term
+     */
+    static byte[] encodeTerm(final OtpErlangObject term) {
+        final CodecPool pool = CodecPool.get();
+        final CodecPool.Buffer buffer = pool.acquireBuffer();
+        try {
+            buffer.write_any(term);
+            return buffer.toByteArray();
+        } finally {
+            pool.releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Creates an Erlang list from the given encoded elements without encoding
+     * them again.
+     *
+     * @param elements
+     *            encoded elements (without version tag)
+     *
+     * @return the encoded list
+     */
+    static EncodedTerm encodeList(final List<byte[]> elements) {
+        if (elements.isEmpty()) {
+            return new EncodedTerm(new byte[] { OtpExternal.nilTag });
+        }
+        int size = 6;
+        for (final byte[] element : elements) {
+            size += element.length;
+        }
+        final byte[] result = new byte[size];
+        final int count = elements.size();
+        result[0] = OtpExternal.listTag;
+        result[1] = (byte) (count >>> 24);
+        result[2] = (byte) (count >>> 16);
+        result[3] = (byte) (count >>> 8);
+        result[4] = (byte) count;
+        int pos = 5;
+        for (final byte[] element : elements) {
+            System.arraycopy(element, 0, result, pos, element.length);
+            pos += element.length;
+        }
+        result[pos] = OtpExternal.nilTag;
+        return new EncodedTerm(result);
+    }
+
+    /**
+     * Stores the size of the tlog which is sent with the current request.
+     *
+     * @param tlog
+     *            the (filtered) tlog
+     */
+    private void setLastTlogSize(final OtpErlangObject tlog) {
+        if (tlog == null) {
+            lastTlogSize = 0;
+            lastTlogBytes = 0;
+        } else if (tlog instanceof EncodedTerm) {
+            final byte[] bytes = ((EncodedTerm) tlog).getBytes();
+            if (bytes[0] == OtpExternal.listTag) {
+                lastTlogSize = ((bytes[1] & 0xff) << 24) | ((bytes[2] & 0xff) << 16)
+                        | ((bytes[3] & 0xff) << 8) | (bytes[4] & 0xff);
+            } else {
+                lastTlogSize = 0;
+            }
+            lastTlogBytes = bytes.length;
+        } else {
+            lastTlogSize = (tlog instanceof OtpErlangList) ? ((OtpErlangList) tlog).arity() : 0;
+            lastTlogBytes = encodeTerm(tlog).length;
+        }
+    }
+
+    /**
+     * Gets the number of transaction log entries sent with the last request.
+     *
+     * @return number of tlog entries
+     *
+     * @since 3.21
+     */
+    public int getLastTlogSize() {
+        return lastTlogSize;
+    }
+
+    /**
+     * Gets the size of the transaction log sent with the last request in the
+     * Erlang external term format.
+     *
+     * @return size of the tlog in bytes
+     *
+     * @since 3.21
+     */
+    public int getLastTlogBytes() {
+        return lastTlogBytes;
+    }
+
     /**
      * Executes the given operation.
      *
@@ -543,20 +769,175 @@ public class Transaction extends
      *             if any other error occurs
      */
     @Override
-    public ResultList req_list(final RequestList req)
+    public synchronized ResultList req_list(final RequestList req)
             throws ConnectionException, AbortException, UnknownException {
         if (req.isEmpty()) {
             return new ResultList(new OtpErlangList(), compressed, req);
         }
-        OtpErlangObject received_raw = null;
-        final OtpErlangList erlangReqList = req.getErlangReqList(compressed);
+        final OtpErlangObject received_raw = connection.doRPC(module(),
+                "req_list", reqListArgs(req));
+        return processReqList(req, received_raw);
+    }
+
+    /**
+     * Queues the given request list and starts it once all previous
+     * asynchronous requests are done (each of them needs the transaction log
+     * of the previous one).
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return the future results
+     */
+    @Override
+    AsyncResult<ResultList> issueAsync(final RequestList req) {
+        final AsyncResult<ResultList> result = new AsyncResult<ResultList>();
+        final Runnable start = new Runnable() {
+            public void run() {
+                startAsync(req, result);
+            }
+        };
+        synchronized (asyncQueue) {
+            asyncQueue.add(new QueuedRequest(start, result));
+        }
+        startQueued();
+        return result;
+    }
+
+    /**
+     * Starts the next queued request unless there is one in flight. Requests
+     * which are done already, i.e. cancelled, are skipped. If a request is
+     * done immediately, the next one is started by the same loop (instead of
+     * a recursive call).
+     */
+    private void startQueued() {
+        while (true) {
+            final QueuedRequest next;
+            synchronized (asyncQueue) {
+                if (asyncActive || asyncStarting || asyncQueue.isEmpty()) {
+                    return;
+                }
+                next = asyncQueue.removeFirst();
+                asyncActive = true;
+                asyncStarting = true;
+            }
+            try {
+                next.result.addListener(new Runnable() {
+                    public void run() {
+                        synchronized (asyncQueue) {
+                            asyncActive = false;
+                        }
+                        startQueued();
+                    }
+                });
+                if (!next.result.isDone()) {
+                    next.start.run();
+                }
+            } catch (final RuntimeException e) {
+                next.result.fail(e);
+            } finally {
+                synchronized (asyncQueue) {
+                    asyncStarting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the given request list without waiting for the reply (see
+     * {@link Connection#doRPCAsync(String, String, OtpErlangList, java.util.concurrent.Executor)}).
+     * The transaction log is taken when the request is sent, i.e. after the
+     * previous asynchronous request is done.
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     */
+    @Override
+    void startAsync(final RequestList req, final AsyncResult<ResultList> result) {
+        final OtpErlangList args;
+        try {
+            if (req.isEmpty()) {
+                result.complete(new ResultList(new OtpErlangList(), compressed, req));
+                return;
+            }
+            synchronized (this) {
+                args = reqListArgs(req);
+            }
+        } catch (final RuntimeException e) {
+            result.fail(e);
+            return;
+        }
+        final AsyncResult<OtpErlangObject> rpc = connection.doRPCAsync(
+                module(), "req_list", args, executor);
+        result.setCanceller(new Runnable() {
+            public void run() {
+                rpc.cancel(true);
+            }
+        });
+        rpc.addListener(new Runnable() {
+            public void run() {
+                final Throwable error = rpc.getError();
+                if (error != null) {
+                    result.fail(error);
+                    return;
+                }
+                try {
+                    synchronized (Transaction.this) {
+                        result.complete(processReqList(req, rpc.getResult()));
+                    }
+                } catch (final AbortException e) {
+                    result.fail(e);
+                } catch (final UnknownException e) {
+                    result.fail(e);
+                } catch (final RuntimeException e) {
+                    result.fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the arguments of <tt>req_list</tt> for the given requests, i.e.
+     * the (filtered) transaction log and the requests.
+     *
+     * @param req
+     *            the requests to issue
+     *
+     * @return the arguments
+     */
+    private OtpErlangList reqListArgs(final RequestList req) {
+        final OtpErlangList erlangReqList = req.getErlangReqList(compressed, compressionPolicy, stringEncoding);
         if (transLog.isEmpty()) {
-            received_raw = connection.doRPC(module(), "req_list",
-                    new OtpErlangObject[] { erlangReqList });
+            setLastTlogSize(null);
+            return new OtpErlangList(new OtpErlangObject[] { erlangReqList });
         } else {
-            received_raw = connection.doRPC(module(), "req_list",
-                    new OtpErlangObject[] { transLog.filter(req), erlangReqList });
+            final OtpErlangObject tlog = transLog.filter(req);
+            setLastTlogSize(tlog);
+            return new OtpErlangList(new OtpErlangObject[] { tlog, erlangReqList });
         }
+    }
+
+    /**
+     * Processes the reply of <tt>req_list</tt>, i.e. merges the returned
+     * transaction log and converts the results.
+     *
+     * @param req
+     *            the issued requests
+     * @param received_raw
+     *            the reply
+     *
+     * @return the results
+     *
+     * @throws AbortException
+     *             if the commit failed
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    private ResultList processReqList(final RequestList req,
+            final OtpErlangObject received_raw) throws AbortException,
+            UnknownException {
         try {
             /*
              * possible return values:
@@ -580,6 +961,251 @@ public class Transaction extends
         }
     }
 
+    /**
+     * Executes the read requests in <code>req</code> in parallel.
+     *
+     * <p>
+     * The request list is split into (at most) <tt>partitions</tt> parts of
+     * about the same size. All reads of the same key are put into the same
+     * part, i.e. a key is never read concurrently. The first part is sent over this transaction's
+     * connection, all other parts are sent concurrently (by threads of the
+     * {@link #getExecutor()}) over connections borrowed from the given pool.
+     * If the pool has fewer idle (or creatable) connections, fewer parts are
+     * created. Once all parts succeeded, their transaction logs are merged
+     * into this transaction which can then be used for writes and a commit
+     * as usual. If any part fails, nothing is merged.
+     * </p>
+     *
+     * <p>
+     * Merging the parts' transaction logs needs a {@link FilteringTransLog}
+     * (the default, see {@link #getTranslogImpl()}). Other implementations,
+     * e.g. a {@link FullTransLog} which replaces its tlog on each merge, are
+     * rejected.
+     * </p>
+     *
+     * @param req
+     *            the requests to issue (read operations only)
+     * @param pool
+     *            the pool to borrow additional connections from
+     * @param partitions
+     *            maximum number of parts to send concurrently
+     *
+     * @return results of all requests in the same order as they appear in
+     *         <code>req</code>
+     *
+     * @throws ConnectionException
+     *             if a connection is not active or a communication error
+     *             occurs or an exit signal was received or the remote node
+     *             sends a message containing an invalid cookie
+     * @throws UnknownException
+     *             if any other error occurs
+     * @throws UnsupportedOperationException
+     *             if the request list contains other operations than reads
+     *             or the transaction does not use a {@link FilteringTransLog}
+     *
+     * @since 3.21
+     */
+    public synchronized ResultList req_listParallel(final RequestList req,
+            final ConnectionPool pool, final int partitions)
+            throws ConnectionException, UnknownException,
+            UnsupportedOperationException {
+        if (!(transLog instanceof FilteringTransLog)) {
+            throw new UnsupportedOperationException(
+                    "parallel reads need a FilteringTransLog to merge the tlogs of all parts (found: "
+                            + transLog.getClass().getName() + ")");
+        }
+        final List<Operation> ops = req.getRequests();
+        for (final Operation op : ops) {
+            if (!(op instanceof ReadOp)) {
+                throw new UnsupportedOperationException(
+                        "only reads can be executed in parallel (found: " + op + ")");
+            }
+        }
+        // borrow the connections first so that parts without a connection
+        // can still be sent with another part
+        final List<Connection> borrowed = new ArrayList<Connection>();
+        final int maxParts = Math.min(partitions, ops.size());
+        try {
+            while ((borrowed.size() + 1) < maxParts) {
+                final Connection conn = pool.getConnection();
+                if (conn == null) {
+                    break;
+                }
+                borrowed.add(conn);
+            }
+            if (borrowed.isEmpty()) {
+                try {
+                    return req_list(req);
+                } catch (final AbortException e) {
+                    // should not occur (we did not commit anything)
+                    throw new UnknownException(e);
+                }
+            }
+            return req_listParallel(req, borrowed);
+        } finally {
+            for (final Connection conn : borrowed) {
+                pool.releaseConnection(conn);
+            }
+        }
+    }
+
+    private ResultList req_listParallel(final RequestList req,
+            final List<Connection> borrowed) throws ConnectionException,
+            UnknownException {
+        final List<Operation> ops = req.getRequests();
+        final List<List<Integer>> partOps = splitByKey(ops, borrowed.size() + 1);
+        final int parts = partOps.size();
+        // create the requests in this thread (filtering the tlog is not
+        // thread-safe)
+        final String module = module();
+        final OtpErlangObject[][] args = new OtpErlangObject[parts][];
+        int tlogSize = 0;
+        int tlogBytes = 0;
+        for (int i = 0; i < parts; ++i) {
+            final RequestList part = new RequestList();
+            for (final int j : partOps.get(i)) {
+                part.addOp(ops.get(j));
+            }
+            final OtpErlangList erlangReqList = part.getErlangReqList(compressed, compressionPolicy, stringEncoding);
+            if (transLog.isEmpty()) {
+                args[i] = new OtpErlangObject[] { erlangReqList };
+            } else {
+                final OtpErlangObject tlog = transLog.filter(part);
+                setLastTlogSize(tlog);
+                tlogSize += lastTlogSize;
+                tlogBytes += lastTlogBytes;
+                args[i] = new OtpErlangObject[] { tlog, erlangReqList };
+            }
+        }
+        lastTlogSize = tlogSize;
+        lastTlogBytes = tlogBytes;
+
+        final List<Future<OtpErlangObject>> futures = new ArrayList<Future<OtpErlangObject>>(parts - 1);
+        for (int i = 1; i < parts; ++i) {
+            final Connection conn = borrowed.get(i - 1);
+            final OtpErlangObject[] partArgs = args[i];
+            futures.add(executor.submit(new Callable<OtpErlangObject>() {
+                public OtpErlangObject call() throws ConnectionException {
+                    return conn.doRPC(module, "req_list", partArgs);
+                }
+            }));
+        }
+        final OtpErlangObject[] received = new OtpErlangObject[parts];
+        Throwable error = null;
+        try {
+            received[0] = connection.doRPC(module, "req_list", args[0]);
+        } catch (final ConnectionException e) {
+            error = e;
+        } catch (final RuntimeException e) {
+            error = e;
+        }
+        // always wait for all parts so that no borrowed connection is
+        // released while still in use
+        boolean interrupted = false;
+        for (int i = 1; i < parts; ++i) {
+            while (true) {
+                try {
+                    received[i] = futures.get(i - 1).get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error instanceof ConnectionException) {
+            throw (ConnectionException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new UnknownException(error);
+        }
+
+        /*
+         * possible return values:
+         *  {tx_tlog:tlog(), [{ok} | {ok, Value} | {fail, abort | timeout | not_found}]}
+         */
+        final OtpErlangObject[] results = new OtpErlangObject[ops.size()];
+        final OtpErlangObject[] tlogs = new OtpErlangObject[parts];
+        for (int i = 0; i < parts; ++i) {
+            try {
+                final OtpErlangTuple receivedTpl = (OtpErlangTuple) received[i];
+                if (receivedTpl.arity() != 2) {
+                    throw new UnknownException(received[i]);
+                }
+                final OtpErlangList partResults = (OtpErlangList) receivedTpl.elementAt(1);
+                final List<Integer> indices = partOps.get(i);
+                if (partResults.arity() != indices.size()) {
+                    throw new UnknownException(received[i]);
+                }
+                for (int j = 0; j < partResults.arity(); ++j) {
+                    results[indices.get(j)] = partResults.elementAt(j);
+                }
+                tlogs[i] = receivedTpl.elementAt(0);
+            } catch (final ClassCastException e) {
+                // e.printStackTrace();
+                throw new UnknownException(e, received[i]);
+            }
+        }
+        for (final OtpErlangObject tlog : tlogs) {
+            transLog.merge(tlog);
+        }
+        return new ResultList(new OtpErlangList(results), compressed, req);
+    }
+
+    /**
+     * Splits the given operations into (at most) the given number of parts of
+     * about the same size. All operations on the same key are put into the
+     * same part so that the tlogs of the parts never contain the same key.
+     *
+     * @param ops
+     *            the operations to split
+     * @param parts
+     *            the maximum number of parts
+     *
+     * @return the (ascending) indices of the operations of each non-empty
+     *         part
+     */
+    private static List<List<Integer>> splitByKey(final List<Operation> ops,
+            final int parts) {
+        final LinkedHashMap<OtpErlangString, List<Integer>> byKey =
+                new LinkedHashMap<OtpErlangString, List<Integer>>(ops.size());
+        for (int i = 0; i < ops.size(); ++i) {
+            final OtpErlangString key = ops.get(i).getKey();
+            List<Integer> indices = byKey.get(key);
+            if (indices == null) {
+                indices = new ArrayList<Integer>(1);
+                byKey.put(key, indices);
+            }
+            indices.add(i);
+        }
+        final List<List<Integer>> result = new ArrayList<List<Integer>>(parts);
+        List<Integer> part = new ArrayList<Integer>();
+        int assigned = 0;
+        for (final List<Integer> indices : byKey.values()) {
+            part.addAll(indices);
+            assigned += indices.size();
+            if ((result.size() < (parts - 1))
+                    && (assigned >= (((long) ops.size() * (result.size() + 1)) / parts))) {
+                Collections.sort(part);
+                result.add(part);
+                part = new ArrayList<Integer>();
+            }
+        }
+        if (!part.isEmpty()) {
+            Collections.sort(part);
+            result.add(part);
+        }
+        return result;
+    }
+
     /**
      * Commits the current transaction.
      *
@@ -618,7 +1244,7 @@ public class Transaction extends
      *
      * @see #commit()
      */
-    public void abort() {
+    public synchronized void abort() {
         transLog.reset();
     }
 
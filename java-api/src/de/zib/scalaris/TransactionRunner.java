@@ -0,0 +1,453 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ericsson.otp.erlang.OtpErlangException;
+
+/**
+ * Runs optimistic transactions and re-executes them if their commit is
+ * aborted.
+ *
+ * <p>
+ * {@link #run(TxBody)} executes the given body with a fresh
+ * {@link Transaction} and commits it afterwards. If the body or the commit
+ * fail with an {@link AbortException}, the transaction is aborted and the
+ * body is executed again after a randomised, exponentially growing delay
+ * ("full jitter": a random delay between 0 and
+ * <tt>min(maxDelay, initialDelay * 2<sup>retry</sup>)</tt>) which spreads
+ * conflicting clients apart instead of letting them collide again. At most
+ * {@link #getMaxRetries()} retries are made and no retry is started if it
+ * could not begin before the deadline ({@link #getTimeout()}) - the last
+ * {@link AbortException} is thrown in these cases. Any other exception of
+ * the body is thrown immediately.
+ * </p>
+ *
+ * <p>
+ * The keys responsible for aborts are counted ({@link #getAbortCounts()},
+ * {@link #getHotKeys(int)}) in order to find contention hot spots. At most
+ * {@link #getMaxTrackedKeys()} keys are tracked ("space-saving" algorithm): a
+ * new key replaces the key with the fewest aborts and takes over its count,
+ * i.e. the counts are upper bounds but frequent keys are never lost.
+ * </p>
+ *
+ * <h3>Example:</h3>
+ * <pre>
+ * <code style="white-space:pre;">
+ *   TransactionRunner runner = new TransactionRunner(connection);
+ *   runner.run(new TransactionRunner.TxBody&lt;Void&gt;() {
+ *       public Void run(Transaction tx) throws OtpErlangException {
+ *           long counter = tx.read("counter").longValue();
+ *           tx.write("counter", counter + 1);
+ *           return null;
+ *       }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * Statistics and settings may be accessed concurrently but transactions
+ * share the runner's connection, i.e. concurrent runs need a connection
+ * which allows concurrent requests, e.g. a {@link MultiplexedConnection}.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ * @version 3.21
+ * @since 3.21
+ */
+public class TransactionRunner {
+    /**
+     * Body of a transaction executed by {@link TransactionRunner#run(TxBody)}.
+     *
+     * @param <T>
+     *            the type of the body's result
+     *
+     * @author Nico Kruber, kruber@zib.de
+     * @version 3.21
+     * @since 3.21
+     */
+    public static interface TxBody<T> {
+        /**
+         * Executes the operations of the transaction. The body may be
+         * executed several times and must not commit the transaction itself.
+         *
+         * @param tx
+         *            the transaction to use
+         *
+         * @return the result of the transaction (returned by
+         *         {@link TransactionRunner#run(TxBody)} after a successful
+         *         commit)
+         *
+         * @throws OtpErlangException
+         *             if an operation fails - an {@link AbortException} leads
+         *             to a retry, any other exception is passed on
+         */
+        public abstract T run(Transaction tx) throws OtpErlangException;
+    }
+
+    /**
+     * Random number generator for the backoff delays.
+     */
+    private static final Random random = new Random();
+
+    private final Connection connection;
+
+    private volatile int maxRetries = 10;
+    private volatile long initialDelay = 10;
+    private volatile long maxDelay = 1000;
+    private volatile long timeout = 0;
+
+    private final AtomicLong commits = new AtomicLong(0);
+    private final AtomicLong aborts = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    /**
+     * Abort counts by key (guarded by its own lock).
+     */
+    private final HashMap<String, Long> abortCounts = new HashMap<String, Long>();
+    /**
+     * Maximal number of keys in {@link #abortCounts} (guarded by the lock of
+     * {@link #abortCounts}).
+     */
+    private int maxTrackedKeys = 1000;
+
+    /**
+     * Creates a runner executing transactions on the given connection.
+     *
+     * @param conn
+     *            connection to use for the transactions
+     */
+    public TransactionRunner(final Connection conn) {
+        this.connection = conn;
+    }
+
+    /**
+     * Creates the transaction for an attempt.
+     *
+     * @return a new transaction
+     */
+    protected Transaction newTransaction() {
+        return new Transaction(connection);
+    }
+
+    /**
+     * Executes the given body in a transaction and commits it. Retries the
+     * transaction if it is aborted (see {@link TransactionRunner}).
+     *
+     * @param <T>
+     *            the type of the body's result
+     * @param body
+     *            the operations of the transaction
+     *
+     * @return the result of the body (of the successful attempt)
+     *
+     * @throws AbortException
+     *             if the transaction has been aborted and no retry is left
+     *             (or the deadline would be exceeded)
+     * @throws OtpErlangException
+     *             if the body throws any other exception, e.g. a
+     *             {@link ConnectionException} or {@link NotFoundException}
+     * @throws UnknownException
+     *             if any other error occurs
+     */
+    public <T> T run(final TxBody<T> body) throws AbortException,
+            OtpErlangException, UnknownException {
+        final long timeout = this.timeout;
+        final long deadline = (timeout == 0) ? 0 : (System.currentTimeMillis() + timeout);
+        for (int retry = 0; ; ++retry) {
+            final Transaction tx = newTransaction();
+            try {
+                final T result = body.run(tx);
+                tx.commit();
+                commits.incrementAndGet();
+                return result;
+            } catch (final AbortException e) {
+                tx.abort();
+                aborts.incrementAndGet();
+                for (final String key : e.getFailedKeys()) {
+                    countAbort(key);
+                }
+                if (retry >= maxRetries) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                final long delay = backoffDelay(initialDelay, maxDelay, retry);
+                if ((deadline != 0) && ((System.currentTimeMillis() + delay) >= deadline)) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (final InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    failures.incrementAndGet();
+                    throw e;
+                }
+            } catch (final OtpErlangException e) {
+                tx.abort();
+                throw e;
+            } catch (final RuntimeException e) {
+                tx.abort();
+                throw e;
+            }
+        }
+    }
+
+    private void countAbort(final String key) {
+        synchronized (abortCounts) {
+            final Long count = abortCounts.get(key);
+            if (count != null) {
+                abortCounts.put(key, count + 1);
+            } else if (abortCounts.size() < maxTrackedKeys) {
+                abortCounts.put(key, 1l);
+            } else if (maxTrackedKeys > 0) {
+                abortCounts.put(key, removeMinCount() + 1);
+            }
+        }
+    }
+
+    /**
+     * Removes the key with the fewest aborts from {@link #abortCounts}. The
+     * caller must hold the lock of {@link #abortCounts}.
+     *
+     * @return the abort count of the removed key
+     */
+    private long removeMinCount() {
+        Map.Entry<String, Long> min = null;
+        for (final Map.Entry<String, Long> entry : abortCounts.entrySet()) {
+            if ((min == null) || (entry.getValue() < min.getValue())) {
+                min = entry;
+            }
+        }
+        final long count = min.getValue();
+        abortCounts.remove(min.getKey());
+        return count;
+    }
+
+    /**
+     * Computes a randomised exponential backoff delay ("full jitter").
+     *
+     * @param initialDelay
+     *            the maximal delay before the first retry
+     * @param maxDelay
+     *            the upper bound of all delays
+     * @param retry
+     *            the number of the retry (starting at 0)
+     *
+     * @return a random delay between <tt>0</tt> and
+     *         <tt>min(maxDelay, initialDelay * 2<sup>retry</sup>)</tt>
+     *         (inclusive)
+     */
+    public static long backoffDelay(final long initialDelay,
+            final long maxDelay, final int retry) {
+        long bound = initialDelay;
+        for (int i = 0; (i < retry) && (bound < maxDelay); ++i) {
+            bound <<= 1;
+        }
+        bound = Math.min(bound, maxDelay);
+        if (bound <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * (bound + 1));
+    }
+
+    /**
+     * Gets the maximal number of retries of a transaction.
+     *
+     * @return the retry budget of a transaction
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the maximal number of retries of a transaction (default: 10).
+     *
+     * @param maxRetries
+     *            the retry budget of a transaction (<tt>0</tt> for no
+     *            retries)
+     */
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Gets the maximal delay before the first retry.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * Sets the maximal delay before the first retry which is doubled for each
+     * further retry (default: 10ms).
+     *
+     * @param initialDelay
+     *            the delay in milliseconds
+     */
+    public void setInitialDelay(final long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    /**
+     * Gets the upper bound of the delay before a retry.
+     *
+     * @return the delay in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the upper bound of the delay before a retry (default: 1s).
+     *
+     * @param maxDelay
+     *            the delay in milliseconds
+     */
+    public void setMaxDelay(final long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Gets the time after which no further retry is started.
+     *
+     * @return the timeout in milliseconds (<tt>0</tt> for no deadline)
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the time (since the start of {@link #run(TxBody)}) after which no
+     * further retry is started (default: no deadline).
+     *
+     * @param timeout
+     *            the timeout in milliseconds (<tt>0</tt> for no deadline)
+     */
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Gets the maximal number of keys whose aborts are counted.
+     *
+     * @return the number of tracked keys
+     */
+    public int getMaxTrackedKeys() {
+        synchronized (abortCounts) {
+            return maxTrackedKeys;
+        }
+    }
+
+    /**
+     * Sets the maximal number of keys whose aborts are counted (default:
+     * 1000). If there are more keys already, the ones with the fewest aborts
+     * are dropped.
+     *
+     * @param maxTrackedKeys
+     *            the number of tracked keys (<tt>0</tt> to count no keys)
+     */
+    public void setMaxTrackedKeys(final int maxTrackedKeys) {
+        synchronized (abortCounts) {
+            this.maxTrackedKeys = maxTrackedKeys;
+            while (abortCounts.size() > maxTrackedKeys) {
+                removeMinCount();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of successfully committed transactions.
+     *
+     * @return number of commits
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * Gets the number of aborted attempts (including the ones which have
+     * been retried).
+     *
+     * @return number of aborts
+     */
+    public long getAborts() {
+        return aborts.get();
+    }
+
+    /**
+     * Gets the number of transactions which have been given up, i.e. whose
+     * last attempt was aborted.
+     *
+     * @return number of failed transactions
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Gets how often each key was responsible for an abort (for the
+     * {@link #getMaxTrackedKeys()} keys being tracked).
+     *
+     * @return a snapshot of the abort counts by key
+     */
+    public Map<String, Long> getAbortCounts() {
+        synchronized (abortCounts) {
+            return new HashMap<String, Long>(abortCounts);
+        }
+    }
+
+    /**
+     * Gets the keys which were responsible for the most aborts.
+     *
+     * @param n
+     *            maximal number of keys to return
+     *
+     * @return up to <tt>n</tt> keys and their abort counts, sorted by the
+     *         number of aborts (descending)
+     */
+    public List<Map.Entry<String, Long>> getHotKeys(final int n) {
+        final List<Map.Entry<String, Long>> result = new ArrayList<Map.Entry<String, Long>>(
+                getAbortCounts().entrySet());
+        Collections.sort(result, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(final Map.Entry<String, Long> o1,
+                    final Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return (result.size() <= n) ? result : new ArrayList<Map.Entry<String, Long>>(result.subList(0, n));
+    }
+
+    /**
+     * Resets all statistics.
+     */
+    public void resetStatistics() {
+        commits.set(0);
+        aborts.set(0);
+        failures.set(0);
+        synchronized (abortCounts) {
+            abortCounts.clear();
+        }
+    }
+}
@@ -15,13 +15,26 @@
  */
 package de.zib.scalaris;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
 import com.ericsson.otp.erlang.OtpErlangList;
 import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpOutputStream;
 
 import de.zib.scalaris.operations.AddDelOnListOp;
 import de.zib.scalaris.operations.AddOnNrOp;
 import de.zib.scalaris.operations.Operation;
+import de.zib.scalaris.operations.ReadOp;
 import de.zib.scalaris.operations.TestAndSetOp;
 import de.zib.scalaris.operations.TransactionSingleOpOperation;
 import de.zib.scalaris.operations.WriteOp;
@@ -105,12 +118,41 @@ import de.zib.scalaris.operations.WriteOp;
  * retries by classifying nodes as good or bad depending on their previous
  * state. The number of automatic retries is adjustable (default: 3).
  *
+ * <h3>Routing</h3>
+ *
+ * If a {@link RoutingCache} is set (see {@link #setRoutingCache(RoutingCache)}),
+ * requests on a single key are sent to a VM hosting a replica of the key
+ * which saves hops inside the ring.
+ *
+ * <h3>Bulk access</h3>
+ *
+ * {@link #readMany(Collection)} and {@link #writeMany(Map)} split their keys
+ * into chunks of at most {@link #getMaxChunkOps()} operations and (roughly)
+ * {@link #getMaxChunkBytes()} bytes of uncompressed requests. The chunks are
+ * sent concurrently using the executor of asynchronous requests (which pays
+ * off with connections allowing concurrent requests, e.g. a
+ * {@link MultiplexedConnection}). Instead of throwing exceptions, the
+ * outcome of each key is reported individually.
+ *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.18
+ * @version 3.21
  * @since 2.0
  */
 public class TransactionSingleOp extends
         AbstractTransaction<de.zib.scalaris.TransactionSingleOp.RequestList, de.zib.scalaris.TransactionSingleOp.ResultList> {
+    /**
+     * Routing information for requests on single keys (may be <tt>null</tt>).
+     */
+    private volatile RoutingCache routingCache = null;
+
+    /**
+     * Size estimate of an operation (without its key and value), i.e. the
+     * tuple header and the operation's atom.
+     */
+    private static final int OP_OVERHEAD = 16;
+
+    private volatile int maxChunkOps = 1000;
+    private volatile int maxChunkBytes = 1024 * 1024;
 
     /**
      * Constructor, uses the default connection returned by
@@ -375,8 +417,97 @@ public class TransactionSingleOp extends
         if (req.isEmpty()) {
             return new ResultList(new OtpErlangList(), compressed, req);
         }
-        final OtpErlangObject received_raw = connection.doRPC(module(), "req_list_commit_each",
-                    new OtpErlangObject[] { req.getErlangReqList(compressed) });
+        final OtpErlangList args = new OtpErlangList(
+                new OtpErlangObject[] { req.getErlangReqList(compressed, compressionPolicy, stringEncoding) });
+        final RoutingCache routing = routingCache;
+        final String key = (routing == null) ? null : getSingleKey(req);
+        final OtpErlangObject received_raw;
+        if (key == null) {
+            received_raw = connection.doRPC(module(), "req_list_commit_each", args);
+        } else {
+            try {
+                received_raw = connection.doRPC(routing.getReplicaNodes(key),
+                        module(), "req_list_commit_each", args);
+            } catch (final RPCTimeoutException e) {
+                // a slow node does not mean the ring has changed
+                throw e;
+            } catch (final ConnectionException e) {
+                routing.invalidate();
+                throw e;
+            }
+        }
+        return toResultList(req, received_raw);
+    }
+
+    /**
+     * Sends the given request list without waiting for the reply (see
+     * {@link Connection#doRPCAsync(String, String, OtpErlangList, java.util.concurrent.Executor)}).
+     * Requests with a routing hint are executed as in
+     * {@link #req_list(RequestList)} by a thread of the {@link #executor}.
+     *
+     * @param req
+     *            the requests to issue
+     * @param result
+     *            the result to complete
+     */
+    @Override
+    void startAsync(final RequestList req, final AsyncResult<ResultList> result) {
+        if (routingCache != null) {
+            startBlocking(req, result);
+            return;
+        }
+        final OtpErlangList args;
+        try {
+            if (req.isEmpty()) {
+                result.complete(new ResultList(new OtpErlangList(), compressed, req));
+                return;
+            }
+            args = new OtpErlangList(new OtpErlangObject[] {
+                    req.getErlangReqList(compressed, compressionPolicy, stringEncoding) });
+        } catch (final RuntimeException e) {
+            result.fail(e);
+            return;
+        }
+        final AsyncResult<OtpErlangObject> rpc = connection.doRPCAsync(
+                module(), "req_list_commit_each", args, executor);
+        result.setCanceller(new Runnable() {
+            public void run() {
+                rpc.cancel(true);
+            }
+        });
+        rpc.addListener(new Runnable() {
+            public void run() {
+                final Throwable error = rpc.getError();
+                if (error != null) {
+                    result.fail(error);
+                    return;
+                }
+                try {
+                    result.complete(toResultList(req, rpc.getResult()));
+                } catch (final UnknownException e) {
+                    result.fail(e);
+                } catch (final RuntimeException e) {
+                    result.fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Converts the reply of <tt>req_list_commit_each</tt> into a result list.
+     *
+     * @param req
+     *            the issued requests
+     * @param received_raw
+     *            the reply
+     *
+     * @return the results
+     *
+     * @throws UnknownException
+     *             if the reply is invalid
+     */
+    private ResultList toResultList(final RequestList req,
+            final OtpErlangObject received_raw) throws UnknownException {
         try {
             /*
              * possible return values:
@@ -389,6 +520,396 @@ public class TransactionSingleOp extends
         }
     }
 
+    /**
+     * Gets the key all operations of the given request list work on.
+     *
+     * @param req
+     *            the request list
+     *
+     * @return the key or <tt>null</tt> if there is more than one key
+     */
+    private static String getSingleKey(final RequestList req) {
+        OtpErlangString key = null;
+        for (final Operation op : req.getRequests()) {
+            final OtpErlangString opKey = op.getKey();
+            if (opKey == null) {
+                continue;
+            } else if (key == null) {
+                key = opKey;
+            } else if (!key.equals(opKey)) {
+                return null;
+            }
+        }
+        return (key == null) ? null : key.stringValue();
+    }
+
+    /**
+     * Reads the values of the given keys (see {@link TransactionSingleOp}
+     * for how the keys are split into chunks).
+     *
+     * @param keys
+     *            the keys to read (duplicates are read once)
+     *
+     * @return the values of all successfully read keys (in the order of
+     *         <tt>keys</tt>), keys which do not exist or could not be read
+     *         are missing
+     *
+     * @see #readMany(Collection, Map)
+     * @since 3.21
+     */
+    public Map<String, ErlangValue> readMany(final Collection<String> keys) {
+        return readMany(keys, null);
+    }
+
+    /**
+     * Reads the values of the given keys (see {@link TransactionSingleOp}
+     * for how the keys are split into chunks).
+     *
+     * @param keys
+     *            the keys to read (duplicates are read once)
+     * @param failures
+     *            map to put the keys which could not be read into together
+     *            with the reason, e.g. a {@link NotFoundException} or the
+     *            {@link ConnectionException} of the key's chunk (may be
+     *            <tt>null</tt>)
+     *
+     * @return the values of all successfully read keys (in the order of
+     *         <tt>keys</tt>)
+     *
+     * @since 3.21
+     */
+    public Map<String, ErlangValue> readMany(final Collection<String> keys,
+            final Map<String, Exception> failures) {
+        if (keys.isEmpty()) {
+            return new LinkedHashMap<String, ErlangValue>();
+        }
+        final List<Operation> ops = new ArrayList<Operation>(keys.size());
+        final List<Integer> sizes = new ArrayList<Integer>(keys.size());
+        for (final String key : new LinkedHashSet<String>(keys)) {
+            ops.add(new ReadOp(key));
+            sizes.add(OP_OVERHEAD + estimateSize(key));
+        }
+        final List<RequestList> chunks = chunk(ops, sizes);
+        final ResultList[] results = new ResultList[chunks.size()];
+        final Exception[] errors = new Exception[chunks.size()];
+        req_listChunks(chunks, results, errors);
+
+        final Map<String, ErlangValue> values = new LinkedHashMap<String, ErlangValue>(ops.size());
+        for (int i = 0; i < chunks.size(); ++i) {
+            final List<Operation> chunkOps = chunks.get(i).getRequests();
+            for (int j = 0; j < chunkOps.size(); ++j) {
+                final String key = chunkOps.get(j).getKey().stringValue();
+                if (errors[i] != null) {
+                    if (failures != null) {
+                        failures.put(key, errors[i]);
+                    }
+                    continue;
+                }
+                final ResultList.ReadResult result = results[i].tryReadAt(j);
+                if (result.isFound()) {
+                    values.put(key, result.getValue());
+                } else if (failures != null) {
+                    // only create an exception if the caller wants it
+                    try {
+                        results[i].processReadAt(j);
+                    } catch (final Exception e) {
+                        // e.printStackTrace();
+                        failures.put(key, e);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes the given key/value pairs, each in a single transaction (see
+     * {@link TransactionSingleOp} for how the keys are split into chunks).
+     *
+     * @param values
+     *            the values to write by their keys (see {@link ErlangValue}
+     *            for a list of supported types)
+     *
+     * @return the keys which could not be written together with the reason,
+     *         e.g. an {@link AbortException} or the
+     *         {@link ConnectionException} of the key's chunk (empty if all
+     *         values have been written)
+     *
+     * @throws ClassCastException
+     *             if a value's type is not supported
+     *
+     * @since 3.21
+     */
+    public Map<String, Exception> writeMany(final Map<String, ?> values)
+            throws ClassCastException {
+        if (values.isEmpty()) {
+            return new LinkedHashMap<String, Exception>();
+        }
+        final List<Operation> ops = new ArrayList<Operation>(values.size());
+        final List<Integer> sizes = new ArrayList<Integer>(values.size());
+        for (final Map.Entry<String, ?> entry : values.entrySet()) {
+            final OtpErlangObject value = ErlangTermEncoder.encodeValue(entry.getValue(), stringEncoding);
+            ops.add(new WriteOp(new OtpErlangString(entry.getKey()), value));
+            sizes.add(OP_OVERHEAD + estimateSize(entry.getKey()) + estimateSize(value));
+        }
+        final List<RequestList> chunks = chunk(ops, sizes);
+        final ResultList[] results = new ResultList[chunks.size()];
+        final Exception[] errors = new Exception[chunks.size()];
+        req_listChunks(chunks, results, errors);
+
+        final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        for (int i = 0; i < chunks.size(); ++i) {
+            final List<Operation> chunkOps = chunks.get(i).getRequests();
+            for (int j = 0; j < chunkOps.size(); ++j) {
+                final String key = chunkOps.get(j).getKey().stringValue();
+                if (errors[i] != null) {
+                    failures.put(key, errors[i]);
+                } else if (results[i].statusAt(j) != ResultList.Status.OK) {
+                    // only failed writes create an exception
+                    try {
+                        results[i].processWriteAt(j);
+                    } catch (final Exception e) {
+                        // e.printStackTrace();
+                        failures.put(key, e);
+                    }
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Splits the given operations into request lists of at most
+     * {@link #maxChunkOps} operations and {@link #maxChunkBytes} bytes
+     * (unless a single operation is larger).
+     *
+     * @param ops
+     *            the operations
+     * @param sizes
+     *            the estimated size of each operation
+     *
+     * @return the chunks (at least one if there are any operations)
+     */
+    private List<RequestList> chunk(final List<Operation> ops,
+            final List<Integer> sizes) {
+        final int maxOps = maxChunkOps;
+        final int maxBytes = maxChunkBytes;
+        final List<RequestList> chunks = new ArrayList<RequestList>();
+        RequestList current = new RequestList();
+        long currentBytes = 0;
+        for (int i = 0; i < ops.size(); ++i) {
+            final int size = sizes.get(i);
+            if (!current.isEmpty()
+                    && ((current.size() >= maxOps) || ((currentBytes + size) > maxBytes))) {
+                chunks.add(current);
+                current = new RequestList();
+                currentBytes = 0;
+            }
+            current.addOp(ops.get(i));
+            currentBytes += size;
+        }
+        chunks.add(current);
+        return chunks;
+    }
+
+    /**
+     * Executes the given chunks concurrently (the first one in the current
+     * thread, all others using the {@link #executor}).
+     *
+     * @param chunks
+     *            the request lists to execute
+     * @param results
+     *            array to put the results of each chunk into
+     * @param errors
+     *            array to put the exception of each failed chunk into
+     */
+    private void req_listChunks(final List<RequestList> chunks,
+            final ResultList[] results, final Exception[] errors) {
+        final List<Future<ResultList>> futures = new ArrayList<Future<ResultList>>(chunks.size() - 1);
+        for (int i = 1; i < chunks.size(); ++i) {
+            final RequestList chunk = chunks.get(i);
+            futures.add(executor.submit(new Callable<ResultList>() {
+                public ResultList call() throws ConnectionException,
+                        UnknownException {
+                    return req_list(chunk);
+                }
+            }));
+        }
+        try {
+            results[0] = req_list(chunks.get(0));
+        } catch (final ConnectionException e) {
+            errors[0] = e;
+        } catch (final RuntimeException e) {
+            errors[0] = e;
+        }
+        boolean interrupted = false;
+        for (int i = 1; i < chunks.size(); ++i) {
+            while (true) {
+                try {
+                    results[i] = futures.get(i - 1).get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    errors[i] = (cause instanceof Exception) ? (Exception) cause
+                            : new UnknownException(cause);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the size of the given key encoded as an {@link OtpErlangString}
+     * in an (uncompressed) request.
+     *
+     * Strings with code points larger than 255 (or too long strings) are not
+     * encoded as a byte string but as a list of integers with up to 5 bytes
+     * per code point.
+     *
+     * @param key
+     *            the key
+     *
+     * @return the number of bytes
+     */
+    static int estimateSize(final String key) {
+        int codePoints = 0;
+        int listBytes = 0;
+        boolean latin1 = true;
+        for (int i = 0; i < key.length(); ) {
+            final int codePoint = key.codePointAt(i);
+            i += Character.charCount(codePoint);
+            ++codePoints;
+            if (codePoint < 256) {
+                // SMALL_INTEGER_EXT
+                listBytes += 2;
+            } else {
+                // INTEGER_EXT
+                latin1 = false;
+                listBytes += 5;
+            }
+        }
+        if (codePoints == 0) {
+            // NIL_EXT
+            return 1;
+        } else if (latin1 && (codePoints <= 65535)) {
+            // STRING_EXT
+            return 3 + codePoints;
+        } else {
+            // LIST_EXT with a NIL_EXT tail
+            return 5 + listBytes + 1;
+        }
+    }
+
+    /**
+     * Estimates the size of the given value in an (uncompressed) request.
+     *
+     * @param value
+     *            the value
+     *
+     * @return the estimated number of bytes
+     */
+    private static int estimateSize(final OtpErlangObject value) {
+        if (value instanceof EncodedTerm) {
+            return ((EncodedTerm) value).getBytes().length;
+        } else if (value instanceof OtpErlangBinary) {
+            return ((OtpErlangBinary) value).size() + 5;
+        } else if (value instanceof OtpErlangString) {
+            return estimateSize(((OtpErlangString) value).stringValue());
+        }
+        final OtpOutputStream out = new OtpOutputStream();
+        value.encode(out);
+        return out.size();
+    }
+
+    /**
+     * Sets the maximal number of operations {@link #readMany(Collection)} and
+     * {@link #writeMany(Map)} send in a single request (default: 1000).
+     *
+     * @param maxChunkOps
+     *            the maximal number of operations per chunk (at least 1)
+     *
+     * @throws IllegalArgumentException
+     *             if <tt>maxChunkOps</tt> is less than 1
+     *
+     * @since 3.21
+     */
+    public void setMaxChunkOps(final int maxChunkOps)
+            throws IllegalArgumentException {
+        if (maxChunkOps < 1) {
+            throw new IllegalArgumentException("maxChunkOps must be at least 1");
+        }
+        this.maxChunkOps = maxChunkOps;
+    }
+
+    /**
+     * Gets the maximal number of operations in a chunk.
+     *
+     * @return the maximal number of operations per chunk
+     *
+     * @since 3.21
+     */
+    public int getMaxChunkOps() {
+        return maxChunkOps;
+    }
+
+    /**
+     * Sets the (estimated) size of the uncompressed operations
+     * {@link #readMany(Collection)} and {@link #writeMany(Map)} send in a
+     * single request at most (default: 1MiB). Operations larger than this
+     * are sent in a chunk of their own.
+     *
+     * @param maxChunkBytes
+     *            the maximal number of bytes per chunk
+     *
+     * @since 3.21
+     */
+    public void setMaxChunkBytes(final int maxChunkBytes) {
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    /**
+     * Gets the (estimated) maximal size of a chunk.
+     *
+     * @return the maximal number of bytes per chunk
+     *
+     * @since 3.21
+     */
+    public int getMaxChunkBytes() {
+        return maxChunkBytes;
+    }
+
+    /**
+     * Sets the routing cache to use for sending requests on a single key to a
+     * VM hosting a replica of the key first.
+     *
+     * Note: only connections which are not bound to a single node make use
+     * of the routing information, i.e. {@link MultiplexedConnection}s.
+     *
+     * @param routingCache
+     *            the routing cache to use (<tt>null</tt> to disable routing)
+     *
+     * @since 3.21
+     */
+    public void setRoutingCache(final RoutingCache routingCache) {
+        this.routingCache = routingCache;
+    }
+
+    /**
+     * Gets the routing cache used for requests on a single key.
+     *
+     * @return the routing cache or <tt>null</tt> if not set
+     *
+     * @since 3.21
+     */
+    public RoutingCache getRoutingCache() {
+        return routingCache;
+    }
+
     @Override
     protected RequestList newReqList() {
         return new RequestList();
@@ -24,21 +24,36 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.AbortException;
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.NotAListException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
  * Operation appending to / removing from a list.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.14
+ * @version 3.21
  * @since 3.14
  */
 public class AddDelOnListOp implements TransactionOperation, TransactionSingleOpOperation {
     final protected OtpErlangString key;
     final protected OtpErlangObject toAdd;
     final protected OtpErlangObject toRemove;
+    /**
+     * The values to add given to {@link #AddDelOnListOp(String, List, List)}
+     * (<tt>null</tt> otherwise) which are converted again if the request
+     * list uses another {@link StringEncoding}.
+     */
+    final protected List<?> javaToAdd;
+    /**
+     * The values to remove given to
+     * {@link #AddDelOnListOp(String, List, List)} (<tt>null</tt> otherwise)
+     * which are converted again if the request list uses another
+     * {@link StringEncoding}.
+     */
+    final protected List<?> javaToRemove;
     protected OtpErlangObject resultRaw = null;
     protected boolean resultCompressed = false;
     /**
@@ -55,6 +70,8 @@ public class AddDelOnListOp implements TransactionOperation, TransactionSingleOp
         this.key = key;
         this.toAdd = toAdd;
         this.toRemove = toRemove;
+        this.javaToAdd = null;
+        this.javaToRemove = null;
     }
     /**
      * Constructor
@@ -70,13 +87,43 @@ public class AddDelOnListOp implements TransactionOperation, TransactionSingleOp
         this.key = new OtpErlangString(key);
         this.toAdd = (toAdd == null) ? new OtpErlangList() : (OtpErlangList) ErlangValue.convertToErlang(toAdd);
         this.toRemove = (toRemove == null) ? new OtpErlangList() : (OtpErlangList) ErlangValue.convertToErlang(toRemove);
+        this.javaToAdd = toAdd;
+        this.javaToRemove = toRemove;
     }
 
     public OtpErlangObject getErlang(final boolean compressed) {
+        return getErlang(compressed, null, StringEncoding.LIST);
+    }
+
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
         return new OtpErlangTuple(new OtpErlangObject[] {
                 CommonErlangObjects.addDelOnListAtom, key,
-                compressed ? CommonErlangObjects.encode(toAdd) : toAdd,
-                compressed ? CommonErlangObjects.encode(toRemove) : toRemove });
+                CommonErlangObjects.encodeValue(
+                        convert(toAdd, javaToAdd, stringEncoding), compressed, policy),
+                CommonErlangObjects.encodeValue(
+                        convert(toRemove, javaToRemove, stringEncoding), compressed, policy) });
+    }
+
+    /**
+     * Gets a list with the given string encoding.
+     *
+     * @param list
+     *            the converted list
+     * @param javaList
+     *            the list given to the constructor (<tt>null</tt> if it was
+     *            an Erlang list)
+     * @param stringEncoding
+     *            the encoding of string values
+     *
+     * @return the list
+     */
+    private static OtpErlangObject convert(final OtpErlangObject list,
+            final List<?> javaList, final StringEncoding stringEncoding) {
+        if ((javaList == null) || (stringEncoding == StringEncoding.LIST)) {
+            return list;
+        }
+        return ErlangValue.convertToErlang(javaList, stringEncoding);
     }
 
     public OtpErlangString getKey() {
@@ -23,8 +23,10 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.AbortException;
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.NotANumberException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
@@ -98,6 +100,11 @@ public class AddOnNrOp implements TransactionOperation, TransactionSingleOpOpera
                 compressed ? CommonErlangObjects.encode(toAdd) : toAdd });
     }
 
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
+        return getErlang(compressed);
+    }
+
     public OtpErlangString getKey() {
         return key;
     }
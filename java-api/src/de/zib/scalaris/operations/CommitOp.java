@@ -6,6 +6,8 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.AbortException;
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
@@ -28,6 +30,11 @@ public class CommitOp implements TransactionOperation {
         return CommonErlangObjects.commitTupleAtom;
     }
 
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
+        return getErlang(compressed);
+    }
+
     public OtpErlangString getKey() {
         return null;
     }
@@ -19,11 +19,13 @@ import com.ericsson.otp.erlang.OtpErlangObject;
 import com.ericsson.otp.erlang.OtpErlangString;
 
 import de.zib.scalaris.AbortException;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.EmptyListException;
 import de.zib.scalaris.KeyChangedException;
 import de.zib.scalaris.NotAListException;
 import de.zib.scalaris.NotANumberException;
 import de.zib.scalaris.NotFoundException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
@@ -44,6 +46,27 @@ public interface Operation {
      * @return erlang representation for api_tx:req_list
      */
     abstract public OtpErlangObject getErlang(final boolean compressed);
+
+    /**
+     * Gets the erlang representation of the operation encoding its values
+     * (if any) with the given policy and string encoding.
+     *
+     * @param compressed
+     *            whether the value part in the term should be encoded, i.e.
+     *            compressed into an Erlang binary, or not
+     * @param policy
+     *            the policy deciding about the compression of values
+     *            (<tt>null</tt> to compress all of them)
+     * @param stringEncoding
+     *            the encoding of string values
+     *
+     * @return erlang representation for api_tx:req_list
+     *
+     * @since 3.21
+     */
+    abstract public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding);
+
      /**
       * Gets the key the operation is working on (if available)
       *
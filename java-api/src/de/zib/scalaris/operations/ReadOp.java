@@ -22,18 +22,20 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.AbortException;
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.KeyChangedException;
 import de.zib.scalaris.NotAListException;
 import de.zib.scalaris.NotANumberException;
 import de.zib.scalaris.NotFoundException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
  * Operation reading a value.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.14
+ * @version 3.21
  * @since 3.14
  */
 public class ReadOp implements TransactionOperation, TransactionSingleOpOperation {
@@ -65,6 +67,11 @@ public class ReadOp implements TransactionOperation, TransactionSingleOpOperatio
                 CommonErlangObjects.readAtom, key });
     }
 
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
+        return getErlang(compressed);
+    }
+
     public OtpErlangString getKey() {
         return key;
     }
@@ -97,7 +104,7 @@ public class ReadOp implements TransactionOperation, TransactionSingleOpOperatio
             if (state.equals(CommonErlangObjects.okAtom)) {
                 OtpErlangObject result = received.elementAt(1);
                 if (resultCompressed) {
-                    result = CommonErlangObjects.decode(result);
+                    result = CommonErlangObjects.decodeLazily(result);
                 }
                 return new ErlangValue(result);
             } else if (state.equals(CommonErlangObjects.failAtom)) {
@@ -23,10 +23,12 @@ import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.EmptyListException;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.NotAListException;
 import de.zib.scalaris.NotFoundException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
@@ -112,6 +114,11 @@ public class ReadRandomFromListOp extends PartialReadOp {
                 CommonErlangObjects.randomFromListAtom });
     }
 
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
+        return getErlang(compressed);
+    }
+
     public Result processResult() throws NotFoundException, EmptyListException,
             NotAListException, UnknownException {
         /*
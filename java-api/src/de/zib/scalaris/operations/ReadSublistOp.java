@@ -26,9 +26,11 @@ import com.ericsson.otp.erlang.OtpErlangString;
 import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.NotAListException;
 import de.zib.scalaris.NotFoundException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
@@ -160,6 +162,11 @@ public class ReadSublistOp extends PartialReadOp {
                         CommonErlangObjects.sublistAtom, start, length }) });
     }
 
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
+        return getErlang(compressed);
+    }
+
     public Result processResult() throws NotFoundException, NotAListException,
             UnknownException {
         /*
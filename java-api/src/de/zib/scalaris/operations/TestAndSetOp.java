@@ -22,9 +22,11 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.AbortException;
 import de.zib.scalaris.CommonErlangObjects;
+import de.zib.scalaris.CompressionPolicy;
 import de.zib.scalaris.ErlangValue;
 import de.zib.scalaris.KeyChangedException;
 import de.zib.scalaris.NotFoundException;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
@@ -32,13 +34,25 @@ import de.zib.scalaris.UnknownException;
  * currently stored value is {@link #oldValue}.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.14
+ * @version 3.21
  * @since 3.14
  */
 public class TestAndSetOp implements TransactionOperation, TransactionSingleOpOperation {
     final protected OtpErlangString key;
     final protected OtpErlangObject oldValue;
     final protected OtpErlangObject newValue;
+    /**
+     * The old value given to {@link #TestAndSetOp(String, Object, Object)}
+     * (<tt>null</tt> otherwise) which is converted again if the request list
+     * uses another {@link StringEncoding}.
+     */
+    final protected Object javaOldValue;
+    /**
+     * The new value given to {@link #TestAndSetOp(String, Object, Object)}
+     * (<tt>null</tt> otherwise) which is converted again if the request list
+     * uses another {@link StringEncoding}.
+     */
+    final protected Object javaNewValue;
     protected OtpErlangObject resultRaw = null;
     protected boolean resultCompressed = false;
 
@@ -56,6 +70,8 @@ public class TestAndSetOp implements TransactionOperation, TransactionSingleOpOp
         this.key = key;
         this.oldValue = oldValue;
         this.newValue = newValue;
+        this.javaOldValue = null;
+        this.javaNewValue = null;
     }
 
     /**
@@ -72,13 +88,43 @@ public class TestAndSetOp implements TransactionOperation, TransactionSingleOpOp
         this.key = new OtpErlangString(key);
         this.oldValue = ErlangValue.convertToErlang(oldValue);
         this.newValue = ErlangValue.convertToErlang(newValue);
+        this.javaOldValue = oldValue;
+        this.javaNewValue = newValue;
     }
 
     public OtpErlangObject getErlang(final boolean compressed) {
+        return getErlang(compressed, null, StringEncoding.LIST);
+    }
+
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
         return new OtpErlangTuple(new OtpErlangObject[] {
                 CommonErlangObjects.testAndSetAtom, key,
-                compressed ? CommonErlangObjects.encode(oldValue) : oldValue,
-                compressed ? CommonErlangObjects.encode(newValue) : newValue });
+                CommonErlangObjects.encodeValue(
+                        convert(oldValue, javaOldValue, stringEncoding), compressed, policy),
+                CommonErlangObjects.encodeValue(
+                        convert(newValue, javaNewValue, stringEncoding), compressed, policy) });
+    }
+
+    /**
+     * Gets a value with the given string encoding.
+     *
+     * @param value
+     *            the converted value
+     * @param javaValue
+     *            the value given to the constructor (<tt>null</tt> if it was
+     *            an Erlang value)
+     * @param stringEncoding
+     *            the encoding of string values
+     *
+     * @return the value
+     */
+    private static OtpErlangObject convert(final OtpErlangObject value,
+            final Object javaValue, final StringEncoding stringEncoding) {
+        if ((javaValue == null) || (stringEncoding == StringEncoding.LIST)) {
+            return value;
+        }
+        return ErlangValue.convertToErlang(javaValue, stringEncoding);
     }
 
     public OtpErlangString getKey() {
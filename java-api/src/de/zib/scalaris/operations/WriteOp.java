@@ -21,19 +21,27 @@ import com.ericsson.otp.erlang.OtpErlangTuple;
 
 import de.zib.scalaris.AbortException;
 import de.zib.scalaris.CommonErlangObjects;
-import de.zib.scalaris.ErlangValue;
+import de.zib.scalaris.CompressionPolicy;
+import de.zib.scalaris.ErlangTermEncoder;
+import de.zib.scalaris.StringEncoding;
 import de.zib.scalaris.UnknownException;
 
 /**
  * An operation writing a value.
  *
  * @author Nico Kruber, kruber@zib.de
- * @version 3.14
+ * @version 3.21
  * @since 3.14
  */
 public class WriteOp implements TransactionOperation, TransactionSingleOpOperation {
     final protected OtpErlangString key;
     final protected OtpErlangObject value;
+    /**
+     * The value given to {@link #WriteOp(String, Object)} (<tt>null</tt>
+     * otherwise) which is converted again if the request list uses another
+     * {@link StringEncoding}.
+     */
+    final protected Object javaValue;
     protected OtpErlangObject resultRaw = null;
     protected boolean resultCompressed = false;
 
@@ -48,6 +56,7 @@ public class WriteOp implements TransactionOperation, TransactionSingleOpOperati
     public WriteOp(final OtpErlangString key, final OtpErlangObject value) {
         this.key = key;
         this.value = value;
+        this.javaValue = null;
     }
     /**
      * Constructor
@@ -59,13 +68,34 @@ public class WriteOp implements TransactionOperation, TransactionSingleOpOperati
      */
     public <T> WriteOp(final String key, final T value) {
         this.key = new OtpErlangString(key);
-        this.value = ErlangValue.convertToErlang(value);
+        this.value = ErlangTermEncoder.encodeValue(value);
+        this.javaValue = value;
     }
 
     public OtpErlangObject getErlang(final boolean compressed) {
+        return getErlang(compressed, null, StringEncoding.LIST);
+    }
+
+    public OtpErlangObject getErlang(final boolean compressed,
+            final CompressionPolicy policy, final StringEncoding stringEncoding) {
         return new OtpErlangTuple(new OtpErlangObject[] {
                 CommonErlangObjects.writeAtom, key,
-                compressed ? CommonErlangObjects.encode(value) : value });
+                CommonErlangObjects.encodeValue(getValue(stringEncoding), compressed, policy) });
+    }
+
+    /**
+     * Gets the value to write with the given string encoding.
+     *
+     * @param stringEncoding
+     *            the encoding of string values
+     *
+     * @return the value
+     */
+    private OtpErlangObject getValue(final StringEncoding stringEncoding) {
+        if ((javaValue == null) || (stringEncoding == StringEncoding.LIST)) {
+            return value;
+        }
+        return ErlangTermEncoder.encodeValue(javaValue, stringEncoding);
     }
 
     public OtpErlangString getKey() {
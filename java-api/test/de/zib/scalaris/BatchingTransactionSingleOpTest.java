@@ -0,0 +1,194 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link BatchingTransactionSingleOp} class (using a
+ * {@link FakeConnection} instead of Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class BatchingTransactionSingleOpTest {
+    /**
+     * Starts a thread whose read is blocked in the connection, i.e. another
+     * thread using the transaction object, so that the batch window is used.
+     *
+     * @param tx
+     *            the transaction object
+     * @param conn
+     *            the connection of <tt>tx</tt>
+     *
+     * @return the latch releasing the blocked read
+     */
+    private static CountDownLatch startBlockedCaller(final BatchingTransactionSingleOp tx,
+            final FakeConnection conn) throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final int rpcs = conn.rpcs.get();
+        conn.release = release;
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    tx.read("blocked");
+                } catch (final Exception e) {
+                }
+            }
+        }.start();
+        while (conn.rpcs.get() == rpcs) {
+            Thread.sleep(1);
+        }
+        // only this RPC is blocked
+        conn.release = null;
+        return release;
+    }
+
+    /**
+     * Reads "key0", "key1", ... from the given number of threads at once.
+     *
+     * @return the read values or the string representations of the
+     *         exceptions thrown by the reads
+     */
+    private static String[] readConcurrently(final BatchingTransactionSingleOp tx,
+            final int count) throws InterruptedException {
+        final String[] values = new String[count];
+        final Thread[] threads = new Thread[count];
+        for (int i = 0; i < threads.length; ++i) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        values[n] = tx.read("key" + n).stringValue();
+                    } catch (final Exception e) {
+                        values[n] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join(5000);
+        }
+        return values;
+    }
+
+    /**
+     * Test method for
+     * {@link BatchingTransactionSingleOp#req_list(TransactionSingleOp.RequestList)}
+     * with concurrent reads.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testConcurrentReads() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final BatchingTransactionSingleOp tx = new BatchingTransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setMaxBatchSize(8);
+        tx.setBatchWindow(10, TimeUnit.SECONDS);
+
+        final CountDownLatch blocked = startBlockedCaller(tx, conn);
+        final String[] values = readConcurrently(tx, 8);
+        blocked.countDown();
+
+        // the batch is full after 8 operations -> sent before the window ends
+        assertEquals(2, conn.rpcs.get());
+        assertEquals(2, tx.getBatches());
+        assertEquals(9, tx.getBatchedRequests());
+        assertEquals(9, tx.getBatchedOps());
+        for (int i = 0; i < values.length; ++i) {
+            assertEquals("key" + i, values[i]);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link BatchingTransactionSingleOp#req_list(TransactionSingleOp.RequestList)}
+     * with a batch failing with a {@link RuntimeException} (all requests of
+     * the batch must fail with it).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testFailure() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final BatchingTransactionSingleOp tx = new BatchingTransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setMaxBatchSize(4);
+        tx.setBatchWindow(10, TimeUnit.SECONDS);
+
+        final CountDownLatch blocked = startBlockedCaller(tx, conn);
+        conn.failure = new IllegalStateException("failure");
+        final String[] values = readConcurrently(tx, 4);
+        blocked.countDown();
+
+        assertEquals(2, conn.rpcs.get());
+        for (final String value : values) {
+            assertEquals(conn.failure.toString(), value);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link BatchingTransactionSingleOp#setBatchWindow(long, TimeUnit)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testBatchWindow() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final BatchingTransactionSingleOp tx = new BatchingTransactionSingleOp(conn);
+        tx.setCompressed(false);
+
+        // a single thread does not wait for others
+        tx.setBatchWindow(10, TimeUnit.SECONDS);
+        long timeAtStart = System.nanoTime();
+        assertEquals("key", tx.read("key").stringValue());
+        assertTrue(System.nanoTime() - timeAtStart < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, conn.rpcs.get());
+
+        // ... but does if other threads use the object
+        tx.setBatchWindow(20, TimeUnit.MILLISECONDS);
+        final CountDownLatch blocked = startBlockedCaller(tx, conn);
+        timeAtStart = System.nanoTime();
+        assertEquals("key", tx.read("key").stringValue());
+        assertTrue(System.nanoTime() - timeAtStart >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(3, conn.rpcs.get());
+        blocked.countDown();
+
+        // large request lists are sent directly
+        tx.setMaxBatchSize(2);
+        final TransactionSingleOp.RequestList req = new TransactionSingleOp.RequestList();
+        req.addRead("a").addRead("b");
+        assertEquals("b", tx.req_list(req).processReadAt(1).stringValue());
+        assertEquals(3, tx.getBatches());
+        assertEquals(4, conn.rpcs.get());
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link CachingTransactionSingleOp} class (using a
+ * {@link FakeConnection} instead of Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class CachingTransactionSingleOpTest {
+    /**
+     * Test method for {@link CachingTransactionSingleOp#read(String)} and
+     * {@link CachingTransactionSingleOp#write(String, Object)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadWrite() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final NearCache cache = new NearCache(100, 1, TimeUnit.HOURS);
+        final CachingTransactionSingleOp tx = new CachingTransactionSingleOp(conn, cache);
+        tx.setCompressed(false);
+
+        assertEquals("a", tx.read("a").stringValue());
+        assertEquals("a", tx.read("a").stringValue());
+        assertEquals(1, conn.rpcs.get());
+        assertEquals(1, cache.getHits());
+
+        tx.write("a", "value");
+        assertEquals(2, conn.rpcs.get());
+        assertEquals("a", tx.read("a").stringValue());
+        assertEquals(3, conn.rpcs.get());
+    }
+
+    /**
+     * Test method for
+     * {@link CachingTransactionSingleOp#req_list(TransactionSingleOp.RequestList)}
+     * with cached and uncached reads.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqList() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final NearCache cache = new NearCache(100, 1, TimeUnit.HOURS);
+        final CachingTransactionSingleOp tx = new CachingTransactionSingleOp(conn, cache);
+        tx.setCompressed(false);
+
+        assertEquals("a", tx.read("a").stringValue());
+        final TransactionSingleOp.RequestList req = new TransactionSingleOp.RequestList();
+        req.addRead("a").addRead("b").addRead("a");
+        final TransactionSingleOp.ResultList result = tx.req_list(req);
+        assertEquals(2, conn.rpcs.get());
+        assertEquals(2, conn.ops.get());
+        assertEquals("a", result.processReadAt(0).stringValue());
+        assertEquals("b", result.processReadAt(1).stringValue());
+        assertEquals("a", result.processReadAt(2).stringValue());
+
+        // all cached -> no RPC
+        tx.req_list(req);
+        assertEquals(2, conn.rpcs.get());
+    }
+
+    /**
+     * Test method for
+     * {@link CachingTransactionSingleOp#req_list(TransactionSingleOp.RequestList)}
+     * with reads and writes of different keys (writes only prevent caching
+     * the keys they write).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqListReadWrite() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final NearCache cache = new NearCache(100, 1, TimeUnit.HOURS);
+        final CachingTransactionSingleOp tx = new CachingTransactionSingleOp(conn, cache);
+        tx.setCompressed(false);
+
+        final TransactionSingleOp.RequestList req = new TransactionSingleOp.RequestList();
+        req.addRead("b").addWrite("a", "value").addRead("a");
+        tx.req_list(req);
+        assertEquals(1, conn.rpcs.get());
+        assertEquals("b", tx.read("b").stringValue());
+        assertEquals(1, conn.rpcs.get());
+        assertEquals("a", tx.read("a").stringValue());
+        assertEquals(2, conn.rpcs.get());
+    }
+}
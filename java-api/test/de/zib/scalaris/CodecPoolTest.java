@@ -0,0 +1,155 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpExternal;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Test cases for the {@link CodecPool} class.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class CodecPoolTest {
+    private static byte[] createText(final int words) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; ++i) {
+            sb.append("word").append(i % 100).append(' ');
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * Test method for {@link CodecPool#gzip(byte[])} and
+     * {@link CodecPool#gunzip(byte[])} (compatibility with the JDK's GZIP
+     * streams).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testGzip() throws Exception {
+        final CodecPool pool = CodecPool.get();
+        for (final byte[] data : new byte[][] { new byte[0], createText(10), createText(10000) }) {
+            // pool -> JDK
+            final GZIPInputStream gis = new GZIPInputStream(
+                    new ByteArrayInputStream(pool.gzip(data)));
+            final ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+            final byte[] buf = new byte[256];
+            int read;
+            while ((read = gis.read(buf)) >= 0) {
+                unpacked.write(buf, 0, read);
+            }
+            gis.close();
+            assertArrayEquals(data, unpacked.toByteArray());
+
+            // JDK -> pool
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final GZIPOutputStream gos = new GZIPOutputStream(bos);
+            gos.write(data);
+            gos.close();
+            assertArrayEquals(data, pool.gunzip(bos.toByteArray()));
+        }
+    }
+
+    /**
+     * Test method for {@link CodecPool#acquireBuffer()}.
+     */
+    @Test
+    public final void testBuffers() {
+        final CodecPool pool = CodecPool.get();
+        final CodecPool.Buffer buf1 = pool.acquireBuffer();
+        buf1.write_string("test");
+        pool.releaseBuffer(buf1);
+        final CodecPool.Buffer buf2 = pool.acquireBuffer();
+        assertSame(buf1, buf2);
+        assertEquals(0, buf2.size());
+        pool.releaseBuffer(buf2);
+    }
+
+    /**
+     * Test method for {@link CommonErlangObjects#encode(OtpErlangObject)} and
+     * {@link CommonErlangObjects#decode(OtpErlangObject)} using pooled codecs.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testEncodeDecode() throws Exception {
+        final OtpErlangObject value = new OtpErlangString(new String(createText(1000)));
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(value, CommonErlangObjects.decode(CommonErlangObjects.encode(value)));
+        }
+
+        // compatible with JInterface's compression
+        final OtpOutputStream oos = new OtpOutputStream();
+        oos.write1(OtpExternal.versionTag);
+        oos.write_compressed(value);
+        final OtpErlangBinary jinterface = new OtpErlangBinary(oos.toByteArray());
+        assertEquals(value, CommonErlangObjects.decode(jinterface));
+        assertEquals(jinterface, CommonErlangObjects.encode(value));
+    }
+
+    /**
+     * Test method for {@link CommonErlangObjects#decode(OtpErlangObject)} and
+     * {@link CommonErlangObjects#decodeLazily(OtpErlangObject)} with
+     * compressed terms of an invalid size.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDecodeInvalidSize() throws Exception {
+        final byte[] compressed = ((OtpErlangBinary) CommonErlangObjects.encode(
+                new OtpErlangString(new String(createText(100))))).binaryValue();
+        for (final int size : new int[] { -1, Integer.MIN_VALUE, 10 }) {
+            final byte[] bin = compressed.clone();
+            bin[2] = (byte) (size >>> 24);
+            bin[3] = (byte) (size >>> 16);
+            bin[4] = (byte) (size >>> 8);
+            bin[5] = (byte) size;
+            try {
+                CommonErlangObjects.decode(new OtpErlangBinary(bin));
+                fail("expected an OtpErlangDecodeException");
+            } catch (final OtpErlangDecodeException e) {
+            }
+            try {
+                CommonErlangObjects.decodeLazily(new OtpErlangBinary(bin));
+                fail("expected an OtpErlangDecodeException");
+            } catch (final OtpErlangDecodeException e) {
+            }
+        }
+    }
+}
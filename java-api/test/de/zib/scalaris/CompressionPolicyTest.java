@@ -0,0 +1,165 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpExternal;
+
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Test cases for the {@link CompressionPolicy} class.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class CompressionPolicyTest {
+    /**
+     * Checks whether the given encoded value is compressed.
+     *
+     * @param encoded
+     *            the encoded value
+     *
+     * @return <tt>true</tt> if compressed
+     */
+    private static boolean isCompressed(final OtpErlangBinary encoded) {
+        return encoded.binaryValue()[1] == (byte) OtpExternal.compressedTag;
+    }
+
+    /**
+     * Test method for {@link CompressionPolicy#encode(OtpErlangObject)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testEncode() throws Exception {
+        final CompressionPolicy policy = new CompressionPolicy(128, Deflater.BEST_SPEED);
+
+        final OtpErlangObject small = new OtpErlangString("small");
+        final OtpErlangBinary smallEnc = policy.encode(small);
+        assertTrue(!isCompressed(smallEnc));
+        assertEquals(small, CommonErlangObjects.decode(smallEnc));
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            sb.append("text ");
+        }
+        final OtpErlangObject large = new OtpErlangString(sb.toString());
+        final OtpErlangBinary largeEnc = policy.encode(large);
+        assertTrue(isCompressed(largeEnc));
+        assertEquals(large, CommonErlangObjects.decode(largeEnc));
+
+        // incompressible values are not sent compressed
+        final byte[] random = new byte[1000];
+        new Random(0).nextBytes(random);
+        final OtpErlangObject randomBin = new OtpErlangBinary(random);
+        final OtpErlangBinary randomEnc = policy.encode(randomBin);
+        assertTrue(!isCompressed(randomEnc));
+        assertEquals(randomBin, CommonErlangObjects.decode(randomEnc));
+
+        assertEquals(3, policy.getValues());
+        assertEquals(1, policy.getCompressedValues());
+        assertEquals(0, policy.getSampledOut());
+        assertTrue(policy.getBytesSaved() > 4000);
+    }
+
+    /**
+     * Test method for {@link CompressionPolicy#setSampling(int, double)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testSampling() throws Exception {
+        final CompressionPolicy policy = new CompressionPolicy();
+        policy.setSampling(256, 0.1);
+        final byte[] random = new byte[10000];
+        new Random(0).nextBytes(random);
+        final OtpErlangObject value = new OtpErlangBinary(random);
+        assertTrue(!isCompressed(policy.encode(value)));
+        assertEquals(1, policy.getSampledOut());
+        assertEquals(0, policy.getBytesSaved());
+    }
+
+    /**
+     * Test method for {@link CompressionPolicy#setVerdict(int, int)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testVerdict() throws Exception {
+        final CompressionPolicy policy = new CompressionPolicy();
+        policy.setSampling(256, 0.1);
+        policy.setVerdict(2, 4);
+        final byte[] random = new byte[10000];
+        new Random(0).nextBytes(random);
+        final OtpErlangObject randomValue = new OtpErlangBinary(random);
+        final OtpErlangObject zeroValue = new OtpErlangBinary(new byte[10000]);
+
+        // two incompressible samples -> the next four values are not sampled
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(!isCompressed(policy.encode(randomValue)));
+        }
+        assertEquals(5, policy.getSampledOut());
+        assertEquals(3, policy.getSamplesSkipped());
+        // ... not even if they were compressible
+        assertTrue(!isCompressed(policy.encode(zeroValue)));
+        assertEquals(4, policy.getSamplesSkipped());
+
+        // a verdict to compress is dropped by a value not compressing well
+        policy.setVerdict(2, 3);
+        policy.resetStats();
+        assertTrue(isCompressed(policy.encode(zeroValue)));
+        assertTrue(isCompressed(policy.encode(zeroValue)));
+        assertTrue(!isCompressed(policy.encode(randomValue)));
+        assertEquals(1, policy.getSamplesSkipped());
+        assertTrue(!isCompressed(policy.encode(randomValue)));
+        assertEquals(1, policy.getSamplesSkipped());
+        assertEquals(1, policy.getSampledOut());
+    }
+
+    /**
+     * Test method for
+     * {@link AbstractTransaction#setCompressed(boolean, CompressionPolicy)}
+     * (via {@link RequestList#getErlangReqList(boolean, CompressionPolicy)}).
+     */
+    @Test
+    public final void testRequestList() {
+        final CompressionPolicy policy = new CompressionPolicy();
+        final TransactionSingleOp.RequestList req = new TransactionSingleOp.RequestList();
+        req.addOp(new WriteOp("a", "value")).addOp(new WriteOp("b", 1));
+        req.getErlangReqList(true, policy);
+        // integers are never encoded
+        assertEquals(1, policy.getValues());
+        assertEquals(0, policy.getCompressedValues());
+        req.getErlangReqList(true, null);
+        assertEquals(1, policy.getValues());
+    }
+}
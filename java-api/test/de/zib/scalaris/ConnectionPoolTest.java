@@ -0,0 +1,234 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link ConnectionPool} class (using connections which do
+ * not connect to Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class ConnectionPoolTest {
+    /**
+     * Connection factory creating connections which are not connected to any
+     * node.
+     */
+    private static class FakeConnectionFactory extends ConnectionFactory {
+        int closed = 0;
+
+        public FakeConnectionFactory() {
+            super(new Properties());
+        }
+
+        @Override
+        public Connection createConnection(final String clientName,
+                final boolean clientNameAppendUUID,
+                final ConnectionPolicy connectionPolicy)
+                throws ConnectionException {
+            return new Connection(connectionPolicy) {
+                @Override
+                public void close() {
+                    synchronized (FakeConnectionFactory.this) {
+                        ++closed;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Test method for {@link ConnectionPool#getConnection()} and
+     * {@link ConnectionPool#releaseConnection(Connection)}.
+     *
+     * @throws ConnectionException
+     *             if creating a connection fails
+     */
+    @Test
+    public final void testGetReleaseConnection() throws ConnectionException {
+        final ConnectionPool pool = new ConnectionPool(new FakeConnectionFactory(), 2);
+        final Connection c1 = pool.getConnection();
+        final Connection c2 = pool.getConnection();
+        assertNotNull(c1);
+        assertNotNull(c2);
+        assertNull(pool.getConnection());
+        assertEquals(2, pool.getCheckedOut());
+        assertEquals(2, pool.getCreations());
+
+        pool.releaseConnection(c1);
+        assertEquals(1, pool.getIdle());
+        assertSame(c1, pool.getConnection());
+        assertEquals(2, pool.getCreations());
+        long borrows = 0;
+        for (final long bucket : pool.getBorrowLatencyHistogram()) {
+            borrows += bucket;
+        }
+        assertEquals(3, borrows);
+    }
+
+    /**
+     * Test method for {@link ConnectionPool#getConnection(long)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testGetConnectionTimeout() throws Exception {
+        final ConnectionPool pool = new ConnectionPool(new FakeConnectionFactory(), 1);
+        final Connection c1 = pool.getConnection(100);
+        assertNotNull(c1);
+
+        final long timeAtStart = System.currentTimeMillis();
+        assertNull(pool.getConnection(100));
+        final long waited = System.currentTimeMillis() - timeAtStart;
+        assertTrue(waited >= 100);
+        assertTrue(waited < 1000);
+
+        final Connection[] result = new Connection[1];
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = pool.getConnection(0);
+                } catch (final ConnectionException e) {
+                }
+            }
+        };
+        waiter.start();
+        while (pool.getWaiters() == 0) {
+            Thread.sleep(1);
+        }
+        pool.releaseConnection(c1);
+        waiter.join(1000);
+        assertSame(c1, result[0]);
+    }
+
+    /**
+     * Test method for {@link ConnectionPool#getConnection()} not barging past
+     * threads waiting in {@link ConnectionPool#getConnection(long)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testGetConnectionFairness() throws Exception {
+        final ConnectionPool pool = new ConnectionPool(new FakeConnectionFactory(), 1);
+        final Connection c1 = pool.getConnection();
+        final Connection[] result = new Connection[1];
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = pool.getConnection(5000);
+                } catch (final ConnectionException e) {
+                }
+            }
+        };
+        waiter.start();
+        while (pool.getWaiters() == 0) {
+            Thread.sleep(1);
+        }
+        // a released permit is handed to the waiting thread
+        pool.releaseConnection(c1);
+        assertNull(pool.getConnection());
+        waiter.join(1000);
+        assertSame(c1, result[0]);
+    }
+
+    /**
+     * Test method for {@link ConnectionPool#startMaintenance(long, TimeUnit)}
+     * not keeping the pool alive.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testMaintenanceThread() throws Exception {
+        ConnectionPool pool = new ConnectionPool(new FakeConnectionFactory(), 1);
+        pool.startMaintenance(10, TimeUnit.MILLISECONDS);
+        final Thread thread = findThread("scalaris-pool-maintenance");
+        assertNotNull(thread);
+        assertTrue(thread.isDaemon());
+
+        final WeakReference<ConnectionPool> ref = new WeakReference<ConnectionPool>(pool);
+        pool = null;
+        for (int i = 0; (i < 500) && ((ref.get() != null) || thread.isAlive()); ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertFalse(thread.isAlive());
+    }
+
+    private static Thread findThread(final String name) {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Test method for {@link ConnectionPool#setMaxIdle(int)},
+     * {@link ConnectionPool#maintain()} and
+     * {@link ConnectionPool#closeAllBut(java.util.Collection)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testEviction() throws Exception {
+        final FakeConnectionFactory cf = new FakeConnectionFactory();
+        final ConnectionPool pool = new ConnectionPool(cf, 0);
+        pool.setMaxIdle(2);
+        pool.setMinIdle(1);
+        pool.setIdleTimeout(1);
+        final Connection c1 = pool.getConnection();
+        final Connection c2 = pool.getConnection();
+        final Connection c3 = pool.getConnection();
+        pool.releaseConnection(c1);
+        pool.releaseConnection(c2);
+        pool.releaseConnection(c3);
+        assertEquals(2, pool.getIdle());
+        assertEquals(1, cf.closed);
+
+        Thread.sleep(10);
+        pool.maintain();
+        assertEquals(1, pool.getIdle());
+        assertEquals(2, pool.getEvictions());
+
+        pool.closeAllBut(new HashSet<PeerNode>());
+        assertEquals(0, pool.getIdle());
+        assertEquals(3, cf.closed);
+    }
+}
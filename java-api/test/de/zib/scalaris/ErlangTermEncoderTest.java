@@ -0,0 +1,170 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Test cases for the {@link ErlangTermEncoder} class.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class ErlangTermEncoderTest {
+    /**
+     * Simple bean with a nested list.
+     */
+    public static class Page {
+        private String title = "";
+        private int revisions = 0;
+        private boolean redirect = false;
+        private List<String> categories = new ArrayList<String>();
+
+        public String getTitle() {
+            return title;
+        }
+        public void setTitle(final String title) {
+            this.title = title;
+        }
+        public int getRevisions() {
+            return revisions;
+        }
+        public void setRevisions(final int revisions) {
+            this.revisions = revisions;
+        }
+        public boolean isRedirect() {
+            return redirect;
+        }
+        public void setRedirect(final boolean redirect) {
+            this.redirect = redirect;
+        }
+        public List<String> getCategories() {
+            return categories;
+        }
+        public void setCategories(final List<String> categories) {
+            this.categories = categories;
+        }
+    }
+
+    /**
+     * Encodes the given object with JInterface.
+     *
+     * @param value
+     *            the value to encode
+     *
+     * @return the encoded term (without version tag)
+     */
+    private static byte[] otpEncode(final OtpErlangObject value) {
+        final OtpOutputStream oos = new OtpOutputStream();
+        oos.write_any(value);
+        return oos.toByteArray();
+    }
+
+    /**
+     * Checks that the given value is encoded like its
+     * {@link ErlangValue#convertToErlang(Object)} representation.
+     *
+     * @param encoder
+     *            the encoder to use
+     * @param value
+     *            the value to encode
+     */
+    private static void checkEncode(final ErlangTermEncoder encoder, final Object value) {
+        final OtpErlangObject expected = ErlangValue.convertToErlang(value);
+        assertArrayEquals(otpEncode(expected), encoder.encode(value));
+    }
+
+    /**
+     * Test method for {@link ErlangTermEncoder#encode(Object)}.
+     */
+    @Test
+    public final void testEncode() {
+        final ErlangTermEncoder encoder = new ErlangTermEncoder();
+        checkEncode(encoder, true);
+        checkEncode(encoder, 42);
+        checkEncode(encoder, Long.MIN_VALUE);
+        checkEncode(encoder, BigInteger.TEN.pow(30));
+        checkEncode(encoder, 1.5);
+        checkEncode(encoder, "");
+        checkEncode(encoder, "text");
+        checkEncode(encoder, "\u00fcnicode \u20ac");
+        checkEncode(encoder, new byte[] { 1, 2, 3 });
+        checkEncode(encoder, new ArrayList<String>());
+        checkEncode(encoder, Arrays.asList("a", "b", "c"));
+        checkEncode(encoder, Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3L)));
+
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("int", 1);
+        map.put("string", "value");
+        map.put("null", null);
+        map.put("bool", true);
+        map.put("list", Arrays.asList(1, "two", false));
+        map.put("empty", new ArrayList<Object>());
+        final Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("double", 2.5);
+        map.put("nested", nested);
+        checkEncode(encoder, map);
+
+        final Page page = new Page();
+        page.setTitle("Main Page");
+        page.setRevisions(3);
+        page.setCategories(Arrays.asList("a", "b"));
+        checkEncode(encoder, page);
+    }
+
+    /**
+     * Test method for {@link ErlangTermEncoder#encodeValue(Object)} and
+     * {@link EncodedTerm#toBinary(boolean)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testEncodeValue() throws Exception {
+        final List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 100; ++i) {
+            list.add("element " + i);
+        }
+        final OtpErlangObject expected = ErlangValue.convertToErlang(list);
+        final OtpErlangObject encoded = ErlangTermEncoder.encodeValue(list);
+        assertTrue(encoded instanceof EncodedTerm);
+        assertEquals(encoded, expected);
+        assertEquals(expected.hashCode(), encoded.hashCode());
+
+        // compressed values as sent to Scalaris decode to the same term
+        assertEquals(expected, CommonErlangObjects.decode(CommonErlangObjects.encode(encoded)));
+        assertEquals(expected, CommonErlangObjects.decode(((EncodedTerm) encoded).toBinary(false)));
+
+        // simple values are not encoded
+        assertEquals(ErlangValue.convertToErlang("text"), ErlangTermEncoder.encodeValue("text"));
+    }
+}
@@ -19,11 +19,14 @@ import static org.junit.Assert.*;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.LinkedList;
 
@@ -643,6 +646,54 @@ public class ErlangValueTest {
         assertEquals(eVal2, eVal);
     }
 
+    /**
+     * Test method for {@link de.zib.scalaris.ErlangValue#jsonView()} and
+     * {@link de.zib.scalaris.ErlangValue#jsonView(java.util.Collection)}.
+     *
+     * @throws Exception
+     *             if a test with a random map of mixed objects failed
+     */
+    @Test
+    public final void testJsonView() throws Exception {
+        final Random random = new Random();
+        for (int i = 0; i < 1000; ++i) {
+            final Map<String, Object> value = getRandomMapRecursive(random, random.nextInt(10), 3, false);
+            final JsonView view = new ErlangValue(value).jsonView();
+            assertEquals(value.size(), view.size());
+            for (final Entry<String, Object> entry : value.entrySet()) {
+                assertTrue(view.has(entry.getKey()));
+                assertEquals(entry.getValue(), view.get(entry.getKey()));
+            }
+            compareMap(value, view.toMap());
+            // encoded values:
+            final ErlangValue encoded = new ErlangValue(ErlangTermEncoder.encodeValue(value));
+            compareMap(value, encoded.jsonView().toMap());
+        }
+
+        final Map<String, Object> value = new LinkedHashMap<String, Object>();
+        value.put("a", "1");
+        value.put("b", 2);
+        value.put("c", null);
+        value.put("d", new ArrayList<Object>());
+        final JsonView view = new ErlangValue(value).jsonView(Arrays.asList("b", "c", "x"));
+        assertEquals(2, view.size());
+        assertFalse(view.has("a"));
+        assertNull(view.get("a"));
+        assertEquals(2, view.get("b"));
+        assertTrue(view.has("c"));
+        assertNull(view.get("c"));
+        assertFalse(view.has("x"));
+        assertNull(view.getValue("x"));
+        assertEquals(new OtpErlangLong(2), view.getValue("b").value());
+        assertEquals("1", new ErlangValue(value).jsonView().getString("a"));
+        try {
+            new ErlangValue("no JSON").jsonView();
+            fail("expected ClassCastException");
+        } catch (final ClassCastException e) {
+            // expected
+        }
+    }
+
     private final void compareMap(final Map<String, Object> expected, final Map<String, Object> actual) {
         assertEquals(expected.size(), actual.size());
         for (final Entry<String, Object> entry : expected.entrySet()) {
@@ -1122,4 +1173,130 @@ public class ErlangValueTest {
             compareScalarisJSON(value, new ErlangValue(actual));
         }
     }
+
+    /**
+     * Test method for {@link ErlangValue#listIterator(ErlangValue.ListElementConverter)}
+     * with decoded and (lazily decoded) encoded lists.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testListIterator() throws Exception {
+        final List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 1000; ++i) {
+            list.add("title" + i);
+        }
+        final ErlangValue decoded = new ErlangValue(list);
+        final OtpErlangObject encoded = CommonErlangObjects.decodeLazily(CommonErlangObjects.encode(decoded.value()));
+        assertTrue(encoded instanceof EncodedTerm);
+        final ErlangValue lazy = new ErlangValue(encoded);
+
+        for (final ErlangValue value : new ErlangValue[] {decoded, lazy}) {
+            final List<String> actual = new ArrayList<String>();
+            final Iterator<String> iter = value.listIterator(new ErlangValue.StringListElementConverter());
+            while (iter.hasNext()) {
+                actual.add(iter.next());
+            }
+            assertEquals(list, actual);
+            try {
+                iter.next();
+                fail("expected NoSuchElementException");
+            } catch (final NoSuchElementException e) {
+            }
+
+            // stopping early must not convert the remaining elements
+            final int[] converted = new int[] {0};
+            final Iterator<String> prefix = value.listIterator(new ErlangValue.ListElementConverter<String>() {
+                public String convert(final int i, final ErlangValue v) {
+                    ++converted[0];
+                    return v.stringValue();
+                }
+            });
+            assertEquals("title0", prefix.next());
+            assertEquals("title1", prefix.next());
+            assertEquals(2, converted[0]);
+        }
+        // the lazy value still behaves like a decoded one
+        assertEquals(list, lazy.stringListValue());
+        assertEquals(decoded, lazy);
+
+        // empty lists and strings (lists of small integers)
+        assertFalse(new ErlangValue(new ArrayList<String>()).listIterator().hasNext());
+        final Iterator<Long> chars = new ErlangValue(new OtpErlangString("ab")).listIterator(
+                new ErlangValue.ListElementConverter<Long>() {
+                    public Long convert(final int i, final ErlangValue v) { return v.longValue(); }
+                });
+        assertEquals(Long.valueOf('a'), chars.next());
+        assertEquals(Long.valueOf('b'), chars.next());
+        assertFalse(chars.hasNext());
+        try {
+            new ErlangValue(5).listIterator();
+            fail("expected ClassCastException");
+        } catch (final ClassCastException e) {
+        }
+    }
+
+    /**
+     * Test method for {@link ErlangValue#longArrayValue()},
+     * {@link ErlangValue#intArrayValue()} and
+     * {@link ErlangValue#doubleArrayValue()} with values created from
+     * primitive arrays, decoded lists and (lazily decoded) encoded lists.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testPrimitiveArrays() throws Exception {
+        final Random random = new Random();
+        final long[] longs = new long[1000];
+        final int[] ints = new int[1000];
+        final double[] doubles = new double[1000];
+        for (int i = 0; i < longs.length; ++i) {
+            longs[i] = random.nextLong();
+            ints[i] = random.nextInt();
+            doubles[i] = random.nextDouble();
+        }
+        final long[] smallLongs = new long[] {1, 2, 3, 255};
+
+        for (final long[] expected : new long[][] {longs, smallLongs, new long[0]}) {
+            final OtpErlangObject encoded = ErlangTermEncoder.encodeValue(expected);
+            final OtpErlangObject decoded = ((EncodedTerm) encoded).decode();
+            assertEquals(new ErlangValue(expected).value(), decoded);
+            final OtpErlangObject lazy = CommonErlangObjects.decodeLazily(CommonErlangObjects.encode(decoded));
+            for (final ErlangValue value : new ErlangValue[] {
+                    new ErlangValue(expected), new ErlangValue(encoded),
+                    new ErlangValue(decoded), new ErlangValue(lazy)}) {
+                assertArrayEquals(expected, value.longArrayValue());
+                final List<Long> expectedList = new ArrayList<Long>(expected.length);
+                for (final long l : expected) {
+                    expectedList.add(l);
+                }
+                assertEquals(expectedList, value.longListValue());
+            }
+        }
+        assertArrayEquals(new long[] {'a', 'b'}, new ErlangValue("ab").longArrayValue());
+
+        final OtpErlangObject encodedInts = ErlangTermEncoder.encodeValue(ints);
+        assertArrayEquals(ints, new ErlangValue(encodedInts).intArrayValue());
+        assertArrayEquals(ints, new ErlangValue(ints).intArrayValue());
+        assertArrayEquals(ints, new ErlangValue(((EncodedTerm) encodedInts).decode()).intArrayValue());
+
+        final OtpErlangObject encodedDoubles = ErlangTermEncoder.encodeValue(doubles);
+        assertArrayEquals(doubles, new ErlangValue(encodedDoubles).doubleArrayValue(), 0.0);
+        assertArrayEquals(doubles, new ErlangValue(doubles).doubleArrayValue(), 0.0);
+        assertArrayEquals(doubles, new ErlangValue(((EncodedTerm) encodedDoubles).decode()).doubleArrayValue(), 0.0);
+
+        // element too big
+        try {
+            new ErlangValue(longs).intArrayValue();
+            fail("expected ClassCastException");
+        } catch (final ClassCastException e) {
+        }
+        try {
+            new ErlangValue(ErlangTermEncoder.encodeValue(longs)).intArrayValue();
+            fail("expected ClassCastException");
+        } catch (final ClassCastException e) {
+        }
+    }
 }
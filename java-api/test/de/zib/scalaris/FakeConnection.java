@@ -0,0 +1,196 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * A {@link Connection} which answers RPCs itself instead of connecting to
+ * Scalaris.
+ *
+ * <p>
+ * By default, <tt>req_list_commit_each</tt> and <tt>req_list</tt> (with the
+ * transaction log of {@link #tlog(OtpErlangList)}) are simulated: each
+ * <tt>{read, Key}</tt> operation is answered with <tt>{ok, Key}</tt> (or
+ * <tt>{ok, </tt>{@link #readValue}<tt>}</tt> if set), any other operation
+ * with <tt>{ok}</tt>. Subclasses may change this per operation with
+ * {@link #answer(OtpErlangTuple)}. If a {@link FakeErlangNode.Handler} is
+ * given, all RPCs are passed to it instead.
+ * </p>
+ *
+ * <p>
+ * Before answering, an RPC waits for {@link #release} (if set) and
+ * {@link #delay} milliseconds, then throws {@link #failure} (if set).
+ * </p>
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+class FakeConnection extends Connection {
+    /**
+     * Number of RPCs received.
+     */
+    final AtomicInteger rpcs = new AtomicInteger(0);
+    /**
+     * Number of operations answered.
+     */
+    final AtomicInteger ops = new AtomicInteger(0);
+    /**
+     * Number of operations of each request list received (in order).
+     */
+    final List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    /**
+     * Arguments of the last RPC.
+     */
+    volatile OtpErlangList lastArgs = null;
+    /**
+     * Milliseconds to wait before answering.
+     */
+    volatile long delay = 0;
+    /**
+     * Latch to wait for before answering (<tt>null</tt> to not wait).
+     */
+    volatile CountDownLatch release = null;
+    /**
+     * Exception to throw instead of answering (a {@link ConnectionException}
+     * or a {@link RuntimeException}, <tt>null</tt> to answer).
+     */
+    volatile Exception failure = null;
+    /**
+     * Value to answer reads with (<tt>null</tt> to answer with the key).
+     */
+    volatile OtpErlangObject readValue = null;
+
+    private final FakeErlangNode.Handler handler;
+
+    /**
+     * Creates a connection simulating <tt>req_list_commit_each</tt> and
+     * <tt>req_list</tt>.
+     */
+    FakeConnection() {
+        this(null);
+    }
+
+    /**
+     * Creates a connection passing all RPCs to the given handler.
+     *
+     * @param handler
+     *            the handler to answer RPCs with (<tt>null</tt> to simulate
+     *            <tt>req_list_commit_each</tt> and <tt>req_list</tt>)
+     */
+    FakeConnection(final FakeErlangNode.Handler handler) {
+        super(new DefaultConnectionPolicy(new PeerNode("test@localhost")));
+        this.handler = handler;
+    }
+
+    @Override
+    public OtpErlangObject doRPC(final String mod, final String fun,
+            final OtpErlangList args) throws ConnectionException {
+        rpcs.incrementAndGet();
+        lastArgs = args;
+        try {
+            final CountDownLatch latch = release;
+            if (latch != null) {
+                latch.await();
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        } catch (final InterruptedException e) {
+            throw new ConnectionException(e);
+        }
+        final Exception error = failure;
+        if (error instanceof ConnectionException) {
+            throw (ConnectionException) error;
+        } else if (error != null) {
+            throw (RuntimeException) error;
+        }
+        if (handler != null) {
+            try {
+                return handler.call(mod, fun, args);
+            } catch (final ConnectionException e) {
+                throw e;
+            } catch (final RuntimeException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new ConnectionException(e);
+            }
+        }
+        final OtpErlangList reqs = (OtpErlangList) args.elementAt(args.arity() - 1);
+        requestSizes.add(reqs.arity());
+        final OtpErlangObject[] results = new OtpErlangObject[reqs.arity()];
+        for (int i = 0; i < results.length; ++i) {
+            ops.incrementAndGet();
+            results[i] = answer((OtpErlangTuple) reqs.elementAt(i));
+        }
+        if (fun.equals("req_list")) {
+            return new OtpErlangTuple(new OtpErlangObject[] {
+                    tlog(reqs), new OtpErlangList(results) });
+        }
+        return new OtpErlangList(results);
+    }
+
+    /**
+     * Answers a single operation.
+     *
+     * @param op
+     *            the operation, e.g. <tt>{read, Key}</tt>
+     *
+     * @return the result of the operation
+     *
+     * @throws ConnectionException
+     *             to let the whole RPC fail
+     */
+    protected OtpErlangObject answer(final OtpErlangTuple op) throws ConnectionException {
+        if (op.elementAt(0).equals(CommonErlangObjects.readAtom)) {
+            final OtpErlangObject value = readValue;
+            return new OtpErlangTuple(new OtpErlangObject[] {
+                    CommonErlangObjects.okAtom, (value == null) ? op.elementAt(1) : value });
+        }
+        return CommonErlangObjects.okTupleAtom;
+    }
+
+    /**
+     * Creates the transaction log returned by <tt>req_list</tt>.
+     *
+     * @param reqs
+     *            the request list
+     *
+     * @return the new transaction log (empty by default)
+     */
+    protected OtpErlangList tlog(final OtpErlangList reqs) {
+        return new OtpErlangList();
+    }
+
+    /**
+     * Gets the request list of the last RPC, i.e. its last argument.
+     *
+     * @return the request list
+     */
+    OtpErlangList getLastRequests() {
+        return (OtpErlangList) lastArgs.elementAt(lastArgs.arity() - 1);
+    }
+}
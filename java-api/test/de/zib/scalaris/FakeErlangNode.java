@@ -0,0 +1,293 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ericsson.otp.erlang.OtpEpmd;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+
+/**
+ * An Erlang node inside the test's JVM with a <tt>rex</tt> server answering
+ * RPCs using a {@link Handler} (for testing connections without connecting
+ * to Scalaris).
+ *
+ * All nodes (and {@link #createMultiplexingNode()}) register with a minimal
+ * in-process name server (epmd) which is started with the first node.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+class FakeErlangNode {
+    /**
+     * The cookie of all nodes.
+     */
+    static final String COOKIE = "test";
+
+    /**
+     * Answers RPCs.
+     */
+    static interface Handler {
+        /**
+         * Executes an RPC (in a thread of its own).
+         *
+         * @param mod
+         *            the module of the function to call
+         * @param fun
+         *            the function to call
+         * @param args
+         *            the function's arguments
+         *
+         * @return the reply or <tt>null</tt> to not reply at all
+         *
+         * @throws Exception
+         *             to not reply at all
+         */
+        OtpErlangObject call(String mod, String fun, OtpErlangList args) throws Exception;
+    }
+
+    private static final AtomicInteger nodeNr = new AtomicInteger(0);
+    private static Epmd epmd = null;
+
+    private final OtpNode node;
+    private final OtpMbox rex;
+    private final Handler handler;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final AtomicInteger calls = new AtomicInteger(0);
+
+    /**
+     * Creates a new node.
+     *
+     * @param handler
+     *            answers the RPCs to this node
+     *
+     * @throws IOException
+     *             if the node cannot be created
+     */
+    FakeErlangNode(final Handler handler) throws IOException {
+        startEpmd();
+        this.handler = handler;
+        node = new OtpNode("server" + nodeNr.getAndIncrement() + "@localhost", COOKIE);
+        rex = node.createMbox("rex");
+        final Thread server = new Thread() {
+            @Override
+            public void run() {
+                serve();
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /**
+     * Creates a new shared local node for {@link MultiplexedConnection}s.
+     *
+     * @return a new local node
+     *
+     * @throws IOException
+     *             if the node cannot be created
+     */
+    static MultiplexingNode createMultiplexingNode() throws IOException {
+        startEpmd();
+        return new MultiplexingNode("client" + nodeNr.getAndIncrement() + "@localhost", COOKIE);
+    }
+
+    private static synchronized void startEpmd() throws IOException {
+        if (epmd == null) {
+            epmd = new Epmd();
+            OtpEpmd.useEpmdPort(epmd.server.getLocalPort());
+        }
+    }
+
+    private void serve() {
+        while (true) {
+            final OtpErlangObject msg;
+            try {
+                msg = rex.receive();
+            } catch (final Exception e) {
+                return;
+            }
+            if (workers.isShutdown()) {
+                return;
+            } else if (!(msg instanceof OtpErlangTuple)) {
+                continue;
+            }
+            final OtpErlangTuple tuple = (OtpErlangTuple) msg;
+            if (tuple.elementAt(0).equals(MultiplexingNode.genCallAtom)) {
+                // {'$gen_call', {Pid, Ref}, {call, Mod, Fun, Args, user}}
+                final OtpErlangTuple from = (OtpErlangTuple) tuple.elementAt(1);
+                execute((OtpErlangTuple) tuple.elementAt(2), from);
+            } else if (tuple.elementAt(0).equals(MultiplexingNode.genCastAtom)) {
+                // {'$gen_cast', {cast, Mod, Fun, Args, user}}
+                execute((OtpErlangTuple) tuple.elementAt(1), null);
+            }
+        }
+    }
+
+    private void execute(final OtpErlangTuple request, final OtpErlangTuple from) {
+        calls.incrementAndGet();
+        workers.execute(new Runnable() {
+            public void run() {
+                try {
+                    final OtpErlangObject reply = handler.call(
+                            ((OtpErlangAtom) request.elementAt(1)).atomValue(),
+                            ((OtpErlangAtom) request.elementAt(2)).atomValue(),
+                            (OtpErlangList) request.elementAt(3));
+                    if ((reply != null) && (from != null)) {
+                        rex.send((OtpErlangPid) from.elementAt(0),
+                                new OtpErlangTuple(new OtpErlangObject[] {
+                                        from.elementAt(1), reply }));
+                    }
+                } catch (final Exception e) {
+                    // no reply
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the peer to connect to this node.
+     *
+     * @return the node's peer
+     */
+    PeerNode getPeer() {
+        return new PeerNode(node.node());
+    }
+
+    /**
+     * Gets the number of RPCs received.
+     *
+     * @return the number of calls and casts
+     */
+    int getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Shuts the node down (closing all links to it).
+     */
+    void close() {
+        workers.shutdownNow();
+        node.close();
+    }
+
+    /**
+     * Minimal name server, i.e. <tt>ALIVE2_REQ</tt> and
+     * <tt>PORT_PLEASE2_REQ</tt> of the epmd protocol.
+     */
+    private static class Epmd {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final ConcurrentHashMap<String, Integer> ports = new ConcurrentHashMap<String, Integer>();
+
+        Epmd() throws IOException {
+            final Thread acceptor = new Thread() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            handle(server.accept());
+                        } catch (final IOException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void handle(final Socket socket) {
+            final Thread handler = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final DataInputStream in = new DataInputStream(socket.getInputStream());
+                        // responses must be sent in a single packet
+                        final DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(socket.getOutputStream()));
+                        final byte[] req = new byte[in.readUnsignedShort()];
+                        in.readFully(req);
+                        final DataInputStream reqIn = new DataInputStream(new ByteArrayInputStream(req));
+                        final int tag = reqIn.readUnsignedByte();
+                        if (tag == 120) {
+                            // ALIVE2_REQ: port, type, protocol, versions, name, extra
+                            final int port = reqIn.readUnsignedShort();
+                            reqIn.skipBytes(6);
+                            final byte[] name = new byte[reqIn.readUnsignedShort()];
+                            reqIn.readFully(name);
+                            final String alive = new String(name, "ISO-8859-1");
+                            ports.put(alive, port);
+                            // ALIVE2_RESP: result, creation
+                            out.writeByte(121);
+                            out.writeByte(0);
+                            out.writeShort(1);
+                            out.flush();
+                            // registered until the node closes the socket
+                            while (in.read() >= 0) {
+                            }
+                            ports.remove(alive, port);
+                        } else if (tag == 122) {
+                            // PORT_PLEASE2_REQ: name
+                            final String alive = new String(req, 1, req.length - 1, "ISO-8859-1");
+                            final Integer port = ports.get(alive);
+                            out.writeByte(119);
+                            if (port == null) {
+                                out.writeByte(1);
+                            } else {
+                                // PORT2_RESP: result, port, type, protocol, versions, name, extra
+                                final byte[] name = alive.getBytes("ISO-8859-1");
+                                out.writeByte(0);
+                                out.writeShort(port);
+                                out.writeByte(72);
+                                out.writeByte(0);
+                                out.writeShort(5);
+                                out.writeShort(5);
+                                out.writeShort(name.length);
+                                out.write(name);
+                                out.writeShort(0);
+                            }
+                            out.flush();
+                        }
+                        socket.close();
+                    } catch (final IOException e) {
+                        // ignore
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Test cases for the {@link HedgingTransactionSingleOp} class (using
+ * {@link FakeConnection}s and {@link FakeErlangNode}s instead of Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class HedgingTransactionSingleOpTest {
+    /**
+     * Creates a connection answering after the given delay.
+     *
+     * @param delay
+     *            the delay in milliseconds
+     *
+     * @return the connection
+     */
+    private static FakeConnection delayedConnection(final long delay) {
+        final FakeConnection conn = new FakeConnection();
+        conn.delay = delay;
+        return conn;
+    }
+
+    /**
+     * Test method for {@link HedgingTransactionSingleOp#read(String)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testHedgedRead() throws Exception {
+        final FakeConnection slow = delayedConnection(1000);
+        final FakeConnection fast = new FakeConnection();
+        final HedgingTransactionSingleOp tx = new HedgingTransactionSingleOp(slow, fast);
+        tx.setCompressed(false);
+        tx.setInitialHedgeDelay(10, TimeUnit.MILLISECONDS);
+        tx.setMaxHedgeRatio(1.0);
+
+        final long timeAtStart = System.nanoTime();
+        assertEquals("key", tx.read("key").stringValue());
+        final long waited = System.nanoTime() - timeAtStart;
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(waited < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(1, tx.getHedgeable());
+        assertEquals(1, tx.getHedgesSent());
+        assertEquals(1, tx.getHedgesWon());
+        assertEquals(1, slow.rpcs.get());
+        assertEquals(1, fast.rpcs.get());
+    }
+
+    /**
+     * Test method for {@link HedgingTransactionSingleOp#setMaxHedgeRatio(double)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testHedgeRatio() throws Exception {
+        final FakeConnection slow = delayedConnection(50);
+        final FakeConnection fast = new FakeConnection();
+        final HedgingTransactionSingleOp tx = new HedgingTransactionSingleOp(slow, fast);
+        tx.setCompressed(false);
+        tx.setInitialHedgeDelay(1, TimeUnit.MILLISECONDS);
+        tx.setMaxHedgeRatio(0.0);
+
+        assertEquals("key", tx.read("key").stringValue());
+        assertEquals(0, tx.getHedgesSent());
+        assertEquals(0, fast.rpcs.get());
+
+        // writes are never hedged
+        tx.setMaxHedgeRatio(1.0);
+        final TransactionSingleOp.RequestList req = new TransactionSingleOp.RequestList();
+        req.addRead("a").addWrite("b", "value");
+        tx.req_list(req);
+        assertEquals(1, tx.getHedgeable());
+        assertEquals(0, fast.rpcs.get());
+    }
+
+    /**
+     * Test method for {@link HedgingTransactionSingleOp#read(String)} with a
+     * request failing with a {@link RuntimeException} (the caller must not
+     * wait forever).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRuntimeException() throws Exception {
+        final FakeConnection broken = new FakeConnection();
+        broken.failure = new IllegalStateException("broken");
+        final HedgingTransactionSingleOp tx = new HedgingTransactionSingleOp(
+                broken, new FakeConnection());
+        tx.setCompressed(false);
+        try {
+            tx.read("key");
+            fail("expected an IllegalStateException");
+        } catch (final IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    /**
+     * Test method for {@link HedgingTransactionSingleOp#read(String)} not
+     * waiting longer than the RPC timeout of the primary connection.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRpcTimeout() throws Exception {
+        final FakeConnection slow = delayedConnection(2000);
+        slow.setRpcTimeout(100);
+        final HedgingTransactionSingleOp tx = new HedgingTransactionSingleOp(
+                slow, delayedConnection(2000));
+        tx.setCompressed(false);
+        tx.setMaxHedgeRatio(1.0);
+
+        final long timeAtStart = System.nanoTime();
+        try {
+            tx.read("key");
+            fail("expected an RPCTimeoutException");
+        } catch (final RPCTimeoutException e) {
+        }
+        assertTrue(System.nanoTime() - timeAtStart < TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    /**
+     * Test method for {@link HedgingTransactionSingleOp#read(String)}
+     * cancelling the losing request on a {@link MultiplexedConnection}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testCancelLoser() throws Exception {
+        final AtomicInteger hanging = new AtomicInteger(0);
+        final FakeErlangNode.Handler hang = new FakeErlangNode.Handler() {
+            public OtpErlangObject call(final String mod, final String fun,
+                    final OtpErlangList args) {
+                hanging.incrementAndGet();
+                return null;
+            }
+        };
+        final FakeErlangNode.Handler answer = new FakeErlangNode.Handler() {
+            public OtpErlangObject call(final String mod, final String fun,
+                    final OtpErlangList args) {
+                final OtpErlangTuple op = (OtpErlangTuple) ((OtpErlangList) args.elementAt(0)).elementAt(0);
+                return new OtpErlangList(new OtpErlangTuple(new OtpErlangObject[] {
+                        CommonErlangObjects.okAtom, op.elementAt(1) }));
+            }
+        };
+        final MultiplexingNode mux = FakeErlangNode.createMultiplexingNode();
+        final FakeErlangNode server1 = new FakeErlangNode(hang);
+        final FakeErlangNode server2 = new FakeErlangNode(answer);
+        try {
+            final HedgingTransactionSingleOp tx = new HedgingTransactionSingleOp(
+                    new MultiplexedConnection(mux, new DefaultConnectionPolicy(server1.getPeer())),
+                    new MultiplexedConnection(mux, new DefaultConnectionPolicy(server2.getPeer())));
+            tx.setCompressed(false);
+            tx.setInitialHedgeDelay(10, TimeUnit.MILLISECONDS);
+            tx.setMaxHedgeRatio(1.0);
+
+            assertEquals("key", tx.read("key").stringValue());
+            assertEquals(1, tx.getHedgesWon());
+            // the loser is cancelled right after the winner answered
+            for (int i = 0; (i < 500) && ((hanging.get() == 0) || (mux.getPendingCount() != 0)); ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, hanging.get());
+            assertEquals(0, mux.getPendingCount());
+        } finally {
+            mux.close();
+            server1.close();
+            server2.close();
+        }
+    }
+}
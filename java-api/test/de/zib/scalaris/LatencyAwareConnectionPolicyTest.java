@@ -0,0 +1,156 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link LatencyAwareConnectionPolicy} class.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class LatencyAwareConnectionPolicyTest {
+    private static void addSamples(final ConnectionPolicy p,
+            final PeerNode node, final int count, final long latencyMillis) {
+        for (int i = 0; i < count; ++i) {
+            p.nodeRequestStarted(node);
+            p.nodeRequestFinished(node, TimeUnit.MILLISECONDS.toNanos(latencyMillis), true);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link LatencyAwareConnectionPolicy#nodeRequestFinished(PeerNode, long, boolean)}
+     * and {@link LatencyAwareConnectionPolicy#selectNode()}.
+     */
+    @Test
+    public final void testPreferFastNodes() {
+        final PeerNode fast = new PeerNode("fast@localhost");
+        final PeerNode medium = new PeerNode("medium@localhost");
+        final PeerNode slow = new PeerNode("slow@localhost");
+        final List<PeerNode> nodes = new ArrayList<PeerNode>();
+        nodes.add(fast);
+        nodes.add(medium);
+        nodes.add(slow);
+        final LatencyAwareConnectionPolicy p = new LatencyAwareConnectionPolicy(nodes);
+        assertTrue(p.selectsPerRequest());
+
+        addSamples(p, fast, 20, 1);
+        addSamples(p, medium, 20, 2);
+        assertFalse(p.isEjected(slow));
+        addSamples(p, slow, 20, 50);
+        assertTrue(p.isEjected(slow));
+        assertFalse(p.isEjected(fast));
+        assertFalse(p.isEjected(medium));
+        assertEquals(0, p.getInFlight(fast));
+
+        // only fast and medium remain - the better one always wins:
+        for (int i = 0; i < 100; ++i) {
+            assertSame(fast, p.selectNode());
+        }
+
+        // a large number of in-flight requests makes a node less attractive:
+        for (int i = 0; i < 5; ++i) {
+            p.nodeRequestStarted(fast);
+        }
+        assertEquals(5, p.getInFlight(fast));
+        for (int i = 0; i < 100; ++i) {
+            assertSame(medium, p.selectNode());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link LatencyAwareConnectionPolicy#setEjectionTime(long)}.
+     *
+     * @throws InterruptedException
+     *             if the sleep is interrupted
+     */
+    @Test
+    public final void testEjection() throws InterruptedException {
+        final PeerNode node1 = new PeerNode("node1@localhost");
+        final PeerNode node2 = new PeerNode("node2@localhost");
+        final PeerNode node3 = new PeerNode("node3@localhost");
+        final List<PeerNode> nodes = new ArrayList<PeerNode>();
+        nodes.add(node1);
+        nodes.add(node2);
+        nodes.add(node3);
+        final LatencyAwareConnectionPolicy p = new LatencyAwareConnectionPolicy(nodes);
+        p.setEjectionTime(50);
+
+        addSamples(p, node1, 20, 1);
+        addSamples(p, node2, 20, 100);
+        addSamples(p, node3, 20, 100);
+        // at most half of the nodes may be ejected:
+        assertTrue(p.isEjected(node2));
+        assertFalse(p.isEjected(node3));
+
+        // failed requests are penalised:
+        p.nodeRequestStarted(node1);
+        p.nodeRequestFinished(node1, 0, false);
+        assertTrue(p.getLatencyEstimate(node1) > TimeUnit.MILLISECONDS.toNanos(100));
+
+        Thread.sleep(60);
+        assertFalse(p.isEjected(node2));
+    }
+
+    /**
+     * Test method for
+     * {@link LatencyAwareConnectionPolicy#nodeRequestFinished(PeerNode, long, boolean)}
+     * not needing the policy's lock unless the node needs to be ejected and
+     * {@link LatencyAwareConnectionPolicy#selectNode()} not needing it at all.
+     *
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    @Test
+    public final void testNoGlobalLock() throws InterruptedException {
+        final PeerNode node1 = new PeerNode("node1@localhost");
+        final PeerNode node2 = new PeerNode("node2@localhost");
+        final List<PeerNode> nodes = new ArrayList<PeerNode>();
+        nodes.add(node1);
+        nodes.add(node2);
+        final LatencyAwareConnectionPolicy p = new LatencyAwareConnectionPolicy(nodes);
+        final Thread reporter = new Thread() {
+            @Override
+            public void run() {
+                addSamples(p, node1, 20, 1);
+                addSamples(p, node2, 20, 1);
+                for (int i = 0; i < 10; ++i) {
+                    p.selectNode();
+                }
+            }
+        };
+        synchronized (p) {
+            reporter.start();
+            reporter.join(5000);
+            assertFalse(reporter.isAlive());
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), p.getLatencyEstimate(node1), 1000.0);
+    }
+}
@@ -0,0 +1,546 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+
+/**
+ * Test cases for the {@link MultiplexedConnection} and
+ * {@link MultiplexingNode} classes (using {@link FakeErlangNode}s instead of
+ * Scalaris nodes).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class MultiplexedConnectionTest {
+    /**
+     * Replies with the node's name to <tt>m:name()</tt>, replies after
+     * <tt>Args[0]</tt> milliseconds to <tt>m:sleep(Args)</tt> and never
+     * replies to <tt>m:hang()</tt>.
+     */
+    private static class Handler implements FakeErlangNode.Handler {
+        final String name;
+        final CountDownLatch barrier;
+
+        Handler(final String name, final int barrier) {
+            this.name = name;
+            this.barrier = new CountDownLatch(barrier);
+        }
+
+        public OtpErlangObject call(final String mod, final String fun,
+                final OtpErlangList args) throws Exception {
+            if (fun.equals("hang")) {
+                return null;
+            } else if (fun.equals("sleep")) {
+                Thread.sleep(Long.parseLong(((OtpErlangString) args.elementAt(0)).stringValue()));
+            } else if (fun.equals("barrier")) {
+                // only reply once all concurrent calls have arrived
+                barrier.countDown();
+                if (!barrier.await(5, TimeUnit.SECONDS)) {
+                    return null;
+                }
+            }
+            return new OtpErlangAtom(name);
+        }
+    }
+
+    private static final OtpErlangList noArgs = new OtpErlangList();
+
+    /**
+     * Executor refusing all tasks, i.e. asynchronous RPCs must not need any
+     * thread.
+     */
+    private static final Executor noThreads = new Executor() {
+        public void execute(final Runnable command) {
+            throw new RejectedExecutionException("no threads");
+        }
+    };
+
+    private MultiplexingNode mux;
+    private FakeErlangNode server1;
+    private FakeErlangNode server2;
+
+    /**
+     * Creates the local node and two remote nodes.
+     *
+     * @throws Exception
+     *             if a node cannot be created
+     */
+    @Before
+    public void setUp() throws Exception {
+        mux = FakeErlangNode.createMultiplexingNode();
+        server1 = new FakeErlangNode(new Handler("server1", 5));
+        server2 = new FakeErlangNode(new Handler("server2", 5));
+    }
+
+    /**
+     * Closes all nodes.
+     */
+    @After
+    public void tearDown() {
+        mux.close();
+        server1.close();
+        server2.close();
+    }
+
+    private static String name(final OtpErlangObject result) {
+        return ((OtpErlangAtom) result).atomValue();
+    }
+
+    private static OtpErlangList sleepArgs(final long millis) {
+        return new OtpErlangList(new OtpErlangString(Long.toString(millis)));
+    }
+
+    /**
+     * Sends an RPC from a new thread and stores its result (or exception).
+     */
+    private static class RPCThread extends Thread {
+        final Connection conn;
+        final String fun;
+        final OtpErlangList args;
+        volatile Object result = null;
+
+        RPCThread(final Connection conn, final String fun, final OtpErlangList args) {
+            this.conn = conn;
+            this.fun = fun;
+            this.args = args;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = name(conn.doRPC("m", fun, args));
+            } catch (final Exception e) {
+                result = e;
+            }
+        }
+
+        Object get() throws InterruptedException {
+            join(5000);
+            assertFalse(isAlive());
+            return result;
+        }
+    }
+
+    private void awaitPending(final int count) throws InterruptedException {
+        for (int i = 0; (i < 500) && (mux.getPendingCount() != count); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPC(String, String, OtpErlangList)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPC() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        assertEquals("server1", name(conn.doRPC("m", "name", noArgs)));
+        assertEquals("server1", name(conn.doRPC("m", "name", noArgs)));
+        assertEquals(0, mux.getPendingCount());
+        assertFalse(conn.cancel());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPC(java.util.List, String, String, OtpErlangList)}
+     * with a preferred node which is not linked yet (the RPC must not wait
+     * for it to be linked).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPCPreferredNodes() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final List<PeerNode> preferred = Arrays.asList(server2.getPeer());
+        assertFalse(mux.isLinked(server2.getPeer()));
+        assertEquals("server1", name(conn.doRPC(preferred, "m", "name", noArgs)));
+        for (int i = 0; (i < 500) && !mux.isLinked(server2.getPeer()); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals("server2", name(conn.doRPC(preferred, "m", "name", noArgs)));
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPC(String, String, OtpErlangList)} with
+     * concurrent RPCs which are only answered if all of them are in flight
+     * at the same time.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testConcurrentRPCs() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final RPCThread[] threads = new RPCThread[5];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new RPCThread(conn, "barrier", noArgs);
+        }
+        for (final RPCThread thread : threads) {
+            assertEquals("server1", thread.get());
+        }
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPC(String, String, OtpErlangList, long)}
+     * timing out (late replies must be dropped).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testTimeout() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        try {
+            conn.doRPC("m", "sleep", sleepArgs(300), 50);
+            fail("expected RPCTimeoutException");
+        } catch (final RPCTimeoutException e) {
+            assertFalse(e.isCancelled());
+        }
+        assertEquals(0, mux.getPendingCount());
+        // the late reply of the first RPC does not complete the next one:
+        assertEquals("server1", name(conn.doRPC("m", "sleep", sleepArgs(500), 2000)));
+        assertEquals(0, server1.getPeer().getFailureCount());
+    }
+
+    /**
+     * Test method for {@link MultiplexedConnection#cancel()}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testCancel() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final MultiplexedConnection other = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final RPCThread thread = new RPCThread(conn, "hang", noArgs);
+        final RPCThread otherThread = new RPCThread(other, "sleep", sleepArgs(200));
+        awaitPending(2);
+        // the RPC may be pending but not known to its connection yet
+        boolean cancelled = conn.cancel();
+        for (int i = 0; (i < 100) && !cancelled; ++i) {
+            Thread.sleep(10);
+            cancelled = conn.cancel();
+        }
+        assertTrue(cancelled);
+        final Object result = thread.get();
+        assertTrue(result instanceof RPCTimeoutException);
+        assertTrue(((RPCTimeoutException) result).isCancelled());
+        assertFalse(conn.cancel());
+        // RPCs of other connections are not affected
+        assertEquals("server1", otherThread.get());
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPC(String, String, OtpErlangList)}
+     * failing over to another node if the link goes down.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testNodeDown() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(Arrays.asList(server1.getPeer(), server2.getPeer())));
+        // nodes are selected randomly - take down the one currently in use
+        final String first = name(conn.doRPC("m", "name", noArgs));
+        final String second = first.equals("server1") ? "server2" : "server1";
+        // (the RPC is repeated at the other node)
+        final RPCThread thread = new RPCThread(conn, "sleep", sleepArgs(1000));
+        awaitPending(1);
+        (first.equals("server1") ? server1 : server2).close();
+        assertEquals(second, thread.get());
+        assertEquals(0, mux.getPendingCount());
+        assertEquals(second, name(conn.doRPC("m", "name", noArgs)));
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPC(String, String, OtpErlangList, long)}
+     * giving up to re-connect once the deadline has passed.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testFailOverDeadline() throws Exception {
+        final DefaultConnectionPolicy policy = new DefaultConnectionPolicy(server1.getPeer());
+        policy.setMaxRetries(Integer.MAX_VALUE);
+        final MultiplexedConnection conn = new MultiplexedConnection(mux, policy);
+        assertEquals("server1", name(conn.doRPC("m", "name", noArgs)));
+        server1.close();
+        final long timeAtStart = System.currentTimeMillis();
+        try {
+            conn.doRPC("m", "name", noArgs, 200);
+            fail("expected RPCTimeoutException");
+        } catch (final RPCTimeoutException e) {
+            assertFalse(e.isCancelled());
+        }
+        assertTrue(System.currentTimeMillis() - timeAtStart < 2000);
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPCAsync(String, String, OtpErlangList, Executor)}
+     * with concurrent RPCs which are only answered if all of them are in
+     * flight at the same time (without any thread waiting for them).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPCAsync() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final List<AsyncResult<OtpErlangObject>> results = new ArrayList<AsyncResult<OtpErlangObject>>();
+        for (int i = 0; i < 5; ++i) {
+            results.add(conn.doRPCAsync("m", "barrier", noArgs, noThreads));
+        }
+        for (final AsyncResult<OtpErlangObject> result : results) {
+            assertEquals("server1", name(result.get(5, TimeUnit.SECONDS)));
+        }
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPCAsync(String, String, OtpErlangList, Executor)}
+     * timing out.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPCAsyncTimeout() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        conn.setRpcTimeout(100);
+        final AsyncResult<OtpErlangObject> result = conn.doRPCAsync("m", "hang", noArgs, noThreads);
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("expected RPCTimeoutException");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof RPCTimeoutException);
+        }
+        assertEquals(0, mux.getPendingCount());
+        assertEquals(0, server1.getPeer().getFailureCount());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPCAsync(String, String, OtpErlangList, Executor)}
+     * with a cancelled result.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPCAsyncCancel() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final AsyncResult<OtpErlangObject> result = conn.doRPCAsync("m", "hang", noArgs, noThreads);
+        awaitPending(1);
+        assertTrue(result.cancel(true));
+        assertTrue(result.isCancelled());
+        assertEquals(0, mux.getPendingCount());
+        assertFalse(conn.cancel());
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPCAsync(String, String, OtpErlangList, Executor)}
+     * failing over to another node (using a thread of the executor).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPCAsyncFailOver() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(Arrays.asList(server1.getPeer(), server2.getPeer())));
+        final String first = name(conn.doRPC("m", "name", noArgs));
+        final String second = first.equals("server1") ? "server2" : "server1";
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AsyncResult<OtpErlangObject> result = conn.doRPCAsync("m",
+                    "sleep", sleepArgs(200), executor);
+            awaitPending(1);
+            (first.equals("server1") ? server1 : server2).close();
+            assertEquals(second, name(result.get(5, TimeUnit.SECONDS)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Policy selecting {@link #next} for each request (if set).
+     */
+    private static class SwitchingPolicy extends DefaultConnectionPolicy {
+        volatile PeerNode next = null;
+
+        SwitchingPolicy(final PeerNode remoteNode) {
+            super(remoteNode);
+        }
+
+        @Override
+        public boolean selectsPerRequest() {
+            return next != null;
+        }
+
+        @Override
+        public PeerNode selectNode() {
+            final PeerNode node = next;
+            return (node == null) ? super.selectNode() : node;
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link MultiplexedConnection#doRPCAsync(String, String, OtpErlangList, Executor)}
+     * to a node which is not linked yet (cancelling it must not affect other
+     * RPCs of the connection).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testDoRPCAsyncNotLinked() throws Exception {
+        final SwitchingPolicy policy = new SwitchingPolicy(server1.getPeer());
+        final MultiplexedConnection conn = new MultiplexedConnection(mux, policy);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AsyncResult<OtpErlangObject> other = conn.doRPCAsync("m", "hang", noArgs, noThreads);
+            awaitPending(1);
+            policy.next = server2.getPeer();
+            final AsyncResult<OtpErlangObject> hang = conn.doRPCAsync("m", "hang", noArgs, executor);
+            awaitPending(2);
+            assertTrue(hang.cancel(true));
+            awaitPending(1);
+            assertFalse(other.isDone());
+
+            assertEquals("server2", name(conn.doRPCAsync("m", "name", noArgs, executor)
+                    .get(5, TimeUnit.SECONDS)));
+            assertTrue(other.cancel(true));
+            assertEquals(0, mux.getPendingCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test method for {@link MultiplexedConnection#close()}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testClose() throws Exception {
+        final MultiplexedConnection conn = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final MultiplexedConnection other = new MultiplexedConnection(mux,
+                new DefaultConnectionPolicy(server1.getPeer()));
+        final RPCThread thread = new RPCThread(conn, "hang", noArgs);
+        awaitPending(1);
+        conn.close();
+        final Object result = thread.get();
+        assertTrue(result instanceof ConnectionException);
+        assertFalse(result instanceof RPCTimeoutException);
+        assertEquals(0, mux.getPendingCount());
+        try {
+            conn.doRPC("m", "name", noArgs);
+            fail("expected ConnectionException");
+        } catch (final ConnectionException e) {
+            // ok
+        }
+        assertEquals(0, server1.getPeer().getFailureCount());
+        // the shared link is still usable
+        assertEquals("server1", name(other.doRPC("m", "name", noArgs)));
+    }
+
+    /**
+     * Test method for {@link MultiplexingNode#close()}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testCloseNode() throws Exception {
+        final DefaultConnectionPolicy policy = new DefaultConnectionPolicy(server1.getPeer());
+        policy.setMaxRetries(0);
+        final MultiplexedConnection conn = new MultiplexedConnection(mux, policy);
+        final RPCThread thread = new RPCThread(conn, "hang", noArgs);
+        awaitPending(1);
+        mux.close();
+        assertTrue(thread.get() instanceof ConnectionException);
+        assertEquals(0, mux.getPendingCount());
+        for (int i = 0; (i < 500) && isReceiverAlive(); ++i) {
+            Thread.sleep(10);
+        }
+        assertFalse(isReceiverAlive());
+    }
+
+    private boolean isReceiverAlive() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("scalaris-mux-" + mux.getNode().node())) {
+                return thread.isAlive();
+            }
+        }
+        return false;
+    }
+}
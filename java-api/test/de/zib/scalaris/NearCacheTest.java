@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link NearCache} class.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class NearCacheTest {
+    /**
+     * Test method for {@link NearCache#put(String, ErlangValue, long)} and
+     * {@link NearCache#get(String)} with more keys than fit into the cache.
+     */
+    @Test
+    public final void testEviction() {
+        final NearCache cache = new NearCache(10, 1, TimeUnit.HOURS);
+        // "hot" is read twice and thus protected from scans:
+        assertTrue(cache.put("hot", new ErlangValue("hot"), cache.getStamp("hot")));
+        assertNotNull(cache.get("hot"));
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(cache.put("key" + i, new ErlangValue(i), cache.getStamp("key" + i)));
+        }
+        assertEquals(10, cache.size());
+        assertEquals(91, cache.getEvictions());
+        assertEquals("hot", cache.get("hot").stringValue());
+        assertNull(cache.get("key0"));
+        assertEquals(99, cache.get("key99").intValue());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Test method for {@link NearCache#setTtl(String, long, TimeUnit)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testTtl() throws Exception {
+        final NearCache cache = new NearCache(10, 1, TimeUnit.HOURS);
+        cache.setTtl("tmp:", 1, TimeUnit.MILLISECONDS);
+        cache.setTtl("tmp:long:", 1, TimeUnit.HOURS);
+        cache.setTtl("nocache:", 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(cache.put("key", new ErlangValue(1), cache.getStamp("key")));
+        assertTrue(cache.put("tmp:key", new ErlangValue(2), cache.getStamp("tmp:key")));
+        assertTrue(cache.put("tmp:long:key", new ErlangValue(3), cache.getStamp("tmp:long:key")));
+        assertFalse(cache.put("nocache:key", new ErlangValue(4), cache.getStamp("nocache:key")));
+        Thread.sleep(10);
+        assertEquals(1, cache.get("key").intValue());
+        assertNull(cache.get("tmp:key"));
+        assertEquals(3, cache.get("tmp:long:key").intValue());
+        assertNull(cache.get("nocache:key"));
+        assertEquals(1, cache.getExpirations());
+    }
+
+    /**
+     * Test method for {@link NearCache#invalidate(String)}.
+     */
+    @Test
+    public final void testInvalidate() {
+        final NearCache cache = new NearCache(10, 1, TimeUnit.HOURS);
+        assertTrue(cache.put("key", new ErlangValue(1), cache.getStamp("key")));
+        final long stamp = cache.getStamp("key");
+        final long otherStamp = cache.getStamp("other");
+        cache.invalidate("key");
+        assertNull(cache.get("key"));
+        // a value read before the invalidation must not be cached
+        assertFalse(cache.put("key", new ErlangValue(1), stamp));
+        assertNull(cache.get("key"));
+        // ... but values of other keys
+        assertTrue(cache.put("other", new ErlangValue(2), otherStamp));
+        assertEquals(1, cache.getInvalidations());
+
+        final long clearStamp = cache.getStamp("other");
+        cache.clear();
+        assertFalse(cache.put("other", new ErlangValue(2), clearStamp));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+import de.zib.scalaris.operations.ReadOp;
+import de.zib.scalaris.operations.TestAndSetOp;
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Test cases for the {@link PreparedRequestList} class (using a
+ * {@link FakeConnection} instead of Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class PreparedRequestListTest {
+    private static byte[] encode(final OtpErlangObject value) {
+        final OtpOutputStream out = new OtpOutputStream();
+        out.write_any(value);
+        return out.toByteArray();
+    }
+
+    /**
+     * Test method for {@link PreparedRequestList#bind(Object...)} comparing
+     * the request list with the one of an equivalent
+     * {@link TransactionSingleOp.RequestList}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testBind() throws Exception {
+        final PreparedRequestList prepared = new PreparedRequestList()
+                .addRead("a").addWrite("b").addTestAndSet("c").addWrite("d");
+        assertEquals(4, prepared.size());
+        assertEquals(4, prepared.getSlotCount());
+
+        final FakeConnection conn = new FakeConnection();
+        conn.readValue = new OtpErlangString("value");
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        for (final boolean compressed : new boolean[] {false, true}) {
+            tx.setCompressed(compressed);
+            for (int i = 0; i < 3; ++i) {
+                final TransactionSingleOp.ResultList results = tx.req_list(
+                        prepared.bind("b" + i, "old", i, Arrays.asList(1, 2, i)));
+                final byte[] actual = encode(conn.lastArgs);
+
+                final TransactionSingleOp.RequestList expectedReq = new TransactionSingleOp.RequestList();
+                expectedReq.addOp(new ReadOp("a")).addOp(new WriteOp("b", "b" + i))
+                        .addOp(new TestAndSetOp("c", "old", i))
+                        .addOp(new WriteOp("d", Arrays.asList(1, 2, i)));
+                tx.req_list(expectedReq);
+                assertArrayEquals(encode(conn.lastArgs), actual);
+
+                assertEquals("value", results.processReadAt(0).stringValue());
+                results.processWriteAt(1);
+                results.processTestAndSetAt(2);
+                results.processWriteAt(3);
+            }
+        }
+        // inspecting the list decodes it
+        final OtpErlangList reqs = prepared.bind(1, 2, 3, 4).getErlangReqList(false);
+        assertEquals(4, reqs.arity());
+        assertEquals(new ReadOp("a").getErlang(false), reqs.elementAt(0));
+    }
+
+    /**
+     * Test method for {@link PreparedRequestList#bind(Object...)} with
+     * invalid arguments and modifications of bound request lists.
+     */
+    @Test
+    public final void testBindInvalid() {
+        final PreparedRequestList prepared = new PreparedRequestList().addWrite("a");
+        try {
+            prepared.bind();
+            fail("expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            prepared.bind(1).addOp(new ReadOp("b"));
+            fail("expected UnsupportedOperationException");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
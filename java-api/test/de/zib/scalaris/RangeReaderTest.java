@@ -0,0 +1,269 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Test cases for the {@link RangeReader} class (using a connection which
+ * simulates a ring with four replicas (or one) without connecting to
+ * Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class RangeReaderTest {
+    private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(128);
+    private static final BigInteger QUARTER = RING_SIZE.shiftRight(2);
+
+    /**
+     * Simulates <tt>api_dht_raw:range_read/2</tt> on a ring with the given
+     * number of replicas of each item (see {@link FakeConnection}).
+     */
+    private static class Ring implements FakeErlangNode.Handler {
+        final TreeMap<BigInteger, OtpErlangObject> db = new TreeMap<BigInteger, OtpErlangObject>();
+        final int replicas;
+        int rangeReads = 0;
+        boolean timeout = false;
+
+        Ring(final int replicas) {
+            this.replicas = replicas;
+        }
+
+        BigInteger replicaDistance() {
+            return RING_SIZE.divide(BigInteger.valueOf(replicas));
+        }
+
+        void put(final BigInteger hash, final OtpErlangObject value) {
+            for (int i = 0; i < replicas; ++i) {
+                db.put(hash.add(replicaDistance().multiply(BigInteger.valueOf(i))).mod(RING_SIZE), value);
+            }
+        }
+
+        public OtpErlangObject call(final String mod, final String fun,
+                final OtpErlangList args) {
+            if (fun.equals("get_replication_factor")) {
+                return new OtpErlangLong(replicas);
+            } else if (fun.equals("split_ring")) {
+                final OtpErlangObject[] keys = new OtpErlangObject[replicas];
+                for (int i = 0; i < replicas; ++i) {
+                    keys[i] = new OtpErlangLong(replicaDistance().multiply(BigInteger.valueOf(i)));
+                }
+                return new OtpErlangList(keys);
+            }
+            assertEquals("range_read", fun);
+            synchronized (this) {
+                ++rangeReads;
+            }
+            final BigInteger from = ((OtpErlangLong) args.elementAt(0)).bigIntegerValue();
+            final BigInteger to = ((OtpErlangLong) args.elementAt(1)).bigIntegerValue();
+            final List<OtpErlangObject> entries = new ArrayList<OtpErlangObject>();
+            for (final BigInteger key : db.keySet()) {
+                final boolean inRange;
+                if (from.equals(to)) {
+                    // intervals:all()
+                    inRange = true;
+                } else if (from.compareTo(to) < 0) {
+                    inRange = (key.compareTo(from) >= 0) && (key.compareTo(to) <= 0);
+                } else {
+                    // wrapping range
+                    inRange = (key.compareTo(from) >= 0) || (key.compareTo(to) <= 0);
+                }
+                if (inRange) {
+                    entries.add(new OtpErlangTuple(new OtpErlangObject[] {
+                            new OtpErlangLong(key), db.get(key),
+                            new OtpErlangAtom(false), new OtpErlangLong(0),
+                            new OtpErlangLong(1) }));
+                }
+            }
+            return new OtpErlangTuple(new OtpErlangObject[] {
+                    timeout ? CommonErlangObjects.timeoutAtom : CommonErlangObjects.okAtom,
+                    new OtpErlangList(entries.toArray(new OtpErlangObject[entries.size()])) });
+        }
+    }
+
+    private static Ring createRing(final int items) {
+        return createRing(items, 4);
+    }
+
+    private static Ring createRing(final int items, final int replicas) {
+        final Ring ring = new Ring(replicas);
+        for (int i = 0; i < items; ++i) {
+            // spread items over the whole ring
+            final BigInteger hash = RING_SIZE.multiply(BigInteger.valueOf(i)).divide(
+                    BigInteger.valueOf(items)).add(BigInteger.valueOf(i));
+            ring.put(hash, new OtpErlangLong(i));
+        }
+        return ring;
+    }
+
+    private static Set<Long> scanAll(final RangeReader.ScanIterator iter) {
+        return scanAll(iter, QUARTER);
+    }
+
+    private static Set<Long> scanAll(final RangeReader.ScanIterator iter,
+            final BigInteger firstReplicaEnd) {
+        final Set<Long> values = new HashSet<Long>();
+        while (iter.hasNext()) {
+            final RangeReader.Entry entry = iter.next();
+            assertTrue(entry.getKey().compareTo(firstReplicaEnd) < 0);
+            assertTrue(values.add(entry.getValue().longValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Test method for {@link RangeReader#read(BigInteger, BigInteger)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRead() throws Exception {
+        final Ring ring = createRing(0);
+        final OtpOutputStream out = new OtpOutputStream(new OtpErlangString("value"));
+        ring.put(BigInteger.TEN, new OtpErlangBinary(out.toByteArray()));
+        final RangeReader reader = new RangeReader(new FakeConnection(ring));
+
+        final List<RangeReader.Entry> all = reader.read(BigInteger.ZERO, BigInteger.ZERO);
+        assertEquals(4, all.size());
+        assertEquals("value", all.get(0).getValue().stringValue());
+        assertEquals(1, all.get(0).getVersion());
+        assertEquals(1, reader.read(BigInteger.ZERO, BigInteger.TEN).size());
+        assertEquals(0, reader.read(BigInteger.ZERO, BigInteger.ONE).size());
+
+        ring.timeout = true;
+        try {
+            reader.read(BigInteger.ZERO, BigInteger.TEN);
+            fail("expected TimeoutException");
+        } catch (final TimeoutException e) {
+            // ok
+        }
+    }
+
+    /**
+     * Test method for {@link RangeReader#scan(int)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testScan() throws Exception {
+        final Ring ring = createRing(100);
+        final RangeReader reader = new RangeReader(new FakeConnection(ring));
+        reader.setPrefetch(3);
+
+        final Set<Long> values = scanAll(reader.scan(7));
+        assertEquals(100, values.size());
+        assertEquals(7, ring.rangeReads);
+
+        assertEquals(100, scanAll(reader.scan(1)).size());
+        assertFalse(new RangeReader(new FakeConnection(createRing(0))).scan(3).hasNext());
+    }
+
+    /**
+     * Test method for {@link RangeReader#scan(int)} and
+     * {@link RangeReader#scan(BigInteger, int)} on a ring with a single
+     * replica of each item.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testScanSingleReplica() throws Exception {
+        final Ring ring = createRing(100, 1);
+        final RangeReader reader = new RangeReader(new FakeConnection(ring));
+
+        assertEquals(100, scanAll(reader.scan(7), RING_SIZE).size());
+        assertEquals(7, ring.rangeReads);
+        assertEquals(100, scanAll(reader.scan(1), RING_SIZE).size());
+
+        // item 50 is at position 50, start right after it
+        final BigInteger start = RING_SIZE.multiply(BigInteger.valueOf(50)).divide(
+                BigInteger.valueOf(100)).add(BigInteger.valueOf(51));
+        final RangeReader.ScanIterator iter = reader.scan(start, 5);
+        assertEquals(51, iter.next().getValue().longValue());
+        final Set<Long> values = scanAll(iter, RING_SIZE);
+        assertEquals(99, values.size());
+        assertFalse(values.contains(51L));
+    }
+
+    /**
+     * Test method for {@link RangeReader#scan(BigInteger, int)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testScanFromStart() throws Exception {
+        final Ring ring = createRing(100);
+        final RangeReader reader = new RangeReader(new FakeConnection(ring));
+
+        // a replica of item 50 is at position 50, the next item in the first
+        // quarter of the ring is item 75 (at position 75)
+        final BigInteger start = RING_SIZE.multiply(BigInteger.valueOf(50)).divide(
+                BigInteger.valueOf(100)).add(BigInteger.valueOf(50));
+        final RangeReader.ScanIterator iter = reader.scan(start, 5);
+        assertEquals(50, iter.next().getValue().longValue());
+        assertEquals(75, iter.next().getValue().longValue());
+        final Set<Long> values = scanAll(iter);
+        assertEquals(98, values.size());
+        assertFalse(values.contains(50L));
+        assertFalse(values.contains(75L));
+    }
+
+    /**
+     * Test method for {@link RangeReader.ScanIterator} with a failing chunk.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testScanTimeout() throws Exception {
+        final Ring ring = createRing(10);
+        ring.timeout = true;
+        final RangeReader reader = new RangeReader(new FakeConnection(ring));
+        try {
+            reader.scan(3).hasNext();
+            fail("expected UnknownException");
+        } catch (final UnknownException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
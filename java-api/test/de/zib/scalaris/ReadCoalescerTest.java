@@ -0,0 +1,132 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link ReadCoalescer} class (using a
+ * {@link FakeConnection} instead of Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class ReadCoalescerTest {
+    /**
+     * Creates a connection answering reads once its
+     * {@link FakeConnection#release} has been counted down.
+     *
+     * @return the connection
+     */
+    private static FakeConnection blockingConnection() {
+        final FakeConnection conn = new FakeConnection();
+        conn.release = new CountDownLatch(1);
+        return conn;
+    }
+
+    /**
+     * Reads "key" from the given number of threads at once.
+     *
+     * @return the read values or the string representations of the
+     *         exceptions thrown by the reads
+     */
+    private static String[] readConcurrently(final FakeConnection conn,
+            final ReadCoalescer reader, final int count) throws Exception {
+        final String[] values = new String[count];
+        final Thread[] threads = new Thread[count];
+        for (int i = 0; i < threads.length; ++i) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        values[n] = reader.read("key").stringValue();
+                    } catch (final Exception e) {
+                        values[n] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                while (conn.rpcs.get() == 0) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        while (reader.getAttached() < (threads.length - 1)) {
+            Thread.sleep(1);
+        }
+        conn.release.countDown();
+        for (final Thread thread : threads) {
+            thread.join(5000);
+        }
+        return values;
+    }
+
+    /**
+     * Test method for {@link ReadCoalescer#read(String)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRead() throws Exception {
+        final FakeConnection conn = blockingConnection();
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        final ReadCoalescer reader = new ReadCoalescer(tx);
+
+        final String[] values = readConcurrently(conn, reader, 5);
+        assertEquals(1, conn.rpcs.get());
+        assertEquals(1, reader.getReads());
+        assertEquals(values.length - 1, reader.getAttached());
+        for (final String value : values) {
+            assertEquals("key", value);
+        }
+
+        // no caching of results:
+        assertEquals("key", reader.read("key").stringValue());
+        assertEquals(2, conn.rpcs.get());
+    }
+
+    /**
+     * Test method for {@link ReadCoalescer#read(String)} with a read failing
+     * with an unexpected exception.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadFailure() throws Exception {
+        final FakeConnection conn = blockingConnection();
+        conn.failure = new IllegalStateException("failure");
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        final ReadCoalescer reader = new ReadCoalescer(tx);
+
+        final String[] values = readConcurrently(conn, reader, 5);
+        assertEquals(1, conn.rpcs.get());
+        for (final String value : values) {
+            assertEquals(conn.failure.toString(), value);
+        }
+    }
+}
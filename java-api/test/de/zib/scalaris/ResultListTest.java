@@ -0,0 +1,144 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import de.zib.scalaris.operations.ReadOp;
+import de.zib.scalaris.operations.TestAndSetOp;
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Test cases for the {@link ResultList} class.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class ResultListTest {
+    private static OtpErlangTuple tuple(final OtpErlangObject... elems) {
+        return new OtpErlangTuple(elems);
+    }
+
+    /**
+     * Creates a result list with a successful read of "a", a failed read of
+     * "b", an aborted write, a test_and_set with a changed key and an
+     * unexpected result.
+     *
+     * @param compressed
+     *            whether to encode the read value
+     *
+     * @return a result list
+     */
+    private static TransactionSingleOp.ResultList createResults(final boolean compressed) {
+        final TransactionSingleOp.RequestList req = new TransactionSingleOp.RequestList();
+        req.addOp(new ReadOp("a")).addOp(new ReadOp("b")).addOp(new WriteOp("c", "c"))
+                .addOp(new TestAndSetOp("d", "old", "new")).addOp(new ReadOp("e"));
+        final OtpErlangObject value = compressed ? CommonErlangObjects
+                .encode(new OtpErlangString("a")) : new OtpErlangString("a");
+        final OtpErlangList results = new OtpErlangList(new OtpErlangObject[] {
+                tuple(CommonErlangObjects.okAtom, value),
+                tuple(CommonErlangObjects.failAtom, CommonErlangObjects.notFoundAtom),
+                tuple(CommonErlangObjects.failAtom, CommonErlangObjects.abortAtom,
+                        new OtpErlangList(new OtpErlangString("c"))),
+                tuple(CommonErlangObjects.failAtom, tuple(
+                        CommonErlangObjects.keyChangedAtom, new OtpErlangString("other"))),
+                CommonErlangObjects.abortAtom });
+        return new TransactionSingleOp.ResultList(results, compressed, req);
+    }
+
+    /**
+     * Test method for {@link ResultList#statusAt(int)}.
+     */
+    @Test
+    public final void testStatusAt() {
+        final ResultList results = createResults(false);
+        assertEquals(ResultList.Status.OK, results.statusAt(0));
+        assertEquals(ResultList.Status.NOT_FOUND, results.statusAt(1));
+        assertEquals(ResultList.Status.ABORT, results.statusAt(2));
+        assertEquals(ResultList.Status.KEY_CHANGED, results.statusAt(3));
+        assertEquals(ResultList.Status.UNKNOWN, results.statusAt(4));
+    }
+
+    /**
+     * Test method for {@link ResultList#tryReadAt(int)}.
+     */
+    @Test
+    public final void testTryReadAt() {
+        for (final boolean compressed : new boolean[] {false, true}) {
+            final ResultList results = createResults(compressed);
+            final ResultList.ReadResult found = results.tryReadAt(0);
+            assertTrue(found.isFound());
+            assertEquals("a", found.getValue().stringValue());
+
+            final ResultList.ReadResult notFound = results.tryReadAt(1);
+            assertFalse(notFound.isFound());
+            assertEquals(ResultList.Status.NOT_FOUND, notFound.getStatus());
+            assertNull(notFound.getValue());
+
+            assertEquals(ResultList.Status.UNKNOWN, results.tryReadAt(4).getStatus());
+        }
+    }
+
+    /**
+     * Test method for {@link NotFoundException#setStackTraceEnabled(boolean)}
+     * and {@link AbortException#setStackTraceEnabled(boolean)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testStacklessExceptions() throws Exception {
+        final ResultList results = createResults(false);
+        try {
+            NotFoundException.setStackTraceEnabled(false);
+            AbortException.setStackTraceEnabled(false);
+            try {
+                results.processReadAt(1);
+                fail("expected NotFoundException");
+            } catch (final NotFoundException e) {
+                assertEquals(0, e.getStackTrace().length);
+            }
+            try {
+                results.processWriteAt(2);
+                fail("expected AbortException");
+            } catch (final AbortException e) {
+                assertEquals(0, e.getStackTrace().length);
+            }
+        } finally {
+            NotFoundException.setStackTraceEnabled(true);
+            AbortException.setStackTraceEnabled(true);
+        }
+        try {
+            results.processReadAt(1);
+            fail("expected NotFoundException");
+        } catch (final NotFoundException e) {
+            assertTrue(e.getStackTrace().length > 0);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link RoutingCache} class which do not need a running
+ * Scalaris ring.
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class RoutingCacheTest {
+    /**
+     * Test method for {@link RoutingCache#hashKey(String)}.
+     */
+    @Test
+    public final void testHashKey() {
+        assertEquals(new BigInteger("d41d8cd98f00b204e9800998ecf8427e", 16),
+                RoutingCache.hashKey(""));
+        assertEquals(new BigInteger("900150983cd24fb0d6963f7d28e17f72", 16),
+                RoutingCache.hashKey("abc"));
+        assertTrue(RoutingCache.hashKey("äöü").signum() >= 0);
+    }
+
+    /**
+     * Test method for {@link RoutingTable.Range#contains(BigInteger)}.
+     */
+    @Test
+    public final void testRangeContains() {
+        final RoutingTable.Range range = new RoutingTable.Range(false,
+                BigInteger.valueOf(10), BigInteger.valueOf(20), true);
+        assertFalse(range.contains(BigInteger.valueOf(10)));
+        assertTrue(range.contains(BigInteger.valueOf(11)));
+        assertTrue(range.contains(BigInteger.valueOf(20)));
+        assertFalse(range.contains(BigInteger.valueOf(21)));
+    }
+
+    /**
+     * Test method for {@link RoutingCache#getReplicaNodes(String)} without a
+     * snapshot.
+     */
+    @Test
+    public final void testNoSnapshot() {
+        final RoutingCache cache = new RoutingCache(new ConnectionFactory(new Properties()));
+        assertFalse(cache.isValid());
+        assertTrue(cache.getReplicaNodes("key").isEmpty());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+        cache.invalidate();
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    /**
+     * Test method for {@link RoutingCache#invalidate()} being called by
+     * {@link TransactionSingleOp#req_list(TransactionSingleOp.RequestList)}
+     * on connection errors but not on timeouts.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testInvalidateOnFailure() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        final RoutingCache cache = new RoutingCache(new ConnectionFactory(new Properties()));
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setRoutingCache(cache);
+
+        conn.failure = new RPCTimeoutException("timeout");
+        try {
+            tx.read("key");
+            fail("expected an RPCTimeoutException");
+        } catch (final RPCTimeoutException e) {
+        }
+        assertEquals(0, cache.getInvalidations());
+
+        conn.failure = new ConnectionException("node down");
+        try {
+            tx.read("key");
+            fail("expected a ConnectionException");
+        } catch (final ConnectionException e) {
+        }
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    /**
+     * Test method for {@link RoutingCache#startRefresh(long, TimeUnit)} using
+     * a daemon thread.
+     */
+    @Test
+    public final void testRefreshThread() {
+        final RoutingCache cache = new RoutingCache(new ConnectionFactory(new Properties()));
+        cache.startRefresh(1, TimeUnit.HOURS);
+        try {
+            Thread thread = null;
+            for (final Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.getName().equals("scalaris-routing-refresh")) {
+                    thread = t;
+                }
+            }
+            assertNotNull(thread);
+            assertTrue(thread.isDaemon());
+        } finally {
+            cache.stopRefresh();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Test cases for the {@link StringEncoding} class (using a connection which
+ * records requests without connecting to Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class StringEncodingTest {
+    private static final String UNICODE = "\u00e4\u20ac text";
+
+    /**
+     * Test method for {@link StringEncoding#UTF8_BINARY} with a
+     * {@link TransactionSingleOp}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testWriteUtf8() throws Exception {
+        final FakeConnection conn = new FakeConnection();
+        conn.setStringEncoding(StringEncoding.UTF8_BINARY);
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        assertEquals(StringEncoding.UTF8_BINARY, tx.getStringEncoding());
+
+        tx.write("key", UNICODE);
+        OtpErlangTuple write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        // keys are always strings
+        assertEquals(new OtpErlangString("key"), write.elementAt(1));
+        final OtpErlangBinary value = (OtpErlangBinary) write.elementAt(2);
+        assertArrayEquals(UNICODE.getBytes("UTF-8"), value.binaryValue());
+        assertEquals(UNICODE, new ErlangValue(value).stringValue());
+
+        // strings inside lists
+        tx.write("key", Arrays.asList("a", UNICODE));
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        final OtpErlangList list = (OtpErlangList) ((EncodedTerm) write.elementAt(2)).decode();
+        assertEquals(Arrays.asList("a", UNICODE), new ErlangValue(list).stringListValue());
+        assertTrue(list.elementAt(1) instanceof OtpErlangBinary);
+
+        // compressed mode
+        tx.setCompressed(true);
+        tx.write("key", UNICODE);
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        final OtpErlangObject decoded = CommonErlangObjects.decode(write.elementAt(2));
+        assertTrue(decoded instanceof OtpErlangBinary);
+        assertEquals(UNICODE, new ErlangValue(decoded).stringValue());
+
+        // default mode
+        tx.setStringEncoding(StringEncoding.LIST);
+        tx.setCompressed(false);
+        tx.write("key", UNICODE);
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        assertEquals(new OtpErlangString(UNICODE), write.elementAt(2));
+    }
+
+    /**
+     * Test method for {@link StringEncoding#UTF8_BINARY} writing a value read
+     * before, i.e. the list <tt>[1,2,3]</tt> which JInterface decodes into an
+     * {@link OtpErlangString}: it must be written unchanged.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadWriteIntListUtf8() throws Exception {
+        final OtpErlangString intList = new OtpErlangString("\u0001\u0002\u0003");
+        final FakeConnection conn = new FakeConnection();
+        conn.setStringEncoding(StringEncoding.UTF8_BINARY);
+        conn.readValue = intList;
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+
+        final ErlangValue value = tx.read("key");
+        tx.write("key", value);
+        OtpErlangTuple write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        assertEquals(intList, write.elementAt(2));
+
+        // operations of request lists
+        tx.req_list(new TransactionSingleOp.RequestList(new WriteOp("key", value)));
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        assertEquals(intList, write.elementAt(2));
+        tx.req_list(new TransactionSingleOp.RequestList(new WriteOp("key", "a")));
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        assertEquals(new OtpErlangBinary("a".getBytes("UTF-8")), write.elementAt(2));
+
+        // inside a list (only the Java string is converted)
+        tx.write("key", Arrays.asList(value, "a"));
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        final OtpErlangList list = (OtpErlangList) ((EncodedTerm) write.elementAt(2)).decode();
+        assertEquals(intList, list.elementAt(0));
+        assertTrue(list.elementAt(1) instanceof OtpErlangBinary);
+
+        // compressed mode
+        tx.setCompressed(true);
+        conn.readValue = CommonErlangObjects.encode(intList);
+        tx.write("key", tx.read("key"));
+        write = (OtpErlangTuple) conn.getLastRequests().elementAt(0);
+        assertEquals(intList, CommonErlangObjects.decode(write.elementAt(2)));
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import de.zib.scalaris.operations.ReadOp;
+
+/**
+ * Test cases for the asynchronous requests of {@link AbstractTransaction}
+ * (using a {@link FakeErlangNode} instead of a Scalaris node).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class TransactionAsyncTest {
+    /**
+     * Answers <tt>req_list_commit_each</tt> and <tt>req_list</tt> (with an
+     * empty transaction log), reading the key as the value. Keys starting
+     * with "slow" are answered after 100ms, keys starting with "hang" not at
+     * all.
+     */
+    private static class Handler implements FakeErlangNode.Handler {
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger active = new AtomicInteger(0);
+        volatile int maxActive = 0;
+
+        public OtpErlangObject call(final String mod, final String fun,
+                final OtpErlangList args) throws Exception {
+            final int nowActive = active.incrementAndGet();
+            synchronized (this) {
+                maxActive = Math.max(maxActive, nowActive);
+            }
+            try {
+                final OtpErlangList reqs = (OtpErlangList) args.elementAt(args.arity() - 1);
+                final OtpErlangObject[] results = new OtpErlangObject[reqs.arity()];
+                for (int i = 0; i < reqs.arity(); ++i) {
+                    final OtpErlangTuple req = (OtpErlangTuple) reqs.elementAt(i);
+                    if (req.arity() == 1) {
+                        // commit
+                        results[i] = CommonErlangObjects.okTupleAtom;
+                        continue;
+                    }
+                    final String key = ((OtpErlangString) req.elementAt(1)).stringValue();
+                    keys.add(key);
+                    if (key.startsWith("hang")) {
+                        return null;
+                    } else if (key.startsWith("slow")) {
+                        Thread.sleep(100);
+                    }
+                    if (req.elementAt(0).equals(CommonErlangObjects.readAtom)) {
+                        results[i] = new OtpErlangTuple(new OtpErlangObject[] {
+                                CommonErlangObjects.okAtom, req.elementAt(1) });
+                    } else {
+                        results[i] = CommonErlangObjects.okTupleAtom;
+                    }
+                }
+                if (fun.equals("req_list")) {
+                    return new OtpErlangTuple(new OtpErlangObject[] {
+                            new OtpErlangList(), new OtpErlangList(results) });
+                }
+                return new OtpErlangList(results);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Executor refusing all tasks, i.e. asynchronous requests must not need
+     * any thread.
+     */
+    private static class NoThreads extends java.util.concurrent.AbstractExecutorService {
+        public void execute(final Runnable command) {
+            throw new RejectedExecutionException("no threads");
+        }
+
+        public void shutdown() {
+        }
+
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>();
+        }
+
+        public boolean isShutdown() {
+            return false;
+        }
+
+        public boolean isTerminated() {
+            return false;
+        }
+
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private static final ExecutorService noThreads = new NoThreads();
+
+    private MultiplexingNode mux;
+    private Handler handler;
+    private FakeErlangNode server;
+    private MultiplexedConnection conn;
+
+    /**
+     * Creates the local and the remote node.
+     *
+     * @throws Exception
+     *             if a node cannot be created
+     */
+    @Before
+    public void setUp() throws Exception {
+        mux = FakeErlangNode.createMultiplexingNode();
+        handler = new Handler();
+        server = new FakeErlangNode(handler);
+        conn = new MultiplexedConnection(mux, new DefaultConnectionPolicy(server.getPeer()));
+    }
+
+    /**
+     * Closes all nodes.
+     */
+    @After
+    public void tearDown() {
+        mux.close();
+        server.close();
+    }
+
+    /**
+     * Test method for {@link AbstractTransaction#readAsync(String)} on a
+     * {@link MultiplexedConnection}, i.e. without waiting threads.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadAsync() throws Exception {
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setExecutor(noThreads);
+        final List<String> keys = Arrays.asList("slow0", "k1", "slow2", "k3", "k4");
+        final List<Future<ErlangValue>> results = new ArrayList<Future<ErlangValue>>();
+        for (final String key : keys) {
+            results.add(tx.readAsync(key));
+        }
+        for (int i = 0; i < keys.size(); ++i) {
+            assertEquals(keys.get(i), results.get(i).get(5, TimeUnit.SECONDS).stringValue());
+        }
+        assertEquals(new HashSet<String>(keys), new HashSet<String>(handler.keys));
+    }
+
+    /**
+     * Test method for {@link AbstractTransaction#readAsync(String)} of a
+     * {@link TransactionSingleOp} on a {@link MultiplexedConnection} having
+     * all of its requests in flight at the same time.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadAsyncPipelined() throws Exception {
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setExecutor(noThreads);
+        final List<Future<ErlangValue>> results = new ArrayList<Future<ErlangValue>>();
+        for (int i = 0; i < 5; ++i) {
+            results.add(tx.readAsync("hang" + i));
+        }
+        for (int i = 0; (i < 500) && (handler.keys.size() != 5); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, handler.keys.size());
+        assertEquals(5, mux.getPendingCount());
+        for (final Future<ErlangValue> result : results) {
+            assertTrue(result.cancel(true));
+        }
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for {@link AbstractTransaction#writeAsync(String, Object)}
+     * and {@link AbstractTransaction#req_listAsync(RequestList)} of a
+     * {@link Transaction} sending its requests one after another.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testTransactionAsync() throws Exception {
+        final Transaction tx = new Transaction(conn);
+        tx.setCompressed(false);
+        tx.setExecutor(noThreads);
+        final Future<Void> write = tx.writeAsync("slow0", "value");
+        final Future<ErlangValue> read = tx.readAsync("k1");
+        final Transaction.RequestList commitReq = new Transaction.RequestList();
+        commitReq.addCommit();
+        final Future<Transaction.ResultList> commit = tx.req_listAsync(commitReq);
+        commit.get(5, TimeUnit.SECONDS).processCommitAt(0);
+        assertTrue(write.isDone());
+        assertEquals("k1", read.get().stringValue());
+        assertEquals(Arrays.asList("slow0", "k1"), handler.keys);
+        assertEquals(1, handler.maxActive);
+    }
+
+    /**
+     * Test method for {@link AbstractTransaction#req_listAsync(RequestList)}
+     * of a {@link Transaction} with cancelled requests (a queued request which
+     * has been cancelled is not sent at all).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testCancel() throws Exception {
+        final Transaction tx = new Transaction(conn);
+        tx.setCompressed(false);
+        tx.setExecutor(noThreads);
+        final Future<ErlangValue> hang = tx.readAsync("hang");
+        final Future<ErlangValue> cancelled = tx.readAsync("cancelled");
+        final Future<ErlangValue> last = tx.readAsync("k2");
+        assertTrue(cancelled.cancel(true));
+        assertFalse(last.isDone());
+        for (int i = 0; (i < 500) && handler.keys.isEmpty(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue(hang.cancel(true));
+        assertEquals("k2", last.get(5, TimeUnit.SECONDS).stringValue());
+        assertEquals(Arrays.asList("hang", "k2"), handler.keys);
+        assertEquals(0, mux.getPendingCount());
+    }
+
+    /**
+     * Test method for {@link AbstractTransaction#req_listAsync(RequestList)}
+     * on a plain {@link Connection} which needs a thread of the executor for
+     * each request.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqListAsyncBlocking() throws Exception {
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        final TransactionSingleOp tx = new TransactionSingleOp(new FakeConnection(handler));
+        tx.setCompressed(false);
+        final List<Future<TransactionSingleOp.ResultList>> results = new ArrayList<Future<TransactionSingleOp.ResultList>>();
+        for (int i = 0; i < 5; ++i) {
+            keys.add(((i % 2) == 0 ? "slow" : "k") + i);
+            results.add(tx.req_listAsync(new TransactionSingleOp.RequestList(
+                    new ReadOp(keys.get(i)))));
+        }
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(keys.get(i), results.get(i).get(5, TimeUnit.SECONDS)
+                    .processReadAt(0).stringValue());
+        }
+        assertEquals(new HashSet<String>(keys), new HashSet<String>(handler.keys));
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import de.zib.scalaris.TranslogTest.TlogConnection;
+import de.zib.scalaris.operations.ReadOp;
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Test cases for
+ * {@link Transaction#req_listParallel(Transaction.RequestList, ConnectionPool, int)}
+ * (using {@link TlogConnection}s instead of Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class TransactionParallelReadTest {
+    /**
+     * Pool handing out (at most <tt>max</tt>) {@link TlogConnection}s.
+     */
+    private static class TlogConnectionPool extends ConnectionPool {
+        final List<TlogConnection> created = new ArrayList<TlogConnection>();
+        final int max;
+        int inUse = 0;
+
+        TlogConnectionPool(final int max) {
+            super(new ConnectionFactory(new Properties()), max);
+            this.max = max;
+        }
+
+        @Override
+        public synchronized Connection getConnection() {
+            if (inUse == max) {
+                return null;
+            }
+            ++inUse;
+            final TlogConnection conn = new TlogConnection();
+            created.add(conn);
+            return conn;
+        }
+
+        @Override
+        public synchronized void releaseConnection(final Connection conn) {
+            --inUse;
+        }
+    }
+
+    /**
+     * Creates a request list reading the keys <tt>k0</tt> to
+     * <tt>k(count-1)</tt>.
+     *
+     * @param count
+     *            the number of reads
+     *
+     * @return the request list
+     */
+    private static Transaction.RequestList reads(final int count) {
+        final Transaction.RequestList req = new Transaction.RequestList();
+        for (int i = 0; i < count; ++i) {
+            req.addOp(new ReadOp("k" + i));
+        }
+        return req;
+    }
+
+    /**
+     * Test method for
+     * {@link Transaction#req_listParallel(Transaction.RequestList, ConnectionPool, int)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqListParallel() throws Exception {
+        final TlogConnection conn = new TlogConnection();
+        final Transaction tx = new Transaction(conn);
+        tx.setCompressed(false);
+        tx.read("k3");
+
+        final TlogConnectionPool pool = new TlogConnectionPool(2);
+        final Transaction.ResultList results = tx.req_listParallel(reads(10), pool, 4);
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("v", results.processReadAt(i).stringValue());
+        }
+        // 3 parts: one on the transaction's connection, two on pooled ones
+        assertEquals(2, conn.rpcs.get());
+        assertEquals(2, pool.created.size());
+        assertEquals(0, pool.inUse);
+        for (final TlogConnection pooled : pool.created) {
+            assertEquals(1, pooled.rpcs.get());
+        }
+        // only the part containing k3 sends the existing tlog entry
+        assertEquals(1, tx.getLastTlogSize());
+
+        // all tlogs have been merged:
+        tx.commit();
+        assertEquals(10, tx.getLastTlogSize());
+        assertEquals(10, ((OtpErlangList) conn.getLastTlog()).arity());
+    }
+
+    /**
+     * Collects the keys of the last request list sent over the given
+     * connection.
+     *
+     * @param conn
+     *            the connection
+     * @param keys
+     *            the set to add the keys to
+     *
+     * @return the number of operations of the request list
+     */
+    private static int collectKeys(final TlogConnection conn, final Set<String> keys) {
+        final OtpErlangList reqs = conn.getLastRequests();
+        for (final OtpErlangObject req : reqs) {
+            keys.add(((OtpErlangString) ((OtpErlangTuple) req).elementAt(1)).stringValue());
+        }
+        return reqs.arity();
+    }
+
+    /**
+     * Test method for
+     * {@link Transaction#req_listParallel(Transaction.RequestList, ConnectionPool, int)}
+     * with several reads of the same key (which must be sent in the same
+     * part).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqListParallelDuplicateKeys() throws Exception {
+        final TlogConnection conn = new TlogConnection();
+        final Transaction tx = new Transaction(conn);
+        tx.setCompressed(false);
+
+        final List<String> keys = Arrays.asList("k0", "k1", "k0", "k2", "k1", "k0", "k3", "k4");
+        final Transaction.RequestList req = new Transaction.RequestList();
+        for (final String key : keys) {
+            req.addOp(new ReadOp(key));
+        }
+        final TlogConnectionPool pool = new TlogConnectionPool(2);
+        final Transaction.ResultList results = tx.req_listParallel(req, pool, 3);
+        assertEquals(keys.size(), results.size());
+        for (int i = 0; i < keys.size(); ++i) {
+            assertEquals("v", results.processReadAt(i).stringValue());
+        }
+
+        // each part reads keys no other part reads
+        int sent = 0;
+        int distinct = 0;
+        final Set<String> sentKeys = new HashSet<String>();
+        final List<TlogConnection> conns = new ArrayList<TlogConnection>(pool.created);
+        conns.add(conn);
+        for (final TlogConnection part : conns) {
+            final Set<String> partKeys = new HashSet<String>();
+            sent += collectKeys(part, partKeys);
+            distinct += partKeys.size();
+            sentKeys.addAll(partKeys);
+        }
+        assertEquals(keys.size(), sent);
+        assertEquals(new HashSet<String>(keys), sentKeys);
+        assertEquals(sentKeys.size(), distinct);
+
+        tx.commit();
+        assertEquals(5, tx.getLastTlogSize());
+    }
+
+    /**
+     * Test method for
+     * {@link Transaction#req_listParallel(Transaction.RequestList, ConnectionPool, int)}
+     * with a request list containing a write.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqListParallelWrite() throws Exception {
+        final TlogConnection conn = new TlogConnection();
+        final Transaction tx = new Transaction(conn);
+        tx.setCompressed(false);
+        final TlogConnectionPool pool = new TlogConnectionPool(2);
+        try {
+            tx.req_listParallel((Transaction.RequestList) reads(2)
+                    .addOp(new WriteOp("a", "b")), pool, 2);
+            fail("expected UnsupportedOperationException");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(0, conn.rpcs.get());
+        assertEquals(0, pool.created.size());
+    }
+
+    /**
+     * Test method for
+     * {@link Transaction#req_listParallel(Transaction.RequestList, ConnectionPool, int)}
+     * with a {@link Transaction.FullTransLog} (which cannot merge the tlogs of
+     * several parts).
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReqListParallelFullTransLog() throws Exception {
+        final TlogConnection conn = new TlogConnection();
+        final Transaction tx = new Transaction(conn) {
+            @Override
+            protected Translog getTranslogImpl() {
+                return new FullTransLog();
+            }
+        };
+        tx.setCompressed(false);
+        final TlogConnectionPool pool = new TlogConnectionPool(2);
+        try {
+            tx.req_listParallel(reads(10), pool, 4);
+            fail("expected UnsupportedOperationException");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(0, conn.rpcs.get());
+        assertEquals(0, pool.created.size());
+    }
+}
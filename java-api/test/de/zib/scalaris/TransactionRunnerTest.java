@@ -0,0 +1,235 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+/**
+ * Test cases for the {@link TransactionRunner} class (using a connection
+ * which simulates aborting commits without connecting to Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class TransactionRunnerTest {
+    /**
+     * Connection answering each operation with <tt>{ok}</tt> and aborting
+     * the first {@link #abortsLeft} commits with the given keys.
+     */
+    private static class AbortingConnection extends FakeConnection {
+        int abortsLeft;
+        String[] failedKeys;
+        int commits = 0;
+
+        AbortingConnection(final int aborts, final String... failedKeys) {
+            this.abortsLeft = aborts;
+            this.failedKeys = failedKeys;
+        }
+
+        @Override
+        protected OtpErlangObject answer(final OtpErlangTuple op) throws ConnectionException {
+            if (!op.equals(CommonErlangObjects.commitTupleAtom)) {
+                return super.answer(op);
+            }
+            ++commits;
+            if (abortsLeft == 0) {
+                return CommonErlangObjects.okTupleAtom;
+            }
+            --abortsLeft;
+            final OtpErlangObject[] keys = new OtpErlangObject[failedKeys.length];
+            for (int j = 0; j < keys.length; ++j) {
+                keys[j] = new OtpErlangString(failedKeys[j]);
+            }
+            return new OtpErlangTuple(new OtpErlangObject[] {
+                    CommonErlangObjects.failAtom, CommonErlangObjects.abortAtom,
+                    new OtpErlangList(keys) });
+        }
+    }
+
+    private static final TransactionRunner.TxBody<Integer> writeBody = new TransactionRunner.TxBody<Integer>() {
+        public Integer run(final Transaction tx) throws OtpErlangException {
+            tx.write("hot", "value");
+            return 42;
+        }
+    };
+
+    /**
+     * Test method for {@link TransactionRunner#run(TransactionRunner.TxBody)}
+     * with a transaction that succeeds after some aborts.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRunRetry() throws Exception {
+        final AbortingConnection conn = new AbortingConnection(3, "hot", "other");
+        final TransactionRunner runner = new TransactionRunner(conn);
+        runner.setInitialDelay(1);
+        runner.setMaxDelay(4);
+
+        assertEquals(Integer.valueOf(42), runner.run(writeBody));
+        assertEquals(4, conn.commits);
+        assertEquals(1, runner.getCommits());
+        assertEquals(3, runner.getAborts());
+        assertEquals(0, runner.getFailures());
+        assertEquals(Long.valueOf(3), runner.getAbortCounts().get("hot"));
+        assertEquals(Long.valueOf(3), runner.getAbortCounts().get("other"));
+
+        runner.resetStatistics();
+        assertEquals(0, runner.getAborts());
+        assertTrue(runner.getAbortCounts().isEmpty());
+    }
+
+    /**
+     * Test method for {@link TransactionRunner#run(TransactionRunner.TxBody)}
+     * with an exhausted retry budget.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRunRetryBudget() throws Exception {
+        final AbortingConnection conn = new AbortingConnection(10, "hot");
+        final TransactionRunner runner = new TransactionRunner(conn);
+        runner.setInitialDelay(0);
+        runner.setMaxRetries(2);
+        try {
+            runner.run(writeBody);
+            fail("expected AbortException");
+        } catch (final AbortException e) {
+            assertEquals(Arrays.asList("hot"), e.getFailedKeys());
+        }
+        assertEquals(3, conn.commits);
+        assertEquals(3, runner.getAborts());
+        assertEquals(1, runner.getFailures());
+        assertEquals(0, runner.getCommits());
+    }
+
+    /**
+     * Test method for {@link TransactionRunner#run(TransactionRunner.TxBody)}
+     * with a deadline which does not allow any retry.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testRunDeadline() throws Exception {
+        final AbortingConnection conn = new AbortingConnection(10, "hot");
+        final TransactionRunner runner = new TransactionRunner(conn);
+        runner.setInitialDelay(10000);
+        runner.setMaxDelay(10000);
+        runner.setTimeout(1);
+        // allow a few retries in case of (unlikely) very small random delays
+        try {
+            runner.run(writeBody);
+            fail("expected AbortException");
+        } catch (final AbortException e) {
+            // ok
+        }
+        assertTrue(conn.commits < 10);
+        assertEquals(1, runner.getFailures());
+    }
+
+    /**
+     * Test method for {@link TransactionRunner#getHotKeys(int)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testGetHotKeys() throws Exception {
+        final AbortingConnection conn = new AbortingConnection(2, "a", "b");
+        final TransactionRunner runner = new TransactionRunner(conn);
+        runner.setInitialDelay(0);
+        assertTrue(runner.getHotKeys(5).isEmpty());
+
+        runner.run(writeBody);
+        conn.abortsLeft = 1;
+        conn.failedKeys = new String[] { "a" };
+        runner.run(writeBody);
+
+        final List<Map.Entry<String, Long>> hot = runner.getHotKeys(1);
+        assertEquals(1, hot.size());
+        assertEquals("a", hot.get(0).getKey());
+        assertEquals(Long.valueOf(3), hot.get(0).getValue());
+        final List<Map.Entry<String, Long>> all = runner.getHotKeys(5);
+        assertEquals(2, all.size());
+        assertEquals("b", all.get(1).getKey());
+        assertEquals(Long.valueOf(2), all.get(1).getValue());
+    }
+
+    /**
+     * Test method for {@link TransactionRunner#setMaxTrackedKeys(int)}
+     * bounding the number of keys in {@link TransactionRunner#getAbortCounts()}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testMaxTrackedKeys() throws Exception {
+        final AbortingConnection conn = new AbortingConnection(20, "hot");
+        final TransactionRunner runner = new TransactionRunner(conn);
+        runner.setInitialDelay(0);
+        runner.setMaxRetries(20);
+        assertEquals(1000, runner.getMaxTrackedKeys());
+        runner.setMaxTrackedKeys(2);
+        runner.run(writeBody);
+        for (int i = 0; i < 10; ++i) {
+            conn.abortsLeft = 1;
+            conn.failedKeys = new String[] { "cold" + i };
+            runner.run(writeBody);
+        }
+
+        final Map<String, Long> counts = runner.getAbortCounts();
+        assertEquals(2, counts.size());
+        assertEquals(Long.valueOf(20), counts.get("hot"));
+        // the last key took over the counts of all keys it replaced:
+        assertEquals(Long.valueOf(10), counts.get("cold9"));
+
+        runner.setMaxTrackedKeys(1);
+        assertEquals(Arrays.asList("hot"),
+                Arrays.asList(runner.getAbortCounts().keySet().toArray()));
+    }
+
+    /**
+     * Test method for {@link TransactionRunner#backoffDelay(long, long, int)}.
+     */
+    @Test
+    public final void testBackoffDelay() {
+        for (int i = 0; i < 100; ++i) {
+            final long delay = TransactionRunner.backoffDelay(10, 50, i % 8);
+            assertTrue(delay >= 0);
+            assertTrue(delay <= Math.min(50, 10 << (i % 8)));
+        }
+        assertEquals(0, TransactionRunner.backoffDelay(0, 50, 3));
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+/**
+ * Test cases for {@link TransactionSingleOp#readMany(java.util.Collection)}
+ * and {@link TransactionSingleOp#writeMany(Map)} (using a connection which
+ * simulates <tt>req_list_commit_each</tt> without connecting to Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class TransactionSingleOpBulkTest {
+    /**
+     * Connection answering reads with <tt>{ok, Key}</tt> and writes with
+     * <tt>{ok}</tt>. Reads of keys starting with "missing" fail with
+     * <tt>not_found</tt>, writes of keys starting with "conflict" with
+     * <tt>abort</tt> and requests containing a key starting with "down" with
+     * a {@link ConnectionException}.
+     */
+    private static class BulkConnection extends FakeConnection {
+        @Override
+        protected OtpErlangObject answer(final OtpErlangTuple op) throws ConnectionException {
+            final String key = ((OtpErlangString) op.elementAt(1)).stringValue();
+            if (key.startsWith("down")) {
+                throw new ConnectionException("node down");
+            } else if (op.elementAt(0).equals(CommonErlangObjects.readAtom)) {
+                if (key.startsWith("missing")) {
+                    return new OtpErlangTuple(new OtpErlangObject[] {
+                            CommonErlangObjects.failAtom, CommonErlangObjects.notFoundAtom });
+                }
+            } else if (key.startsWith("conflict")) {
+                return new OtpErlangTuple(new OtpErlangObject[] {
+                        CommonErlangObjects.failAtom, CommonErlangObjects.abortAtom,
+                        new OtpErlangList(op.elementAt(1)) });
+            }
+            return super.answer(op);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link TransactionSingleOp#readMany(java.util.Collection, Map)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadMany() throws Exception {
+        final BulkConnection conn = new BulkConnection();
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setMaxChunkOps(3);
+
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 10; ++i) {
+            keys.add("k" + i);
+        }
+        keys.add("k0");
+        keys.add("missing");
+        final Map<String, Exception> failures = new HashMap<String, Exception>();
+        final Map<String, ErlangValue> values = tx.readMany(keys, failures);
+
+        assertEquals(10, values.size());
+        assertEquals(keys.subList(0, 10), new ArrayList<String>(values.keySet()));
+        assertEquals("k7", values.get("k7").stringValue());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get("missing") instanceof NotFoundException);
+        // 11 distinct keys in chunks of 3
+        assertEquals(4, conn.requestSizes.size());
+        assertEquals(11, sum(conn.requestSizes));
+        assertEquals(3, (int) Collections.max(conn.requestSizes));
+
+        assertTrue(tx.readMany(Collections.<String>emptyList()).isEmpty());
+        assertTrue(tx.writeMany(Collections.<String, Object>emptyMap()).isEmpty());
+        assertEquals(4, conn.requestSizes.size());
+    }
+
+    /**
+     * Test method for
+     * {@link TransactionSingleOp#readMany(java.util.Collection, Map)} with
+     * keys which are not encoded as byte strings.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadManyUnicodeKeys() throws Exception {
+        final BulkConnection conn = new BulkConnection();
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setMaxChunkBytes(300);
+
+        final char[] chars = new char[20];
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 6; ++i) {
+            Arrays.fill(chars, (char) (0x0400 + i));
+            keys.add(new String(chars));
+        }
+        // each key is a list of 20 integers with 5 bytes each
+        assertEquals(6, tx.readMany(keys).size());
+        assertEquals(Arrays.asList(2, 2, 2), conn.requestSizes);
+    }
+
+    /**
+     * Test method for {@link TransactionSingleOp#estimateSize(String)}.
+     */
+    @Test
+    public final void testEstimateSize() {
+        final char[] longKey = new char[70000];
+        Arrays.fill(longKey, 'a');
+        for (final String key : Arrays.asList("", "key", "k\u00e4y",
+                "\u043a\u043b\u044e\u0447", "k\u043bey", "\ud83d\ude00",
+                new String(longKey))) {
+            final OtpOutputStream out = new OtpOutputStream();
+            new OtpErlangString(key).encode(out);
+            assertEquals(out.size(), TransactionSingleOp.estimateSize(key));
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link TransactionSingleOp#readMany(java.util.Collection, Map)} with a
+     * chunk failing due to a connection error.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testReadManyConnectionFailure() throws Exception {
+        final BulkConnection conn = new BulkConnection();
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setMaxChunkOps(2);
+
+        final Map<String, Exception> failures = new HashMap<String, Exception>();
+        final Map<String, ErlangValue> values = tx.readMany(
+                Arrays.asList("a", "b", "c", "down"), failures);
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(values.keySet()));
+        assertEquals(2, failures.size());
+        assertTrue(failures.get("c") instanceof ConnectionException);
+        assertTrue(failures.get("down") instanceof ConnectionException);
+    }
+
+    /**
+     * Test method for {@link TransactionSingleOp#writeMany(Map)}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testWriteMany() throws Exception {
+        final BulkConnection conn = new BulkConnection();
+        final TransactionSingleOp tx = new TransactionSingleOp(conn);
+        tx.setCompressed(false);
+        tx.setMaxChunkBytes(1000);
+
+        final char[] large = new char[600];
+        Arrays.fill(large, 'x');
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("a", new String(large));
+        values.put("b", new String(large));
+        values.put("conflict", 1);
+        values.put("c", Arrays.asList(1, 2, 3));
+        final Map<String, Exception> failures = tx.writeMany(values);
+
+        assertEquals(1, failures.size());
+        final AbortException abort = (AbortException) failures.get("conflict");
+        assertEquals(Arrays.asList("conflict"), abort.getFailedKeys());
+        // the large values do not fit into a single chunk
+        assertEquals(Arrays.asList(1, 3), sorted(conn.requestSizes));
+    }
+
+    private static int sum(final List<Integer> values) {
+        int result = 0;
+        for (final int value : values) {
+            result += value;
+        }
+        return result;
+    }
+
+    private static List<Integer> sorted(final List<Integer> values) {
+        final List<Integer> result = new ArrayList<Integer>(values);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *  Copyright 2016 Zuse Institute Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package de.zib.scalaris;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+
+import de.zib.scalaris.operations.ReadOp;
+import de.zib.scalaris.operations.WriteOp;
+
+/**
+ * Test cases for the {@link Transaction.Translog} implementations (using a
+ * connection which simulates <tt>api_tx:req_list/2</tt> without connecting
+ * to Scalaris).
+ *
+ * @author Nico Kruber, kruber@zib.de
+ *
+ * @version 3.21
+ * @since 3.21
+ */
+public class TranslogTest {
+    private static final OtpErlangAtom entryAtom = new OtpErlangAtom("entry");
+
+    private static OtpErlangTuple entry(final String key, final String value) {
+        return new OtpErlangTuple(new OtpErlangObject[] { entryAtom,
+                new OtpErlangString(key), new OtpErlangString(value) });
+    }
+
+    private static OtpErlangList tlog(final OtpErlangTuple... entries) {
+        return new OtpErlangList(entries);
+    }
+
+    /**
+     * Connection returning a tlog entry for each request and answering reads
+     * with <tt>{ok, "v"}</tt>.
+     */
+    static class TlogConnection extends FakeConnection {
+        TlogConnection() {
+            readValue = new OtpErlangString("v");
+        }
+
+        @Override
+        protected OtpErlangList tlog(final OtpErlangList reqs) {
+            final List<OtpErlangObject> entries = new ArrayList<OtpErlangObject>();
+            for (final OtpErlangObject req : reqs) {
+                if (((OtpErlangTuple) req).arity() > 1) {
+                    entries.add(entry(((OtpErlangString) ((OtpErlangTuple) req)
+                            .elementAt(1)).stringValue(), "v"));
+                }
+            }
+            return new OtpErlangList(entries.toArray(new OtpErlangObject[entries.size()]));
+        }
+
+        /**
+         * Gets the tlog sent with the last request (decoded as it would
+         * arrive at Scalaris).
+         *
+         * @return the tlog or <tt>null</tt> if none was sent
+         */
+        OtpErlangObject getLastTlog() {
+            if (lastArgs.arity() == 1) {
+                return null;
+            }
+            try {
+                return ((EncodedTerm) lastArgs.elementAt(0)).decode();
+            } catch (final Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link Transaction.FilteringTransLog}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testFilteringTransLog() throws Exception {
+        final Transaction.FilteringTransLog tlog = new Transaction.FilteringTransLog();
+        tlog.merge(tlog(entry("a", "1"), entry("b", "2"), entry("c", "3")));
+
+        final Transaction.RequestList req = new Transaction.RequestList();
+        req.addOp(new ReadOp("c")).addOp(new WriteOp("a", "x")).addOp(new ReadOp("a"))
+                .addOp(new ReadOp("d"));
+        final OtpErlangObject filtered = tlog.filter(req);
+        assertEquals(tlog(entry("c", "3"), entry("a", "1")), ((EncodedTerm) filtered).decode());
+        assertArrayEquals(Transaction.encodeTerm(tlog(entry("c", "3"), entry("a", "1"))),
+                ((EncodedTerm) filtered).getBytes());
+        assertEquals(new OtpErlangList(),
+                ((EncodedTerm) tlog.filter(new Transaction.RequestList().addOp(new ReadOp("x")))).decode());
+
+        final Transaction.RequestList commit = (Transaction.RequestList) new Transaction.RequestList().addCommit();
+        final OtpErlangObject all = tlog.filter(commit);
+        assertEquals(tlog(entry("a", "1"), entry("b", "2"), entry("c", "3")),
+                ((EncodedTerm) all).decode());
+        // the commit payload is re-used until the tlog changes
+        assertSame(all, tlog.filter(commit));
+        tlog.merge(tlog(entry("b", "4")));
+        assertEquals(tlog(entry("a", "1"), entry("b", "4"), entry("c", "3")),
+                ((EncodedTerm) tlog.filter(commit)).decode());
+        tlog.reset();
+        assertEquals(new OtpErlangList(), ((EncodedTerm) tlog.filter(commit)).decode());
+    }
+
+    /**
+     * Test method for {@link Transaction#getLastTlogSize()} and
+     * {@link Transaction#getLastTlogBytes()}.
+     *
+     * @throws Exception
+     *             if the test fails
+     */
+    @Test
+    public final void testLastTlogSize() throws Exception {
+        final TlogConnection conn = new TlogConnection();
+        final Transaction tx = new Transaction(conn);
+        tx.setCompressed(false);
+
+        tx.read("a");
+        assertEquals(0, tx.getLastTlogSize());
+        assertEquals(0, tx.getLastTlogBytes());
+
+        tx.read("b");
+        // only entries of the requested keys are sent
+        assertEquals(0, tx.getLastTlogSize());
+        assertEquals(new OtpErlangList(), conn.getLastTlog());
+
+        tx.write("a", "x");
+        assertEquals(1, tx.getLastTlogSize());
+        assertEquals(tlog(entry("a", "v")), conn.getLastTlog());
+        assertEquals(Transaction.encodeTerm(conn.getLastTlog()).length, tx.getLastTlogBytes());
+
+        tx.commit();
+        assertEquals(2, tx.getLastTlogSize());
+        assertEquals(tlog(entry("a", "v"), entry("b", "v")), conn.getLastTlog());
+    }
+}
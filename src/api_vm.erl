@@ -21,7 +21,8 @@
 -vsn('$Id$').
 
 -export([get_version/0, get_info/0,
-         number_of_nodes/0, get_nodes/0, add_nodes/1, add_nodes_at_ids/1,
+         number_of_nodes/0, get_nodes/0, get_node_ranges/0,
+         add_nodes/1, add_nodes_at_ids/1,
          shutdown_node/1, shutdown_nodes/1, shutdown_nodes_by_name/1,
          kill_node/1, kill_nodes/1, kill_nodes_by_name/1,
          get_other_vms/1,
@@ -63,6 +64,18 @@ get_nodes() ->
     [pid_groups:group_of(Pid) || Pid <- pid_groups:find_all(dht_node),
                                  DhtModule:is_alive(gen_component:get_state(Pid))].
 
+%% @doc Gets the key ranges the (alive) Scalaris nodes inside this VM are
+%%      responsible for as a list of simple intervals.
+-spec get_node_ranges() -> [intervals:simple_interval2()].
+get_node_ranges() ->
+    DhtModule = config:read(dht_node),
+    [intervals:get_bounds(intervals:simple_interval_to_interval(SInterval))
+       || Pid <- pid_groups:find_all(dht_node),
+          State <- [gen_component:get_state(Pid)],
+          DhtModule:is_alive(State),
+          SInterval <- intervals:get_simple_intervals(
+                         dht_node_state:get(State, my_range))].
+
 %% userdevguide-begin api_vm:add_nodes
 %% @doc Adds Number Scalaris nodes to this VM.
 -spec add_nodes(non_neg_integer()) -> {[pid_groups:groupname()], [{error, term()}]}.